@@ -0,0 +1,300 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides when a request may run. At most {@code maxActive} actions execute
+ * at once; beyond that, or when the request's account or action is at its
+ * own cap, it waits in a bounded queue. Freed slots go to the highest
+ * priority class first (FIFO within a class), skipping waiters whose account
+ * or action is still full, so one account's ten devices or a wave of
+ * re-authentications cannot hold every slot. A full queue or a wait longer
+ * than {@code maxWaitMs} is shed with 429 and Retry-After.
+ *
+ * No thread waits here. A queued request is a {@link Waiter} that is called
+ * back by whichever request frees its slot, or by one timer thread when its
+ * wait runs out; front ends that cannot suspend a request
+ * ({@link #acquire(String, String)}) get 429 at once instead of queueing.
+ *
+ *   zpush.shim.admission.maxActive      actions running at once (default 32, 0 = no admission control)
+ *   zpush.shim.admission.maxQueued      requests waiting (default 128)
+ *   zpush.shim.admission.maxWaitMs      longest wait before 429 (default 10000)
+ *   zpush.shim.admission.perAccount     running actions per account (default 4)
+ *   zpush.shim.admission.action.NAME    running NAME actions (defaults: authenticate 8,
+ *                                       getcontacts 4, getappointments 4, search 4, sendmail 8)
+ *   zpush.shim.admission.retryAfter     Retry-After seconds on 429 (default 2)
+ */
+final class AdmissionController {
+    /** Priority classes, highest first. */
+    enum Priority {
+        /** A user is looking at the device: single items, sends, typeahead. */
+        INTERACTIVE,
+        /** Folder listings and searches. */
+        STANDARD,
+        /** Full address book/calendar syncs and authentication (with its slow fallbacks). */
+        BULK;
+
+        static Priority of(String action) {
+            switch (action) {
+                case "getmessage": case "getattachment": case "getcontactphoto": case "searchgal":
+                case "sendmail": case "applychanges": case "getfolders": case "getfoldercounters": case "getuserinfo":
+                case "getsyncstate": case "putsyncstate":
+                    return INTERACTIVE;
+                case "getcontacts": case "getappointments": case "authenticate":
+                    return BULK;
+                default:
+                    return STANDARD;
+            }
+        }
+    }
+
+    /** 429 with the Retry-After the dispatcher sends along. */
+    static final class Rejected extends ShimException {
+        private static final long serialVersionUID = 1L;
+
+        final int retryAfter;
+
+        Rejected(String message, int retryAfter) {
+            super(429, message);
+            this.retryAfter = retryAfter;
+        }
+    }
+
+    /** An admitted request; pass it to {@link #release}. */
+    static final class Ticket {
+        final String account;
+        final String action;
+        final Priority priority;
+        final long queuedAt = System.nanoTime();
+        boolean granted;
+        // Set while queued
+        Waiter waiter;
+        ScheduledFuture<?> expiry;
+
+        Ticket(String account, String action, Priority priority) {
+            this.account = account;
+            this.action = action;
+            this.priority = priority;
+        }
+    }
+
+    /** A queued request; exactly one of the methods is called, without the controller's monitor held. */
+    interface Waiter {
+        void granted(Ticket t);
+
+        void rejected(Rejected e);
+    }
+
+    private static final String[] DEFAULT_ACTION_CAPS = {
+            "authenticate", "8", "getcontacts", "4", "getappointments", "4", "search", "4", "sendmail", "8" };
+
+    private final int maxActive;
+    private final int maxQueued;
+    private final long maxWaitMs;
+    private final int perAccount;
+    private final int retryAfter;
+    private final Map<String, Integer> actionCaps;
+
+    // Guarded by this
+    private final ArrayDeque<Ticket>[] waiting;
+    private int queued;
+    private int running;
+    private final Map<String, int[]> runningByAccount = new HashMap<>();
+    private final Map<String, int[]> runningByAction = new HashMap<>();
+    private ScheduledThreadPoolExecutor timer;
+
+    final AtomicLong admitted = new AtomicLong();
+    final AtomicLong delayed = new AtomicLong();
+    final AtomicLong rejectedFull = new AtomicLong();
+    final AtomicLong rejectedWait = new AtomicLong();
+    final AtomicLong waitMicros = new AtomicLong();
+    private final AtomicLong[] admittedByPriority = { new AtomicLong(), new AtomicLong(), new AtomicLong() };
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    AdmissionController(int maxActive, int maxQueued, long maxWaitMs, int perAccount, int retryAfter, Map<String, Integer> actionCaps) {
+        this.maxActive = maxActive;
+        this.maxQueued = Math.max(0, maxQueued);
+        this.maxWaitMs = Math.max(0, maxWaitMs);
+        this.perAccount = perAccount > 0 ? perAccount : Integer.MAX_VALUE;
+        this.retryAfter = Math.max(1, retryAfter);
+        this.actionCaps = actionCaps;
+        this.waiting = new ArrayDeque[Priority.values().length];
+        for (int i = 0; i < waiting.length; i++) waiting[i] = new ArrayDeque<>();
+    }
+
+    static AdmissionController fromConfig() {
+        Map<String, Integer> caps = new HashMap<>();
+        for (int i = 0; i < DEFAULT_ACTION_CAPS.length; i += 2) caps.put(DEFAULT_ACTION_CAPS[i], Integer.parseInt(DEFAULT_ACTION_CAPS[i + 1]));
+        for (ShimAction a : ShimAction.values()) {
+            if (a == ShimAction.UNKNOWN) continue;
+            int cap = ShimConfig.getInt("zpush.shim.admission.action." + a.wireName(), caps.getOrDefault(a.wireName(), 0));
+            if (cap > 0) caps.put(a.wireName(), cap); else caps.remove(a.wireName());
+        }
+        return new AdmissionController(ShimConfig.getInt("zpush.shim.admission.maxActive", 32),
+                ShimConfig.getInt("zpush.shim.admission.maxQueued", 128),
+                ShimConfig.getLong("zpush.shim.admission.maxWaitMs", 10_000L),
+                ShimConfig.getInt("zpush.shim.admission.perAccount", 4),
+                ShimConfig.getInt("zpush.shim.admission.retryAfter", 2),
+                caps);
+    }
+
+    boolean enabled() { return maxActive > 0; }
+
+    /** A slot for {@code action} of {@code account} if one is free now, else null. */
+    Ticket tryAcquire(String account, String action) {
+        Ticket t = ticket(account, action);
+        synchronized (this) {
+            if (!canRun(t)) return null;
+            start(t);
+            return t;
+        }
+    }
+
+    /**
+     * A slot for a front end that cannot park the request: throws
+     * {@link Rejected} instead of queueing when none is free.
+     */
+    Ticket acquire(String account, String action) throws Rejected {
+        Ticket t = tryAcquire(account, action);
+        if (t != null) return t;
+        rejectedFull.incrementAndGet();
+        throw new Rejected("too many requests", retryAfter);
+    }
+
+    /**
+     * Admits {@code action} of {@code account} now ({@code waiter} is called
+     * before this returns) or queues it until a slot frees or
+     * {@code maxWaitMs} passes. Throws {@link Rejected} when the queue is full.
+     */
+    void acquire(String account, String action, Waiter waiter) throws Rejected {
+        Ticket t = ticket(account, action);
+        synchronized (this) {
+            if (!canRun(t)) {
+                if (queued >= maxQueued) {
+                    rejectedFull.incrementAndGet();
+                    throw new Rejected("too many requests", retryAfter);
+                }
+                t.waiter = waiter;
+                waiting[t.priority.ordinal()].addLast(t);
+                queued++;
+                delayed.incrementAndGet();
+                if (timer == null) {
+                    timer = new ScheduledThreadPoolExecutor(1, r -> {
+                        Thread th = new Thread(r, "zpush-shim-admission");
+                        th.setDaemon(true);
+                        return th;
+                    });
+                    timer.setRemoveOnCancelPolicy(true);
+                }
+                t.expiry = timer.schedule(() -> expire(t), maxWaitMs, TimeUnit.MILLISECONDS);
+                return;
+            }
+            start(t);
+        }
+        waiter.granted(t);
+    }
+
+    /** Ends an admitted request and hands its slot to the best waiter. */
+    void release(Ticket t) {
+        List<Ticket> woken = new ArrayList<>();
+        synchronized (this) {
+            running--;
+            decrement(runningByAccount, t.account);
+            decrement(runningByAction, t.action);
+            for (ArrayDeque<Ticket> q : waiting) {
+                for (Iterator<Ticket> it = q.iterator(); it.hasNext() && running < maxActive; ) {
+                    Ticket w = it.next();
+                    if (!canRun(w)) continue;
+                    it.remove();
+                    queued--;
+                    start(w);
+                    woken.add(w);
+                }
+            }
+        }
+        for (Ticket w : woken) {
+            w.expiry.cancel(false);
+            waitMicros.addAndGet((System.nanoTime() - w.queuedAt) / 1000L);
+            w.waiter.granted(w);
+        }
+    }
+
+    private void expire(Ticket t) {
+        synchronized (this) {
+            if (t.granted || !waiting[t.priority.ordinal()].remove(t)) return;
+            queued--;
+        }
+        rejectedWait.incrementAndGet();
+        t.waiter.rejected(new Rejected("too many requests", retryAfter));
+    }
+
+    /** Running/queued gauges and counters, per priority class too. */
+    Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        synchronized (this) {
+            m.put("maxActive", maxActive);
+            m.put("running", running);
+            m.put("queued", queued);
+            Map<String, Object> q = new LinkedHashMap<>();
+            for (Priority p : Priority.values()) q.put(p.name().toLowerCase(Locale.ROOT), waiting[p.ordinal()].size());
+            m.put("queuedByPriority", q);
+            Map<String, Object> a = new LinkedHashMap<>();
+            for (Map.Entry<String, int[]> e : runningByAction.entrySet()) a.put(e.getKey(), e.getValue()[0]);
+            m.put("runningByAction", a);
+            m.put("accounts", runningByAccount.size());
+        }
+        m.put("admitted", admitted.get());
+        Map<String, Object> ap = new LinkedHashMap<>();
+        for (Priority p : Priority.values()) ap.put(p.name().toLowerCase(Locale.ROOT), admittedByPriority[p.ordinal()].get());
+        m.put("admittedByPriority", ap);
+        m.put("delayed", delayed.get());
+        m.put("rejectedQueueFull", rejectedFull.get());
+        m.put("rejectedWait", rejectedWait.get());
+        long d = delayed.get() - rejectedWait.get();
+        m.put("avgWaitMs", d > 0 ? waitMicros.get() / d / 1000.0 : 0.0);
+        return m;
+    }
+
+    private static Ticket ticket(String account, String action) {
+        return new Ticket(account != null ? account : "", action.toLowerCase(Locale.ROOT), Priority.of(action));
+    }
+
+    // Caller holds the monitor
+    private boolean canRun(Ticket t) {
+        if (running >= maxActive) return false;
+        int[] acct = runningByAccount.get(t.account);
+        if (acct != null && acct[0] >= perAccount) return false;
+        Integer cap = actionCaps.get(t.action);
+        int[] act = runningByAction.get(t.action);
+        return cap == null || act == null || act[0] < cap;
+    }
+
+    private void start(Ticket t) {
+        t.granted = true;
+        running++;
+        runningByAccount.computeIfAbsent(t.account, k -> new int[1])[0]++;
+        runningByAction.computeIfAbsent(t.action, k -> new int[1])[0]++;
+        admitted.incrementAndGet();
+        admittedByPriority[t.priority.ordinal()].incrementAndGet();
+    }
+
+    private static void decrement(Map<String, int[]> m, String key) {
+        int[] n = m.get(key);
+        if (n != null && --n[0] <= 0) m.remove(key);
+    }
+}
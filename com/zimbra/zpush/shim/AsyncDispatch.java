@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import com.zimbra.common.util.ZimbraLog;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs slow actions off the container's threads. mailboxd's Jetty pool also
+ * serves SOAP, IMAP-over-HTTP and the web client, so a handful of multi-second
+ * listings or auth fallbacks must not hold its workers. For the configured
+ * actions the request is put into async mode and dispatched on a bounded pool
+ * of shim threads; the Jetty thread returns at once. Everything else, and
+ * every request when the container does not support async, runs inline.
+ *
+ * Admission is settled here, before the handoff. A request that finds no free
+ * slot is suspended, async whatever its action, and goes to the pool once
+ * {@link AdmissionController} grants it one (or answers 429), so a queued
+ * request holds neither a container nor a shim thread.
+ *
+ *   zpush.shim.async.threads    pool threads (default 16, 0 = always inline)
+ *   zpush.shim.async.queue      requests waiting for a thread (default 256;
+ *                               beyond that 503 with Retry-After)
+ *   zpush.shim.async.timeoutMs  async timeout (default 120000; 503 when
+ *                               nothing was written yet)
+ *   zpush.shim.async.actions    comma list of actions to run async
+ *                               (default {@link #DEFAULT_ACTIONS})
+ *
+ * Output is still written with blocking streams, but on a pool thread, so a
+ * slow client holds a shim thread and not a container one. Which side may
+ * touch the servlet response is settled once per request by {@link Exchange}.
+ */
+final class AsyncDispatch {
+    static final String DEFAULT_ACTIONS = "authenticate,getmessages,getconversations,getcontacts,"
+            + "getappointments,getfreebusy,applychanges,sendmail,search,searchgal,putsyncstate";
+
+    private final ShimDispatcher dispatcher;
+    private final Set<String> actions;
+    private final long timeoutMs;
+    private final ThreadPoolExecutor pool;
+
+    final AtomicLong rejected = new AtomicLong();
+    final AtomicLong timedOut = new AtomicLong();
+
+    AsyncDispatch(ShimDispatcher dispatcher, int threads, int queue, long timeoutMs, Set<String> actions) {
+        this.dispatcher = dispatcher;
+        this.actions = actions;
+        this.timeoutMs = timeoutMs;
+        if (threads <= 0) {
+            this.pool = null;
+            return;
+        }
+        AtomicInteger n = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queue)), r -> {
+                    Thread t = new Thread(r, "zpush-shim-async-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    static AsyncDispatch fromConfig(ShimDispatcher dispatcher) {
+        Set<String> actions = new HashSet<>();
+        for (String a : ShimConfig.get("zpush.shim.async.actions", DEFAULT_ACTIONS).split(",")) {
+            if (!a.trim().isEmpty()) actions.add(a.trim().toLowerCase(Locale.ROOT));
+        }
+        return new AsyncDispatch(dispatcher,
+                ShimConfig.getInt("zpush.shim.async.threads", 16),
+                ShimConfig.getInt("zpush.shim.async.queue", 256),
+                ShimConfig.getLong("zpush.shim.async.timeoutMs", 120_000L),
+                actions);
+    }
+
+    /** Dispatches {@code req}, on the pool when {@code action} is one of the async actions or has to queue. */
+    void handle(HttpServletRequest req, HttpServletResponse resp, String action) throws IOException {
+        ShimRequest sreq = new ServletShimRequest(req);
+        if (pool == null || !req.isAsyncSupported()) {
+            dispatcher.dispatch(sreq, new ServletShimResponse(resp));
+            return;
+        }
+        ShimDispatcher.Pass pass = dispatcher.tryAdmit(sreq);
+        if (pass.granted() && (action == null || !actions.contains(action.toLowerCase(Locale.ROOT)))) {
+            dispatcher.dispatch(sreq, new ServletShimResponse(resp), pass);
+            return;
+        }
+        AsyncContext async = req.startAsync();
+        async.setTimeout(timeoutMs);
+        Exchange x = new Exchange(async, resp);
+        async.addListener(new AsyncListener() {
+            @Override
+            public void onTimeout(AsyncEvent e) throws IOException {
+                timedOut.incrementAndGet();
+                // Take the response before interrupting, or the worker's error would win
+                boolean ours = x.takeOver();
+                x.cancel();
+                abandon(x);
+                if (ours) {
+                    if (!resp.isCommitted()) fail(resp, 503, "request timed out");
+                    async.complete();
+                } else {
+                    x.close();
+                }
+            }
+
+            @Override
+            public void onError(AsyncEvent e) {
+                boolean ours = x.takeOver();
+                x.cancel();
+                abandon(x);
+                if (ours) async.complete();
+                else x.close();
+            }
+
+            @Override
+            public void onComplete(AsyncEvent e) {}
+
+            @Override
+            public void onStartAsync(AsyncEvent e) {}
+        });
+        dispatcher.admit(pass, p -> submit(x, sreq, action, p));
+    }
+
+    // Runs on the container thread, or later on whichever thread admission grants the slot from
+    private void submit(Exchange x, ShimRequest sreq, String action, ShimDispatcher.Pass pass) {
+        x.pass = pass;
+        try {
+            x.future = pool.submit(() -> {
+                if (!x.begin()) return;
+                if (x.isClosed()) {
+                    dispatcher.release(pass);
+                    return;
+                }
+                try {
+                    dispatcher.dispatch(sreq, new Guarded(new ServletShimResponse(x.resp), x), pass);
+                } catch (Throwable t) {
+                    failed(x, action, t);
+                } finally {
+                    x.close();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            rejected.incrementAndGet();
+            abandon(x);
+            if (x.takeOver()) {
+                try {
+                    x.resp.setHeader("Retry-After", "1");
+                    fail(x.resp, 503, "server busy");
+                } catch (IOException ignore) {
+                    // Client gone
+                }
+                x.async.complete();
+            }
+            return;
+        }
+        // Timed out while queued for a slot or a thread
+        if (x.isClosed()) abandon(x);
+    }
+
+    // Gives back the slot of a request whose task will not run
+    private void abandon(Exchange x) {
+        ShimDispatcher.Pass p = x.pass;
+        if (p != null && x.begin()) dispatcher.release(p);
+    }
+
+    /** Pool size and counters. */
+    Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("threads", pool != null ? pool.getMaximumPoolSize() : 0);
+        m.put("active", pool != null ? pool.getActiveCount() : 0);
+        m.put("queued", pool != null ? pool.getQueue().size() : 0);
+        m.put("rejected", rejected.get());
+        m.put("timedOut", timedOut.get());
+        return m;
+    }
+
+    /**
+     * Ownership of one async response. It starts {@code OPEN}; the worker
+     * takes it with its first write ({@code WORKER}), while the timeout,
+     * error and rejection paths take it only while nothing was written
+     * ({@code CLOSED} at once). Both claims are the same compareAndSet from
+     * {@code OPEN}, so exactly one side ever writes. Worker writes run under
+     * this object's monitor: {@link #close} waits for a write in progress,
+     * so nothing reaches the servlet response after the container got it
+     * back, and a timed-out worker is interrupted through its future.
+     */
+    private static final class Exchange {
+        private static final int OPEN = 0, WORKER = 1, CLOSED = 2;
+
+        private final AsyncContext async;
+        private final HttpServletResponse resp;
+        private final AtomicInteger state = new AtomicInteger(OPEN);
+        private final AtomicBoolean begun = new AtomicBoolean();
+        volatile ShimDispatcher.Pass pass;
+        volatile Future<?> future;
+
+        Exchange(AsyncContext async, HttpServletResponse resp) {
+            this.async = async;
+            this.resp = resp;
+        }
+
+        /** The container side takes the response; false once the worker has written. */
+        boolean takeOver() {
+            return state.compareAndSet(OPEN, CLOSED);
+        }
+
+        /** The worker takes (or still holds) the response; callers hold the monitor. */
+        boolean claim() {
+            return state.get() == WORKER || state.compareAndSet(OPEN, WORKER);
+        }
+
+        /** The task starts, or its slot is given back, once; false for the side that comes second. */
+        boolean begin() {
+            return begun.compareAndSet(false, true);
+        }
+
+        boolean isClosed() {
+            return state.get() == CLOSED;
+        }
+
+        /** Stops a worker that is queued or still writing. */
+        void cancel() {
+            Future<?> f = future;
+            if (f != null) f.cancel(true);
+        }
+
+        /** Ends the exchange once, after any worker write in progress. */
+        void close() {
+            synchronized (this) {
+                if (state.getAndSet(CLOSED) == CLOSED) return;
+            }
+            async.complete();
+        }
+    }
+
+    /**
+     * Response of a pool thread. Every call goes through {@link Exchange#claim}
+     * under the exchange's monitor, so once the request timed out or failed,
+     * when the container may recycle the servlet response for another
+     * request, anything the late thread still writes is refused.
+     */
+    private static final class Guarded implements ShimResponse {
+        private final ShimResponse resp;
+        private final Exchange x;
+
+        Guarded(ShimResponse resp, Exchange x) {
+            this.resp = resp;
+            this.x = x;
+        }
+
+        @Override
+        public void setStatus(int status) { synchronized (x) { if (x.claim()) resp.setStatus(status); } }
+
+        @Override
+        public void setHeader(String name, String value) { synchronized (x) { if (x.claim()) resp.setHeader(name, value); } }
+
+        @Override
+        public void setContentType(String type) { synchronized (x) { if (x.claim()) resp.setContentType(type); } }
+
+        @Override
+        public void setContentLength(long length) { synchronized (x) { if (x.claim()) resp.setContentLength(length); } }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            OutputStream out;
+            synchronized (x) {
+                check();
+                out = resp.getOutputStream();
+            }
+            return new FilterOutputStream(out) {
+                @Override
+                public void write(int b) throws IOException {
+                    synchronized (x) {
+                        check();
+                        out.write(b);
+                    }
+                }
+
+                @Override
+                public void write(byte[] b, int off, int len) throws IOException {
+                    synchronized (x) {
+                        check();
+                        out.write(b, off, len);
+                    }
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    synchronized (x) {
+                        check();
+                        out.flush();
+                    }
+                }
+
+                @Override
+                public void close() throws IOException {
+                    synchronized (x) {
+                        if (x.claim()) out.close();
+                    }
+                }
+            };
+        }
+
+        // Caller holds the exchange's monitor
+        private void check() throws IOException {
+            if (!x.claim()) throw new IOException("request already completed");
+        }
+    }
+
+    /**
+     * A worker failure. While nothing was sent and the request is still ours
+     * the client gets a JSON 500, as on the inline path; a failure after the
+     * response was committed is mostly the client going away and is only
+     * logged.
+     */
+    private static void failed(Exchange x, String action, Throwable t) {
+        synchronized (x) {
+            boolean respond = x.claim() && !x.resp.isCommitted();
+            if (respond || !(t instanceof IOException)) {
+                try { ZimbraLog.extensions.warn("zpush-shim async %s failed: %s", action, t.toString()); } catch (Throwable ignore) {}
+            } else {
+                try { ZimbraLog.extensions.debug("zpush-shim async %s: %s", action, t.toString()); } catch (Throwable ignore) {}
+            }
+            if (!respond) return;
+            try {
+                x.resp.reset();
+                fail(x.resp, 500, ShimDispatcher.safe(t.getMessage() != null ? t.getMessage() : t.getClass().getSimpleName()));
+            } catch (Throwable ignore) {
+                // Committed meanwhile; nothing more to tell the client
+            }
+        }
+    }
+
+    private static void fail(HttpServletResponse resp, int status, String error) throws IOException {
+        resp.setStatus(status);
+        ShimDispatcher.writeRaw(new ServletShimResponse(resp), "{\"success\":false,\"error\":\"" + error + "\"}");
+    }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+import javax.net.ssl.X509TrustManager;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * App-password fallback checks used when Provisioning.authAccount rejects the
+ * credentials: an HTTP AutoDiscover probe, then an IMAP LOGIN. Zimbra-free so
+ * the same code runs against {@link FakeAutodiscoverServer} and
+ * {@link FakeImapServer} in the dev server.
+ *
+ * Settings (system property / env var):
+ *   zpush.shim.autodiscover.fallback  ZPUSH_SHIM_AUTODISCOVER_FALLBACK  default on
+ *   zpush.shim.autodiscover.urls      ZPUSH_SHIM_AUTODISCOVER_URLS      comma list
+ *   zpush.shim.basic.fallback         ZPUSH_SHIM_BASIC_FALLBACK         default on (IMAP)
+ *   zpush.shim.imap.host              ZPUSH_SHIM_IMAP_HOST              default 127.0.0.1
+ *   zpush.shim.imap.ports             ZPUSH_SHIM_IMAP_PORTS             default 993,143
+ *   zpush.shim.imap.tlsPorts          ZPUSH_SHIM_IMAP_TLS_PORTS         default 993
+ */
+final class AuthFallbacks {
+    // Per-attempt budgets; worst case for the chain is roughly
+    // urls * (connect + read) + ports * (connect + read + tagged wait)
+    static final int CONNECT_TIMEOUT_MS = 2500;
+    static final int READ_TIMEOUT_MS = 2500;
+    static final int IMAP_TAGGED_WAIT_MS = 2000;
+
+    /** Where fallback diagnostics go (ZimbraLog in mailboxd, stdout in the dev server). */
+    interface Log {
+        void info(String fmt, Object... args);
+    }
+
+    static final Log NO_LOG = (fmt, args) -> {};
+
+    private AuthFallbacks() {}
+
+    /**
+     * Runs the enabled fallbacks in order and returns the one that accepted
+     * the credentials ("autodiscover" or "imap"), or null.
+     */
+    static String verify(String username, String password, Log log) {
+        if (isAutoDiscoverFallbackEnabled()) {
+            try {
+                boolean adOk = autodiscoverVerify(username, password, log);
+                log.info("zpush-shim authenticate: autodiscover-fallback result=%s", adOk ? "OK" : "NO");
+                if (adOk) return "autodiscover";
+            } catch (Throwable t) {
+                log.info("zpush-shim authenticate: autodiscover-fallback threw %s", t.getClass().getName());
+            }
+        }
+        if (isBasicFallbackEnabled()) {
+            String host = getImapHost();
+            int[] tls = getImapTlsPorts();
+            for (int port : getImapPorts()) {
+                try {
+                    boolean imapOk = imapLogin(host, port, username, password, contains(tls, port));
+                    log.info("zpush-shim authenticate: imap-fallback host=%s:%d result=%s", host, port, imapOk ? "OK" : "NO");
+                    if (imapOk) return "imap";
+                } catch (Throwable t) {
+                    log.info("zpush-shim authenticate: imap-fallback host=%s:%d threw %s", host, port, t.getClass().getName());
+                }
+            }
+        }
+        return null;
+    }
+
+    static boolean imapLogin(String host, int port, String user, String pass, boolean ssl) throws Exception {
+        Socket socket = null;
+        try {
+            socket = new Socket();
+            socket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+            if (ssl) {
+                socket = trustAllContext().getSocketFactory().createSocket(socket, host, port, true);
+            }
+            socket.setSoTimeout(READ_TIMEOUT_MS);
+            InputStream in = socket.getInputStream();
+            OutputStream out = socket.getOutputStream();
+            // Read greeting
+            String greet = readLine(in);
+            if (greet == null) return false;
+            // Send LOGIN
+            String cmd = "a1 LOGIN \"" + user.replace("\"", "\\\"") + "\" \"" + pass.replace("\"", "\\\"") + "\"\r\n";
+            out.write(cmd.getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            // Read until tagged response for a1
+            long end = System.currentTimeMillis() + IMAP_TAGGED_WAIT_MS;
+            while (System.currentTimeMillis() < end) {
+                String line = readLine(in);
+                if (line == null) break;
+                if (line.startsWith("a1 ")) {
+                    return line.toUpperCase(Locale.ROOT).contains(" OK ");
+                }
+            }
+            return false;
+        } finally {
+            if (socket != null) try { socket.close(); } catch (Throwable ignore) {}
+        }
+    }
+
+    static String readLine(InputStream in) throws IOException {
+        StringBuilder sb = new StringBuilder(128);
+        int b;
+        while ((b = in.read()) != -1) {
+            if (b == '\n') break;
+            if (b != '\r') sb.append((char)b);
+            if (sb.length() > 4096) break;
+        }
+        if (sb.length() == 0 && b == -1) return null;
+        return sb.toString();
+    }
+
+    static boolean autodiscoverVerify(String username, String password, Log log) throws Exception {
+        for (String url : getAutoDiscoverUrls()) {
+            try {
+                if (autodiscoverVerifyUrl(url, username, password, log)) return true;
+            } catch (Throwable t) {
+                // log and continue
+                log.info("zpush-shim authenticate: autodiscover try url=%s threw %s", url, t.getClass().getName());
+            }
+        }
+        return false;
+    }
+
+    static boolean autodiscoverVerifyUrl(String urlStr, String username, String password, Log log) throws Exception {
+        java.net.URL url = new java.net.URL(urlStr);
+        java.net.HttpURLConnection conn;
+        if ("https".equalsIgnoreCase(url.getProtocol())) {
+            javax.net.ssl.HttpsURLConnection https = (javax.net.ssl.HttpsURLConnection) url.openConnection();
+            https.setSSLSocketFactory(trustAllContext().getSocketFactory());
+            https.setHostnameVerifier((s, sslSession) -> true);
+            conn = https;
+        } else {
+            conn = (java.net.HttpURLConnection) url.openConnection();
+        }
+        conn.setConnectTimeout(CONNECT_TIMEOUT_MS);
+        conn.setReadTimeout(READ_TIMEOUT_MS);
+        conn.setRequestMethod("POST");
+        conn.setDoOutput(true);
+        conn.setRequestProperty("Content-Type", "text/xml; charset=UTF-8");
+        String creds = username + ":" + password;
+        String b64 = java.util.Base64.getEncoder().encodeToString(creds.getBytes(StandardCharsets.UTF_8));
+        conn.setRequestProperty("Authorization", "Basic " + b64);
+
+        // Minimal body; AutoDiscover authenticates before body parsing
+        byte[] body = "<Autodiscover/>".getBytes(StandardCharsets.UTF_8);
+        try (OutputStream os = conn.getOutputStream()) { os.write(body); os.flush(); }
+        int code = conn.getResponseCode();
+        // Treat 401 as invalid credentials; anything else (200/403/etc) as pass for credential check
+        boolean ok = (code != 401);
+        log.info("zpush-shim authenticate: autodiscover url=%s http=%d -> %s", urlStr, code, ok ? "OK" : "NO");
+        try { conn.disconnect(); } catch (Throwable ignore) {}
+        return ok;
+    }
+
+    // Loopback endpoints use self-signed certificates
+    private static SSLContext trustAllContext() throws Exception {
+        SSLContext sc = SSLContext.getInstance("TLS");
+        sc.init(null, new TrustManager[]{ new X509TrustManager() {
+            public void checkClientTrusted(X509Certificate[] chain, String authType) {}
+            public void checkServerTrusted(X509Certificate[] chain, String authType) {}
+            public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+        }}, new SecureRandom());
+        return sc;
+    }
+
+    static boolean isAutoDiscoverFallbackEnabled() {
+        return ShimConfig.getBool("zpush.shim.autodiscover.fallback", true);
+    }
+
+    static List<String> getAutoDiscoverUrls() {
+        List<String> urls = new ArrayList<>();
+        String raw = ShimConfig.get("zpush.shim.autodiscover.urls", null);
+        if (raw != null) {
+            for (String p : raw.split(",")) {
+                String u = p.trim();
+                if (!u.isEmpty()) urls.add(u);
+            }
+        }
+        if (urls.isEmpty()) {
+            // Reasonable local defaults
+            urls.add("https://127.0.0.1/Autodiscover/Autodiscover.xml");
+            urls.add("https://127.0.0.1:8443/Autodiscover/Autodiscover.xml");
+            urls.add("http://127.0.0.1:8080/Autodiscover/Autodiscover.xml");
+        }
+        return urls;
+    }
+
+    static boolean isBasicFallbackEnabled() {
+        return ShimConfig.getBool("zpush.shim.basic.fallback", true);
+    }
+
+    static String getImapHost() {
+        return ShimConfig.get("zpush.shim.imap.host", "127.0.0.1");
+    }
+
+    static int[] getImapPorts() {
+        return parsePorts(ShimConfig.get("zpush.shim.imap.ports", null), new int[] { 993, 143 });
+    }
+
+    static int[] getImapTlsPorts() {
+        return parsePorts(ShimConfig.get("zpush.shim.imap.tlsPorts", null), new int[] { 993 });
+    }
+
+    private static int[] parsePorts(String raw, int[] def) {
+        if (raw == null) return def;
+        List<Integer> out = new ArrayList<>();
+        for (String p : raw.split(",")) {
+            String s = p.trim();
+            if (s.isEmpty()) continue;
+            try { out.add(Integer.parseInt(s)); } catch (NumberFormatException ignore) {}
+        }
+        if (out.isEmpty()) return def;
+        int[] arr = new int[out.size()];
+        for (int i = 0; i < out.size(); i++) arr[i] = out.get(i);
+        return arr;
+    }
+
+    private static boolean contains(int[] a, int v) {
+        for (int x : a) if (x == v) return true;
+        return false;
+    }
+}
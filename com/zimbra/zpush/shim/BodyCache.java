@@ -0,0 +1,81 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Byte-bounded LRU of converted bodies ({@link BodyConverter.Converted}),
+ * keyed by account, message id, content version (Zimbra mod_content) and body
+ * type. A content change produces a new key, so stale entries are never
+ * served and simply age out.
+ *
+ *   zpush.shim.bodyCache.maxBytes   total UTF-8 bytes held (default 32 MB, 0 = off)
+ *
+ * Entries larger than an eighth of the budget are not stored.
+ */
+final class BodyCache {
+    private final long maxBytes;
+    private final long maxEntry;
+    private long bytes;
+    private final LinkedHashMap<String, BodyConverter.Converted> map = new LinkedHashMap<>(256, 0.75f, true);
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    BodyCache(long maxBytes) {
+        this.maxBytes = Math.max(0, maxBytes);
+        this.maxEntry = this.maxBytes / 8;
+    }
+
+    static BodyCache fromConfig() {
+        return new BodyCache(ShimConfig.getLong("zpush.shim.bodyCache.maxBytes", 32L * 1024 * 1024));
+    }
+
+    BodyConverter.Converted get(String key) {
+        BodyConverter.Converted c;
+        synchronized (map) {
+            c = map.get(key);
+        }
+        (c != null ? hits : misses).incrementAndGet();
+        return c;
+    }
+
+    /** Lookup that does not count towards hits/misses (prefetch probes). */
+    BodyConverter.Converted peek(String key) {
+        synchronized (map) {
+            return map.get(key);
+        }
+    }
+
+    void put(String key, BodyConverter.Converted c) {
+        if (c.data.length > maxEntry) return;
+        synchronized (map) {
+            BodyConverter.Converted old = map.put(key, c);
+            if (old != null) bytes -= old.data.length;
+            bytes += c.data.length;
+            java.util.Iterator<Map.Entry<String, BodyConverter.Converted>> it = map.entrySet().iterator();
+            while (bytes > maxBytes && it.hasNext()) {
+                bytes -= it.next().getValue().data.length;
+                it.remove();
+            }
+        }
+    }
+
+    /** Entry count, bytes held and hit/miss counters. */
+    Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        synchronized (map) {
+            m.put("entries", map.size());
+            m.put("bytes", bytes);
+        }
+        m.put("maxBytes", maxBytes);
+        m.put("hits", hits.get());
+        m.put("misses", misses.get());
+        return m;
+    }
+}
@@ -0,0 +1,436 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * Server-side EAS body types (BodyPreference): plain text, HTML and a short
+ * preview, produced from the message's own text parts and converted between
+ * them when only one exists. Parts are decoded and converted as a stream, and
+ * conversion stops once the requested size is reached.
+ *
+ * Output is UTF-8, truncated on a character boundary, with an estimate of the
+ * untruncated size (EAS EstimatedDataSize). Results go through a
+ * {@link BodyCache} so devices with different BodyPreference settings share
+ * one conversion.
+ */
+final class BodyConverter {
+    /** Prefix captured when a truncated body is requested, so larger truncations still hit the cache. */
+    static final int MIN_CAPTURE = 32 * 1024;
+    /** Capture used to build previews (EAS allows at most 255 characters). */
+    static final int PREVIEW_CAPTURE = 4096;
+    static final int MAX_PREVIEW = 255;
+
+    private BodyConverter() {}
+
+    /** Body types; codes are the EAS BodyPreference Type values. */
+    enum Type {
+        TEXT(1), HTML(2);
+
+        final int eas;
+
+        Type(int eas) {
+            this.eas = eas;
+        }
+
+        String wireName() { return name().toLowerCase(Locale.ROOT); }
+    }
+
+    /** A converted prefix; {@code complete} when it holds the whole body. */
+    static final class Converted {
+        final byte[] data;
+        final boolean complete;
+        final long estimatedSize;
+
+        Converted(byte[] data, boolean complete, long estimatedSize) {
+            this.data = data;
+            this.complete = complete;
+            this.estimatedSize = estimatedSize;
+        }
+    }
+
+    /** Body as returned to the client. */
+    static final class Body {
+        final String text;
+        final boolean truncated;
+        final long estimatedSize;
+
+        Body(String text, boolean truncated, long estimatedSize) {
+            this.text = text;
+            this.truncated = truncated;
+            this.estimatedSize = estimatedSize;
+        }
+    }
+
+    /**
+     * Body of {@code type} cut to {@code truncation} bytes (-1 = whole body, up
+     * to {@code maxBytes}), from the cache when a large enough prefix is there.
+     */
+    static Body body(BodyCache cache, String accountId, int messageId, MimeSource src, Type type,
+                     long truncation, int maxBytes) throws IOException {
+        long want = truncation < 0 ? maxBytes : Math.min(truncation, maxBytes);
+        Converted c = cached(cache, accountId, messageId, src, type, want,
+                truncation < 0 ? maxBytes : (int) Math.min(maxBytes, Math.max(want, MIN_CAPTURE)));
+        boolean cut = c.data.length > want || (!c.complete && c.data.length >= want);
+        byte[] out = c.data;
+        if (cut) out = Arrays.copyOf(c.data, charBoundary(c.data, (int) want));
+        return new Body(new String(out, StandardCharsets.UTF_8), cut || !c.complete, c.estimatedSize);
+    }
+
+    /** EAS Preview: plain text with whitespace collapsed, at most {@code chars} characters. */
+    static String preview(BodyCache cache, String accountId, int messageId, MimeSource src, int chars) throws IOException {
+        int n = Math.min(chars, MAX_PREVIEW);
+        Converted c = cached(cache, accountId, messageId, src, Type.TEXT, PREVIEW_CAPTURE, PREVIEW_CAPTURE);
+        String text = new String(c.data, StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder(n);
+        boolean space = false;
+        for (int i = 0; i < text.length() && sb.length() < n; ) {
+            int cp = text.codePointAt(i);
+            i += Character.charCount(cp);
+            if (Character.isWhitespace(cp) || cp == 0xA0) {
+                space = sb.length() > 0;
+                continue;
+            }
+            if (space) {
+                sb.append(' ');
+                space = false;
+            }
+            if (sb.length() + Character.charCount(cp) > n) break;
+            sb.appendCodePoint(cp);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Converts and caches the first {@code capture} bytes of the body unless a
+     * large enough entry is already there. Used by {@link BodyPrefetcher}; does
+     * not touch the hit/miss counters. Returns false when nothing was done.
+     */
+    static boolean warm(BodyCache cache, String accountId, int messageId, MimeSource src, Type type, int capture)
+            throws IOException {
+        String key = key(accountId, messageId, src, type);
+        Converted c = cache.peek(key);
+        if (c != null && (c.complete || c.data.length >= capture)) return false;
+        cache.put(key, convert(src, MimeParts.bodies(src), type, capture));
+        return true;
+    }
+
+    private static String key(String accountId, int messageId, MimeSource src, Type type) {
+        return accountId + '/' + messageId + '/' + src.contentVersion() + '/' + type.wireName();
+    }
+
+    private static Converted cached(BodyCache cache, String accountId, int messageId, MimeSource src, Type type,
+                                    long want, int capture) throws IOException {
+        String key = key(accountId, messageId, src, type);
+        Converted c = cache.get(key);
+        if (c != null && (c.complete || c.data.length >= want)) return c;
+        c = convert(src, MimeParts.bodies(src), type, capture);
+        cache.put(key, c);
+        return c;
+    }
+
+    /** Converts up to {@code limit} bytes of the message body to {@code type}. */
+    static Converted convert(MimeSource src, MimeParts.Bodies bodies, Type type, int limit) throws IOException {
+        Utf8Sink out = new Utf8Sink(limit);
+        MimeParts.Part part = type == Type.HTML ? bodies.html : bodies.plain;
+        if (part != null) {
+            try (Reader r = reader(src, part)) {
+                copy(r, out);
+            }
+        } else if (type == Type.TEXT && bodies.html != null) {
+            part = bodies.html;
+            try (Reader r = reader(src, part)) {
+                htmlToText(r, out);
+            }
+        } else if (type == Type.HTML && bodies.plain != null) {
+            part = bodies.plain;
+            try (Reader r = reader(src, part)) {
+                textToHtml(r, out);
+            }
+        }
+        boolean complete = !out.overflow;
+        long estimate = complete ? out.size : Math.max(part.decodedLength, out.size + 1L);
+        return new Converted(out.toByteArray(), complete, estimate);
+    }
+
+    private static Reader reader(MimeSource src, MimeParts.Part part) throws IOException {
+        return new InputStreamReader(MimeParts.openDecoded(src, part), part.charsetOrUtf8());
+    }
+
+    /** Largest cut <= {@code max} that does not split a UTF-8 sequence. */
+    static int charBoundary(byte[] b, int max) {
+        int cut = Math.min(max, b.length);
+        if (cut == b.length) return cut;
+        while (cut > 0 && (b[cut] & 0xC0) == 0x80) cut--;
+        return cut;
+    }
+
+    private static void copy(Reader in, Utf8Sink out) throws IOException {
+        char[] buf = new char[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            for (int i = 0; i < n; i++) {
+                if (!out.append(buf[i])) return;
+            }
+        }
+    }
+
+    private static void textToHtml(Reader in, Utf8Sink out) throws IOException {
+        if (!out.append("<html><body><div>")) return;
+        char[] buf = new char[4096];
+        int n;
+        while ((n = in.read(buf)) > 0) {
+            for (int i = 0; i < n; i++) {
+                char c = buf[i];
+                boolean ok;
+                switch (c) {
+                    case '&': ok = out.append("&amp;"); break;
+                    case '<': ok = out.append("&lt;"); break;
+                    case '>': ok = out.append("&gt;"); break;
+                    case '"': ok = out.append("&quot;"); break;
+                    case '\r': ok = true; break;
+                    case '\n': ok = out.append("<br>\r\n"); break;
+                    default: ok = out.append(c);
+                }
+                if (!ok) return;
+            }
+        }
+        out.append("</div></body></html>");
+    }
+
+    // Block-level tags that start a new line in the text rendering
+    private static final String[] BLOCK_TAGS = {
+        "p", "div", "tr", "li", "ul", "ol", "table", "blockquote", "pre", "hr",
+        "h1", "h2", "h3", "h4", "h5", "h6", "dt", "dd", "section", "article", "header", "footer"
+    };
+
+    /**
+     * Streaming HTML to text: tags dropped, block tags and br become line
+     * breaks, script/style/head content skipped, entities decoded and runs of
+     * whitespace collapsed.
+     */
+    static void htmlToText(Reader in, Utf8Sink out) throws IOException {
+        Reader r = in.markSupported() ? in : new java.io.BufferedReader(in, 8192);
+        boolean lineStart = true;
+        boolean space = false;
+        int c;
+        while ((c = r.read()) >= 0) {
+            if (c == '<') {
+                String tag = readTag(r);
+                if (tag == null) break;
+                if (tag.startsWith("!--")) {
+                    if (!tag.endsWith("--")) skipPast(r, "-->");
+                    continue;
+                }
+                boolean closing = tag.startsWith("/");
+                String name = tagName(closing ? tag.substring(1) : tag);
+                if (!closing && (name.equals("script") || name.equals("style") || name.equals("head") || name.equals("title"))) {
+                    skipPast(r, "</" + name);
+                    readTag(r);
+                    continue;
+                }
+                if (name.equals("br")) {
+                    if (!out.append("\r\n")) return;
+                    lineStart = true;
+                    space = false;
+                } else if (isBlock(name) && !lineStart) {
+                    if (!out.append("\r\n")) return;
+                    lineStart = true;
+                    space = false;
+                }
+                continue;
+            }
+            int cp = c;
+            if (c == '&') cp = readEntity(r);
+            if (cp == ' ' || cp == '\t' || cp == '\r' || cp == '\n' || cp == '\f') {
+                space = !lineStart;
+                continue;
+            }
+            if (space) {
+                if (!out.append(' ')) return;
+                space = false;
+            }
+            if (cp == 0xA0) cp = ' ';
+            if (!out.appendCodePoint(cp)) return;
+            lineStart = false;
+        }
+    }
+
+    private static boolean isBlock(String name) {
+        for (String t : BLOCK_TAGS) {
+            if (t.equals(name)) return true;
+        }
+        return false;
+    }
+
+    private static String tagName(String tag) {
+        int i = 0;
+        while (i < tag.length() && (Character.isLetterOrDigit(tag.charAt(i)))) i++;
+        return tag.substring(0, i).toLowerCase(Locale.ROOT);
+    }
+
+    // Tag text after '<' up to '>' (quoted attribute values may contain '>'); only the start is kept
+    private static String readTag(Reader r) throws IOException {
+        StringBuilder sb = new StringBuilder();
+        int quote = 0;
+        int last = 0;
+        int c;
+        while ((c = r.read()) >= 0) {
+            if (quote != 0) {
+                if (c == quote) quote = 0;
+            } else if ((c == '"' || c == '\'') && last == '=') {
+                quote = c;
+            } else if (c == '>') {
+                return sb.toString();
+            }
+            if (c != ' ' && c != '\t') last = c;
+            if (sb.length() < 64) sb.append((char) c);
+        }
+        return null;
+    }
+
+    private static void skipPast(Reader r, String end) throws IOException {
+        int matched = 0;
+        int c;
+        while ((c = r.read()) >= 0) {
+            char lc = Character.toLowerCase((char) c);
+            if (lc == end.charAt(matched)) {
+                if (++matched == end.length()) return;
+            } else {
+                matched = lc == end.charAt(0) ? 1 : 0;
+            }
+        }
+    }
+
+    // After '&': named or numeric entity; unknown ones are emitted literally
+    private static int readEntity(Reader r) throws IOException {
+        r.mark(12);
+        StringBuilder sb = new StringBuilder();
+        int c;
+        while (sb.length() < 10 && (c = r.read()) >= 0) {
+            if (c == ';') {
+                int cp = entity(sb.toString());
+                if (cp >= 0) return cp;
+                break;
+            }
+            if (!Character.isLetterOrDigit(c) && c != '#') break;
+            sb.append((char) c);
+        }
+        r.reset();
+        return '&';
+    }
+
+    // Named entities for U+00A0..U+00FF, in code point order
+    private static final String[] LATIN1_ENTITIES = {
+        "nbsp", "iexcl", "cent", "pound", "curren", "yen", "brvbar", "sect", "uml", "copy", "ordf", "laquo",
+        "not", "shy", "reg", "macr", "deg", "plusmn", "sup2", "sup3", "acute", "micro", "para", "middot",
+        "cedil", "sup1", "ordm", "raquo", "frac14", "frac12", "frac34", "iquest", "Agrave", "Aacute", "Acirc",
+        "Atilde", "Auml", "Aring", "AElig", "Ccedil", "Egrave", "Eacute", "Ecirc", "Euml", "Igrave", "Iacute",
+        "Icirc", "Iuml", "ETH", "Ntilde", "Ograve", "Oacute", "Ocirc", "Otilde", "Ouml", "times", "Oslash",
+        "Ugrave", "Uacute", "Ucirc", "Uuml", "Yacute", "THORN", "szlig", "agrave", "aacute", "acirc",
+        "atilde", "auml", "aring", "aelig", "ccedil", "egrave", "eacute", "ecirc", "euml", "igrave", "iacute",
+        "icirc", "iuml", "eth", "ntilde", "ograve", "oacute", "ocirc", "otilde", "ouml", "divide", "oslash",
+        "ugrave", "uacute", "ucirc", "uuml", "yacute", "thorn", "yuml"
+    };
+
+    private static int entity(String e) {
+        try {
+            if (e.startsWith("#x") || e.startsWith("#X")) return Integer.parseInt(e.substring(2), 16);
+            if (e.startsWith("#")) return Integer.parseInt(e.substring(1));
+        } catch (NumberFormatException ignore) {
+            return -1;
+        }
+        switch (e) {
+            case "amp": return '&';
+            case "lt": return '<';
+            case "gt": return '>';
+            case "quot": return '"';
+            case "apos": return '\'';
+            case "hellip": return 0x2026;
+            case "mdash": return 0x2014;
+            case "ndash": return 0x2013;
+            case "lsquo": return 0x2018;
+            case "rsquo": return 0x2019;
+            case "ldquo": return 0x201C;
+            case "rdquo": return 0x201D;
+            case "euro": return 0x20AC;
+            default:
+                for (int i = 0; i < LATIN1_ENTITIES.length; i++) {
+                    if (LATIN1_ENTITIES[i].equals(e)) return 0xA0 + i;
+                }
+                return -1;
+        }
+    }
+
+    /** UTF-8 output capped at {@code limit} bytes; characters that do not fit set {@link #overflow}. */
+    static final class Utf8Sink {
+        private final int limit;
+        private byte[] buf;
+        int size;
+        boolean overflow;
+        private char pendingHigh;
+
+        Utf8Sink(int limit) {
+            this.limit = limit;
+            this.buf = new byte[Math.min(Math.max(limit, 16), 8192)];
+        }
+
+        boolean append(String s) {
+            for (int i = 0; i < s.length(); i++) {
+                if (!append(s.charAt(i))) return false;
+            }
+            return true;
+        }
+
+        boolean append(char c) {
+            if (Character.isHighSurrogate(c)) {
+                pendingHigh = c;
+                return true;
+            }
+            if (Character.isLowSurrogate(c) && pendingHigh != 0) {
+                int cp = Character.toCodePoint(pendingHigh, c);
+                pendingHigh = 0;
+                return appendCodePoint(cp);
+            }
+            pendingHigh = 0;
+            return appendCodePoint(c);
+        }
+
+        boolean appendCodePoint(int cp) {
+            if (overflow) return false;
+            if (cp < 0 || cp > 0x10FFFF || (cp >= 0xD800 && cp <= 0xDFFF)) cp = 0xFFFD;
+            int n = cp < 0x80 ? 1 : cp < 0x800 ? 2 : cp < 0x10000 ? 3 : 4;
+            if (size + n > limit) {
+                overflow = true;
+                return false;
+            }
+            if (size + n > buf.length) buf = Arrays.copyOf(buf, (int) Math.min(limit, Math.max(buf.length * 2L, size + n)));
+            if (n == 1) {
+                buf[size++] = (byte) cp;
+            } else if (n == 2) {
+                buf[size++] = (byte) (0xC0 | cp >> 6);
+                buf[size++] = (byte) (0x80 | cp & 0x3F);
+            } else if (n == 3) {
+                buf[size++] = (byte) (0xE0 | cp >> 12);
+                buf[size++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                buf[size++] = (byte) (0x80 | cp & 0x3F);
+            } else {
+                buf[size++] = (byte) (0xF0 | cp >> 18);
+                buf[size++] = (byte) (0x80 | cp >> 12 & 0x3F);
+                buf[size++] = (byte) (0x80 | cp >> 6 & 0x3F);
+                buf[size++] = (byte) (0x80 | cp & 0x3F);
+            }
+            return true;
+        }
+
+        byte[] toByteArray() { return Arrays.copyOf(buf, size); }
+    }
+}
@@ -0,0 +1,231 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.IntSupplier;
+
+/**
+ * Optional body prefetch after a getmessages listing. Z-Push follows every
+ * listing with one getmessage per new item, newest first; warming the
+ * {@link BodyCache} for the top rows in the background lets those calls be
+ * answered from memory.
+ *
+ *   zpush.shim.prefetch.count       rows warmed per listing (default 0 = off);
+ *                                   a request's prefetch=N can only lower it
+ *   zpush.shim.prefetch.bytes       UTF-8 bytes converted per body (default 32 KB)
+ *   zpush.shim.prefetch.html        also warm the HTML body (default false)
+ *   zpush.shim.prefetch.threads     worker threads (default 2)
+ *   zpush.shim.prefetch.queue       global queued-task budget (default 64)
+ *   zpush.shim.prefetch.perAccount  queued + running tasks per account (default = count)
+ *   zpush.shim.prefetch.maxActive   skip prefetch while more foreground requests
+ *                                   than this are in flight (default 16)
+ *   zpush.shim.prefetch.maxAgeMs    drop tasks that waited longer (default 10000)
+ *
+ * Unread rows go first, then the rest, each newest first. A newer listing for
+ * the same account supersedes the queued tail of the previous one, and queued
+ * tasks are dropped instead of run when the server is busy or they went stale:
+ * prefetch is best effort and must never compete with the requests it serves.
+ */
+final class BodyPrefetcher {
+    private final MailboxBackend backend;
+    private final BodyCache cache;
+    private final IntSupplier activeRequests;
+    private final int count;
+    private final int capture;
+    private final boolean html;
+    private final int perAccount;
+    private final int maxActive;
+    private final long maxAgeMs;
+    private final ThreadPoolExecutor pool;
+
+    /** Per account: tasks queued or running, and the latest listing's generation. */
+    private final ConcurrentHashMap<String, Budget> accounts = new ConcurrentHashMap<>();
+
+    private final AtomicLong queued = new AtomicLong();
+    private final AtomicLong warmed = new AtomicLong();
+    private final AtomicLong present = new AtomicLong();
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong cancelled = new AtomicLong();
+    private final AtomicLong failed = new AtomicLong();
+
+    BodyPrefetcher(MailboxBackend backend, BodyCache cache, IntSupplier activeRequests, int count, int capture,
+                   boolean html, int threads, int queue, int perAccount, int maxActive, long maxAgeMs) {
+        this.backend = backend;
+        this.cache = cache;
+        this.activeRequests = activeRequests;
+        this.count = Math.max(0, count);
+        this.capture = Math.max(1024, capture);
+        this.html = html;
+        this.perAccount = Math.max(1, perAccount);
+        this.maxActive = maxActive;
+        this.maxAgeMs = maxAgeMs;
+        AtomicInteger n = new AtomicInteger();
+        this.pool = new ThreadPoolExecutor(Math.max(1, threads), Math.max(1, threads), 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(Math.max(1, queue)), r -> {
+                    Thread t = new Thread(r, "zpush-shim-prefetch-" + n.incrementAndGet());
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.pool.allowCoreThreadTimeOut(true);
+    }
+
+    /** Null when prefetch is off (the default). */
+    static BodyPrefetcher fromConfig(MailboxBackend backend, BodyCache cache, IntSupplier activeRequests) {
+        int count = ShimConfig.getInt("zpush.shim.prefetch.count", 0);
+        if (count <= 0) return null;
+        return new BodyPrefetcher(backend, cache, activeRequests, count,
+                ShimConfig.getInt("zpush.shim.prefetch.bytes", BodyConverter.MIN_CAPTURE),
+                ShimConfig.getBool("zpush.shim.prefetch.html", false),
+                ShimConfig.getInt("zpush.shim.prefetch.threads", 2),
+                ShimConfig.getInt("zpush.shim.prefetch.queue", 64),
+                ShimConfig.getInt("zpush.shim.prefetch.perAccount", count),
+                ShimConfig.getInt("zpush.shim.prefetch.maxActive", 16),
+                ShimConfig.getLong("zpush.shim.prefetch.maxAgeMs", 10_000L));
+    }
+
+    /**
+     * Queues up to {@code limit} (capped by the configured count) rows of a
+     * listing. Never blocks; whatever does not fit the budgets is skipped.
+     */
+    void afterListing(ShimAccount acct, List<Map<String, Object>> rows, int limit) {
+        int n = Math.min(limit, count);
+        if (n <= 0 || rows.isEmpty()) return;
+        if (activeRequests.getAsInt() > maxActive) {
+            cancelled.incrementAndGet();
+            return;
+        }
+        Budget budget = accounts.computeIfAbsent(acct.id, k -> new Budget());
+        int generation = budget.generation.incrementAndGet();
+        long now = System.currentTimeMillis();
+        for (int id : pick(rows, n)) {
+            if (budget.inFlight.incrementAndGet() > perAccount) {
+                budget.inFlight.decrementAndGet();
+                rejected.incrementAndGet();
+                break;
+            }
+            try {
+                pool.execute(new Task(acct, id, budget, generation, now));
+                queued.incrementAndGet();
+            } catch (RejectedExecutionException e) {
+                budget.inFlight.decrementAndGet();
+                rejected.incrementAndGet();
+                break;
+            }
+        }
+    }
+
+    /**
+     * Collects, from a listing streamed newest first, the rows {@link #pick}
+     * can choose from for {@code limit}: the first unread and the first read
+     * ones, up to that many of each, so the listing itself is not kept.
+     */
+    MailboxBackend.RowSink candidates(List<Map<String, Object>> into, int limit) {
+        int n = Math.min(limit, count);
+        int[] unread = new int[1], read = new int[1];
+        return row -> {
+            int[] seen = Boolean.FALSE.equals(row.get("read")) ? unread : read;
+            if (seen[0]++ < n) into.add(row);
+        };
+    }
+
+    /** Message ids to warm: unread rows first, then read ones, each newest first. */
+    static List<Integer> pick(List<Map<String, Object>> rows, int n) {
+        List<Map<String, Object>> order = new ArrayList<>(rows);
+        order.sort((a, b) -> {
+            int ua = Boolean.FALSE.equals(a.get("read")) ? 0 : 1;
+            int ub = Boolean.FALSE.equals(b.get("read")) ? 0 : 1;
+            if (ua != ub) return ua - ub;
+            return Long.compare(date(b), date(a));
+        });
+        List<Integer> ids = new ArrayList<>(n);
+        for (Map<String, Object> m : order) {
+            Object id = m.get("id");
+            if (!(id instanceof Number)) continue;
+            ids.add(((Number) id).intValue());
+            if (ids.size() >= n) break;
+        }
+        return ids;
+    }
+
+    private static long date(Map<String, Object> m) {
+        Object d = m.get("date");
+        return d instanceof Number ? ((Number) d).longValue() : 0;
+    }
+
+    /** Queue depth, budgets in use and outcome counters. */
+    Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("count", count);
+        m.put("threads", pool.getMaximumPoolSize());
+        m.put("active", pool.getActiveCount());
+        m.put("queueDepth", pool.getQueue().size());
+        m.put("queued", queued.get());
+        m.put("warmed", warmed.get());
+        m.put("alreadyCached", present.get());
+        m.put("rejected", rejected.get());
+        m.put("cancelled", cancelled.get());
+        m.put("failed", failed.get());
+        return m;
+    }
+
+    void shutdown() {
+        pool.shutdownNow();
+    }
+
+    private static final class Budget {
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicInteger generation = new AtomicInteger();
+    }
+
+    private final class Task implements Runnable {
+        private final ShimAccount acct;
+        private final int messageId;
+        private final Budget budget;
+        private final int generation;
+        private final long queuedAt;
+
+        Task(ShimAccount acct, int messageId, Budget budget, int generation, long queuedAt) {
+            this.acct = acct;
+            this.messageId = messageId;
+            this.budget = budget;
+            this.generation = generation;
+            this.queuedAt = queuedAt;
+        }
+
+        @Override
+        public void run() {
+            try {
+                // Superseded by a newer listing, stale, or the server got busy: drop
+                if (budget.generation.get() != generation
+                        || System.currentTimeMillis() - queuedAt > maxAgeMs
+                        || activeRequests.getAsInt() > maxActive) {
+                    cancelled.incrementAndGet();
+                    return;
+                }
+                MimeSource src = backend.getMessageMime(acct, messageId);
+                boolean did = BodyConverter.warm(cache, acct.id, messageId, src, BodyConverter.Type.TEXT, capture);
+                if (html) did |= BodyConverter.warm(cache, acct.id, messageId, src, BodyConverter.Type.HTML, capture);
+                (did ? warmed : present).incrementAndGet();
+            } catch (Throwable t) {
+                // Deleted or unreadable since the listing; the foreground request will report it
+                failed.incrementAndGet();
+            } finally {
+                budget.inFlight.decrementAndGet();
+            }
+        }
+    }
+}
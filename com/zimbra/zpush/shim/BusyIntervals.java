@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects busy intervals (epoch ms, half-open) in any order and merges them
+ * into a sorted, non-overlapping set. Starts and ends are kept in two
+ * primitive arrays and sorted independently: the k-th smallest end is never
+ * before the k-th smallest start, so one sweep that counts open intervals
+ * yields the union without sorting pairs or boxing anything.
+ *
+ * Merged sets are packed as {@code [s0, e0, s1, e1, ...]}.
+ */
+final class BusyIntervals {
+    private long[] start = new long[32];
+    private long[] end = new long[32];
+    private int n;
+
+    /** Ignores empty intervals. */
+    void add(long s, long e) {
+        if (e <= s) return;
+        if (n == start.length) {
+            start = Arrays.copyOf(start, n * 2);
+            end = Arrays.copyOf(end, n * 2);
+        }
+        start[n] = s;
+        end[n] = e;
+        n++;
+    }
+
+    /** Adds every interval of a packed set. */
+    void addAll(long[] packed) {
+        for (int i = 0; i + 1 < packed.length; i += 2) add(packed[i], packed[i + 1]);
+    }
+
+    int size() { return n; }
+
+    /** The union as a packed set; touching intervals are joined. */
+    long[] merge() {
+        if (n == 0) return new long[0];
+        long[] s = Arrays.copyOf(start, n);
+        long[] e = Arrays.copyOf(end, n);
+        Arrays.sort(s);
+        Arrays.sort(e);
+        long[] out = new long[2 * n];
+        int k = 0;
+        int open = 0;
+        int i = 0, j = 0;
+        long from = 0;
+        while (i < n) {
+            if (s[i] <= e[j]) {
+                if (open++ == 0) from = s[i];
+                i++;
+            } else {
+                if (--open == 0) {
+                    out[k++] = from;
+                    out[k++] = e[j];
+                }
+                j++;
+            }
+        }
+        out[k++] = from;
+        out[k++] = e[n - 1];
+        return Arrays.copyOf(out, k);
+    }
+
+    /** The part of a packed set inside [from, to). */
+    static long[] clip(long[] packed, long from, long to) {
+        int a = 0;
+        while (a + 1 < packed.length && packed[a + 1] <= from) a += 2;
+        int b = a;
+        while (b < packed.length && packed[b] < to) b += 2;
+        long[] out = Arrays.copyOfRange(packed, a, b);
+        if (out.length > 0) {
+            out[0] = Math.max(out[0], from);
+            out[out.length - 1] = Math.min(out[out.length - 1], to);
+        }
+        return out;
+    }
+
+    /** A packed set as {@code [[s, e], ...]} for JSON. */
+    static List<long[]> pairs(long[] packed) {
+        List<long[]> out = new ArrayList<>(packed.length / 2);
+        for (int i = 0; i + 1 < packed.length; i += 2) out.add(new long[] { packed[i], packed[i + 1] });
+        return out;
+    }
+}
@@ -0,0 +1,61 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+/**
+ * Single HTTP byte range (RFC 7233) over an entity of known length. Only one
+ * range per request is served; multi-range and malformed headers fall back
+ * to the whole entity, as the RFC allows.
+ */
+final class ByteRange {
+    /** Syntactically valid but starts past the end of the entity (416). */
+    static final ByteRange UNSATISFIABLE = new ByteRange(-1, -1);
+
+    final long start;   // inclusive
+    final long end;     // inclusive
+
+    ByteRange(long start, long end) {
+        this.start = start;
+        this.end = end;
+    }
+
+    long length() { return end - start + 1; }
+
+    /**
+     * Parses {@code bytes=a-b}, {@code bytes=a-} or {@code bytes=-n} against
+     * {@code entityLength}. Returns null when the whole entity should be sent.
+     */
+    static ByteRange parse(String header, long entityLength) {
+        if (header == null || entityLength <= 0) return null;
+        String h = header.trim();
+        if (!h.regionMatches(true, 0, "bytes=", 0, 6)) return null;
+        String spec = h.substring(6).trim();
+        if (spec.indexOf(',') >= 0) return null;
+        int dash = spec.indexOf('-');
+        if (dash < 0) return null;
+        try {
+            String a = spec.substring(0, dash).trim();
+            String b = spec.substring(dash + 1).trim();
+            if (a.isEmpty()) {
+                // Suffix range: last n bytes
+                long n = Long.parseLong(b);
+                if (n <= 0) return UNSATISFIABLE;
+                return new ByteRange(Math.max(0, entityLength - n), entityLength - 1);
+            }
+            long start = Long.parseLong(a);
+            long end = b.isEmpty() ? Long.MAX_VALUE : Long.parseLong(b);
+            if (start < 0 || end < start) return null;
+            if (start >= entityLength) return UNSATISFIABLE;
+            return new ByteRange(start, Math.min(end, entityLength - 1));
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    /** Content-Range value for this range. */
+    String contentRange(long entityLength) {
+        return this == UNSATISFIABLE ? "bytes */" + entityLength : "bytes " + start + "-" + end + "/" + entityLength;
+    }
+}
@@ -0,0 +1,216 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * getappointments request: one calendar folder, a time window and an optional
+ * modseq to sync from. Recurrences are expanded on the server with the
+ * mailbox's own rules and time zones; backends push series into a {@link Sink}
+ * and the expanded instance sets are kept in an {@link InstanceCache}.
+ *
+ *   folderId=10         calendar folder (default 10, Calendar)
+ *   start=..&end=..     window, epoch seconds/ms or ISO-8601 (default 30 days
+ *                       back to one year ahead, at most ten years)
+ *   since=N             delta: only series changed after modseq N, plus the ids
+ *                       deleted since then
+ *
+ * Wire format (streamed):
+ *   {"folderId":10,"start":S,"end":E,"modseq":M,"delta":true,
+ *    "appointments":[{"id":..,"uid":"..","modseq":..,"subject":"..","location":"..",
+ *        "organizer":"..","allDay":false,"tz":"Europe/Berlin","dtstart":..,
+ *        "duration":ms,"recurring":true,"rrule":"FREQ=WEEKLY;BYDAY=MO",
+ *        "instances":[[start,end],...],"truncated":false},...],
+ *    "deleted":[id,...]}
+ *
+ * Instances are the occurrences overlapping [start, end) in epoch ms, ordered
+ * by start, exceptions included at their moved times. A full listing only
+ * carries series with an instance in the window; a delta carries every
+ * changed series, possibly with no instances, so the client can drop them.
+ * {@code rrule} is informational and may be null for recurring series whose
+ * rule has no RRULE form; the instances are authoritative. {@code truncated}
+ * means the series has more instances than the server expands at once.
+ * Deltas assume the same window as the sync they continue; after moving the
+ * window, do a full listing.
+ */
+public final class CalendarQuery {
+    static final int DEFAULT_FOLDER = 10;
+    private static final long DAY_MS = 86_400_000L;
+    private static final long MAX_SPAN = 3653L * DAY_MS;
+
+    final int folderId;
+    final long start;
+    final long end;
+    final long since;        // -1 = full listing
+
+    CalendarQuery(int folderId, long start, long end, long since) {
+        this.folderId = folderId;
+        this.start = start;
+        this.end = end;
+        this.since = since;
+    }
+
+    boolean isDelta() { return since >= 0; }
+
+    static CalendarQuery parse(ShimRequest req, long now) throws ShimException {
+        int folderId = ShimDispatcher.parseInt(req.param("folderId"), DEFAULT_FOLDER);
+        long start = MessageWindow.parseTime("start", req.param("start"));
+        long end = MessageWindow.parseTime("end", req.param("end"));
+        if (start < 0) start = (end >= 0 ? end - 396 * DAY_MS : now - 30 * DAY_MS);
+        if (end < 0) end = start + 396 * DAY_MS;
+        if (end <= start) throw ShimException.badRequest("end must be after start");
+        if (end - start > MAX_SPAN) throw ShimException.badRequest("window too large (max 10 years)");
+        String s = req.param("since");
+        long since = -1;
+        if (s != null && !s.trim().isEmpty()) {
+            since = ShimDispatcher.parseLong(s.trim(), -1);
+            if (since < 0) throw ShimException.badRequest("invalid since: " + s);
+        }
+        return new CalendarQuery(folderId, start, end, since);
+    }
+
+    /** Receives one listing; {@link #begin} comes first, then series, then deletions. */
+    public interface Sink {
+        /** {@code delta} false means a full listing follows even though since was given. */
+        void begin(long modseq, boolean delta) throws IOException;
+
+        void appointment(Series series) throws IOException;
+
+        void deleted(int id) throws IOException;
+    }
+
+    /**
+     * One calendar series (or single appointment). {@code version} must change
+     * whenever its instances can change; it keys the {@link InstanceCache}.
+     * The expander is only called on a cache miss.
+     */
+    public static final class Series {
+        final int id;
+        final long modseq;
+        final long version;
+        final InstanceCache.Expander expander;
+
+        // Descriptive fields, filled in by the backend
+        String uid;
+        String subject;
+        String location;
+        String organizer;
+        boolean allDay;
+        String tz;
+        long dtstart;
+        long duration;
+        boolean recurring;
+        String rrule;
+
+        Series(int id, long modseq, long version, InstanceCache.Expander expander) {
+            this.id = id;
+            this.modseq = modseq;
+            this.version = version;
+            this.expander = expander;
+        }
+    }
+
+    /**
+     * Writes the wire format above through a 64 KB buffer, expanding each
+     * series through the cache as it arrives. The response is only committed
+     * at {@link #begin}, so backend errors before then can still be reported
+     * as a normal JSON error.
+     */
+    final class JsonSink implements Sink {
+        private final ShimResponse resp;
+        private final InstanceCache cache;
+        private final String acctId;
+        private JsonWriter out;
+        private boolean delta;
+        private boolean inDeleted;
+
+        JsonSink(ShimResponse resp, InstanceCache cache, String acctId) {
+            this.resp = resp;
+            this.cache = cache;
+            this.acctId = acctId;
+        }
+
+        boolean begun() { return out != null; }
+
+        @Override
+        public void begin(long modseq, boolean delta) throws IOException {
+            this.delta = delta;
+            resp.setContentType("application/json; charset=UTF-8");
+            out = new JsonWriter(new BufferedWriter(new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024));
+            out.beginObject();
+            out.name("folderId").value(folderId);
+            out.name("start").value(start);
+            out.name("end").value(end);
+            out.name("modseq").value(modseq);
+            out.name("delta").value(delta);
+            out.name("appointments").beginArray();
+        }
+
+        @Override
+        public void appointment(Series s) throws IOException {
+            InstanceCache.Instances x;
+            try {
+                x = cache.get(acctId, s.id, s.version, start, end, s.expander);
+            } catch (ShimException e) {
+                throw new IOException("cannot expand appointment " + s.id + ": " + e.getMessage(), e);
+            }
+            int first = x.first(start);
+            int last = first;
+            int hits = 0;
+            for (; last < x.size() && x.start(last) < end; last++) {
+                if (x.end(last) > start || x.start(last) >= start) hits++;
+            }
+            if (hits == 0 && !delta) return;
+            out.beginObject();
+            out.name("id").value(s.id);
+            out.name("uid").value(s.uid);
+            out.name("modseq").value(s.modseq);
+            out.name("subject").value(s.subject);
+            out.name("location").value(s.location);
+            out.name("organizer").value(s.organizer);
+            out.name("allDay").value(s.allDay);
+            out.name("tz").value(s.tz);
+            out.name("dtstart").value(s.dtstart);
+            out.name("duration").value(s.duration);
+            out.name("recurring").value(s.recurring);
+            out.name("rrule").value(s.rrule);
+            out.name("instances").beginArray();
+            for (int i = first; i < last; i++) {
+                if (x.end(i) <= start && x.start(i) < start) continue;
+                out.beginArray().value(x.start(i)).value(x.end(i)).endArray();
+            }
+            out.endArray();
+            out.name("truncated").value(x.truncated() && x.to < end);
+            out.endObject();
+        }
+
+        @Override
+        public void deleted(int id) throws IOException {
+            cache.remove(acctId, id);
+            if (!inDeleted) {
+                out.endArray();
+                out.name("deleted").beginArray();
+                inDeleted = true;
+            }
+            out.value(id);
+        }
+
+        void end() throws IOException {
+            if (!inDeleted) {
+                out.endArray();
+                out.name("deleted").beginArray();
+            }
+            out.endArray();
+            out.endObject();
+            out.flush();
+        }
+    }
+}
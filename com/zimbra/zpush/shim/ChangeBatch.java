@@ -0,0 +1,251 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * applychanges request: the item changes one EAS Sync uploaded, applied in as
+ * few mailbox transactions as possible.
+ *
+ *   changes=[{"op":"read","ids":[1,2,3]},
+ *            {"op":"flag","ids":[4]},
+ *            {"op":"tag","tag":"Important","ids":[5,6]},
+ *            {"op":"move","folderId":3,"ids":[7,8]},
+ *            {"op":"delete","ids":[9]}]
+ *
+ * Ops are read/unread, flag/unflag, tag/untag (by tag name), move (to
+ * folderId) and delete (hard delete; move to Trash, 3, for a soft one), at
+ * most {@link #MAX_IDS} ids in total. Ops are coalesced per channel (unread
+ * state, flagged state, each tag, location, deletion) with the last op for an
+ * id winning, then applied flags first, tags, moves and deletes last, one
+ * {@link Group} per transaction of up to {@link #CHUNK} ids. When a
+ * transaction fails (typically one id no longer exists) its ids are retried
+ * one by one, so every id gets its own result.
+ *
+ * Response:
+ *   {"modseq":M,"applied":N,"failed":F,
+ *    "results":[{"op":"read","ok":[1,2],"failed":{"3":"no such message: 3"}},...]}
+ *
+ * {@code results} parallels the request's ops. {@code modseq} is the mailbox
+ * change id after the last successful transaction (absent if nothing applied).
+ */
+public final class ChangeBatch {
+    static final int MAX_IDS = 10_000;
+    static final int CHUNK = 1000;
+
+    /** Change kinds, in the wire spelling of {@link #wireName()}. */
+    public enum Kind {
+        READ, UNREAD, FLAG, UNFLAG, TAG, UNTAG, MOVE, DELETE;
+
+        String wireName() { return name().toLowerCase(Locale.ROOT); }
+
+        // The state an op writes; ops on the same channel and id override each other
+        String channel(String tag) {
+            switch (this) {
+                case READ: case UNREAD: return "unread";
+                case FLAG: case UNFLAG: return "flagged";
+                case TAG: case UNTAG: return "tag:" + tag;
+                case MOVE: return "move";
+                default: return "delete";
+            }
+        }
+
+        int order() {
+            switch (this) {
+                case TAG: case UNTAG: return 1;
+                case MOVE: return 2;
+                case DELETE: return 3;
+                default: return 0;
+            }
+        }
+    }
+
+    /** One op as sent. */
+    static final class Op {
+        final Kind kind;
+        final String tag;
+        final int folderId;
+        final int[] ids;
+
+        Op(Kind kind, String tag, int folderId, int[] ids) {
+            this.kind = kind;
+            this.tag = tag;
+            this.folderId = folderId;
+            this.ids = ids;
+        }
+    }
+
+    /** Items that get the same change in one transaction. */
+    public static final class Group {
+        public final Kind kind;
+        /** Tag name for TAG/UNTAG, else null. */
+        public final String tag;
+        /** Target folder for MOVE, else 0. */
+        public final int folderId;
+        public final int[] ids;
+
+        Group(Kind kind, String tag, int folderId, int[] ids) {
+            this.kind = kind;
+            this.tag = tag;
+            this.folderId = folderId;
+            this.ids = ids;
+        }
+
+        Group with(int[] other) { return new Group(kind, tag, folderId, other); }
+    }
+
+    final List<Op> ops;
+
+    ChangeBatch(List<Op> ops) {
+        this.ops = ops;
+    }
+
+    static ChangeBatch parse(ShimRequest req) throws ShimException {
+        String raw = req.param("changes");
+        if (raw == null || raw.trim().isEmpty()) throw ShimException.badRequest("missing changes");
+        JsonArray arr;
+        try {
+            arr = JsonParser.parseString(raw).getAsJsonArray();
+        } catch (RuntimeException e) {
+            throw ShimException.badRequest("changes must be a JSON array");
+        }
+        List<Op> ops = new ArrayList<>(arr.size());
+        int total = 0;
+        for (JsonElement el : arr) {
+            if (!el.isJsonObject()) throw ShimException.badRequest("each change must be an object");
+            JsonObject o = el.getAsJsonObject();
+            Kind kind;
+            try {
+                kind = Kind.valueOf(o.get("op").getAsString().toUpperCase(Locale.ROOT));
+            } catch (RuntimeException e) {
+                throw ShimException.badRequest("invalid op: " + o.get("op"));
+            }
+            String tag = null;
+            int folderId = 0;
+            if (kind == Kind.TAG || kind == Kind.UNTAG) {
+                try {
+                    tag = o.has("tag") ? o.get("tag").getAsString().trim() : "";
+                } catch (RuntimeException e) {
+                    throw ShimException.badRequest(kind.wireName() + " tag must be a string");
+                }
+                if (tag.isEmpty()) throw ShimException.badRequest(kind.wireName() + " needs a tag");
+            } else if (kind == Kind.MOVE) {
+                try {
+                    folderId = o.has("folderId") ? o.get("folderId").getAsInt() : 0;
+                } catch (RuntimeException e) {
+                    throw ShimException.badRequest("move folderId must be an integer");
+                }
+                if (folderId <= 0) throw ShimException.badRequest("move needs a folderId");
+            }
+            JsonArray idArr = o.has("ids") && o.get("ids").isJsonArray() ? o.getAsJsonArray("ids") : new JsonArray();
+            total += idArr.size();
+            if (total > MAX_IDS) throw ShimException.badRequest("too many ids (max " + MAX_IDS + ")");
+            int[] ids = new int[idArr.size()];
+            try {
+                for (int i = 0; i < ids.length; i++) ids[i] = idArr.get(i).getAsInt();
+            } catch (RuntimeException e) {
+                throw ShimException.badRequest("invalid id in " + kind.wireName());
+            }
+            ops.add(new Op(kind, tag, folderId, ids));
+        }
+        if (total == 0) throw ShimException.badRequest("no ids in changes");
+        return new ChangeBatch(ops);
+    }
+
+    /** Last-op-wins per channel and id, grouped by identical change, in execution order. */
+    List<Group> groups() {
+        Map<String, LinkedHashMap<Integer, Op>> channels = new LinkedHashMap<>();
+        for (Op op : ops) {
+            LinkedHashMap<Integer, Op> last = channels.computeIfAbsent(op.kind.channel(op.tag), k -> new LinkedHashMap<>());
+            for (int id : op.ids) {
+                last.remove(id);    // re-insert so ids keep the order of their winning op
+                last.put(id, op);
+            }
+        }
+        // Winning ids per distinct change; any op with that change stands in for it
+        Map<String, List<Integer>> byChange = new LinkedHashMap<>();
+        Map<String, Op> sample = new HashMap<>();
+        for (LinkedHashMap<Integer, Op> last : channels.values()) {
+            for (Map.Entry<Integer, Op> e : last.entrySet()) {
+                Op op = e.getValue();
+                String key = op.kind + "\u0000" + op.tag + "\u0000" + op.folderId;
+                byChange.computeIfAbsent(key, k -> new ArrayList<>()).add(e.getKey());
+                sample.putIfAbsent(key, op);
+            }
+        }
+        List<Group> out = new ArrayList<>();
+        for (Map.Entry<String, List<Integer>> e : byChange.entrySet()) {
+            Op op = sample.get(e.getKey());
+            List<Integer> ids = e.getValue();
+            for (int from = 0; from < ids.size(); from += CHUNK) {
+                int[] chunk = new int[Math.min(CHUNK, ids.size() - from)];
+                for (int i = 0; i < chunk.length; i++) chunk[i] = ids.get(from + i);
+                out.add(new Group(op.kind, op.tag, op.folderId, chunk));
+            }
+        }
+        out.sort((a, b) -> Integer.compare(a.kind.order(), b.kind.order()));
+        return out;
+    }
+
+    /** Applies every group through {@code backend} and maps the outcome back onto the request's ops. */
+    Map<String, Object> run(MailboxBackend backend, ShimAccount acct) {
+        Map<String, Map<Integer, String>> errors = new HashMap<>();
+        long modseq = -1;
+        for (Group g : groups()) {
+            String channel = g.kind.channel(g.tag);
+            try {
+                modseq = Math.max(modseq, backend.applyChanges(acct, g));
+                continue;
+            } catch (ShimException e) {
+                if (g.ids.length == 1) {
+                    errors.computeIfAbsent(channel, k -> new HashMap<>()).put(g.ids[0], e.getMessage());
+                    continue;
+                }
+            }
+            for (int id : g.ids) {
+                try {
+                    modseq = Math.max(modseq, backend.applyChanges(acct, g.with(new int[] { id })));
+                } catch (ShimException e) {
+                    errors.computeIfAbsent(channel, k -> new HashMap<>()).put(id, e.getMessage());
+                }
+            }
+        }
+        List<Map<String, Object>> results = new ArrayList<>(ops.size());
+        int applied = 0, failed = 0;
+        for (Op op : ops) {
+            Map<Integer, String> channelErrors = errors.get(op.kind.channel(op.tag));
+            List<Integer> ok = new ArrayList<>(op.ids.length);
+            Map<String, String> bad = new LinkedHashMap<>();
+            for (int id : op.ids) {
+                String err = channelErrors != null ? channelErrors.get(id) : null;
+                if (err == null) ok.add(id); else bad.put(Integer.toString(id), err);
+            }
+            applied += ok.size();
+            failed += bad.size();
+            Map<String, Object> r = new LinkedHashMap<>();
+            r.put("op", op.kind.wireName());
+            r.put("ok", ok);
+            r.put("failed", bad);
+            results.add(r);
+        }
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("modseq", modseq >= 0 ? modseq : null);
+        m.put("applied", applied);
+        m.put("failed", failed);
+        m.put("results", results);
+        return m;
+    }
+}
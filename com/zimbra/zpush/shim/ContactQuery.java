@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * getcontacts request: one contact folder, a field projection and an optional
+ * modseq to sync from. Backends push contacts into a {@link Sink} as they read
+ * them, so a 20k-entry address book is never held as one response object.
+ *
+ *   folderId=7                 contact folder (default 7, Contacts)
+ *   fields=firstName,email     Zimbra contact attributes to return (default
+ *                              {@link #DEFAULT_FIELDS}); each row is an array in
+ *                              this order after the fixed id, modseq, photo columns
+ *   since=N                    delta: only contacts changed after modseq N, plus
+ *                              the ids deleted since then
+ *
+ * Wire format (streamed):
+ *   {"folderId":7,"modseq":M,"delta":true,
+ *    "fields":["id","modseq","photo","firstName",...],
+ *    "contacts":[[id,modseq,photo,"First",...],...],
+ *    "deleted":[id,...]}
+ *
+ * Store {@code modseq} and pass it as {@code since} next time. {@code delta}
+ * is false when a full listing was sent, either because no since was given
+ * or because since is older than the tombstones the mailbox still keeps;
+ * the client then replaces its copy. {@code photo} is a version tag, or null
+ * when the contact has no picture; fetch changed tags with getcontactphoto.
+ */
+public final class ContactQuery {
+    static final int DEFAULT_FOLDER = 7;
+    static final List<String> DEFAULT_FIELDS = Collections.unmodifiableList(Arrays.asList(
+            "fullName", "firstName", "lastName", "company", "jobTitle",
+            "email", "email2", "email3", "mobilePhone", "workPhone", "homePhone"));
+    private static final int MAX_FIELDS = 64;
+
+    final int folderId;
+    final List<String> fields;
+    final long since;        // -1 = full listing
+
+    ContactQuery(int folderId, List<String> fields, long since) {
+        this.folderId = folderId;
+        this.fields = fields;
+        this.since = since;
+    }
+
+    boolean isDelta() { return since >= 0; }
+
+    static ContactQuery parse(ShimRequest req) throws ShimException {
+        int folderId = ShimDispatcher.parseInt(req.param("folderId"), DEFAULT_FOLDER);
+        String raw = req.param("fields");
+        List<String> fields = DEFAULT_FIELDS;
+        if (raw != null && !raw.trim().isEmpty()) {
+            fields = new ArrayList<>();
+            for (String f : raw.split(",")) {
+                String name = f.trim();
+                if (name.isEmpty() || fields.contains(name)) continue;
+                if (!name.matches("[A-Za-z][A-Za-z0-9]*")) throw ShimException.badRequest("invalid field: " + name);
+                fields.add(name);
+            }
+            if (fields.size() > MAX_FIELDS) throw ShimException.badRequest("too many fields (max " + MAX_FIELDS + ")");
+        }
+        String s = req.param("since");
+        long since = -1;
+        if (s != null && !s.trim().isEmpty()) {
+            since = ShimDispatcher.parseLong(s.trim(), -1);
+            if (since < 0) throw ShimException.badRequest("invalid since: " + s);
+        }
+        return new ContactQuery(folderId, fields, since);
+    }
+
+    /** Receives one listing; {@link #begin} comes first, then contacts, then deletions. */
+    public interface Sink {
+        /** {@code delta} false means a full listing follows even though since was given. */
+        void begin(long modseq, boolean delta) throws IOException;
+
+        /** {@code attrs} may hold more than the projected fields; only those are written. */
+        void contact(int id, long modseq, String photo, Map<String, String> attrs) throws IOException;
+
+        void deleted(int id) throws IOException;
+    }
+
+    /** Raw picture bytes of one contact for getcontactphoto. */
+    public static final class Photo {
+        final String contentType;
+        final String version;
+        final MimeSource data;
+
+        public Photo(String contentType, String version, MimeSource data) {
+            this.contentType = contentType;
+            this.version = version;
+            this.data = data;
+        }
+    }
+
+    /**
+     * Writes the wire format above through a 64 KB buffer. The response is only
+     * committed at {@link #begin}, so backend errors before then can still be
+     * reported as a normal JSON error.
+     */
+    final class JsonSink implements Sink {
+        private final ShimResponse resp;
+        private JsonWriter out;
+        private boolean inDeleted;
+
+        JsonSink(ShimResponse resp) {
+            this.resp = resp;
+        }
+
+        boolean begun() { return out != null; }
+
+        @Override
+        public void begin(long modseq, boolean delta) throws IOException {
+            resp.setContentType("application/json; charset=UTF-8");
+            out = new JsonWriter(new BufferedWriter(new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024));
+            out.beginObject();
+            out.name("folderId").value(folderId);
+            out.name("modseq").value(modseq);
+            out.name("delta").value(delta);
+            out.name("fields").beginArray();
+            out.value("id").value("modseq").value("photo");
+            for (String f : fields) out.value(f);
+            out.endArray();
+            out.name("contacts").beginArray();
+        }
+
+        @Override
+        public void contact(int id, long modseq, String photo, Map<String, String> attrs) throws IOException {
+            out.beginArray();
+            out.value(id).value(modseq);
+            if (photo != null) out.value(photo); else out.nullValue();
+            for (String f : fields) {
+                String v = attrs.get(f);
+                if (v != null) out.value(v); else out.nullValue();
+            }
+            out.endArray();
+        }
+
+        @Override
+        public void deleted(int id) throws IOException {
+            if (!inDeleted) {
+                out.endArray();
+                out.name("deleted").beginArray();
+                inDeleted = true;
+            }
+            out.value(id);
+        }
+
+        void end() throws IOException {
+            if (!inDeleted) {
+                out.endArray();
+                out.name("deleted").beginArray();
+            }
+            out.endArray();
+            out.endObject();
+            out.flush();
+        }
+    }
+}
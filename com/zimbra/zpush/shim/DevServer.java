@@ -4,83 +4,132 @@
  */
 package com.zimbra.zpush.shim;
 
-import com.google.gson.Gson;
-import com.google.gson.GsonBuilder;
-
 import com.sun.net.httpserver.HttpExchange;
 import com.sun.net.httpserver.HttpHandler;
 import com.sun.net.httpserver.HttpServer;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetSocketAddress;
 import java.net.URLDecoder;
 import java.nio.charset.StandardCharsets;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
  * Lightweight dev HTTP server (no Zimbra required) that exposes
- * /service/extension/zpush-shim and handles the same action API
- * using CompatCore (mock data).
+ * /service/extension/zpush-shim and runs the production ShimDispatcher
+ * over InMemoryBackend (synthetic mailbox).
  */
 public class DevServer {
-    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
-
     public static void main(String[] args) throws Exception {
         int port = 8081;
         String bind = "127.0.0.1";
+        String syntheticSpec = null;
+        int threads = 0;
+        String fakeImap = null, fakeAutodiscover = null;
         for (int i = 0; i < args.length; i++) {
             if ("-p".equals(args[i]) && i + 1 < args.length) {
                 port = Integer.parseInt(args[++i]);
             } else if ("-b".equals(args[i]) && i + 1 < args.length) {
                 bind = args[++i];
+            } else if ("--synthetic".equals(args[i]) && i + 1 < args.length) {
+                syntheticSpec = args[++i];
+            } else if ("-t".equals(args[i]) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("--fake-auth".equals(args[i]) && i + 1 < args.length) {
+                fakeImap = fakeAutodiscover = args[++i];
+            } else if ("--fake-imap".equals(args[i]) && i + 1 < args.length) {
+                fakeImap = args[++i];
+            } else if ("--fake-autodiscover".equals(args[i]) && i + 1 < args.length) {
+                fakeAutodiscover = args[++i];
             }
         }
+        // Synthetic mailbox: arg wins over -Dzpush.shim.synthetic / ZPUSH_SHIM_SYNTHETIC, else a small default
+        long t0 = System.currentTimeMillis();
+        SyntheticMailbox synthetic = syntheticSpec != null
+                ? new SyntheticMailbox(SyntheticMailbox.Spec.parse(syntheticSpec))
+                : InMemoryBackend.defaultMailbox();
+        synthetic.startMutations();
+        System.out.println("DevServer synthetic mailbox: " + synthetic.getFolderCount() + " folders, "
+                + synthetic.getMessageCount() + " messages, " + synthetic.getSpec().mutations
+                + " mutations/s (generated in " + (System.currentTimeMillis() - t0) + " ms)");
+        InMemoryBackend backend = new InMemoryBackend(synthetic);
+        if (fakeImap != null || fakeAutodiscover != null) {
+            startFakeAuth(fakeImap, fakeAutodiscover);
+            backend.setVerifyCredentials(true);
+        }
+        // Sync states go to a scratch directory unless one is configured
+        if (ShimConfig.get("zpush.shim.syncstate.dir", null) == null) {
+            System.setProperty("zpush.shim.syncstate.dir",
+                    new File(System.getProperty("java.io.tmpdir"), "zpush-shim-syncstate-" + port).getPath());
+        }
+        ShimDispatcher dispatcher = new ShimDispatcher(backend);
         HttpServer server = HttpServer.create(new InetSocketAddress(bind, port), 0);
-        server.createContext("/service/extension/zpush-shim", new ShimHandler());
-        server.setExecutor(null);
+        server.createContext("/service/extension/zpush-shim", new ShimHandler(dispatcher));
+        // Default is the single dispatcher thread; -t N gives a worker pool for load tests
+        server.setExecutor(threads > 0 ? java.util.concurrent.Executors.newFixedThreadPool(threads) : null);
         System.out.println("DevServer listening on http://" + bind + ":" + port + "/service/extension/zpush-shim");
         server.start();
     }
 
+    /**
+     * Starts loopback IMAP (plain + TLS) and/or AutoDiscover stand-ins and points
+     * the app-password fallback settings at them. A side without a spec is
+     * disabled so its latency does not leak into measurements.
+     */
+    static void startFakeAuth(String imapSpec, String autodiscoverSpec) throws Exception {
+        if (autodiscoverSpec != null) {
+            FakeAuthRules rules = FakeAuthRules.parse(autodiscoverSpec);
+            FakeAutodiscoverServer ad = new FakeAutodiscoverServer(rules, 0, rules.tls ? rules.sslContext() : null);
+            System.setProperty("zpush.shim.autodiscover.fallback", "true");
+            System.setProperty("zpush.shim.autodiscover.urls", ad.url());
+            System.out.println("DevServer fake AutoDiscover: " + ad.url() + " (" + rules + ")");
+        } else {
+            System.setProperty("zpush.shim.autodiscover.fallback", "false");
+        }
+        if (imapSpec != null) {
+            FakeAuthRules rules = FakeAuthRules.parse(imapSpec);
+            FakeImapServer tls = new FakeImapServer(rules, 0, rules.sslContext());
+            FakeImapServer plain = new FakeImapServer(rules, 0, null);
+            // Same order as production defaults (993,143): TLS first
+            System.setProperty("zpush.shim.basic.fallback", "true");
+            System.setProperty("zpush.shim.imap.host", "127.0.0.1");
+            System.setProperty("zpush.shim.imap.ports", tls.getPort() + "," + plain.getPort());
+            System.setProperty("zpush.shim.imap.tlsPorts", String.valueOf(tls.getPort()));
+            System.out.println("DevServer fake IMAP: tls=127.0.0.1:" + tls.getPort() + " plain=127.0.0.1:" + plain.getPort() + " (" + rules + ")");
+        } else {
+            System.setProperty("zpush.shim.basic.fallback", "false");
+        }
+    }
+
     static class ShimHandler implements HttpHandler {
+        private final ShimDispatcher dispatcher;
+
+        ShimHandler(ShimDispatcher dispatcher) {
+            this.dispatcher = dispatcher;
+        }
+
         @Override
         public void handle(HttpExchange ex) throws IOException {
             if (!"POST".equalsIgnoreCase(ex.getRequestMethod())) {
                 respond(ex, 405, jsonErr("Method Not Allowed"));
                 return;
             }
-            String body = new String(readAll(ex.getRequestBody()), StandardCharsets.UTF_8);
-            Map<String, String> form = parseFormUrlEncoded(body);
-            String action = (form.getOrDefault("action", "")).toLowerCase();
-            Object out;
-            switch (action) {
-                case "ping":
-                    out = CompatCore.ping();
-                    respond(ex, 200, GSON.toJson(out));
-                    return;
-                case "authenticate":
-                    out = CompatCore.authenticate(form.get("username"));
-                    respond(ex, 200, GSON.toJson(out));
-                    return;
-                case "getfolders":
-                    out = CompatCore.getFolders();
-                    respond(ex, 200, GSON.toJson(out));
-                    return;
-                case "getmessages":
-                    int limit = safeInt(form.get("limit"), 10);
-                    out = CompatCore.getMessages(form.get("folderId"), limit);
-                    respond(ex, 200, GSON.toJson(out));
-                    return;
-                case "getmessage":
-                    out = CompatCore.getMessage(form.get("messageId"), form.getOrDefault("format", "html"));
-                    respond(ex, 200, GSON.toJson(out));
-                    return;
-                default:
-                    respond(ex, 400, jsonErr("Unknown or missing action"));
+            Map<String, String> form = new HashMap<>();
+            parseFormUrlEncoded(ex.getRequestURI().getRawQuery(), form);
+            // Other bodies (sendmail's MIME) are left unread for ShimRequest.body()
+            boolean formBody = ShimRequest.isForm(ex.getRequestHeaders().getFirst("Content-Type"));
+            if (formBody) parseFormUrlEncoded(new String(readAll(ex.getRequestBody()), StandardCharsets.UTF_8), form);
+            ExchangeResponse resp = new ExchangeResponse(ex);
+            try {
+                dispatcher.dispatch(new ExchangeRequest(ex, form, !formBody), resp);
+            } finally {
+                resp.finish();
             }
         }
 
@@ -88,10 +137,6 @@ public class DevServer {
             return "{\"success\":false,\"error\":\"" + msg.replace("\"", "\\\"") + "\"}";
         }
 
-        private int safeInt(String s, int def) {
-            try { return Integer.parseInt(s); } catch (Exception e) { return def; }
-        }
-
         private void respond(HttpExchange ex, int status, String body) throws IOException {
             byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
             ex.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
@@ -101,9 +146,8 @@ public class DevServer {
             }
         }
 
-        private Map<String, String> parseFormUrlEncoded(String body) {
-            Map<String, String> map = new HashMap<>();
-            if (body == null || body.isEmpty()) return map;
+        private void parseFormUrlEncoded(String body, Map<String, String> map) {
+            if (body == null || body.isEmpty()) return;
             String[] pairs = body.split("&");
             for (String p : pairs) {
                 int i = p.indexOf('=');
@@ -113,7 +157,6 @@ public class DevServer {
                 v = urlDecode(v);
                 map.put(k, v);
             }
-            return map;
         }
 
         private String urlDecode(String s) {
@@ -121,6 +164,87 @@ public class DevServer {
         }
     }
 
+    /** {@link ShimRequest} over an HttpExchange with pre-parsed form/query parameters. */
+    static final class ExchangeRequest implements ShimRequest {
+        private final HttpExchange ex;
+        private final Map<String, String> params;
+        private final boolean rawBody;
+
+        ExchangeRequest(HttpExchange ex, Map<String, String> params, boolean rawBody) {
+            this.ex = ex;
+            this.params = params;
+            this.rawBody = rawBody;
+        }
+
+        @Override
+        public String param(String name) { return params.get(name); }
+
+        @Override
+        public Collection<String> paramNames() { return params.keySet(); }
+
+        @Override
+        public String header(String name) { return ex.getRequestHeaders().getFirst(name); }
+
+        @Override
+        public String cookie(String name) {
+            String raw = header("Cookie");
+            if (raw == null) return null;
+            for (String part : raw.split(";")) {
+                int eq = part.indexOf('=');
+                if (eq > 0 && name.equals(part.substring(0, eq).trim())) return part.substring(eq + 1).trim();
+            }
+            return null;
+        }
+
+        @Override
+        public String remoteAddr() { return ex.getRemoteAddress().getAddress().getHostAddress(); }
+
+        @Override
+        public InputStream body() { return rawBody ? ex.getRequestBody() : null; }
+
+        @Override
+        public Object nativeRequest() { return ex; }
+    }
+
+    /** {@link ShimResponse} over an HttpExchange; headers are sent on first body access. */
+    static final class ExchangeResponse implements ShimResponse {
+        private final HttpExchange ex;
+        private int status = 200;
+        private long length = -1;
+        private OutputStream out;
+
+        ExchangeResponse(HttpExchange ex) {
+            this.ex = ex;
+        }
+
+        @Override
+        public void setStatus(int status) { this.status = status; }
+
+        @Override
+        public void setHeader(String name, String value) { ex.getResponseHeaders().set(name, value); }
+
+        @Override
+        public void setContentType(String type) { setHeader("Content-Type", type); }
+
+        @Override
+        public void setContentLength(long length) { this.length = length; }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if (out == null) {
+                // HttpExchange: 0 = chunked, -1 = no body
+                ex.sendResponseHeaders(status, length > 0 ? length : (length == 0 ? -1 : 0));
+                out = ex.getResponseBody();
+            }
+            return out;
+        }
+
+        void finish() throws IOException {
+            if (out == null) ex.sendResponseHeaders(status, -1);
+            ex.close();
+        }
+    }
+
     // Java 8-compatible helper to read an InputStream fully
     private static byte[] readAll(InputStream in) throws IOException {
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
@@ -0,0 +1,165 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.KeyStore;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Accept/reject and fault-injection rules shared by {@link FakeImapServer} and
+ * {@link FakeAutodiscoverServer}. Parsed from a compact spec, e.g.
+ * <pre>
+ *   users=alice@example.com:app-pass|bob@example.com:pw2,latency=150,jitter=50,reset=0.05,hang=0.02,seed=7
+ * </pre>
+ * Keys:
+ *   accept     all | none | users (default: users when given, else all)
+ *   users      '|'-separated user:password pairs (user match is case-insensitive)
+ *   latency    ms added before every credential decision (default 0)
+ *   jitter     extra uniform 0..jitter ms (default 0)
+ *   reset      fraction of connections dropped without a response (0..1)
+ *   hang       fraction of connections that never answer (0..1)
+ *   hangMs     how long a hung connection is held open (default 60000)
+ *   status     AutoDiscover HTTP status for accepted credentials (default 200; 403 mimics EAS disabled)
+ *   seed       RNG seed for jitter and fault selection (default 1)
+ *   tls        true to serve over TLS (AutoDiscover; the IMAP fake starts plain and TLS listeners)
+ *   keystore   PKCS12/JKS keystore for TLS (default: self-signed, generated with keytool)
+ *   storepass  keystore password (default changeit)
+ */
+final class FakeAuthRules {
+    enum Fault { NONE, RESET, HANG }
+
+    final Map<String, String> users = new LinkedHashMap<>();
+    String accept = "";
+    long latencyMs;
+    long jitterMs;
+    double resetRate;
+    double hangRate;
+    long hangMs = 60_000;
+    int acceptStatus = 200;
+    long seed = 1;
+    boolean tls;
+    String keystore;
+    String storepass = "changeit";
+
+    private Random rnd;
+
+    static FakeAuthRules parse(String spec) {
+        FakeAuthRules r = new FakeAuthRules();
+        if (spec != null) {
+            for (String part : spec.split(",")) {
+                int eq = part.indexOf('=');
+                if (eq <= 0) continue;
+                String k = part.substring(0, eq).trim();
+                String v = part.substring(eq + 1).trim();
+                try {
+                    switch (k) {
+                        case "accept": r.accept = v.toLowerCase(Locale.ROOT); break;
+                        case "users":
+                            for (String u : v.split("\\|")) {
+                                int c = u.indexOf(':');
+                                if (c > 0) r.users.put(u.substring(0, c).trim().toLowerCase(Locale.ROOT), u.substring(c + 1));
+                            }
+                            break;
+                        case "latency": r.latencyMs = Long.parseLong(v); break;
+                        case "jitter": r.jitterMs = Long.parseLong(v); break;
+                        case "reset": r.resetRate = Double.parseDouble(v); break;
+                        case "hang": r.hangRate = Double.parseDouble(v); break;
+                        case "hangMs": r.hangMs = Long.parseLong(v); break;
+                        case "status": r.acceptStatus = Integer.parseInt(v); break;
+                        case "seed": r.seed = Long.parseLong(v); break;
+                        case "tls": r.tls = "1".equals(v) || "true".equalsIgnoreCase(v); break;
+                        case "keystore": r.keystore = v; break;
+                        case "storepass": r.storepass = v; break;
+                        default: throw new IllegalArgumentException("unknown fake auth key: " + k);
+                    }
+                } catch (NumberFormatException e) {
+                    throw new IllegalArgumentException("bad value for " + k + ": " + v);
+                }
+            }
+        }
+        if (r.accept.isEmpty()) r.accept = r.users.isEmpty() ? "all" : "users";
+        r.rnd = new Random(r.seed);
+        return r;
+    }
+
+    boolean accepts(String user, String password) {
+        switch (accept) {
+            case "all": return true;
+            case "none": return false;
+            default:
+                String want = user != null ? users.get(user.toLowerCase(Locale.ROOT)) : null;
+                return want != null && want.equals(password);
+        }
+    }
+
+    /** Picks the fault (if any) for a new connection. */
+    Fault nextFault() {
+        double x;
+        synchronized (this) { x = rnd.nextDouble(); }
+        if (x < resetRate) return Fault.RESET;
+        if (x < resetRate + hangRate) return Fault.HANG;
+        return Fault.NONE;
+    }
+
+    /** Sleeps for the configured latency plus jitter. */
+    void delay() throws InterruptedException {
+        long ms = latencyMs;
+        if (jitterMs > 0) {
+            synchronized (this) { ms += (long) (rnd.nextDouble() * (jitterMs + 1)); }
+        }
+        if (ms > 0) Thread.sleep(ms);
+    }
+
+    /** Server-side TLS context from {@code keystore}, or a generated self-signed one. */
+    SSLContext sslContext() throws Exception {
+        File ks = keystore != null ? new File(keystore) : selfSignedKeystore(storepass);
+        KeyStore store = KeyStore.getInstance(ks.getName().endsWith(".jks") ? "JKS" : "PKCS12");
+        try (InputStream in = new FileInputStream(ks)) {
+            store.load(in, storepass.toCharArray());
+        }
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        kmf.init(store, storepass.toCharArray());
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(kmf.getKeyManagers(), null, null);
+        return ctx;
+    }
+
+    private static File selfSignedKeystore(String pass) throws Exception {
+        File dir = new File(System.getProperty("java.io.tmpdir"), "zpush-shim-fake-tls");
+        File ks = new File(dir, "localhost.p12");
+        synchronized (FakeAuthRules.class) {
+            if (ks.isFile()) return ks;
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create " + dir);
+            String keytool = new File(new File(System.getProperty("java.home"), "bin"), "keytool").getPath();
+            Process p = new ProcessBuilder(keytool, "-genkeypair", "-alias", "localhost", "-keyalg", "RSA",
+                    "-keysize", "2048", "-dname", "CN=localhost", "-validity", "3650", "-storetype", "PKCS12",
+                    "-keystore", ks.getPath(), "-storepass", pass, "-keypass", pass)
+                    .redirectErrorStream(true).start();
+            byte[] buf = new byte[4096];
+            StringBuilder out = new StringBuilder();
+            try (InputStream in = p.getInputStream()) {
+                int n;
+                while ((n = in.read(buf)) > 0) out.append(new String(buf, 0, n, "UTF-8"));
+            }
+            if (p.waitFor() != 0 || !ks.isFile()) throw new IOException("keytool failed: " + out.toString().trim());
+            return ks;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "accept=" + accept + (users.isEmpty() ? "" : " users=" + users.size())
+                + " latency=" + latencyMs + "+" + jitterMs + "ms reset=" + resetRate + " hang=" + hangRate;
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import com.sun.net.httpserver.HttpsConfigurator;
+import com.sun.net.httpserver.HttpsServer;
+
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback stand-in for Zimbra's /Autodiscover/Autodiscover.xml as probed by
+ * the app-password fallback: Basic credentials are checked against
+ * {@link FakeAuthRules} and answered with 401 or the configured status.
+ * Resets close the exchange without a response; hangs hold it open.
+ */
+final class FakeAutodiscoverServer implements Closeable {
+    static final String PATH = "/Autodiscover/Autodiscover.xml";
+
+    private final FakeAuthRules rules;
+    private final HttpServer server;
+    private final ExecutorService pool;
+
+    final AtomicLong requests = new AtomicLong();
+    final AtomicLong accepted = new AtomicLong();
+    final AtomicLong rejected = new AtomicLong();
+    final AtomicLong resets = new AtomicLong();
+    final AtomicLong hangs = new AtomicLong();
+
+    /** Binds to 127.0.0.1:{@code port} (0 = ephemeral); {@code ssl} null for plain HTTP. */
+    FakeAutodiscoverServer(FakeAuthRules rules, int port, SSLContext ssl) throws IOException {
+        this.rules = rules;
+        InetSocketAddress addr = new InetSocketAddress(InetAddress.getLoopbackAddress(), port);
+        if (ssl != null) {
+            HttpsServer https = HttpsServer.create(addr, 128);
+            https.setHttpsConfigurator(new HttpsConfigurator(ssl));
+            server = https;
+        } else {
+            server = HttpServer.create(addr, 128);
+        }
+        pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "fake-autodiscover");
+            t.setDaemon(true);
+            return t;
+        });
+        server.createContext(PATH, this::handle);
+        server.createContext("/autodiscover/autodiscover.xml", this::handle);
+        server.setExecutor(pool);
+        server.start();
+    }
+
+    int getPort() { return server.getAddress().getPort(); }
+
+    String url() {
+        return (server instanceof HttpsServer ? "https" : "http") + "://127.0.0.1:" + getPort() + PATH;
+    }
+
+    String stats() {
+        return "requests=" + requests.get() + " ok=" + accepted.get() + " 401=" + rejected.get()
+                + " resets=" + resets.get() + " hangs=" + hangs.get();
+    }
+
+    private void handle(HttpExchange ex) throws IOException {
+        requests.incrementAndGet();
+        try {
+            drain(ex.getRequestBody());
+            switch (rules.nextFault()) {
+                case RESET:
+                    resets.incrementAndGet();
+                    return; // close without a status line
+                case HANG:
+                    hangs.incrementAndGet();
+                    Thread.sleep(rules.hangMs);
+                    return;
+                default:
+                    break;
+            }
+            rules.delay();
+            String[] creds = basic(ex.getRequestHeaders().getFirst("Authorization"));
+            boolean ok = creds != null && rules.accepts(creds[0], creds[1]);
+            (ok ? accepted : rejected).incrementAndGet();
+            if (!ok) {
+                ex.getResponseHeaders().set("WWW-Authenticate", "Basic realm=\"Zimbra\"");
+                respond(ex, 401, "");
+            } else {
+                ex.getResponseHeaders().set("Content-Type", "text/xml; charset=UTF-8");
+                respond(ex, rules.acceptStatus, rules.acceptStatus == 200
+                        ? "<?xml version=\"1.0\" encoding=\"UTF-8\"?><Autodiscover xmlns=\"http://schemas.microsoft.com/exchange/autodiscover/responseschema/2006\"/>"
+                        : "");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            ex.close();
+        }
+    }
+
+    private static String[] basic(String header) {
+        if (header == null || !header.regionMatches(true, 0, "Basic ", 0, 6)) return null;
+        try {
+            String raw = new String(Base64.getDecoder().decode(header.substring(6).trim()), StandardCharsets.UTF_8);
+            int c = raw.indexOf(':');
+            return c < 0 ? null : new String[] { raw.substring(0, c), raw.substring(c + 1) };
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static void respond(HttpExchange ex, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        ex.sendResponseHeaders(status, bytes.length == 0 ? -1 : bytes.length);
+        if (bytes.length > 0) {
+            try (OutputStream os = ex.getResponseBody()) {
+                os.write(bytes);
+            }
+        }
+    }
+
+    private static void drain(InputStream in) throws IOException {
+        byte[] buf = new byte[4096];
+        while (in.read(buf) > 0) { /* Autodiscover authenticates before parsing the body */ }
+    }
+
+    @Override
+    public void close() {
+        server.stop(0);
+        pool.shutdownNow();
+    }
+}
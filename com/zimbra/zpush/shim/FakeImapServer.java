@@ -0,0 +1,187 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import javax.net.ssl.SSLContext;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Loopback IMAP stand-in for the app-password fallback: greeting, CAPABILITY,
+ * NOOP, LOGIN and LOGOUT only. LOGIN is answered per {@link FakeAuthRules};
+ * connections may be reset or held open without a reply to exercise the
+ * client's timeouts. Pass an SSLContext for implicit TLS (the 993 path).
+ */
+final class FakeImapServer implements Closeable {
+    private final FakeAuthRules rules;
+    private final ServerSocket server;
+    private final boolean tls;
+    private final ExecutorService pool;
+    private volatile boolean closed;
+
+    final AtomicLong connections = new AtomicLong();
+    final AtomicLong accepted = new AtomicLong();
+    final AtomicLong rejected = new AtomicLong();
+    final AtomicLong resets = new AtomicLong();
+    final AtomicLong hangs = new AtomicLong();
+
+    /** Binds to 127.0.0.1:{@code port} (0 = ephemeral); {@code ssl} null for plain IMAP. */
+    FakeImapServer(FakeAuthRules rules, int port, SSLContext ssl) throws IOException {
+        this.rules = rules;
+        this.tls = ssl != null;
+        InetAddress lo = InetAddress.getLoopbackAddress();
+        this.server = ssl != null
+                ? ssl.getServerSocketFactory().createServerSocket(port, 128, lo)
+                : new ServerSocket(port, 128, lo);
+        this.pool = Executors.newCachedThreadPool(r -> {
+            Thread t = new Thread(r, "fake-imap-" + server.getLocalPort());
+            t.setDaemon(true);
+            return t;
+        });
+        Thread acceptor = new Thread(this::acceptLoop, "fake-imap-accept-" + server.getLocalPort());
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    int getPort() { return server.getLocalPort(); }
+
+    boolean isTls() { return tls; }
+
+    String stats() {
+        return "connections=" + connections.get() + " ok=" + accepted.get() + " no=" + rejected.get()
+                + " resets=" + resets.get() + " hangs=" + hangs.get();
+    }
+
+    private void acceptLoop() {
+        while (!closed) {
+            try {
+                Socket s = server.accept();
+                connections.incrementAndGet();
+                pool.execute(() -> handle(s));
+            } catch (IOException e) {
+                if (closed) return;
+            }
+        }
+    }
+
+    private void handle(Socket s) {
+        try {
+            switch (rules.nextFault()) {
+                case RESET:
+                    resets.incrementAndGet();
+                    s.setSoLinger(true, 0); // RST instead of FIN
+                    return;
+                case HANG:
+                    hangs.incrementAndGet();
+                    hold(s);
+                    return;
+                default:
+                    break;
+            }
+            s.setSoTimeout(60_000);
+            InputStream in = s.getInputStream();
+            OutputStream out = s.getOutputStream();
+            write(out, "* OK [CAPABILITY IMAP4rev1 AUTH=PLAIN] Fake IMAP ready");
+            String line;
+            while ((line = AuthFallbacks.readLine(in)) != null) {
+                List<String> args = tokenize(line);
+                if (args.size() < 2) {
+                    write(out, "* BAD missing tag or command");
+                    continue;
+                }
+                String tag = args.get(0);
+                String cmd = args.get(1).toUpperCase(Locale.ROOT);
+                switch (cmd) {
+                    case "CAPABILITY":
+                        write(out, "* CAPABILITY IMAP4rev1 AUTH=PLAIN");
+                        write(out, tag + " OK CAPABILITY completed");
+                        break;
+                    case "NOOP":
+                        write(out, tag + " OK NOOP completed");
+                        break;
+                    case "LOGIN": {
+                        rules.delay();
+                        boolean ok = args.size() >= 4 && rules.accepts(args.get(2), args.get(3));
+                        (ok ? accepted : rejected).incrementAndGet();
+                        write(out, ok ? tag + " OK LOGIN completed" : tag + " NO [AUTHENTICATIONFAILED] Invalid credentials");
+                        break;
+                    }
+                    case "LOGOUT":
+                        write(out, "* BYE Fake IMAP logging out");
+                        write(out, tag + " OK LOGOUT completed");
+                        return;
+                    default:
+                        write(out, tag + " BAD unsupported command");
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException ignore) {
+            // client went away
+        } finally {
+            try { s.close(); } catch (IOException ignore) {}
+        }
+    }
+
+    // Accept, say nothing, and keep the socket until the client gives up or hangMs passes
+    private void hold(Socket s) {
+        try {
+            s.setSoTimeout((int) Math.min(Integer.MAX_VALUE, Math.max(1, rules.hangMs)));
+            InputStream in = s.getInputStream();
+            byte[] buf = new byte[512];
+            while (in.read(buf) >= 0) { /* discard */ }
+        } catch (IOException ignore) {
+            // timed out or client closed
+        }
+    }
+
+    private static void write(OutputStream out, String line) throws IOException {
+        out.write((line + "\r\n").getBytes(StandardCharsets.UTF_8));
+        out.flush();
+    }
+
+    // Atoms and "quoted strings" with backslash escapes; enough for LOGIN
+    static List<String> tokenize(String line) {
+        List<String> out = new ArrayList<>();
+        int i = 0, n = line.length();
+        while (i < n) {
+            char c = line.charAt(i);
+            if (c == ' ') { i++; continue; }
+            StringBuilder sb = new StringBuilder();
+            if (c == '"') {
+                i++;
+                while (i < n && line.charAt(i) != '"') {
+                    char d = line.charAt(i++);
+                    if (d == '\\' && i < n) d = line.charAt(i++);
+                    sb.append(d);
+                }
+                i++;
+            } else {
+                while (i < n && line.charAt(i) != ' ') sb.append(line.charAt(i++));
+            }
+            out.add(sb.toString());
+        }
+        return out;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        server.close();
+        pool.shutdownNow();
+    }
+}
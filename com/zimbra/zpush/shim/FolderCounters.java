@@ -0,0 +1,169 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * getfoldercounters request: id, unread, total and modseq of the mailbox's
+ * folders as packed parallel arrays, for change polling without the names,
+ * views and paths of getfolders.
+ *
+ *   folderIds=2,5,257      only these folders (default: all)
+ *   known=2:1041,5:998     the client's last-known modseq per folder; only
+ *                          folders whose modseq differs, or that are not
+ *                          listed, are returned
+ *   format=binary          packed big-endian arrays instead of JSON
+ *
+ * Wire format (JSON):
+ *   {"count":N,"id":[..],"unread":[..],"total":[..],"modseq":[..],"deleted":[..]}
+ *
+ * Binary ({@code application/octet-stream}, big-endian):
+ *   "ZFC1", int32 N, int32[N] id, int32[N] unread, int32[N] total,
+ *   int64[N] modseq, int32 D, int32[D] deleted
+ *
+ * {@code deleted} lists the requested folders (folderIds, or else the known
+ * ones) that no longer exist. Rows are in the backend's folder order.
+ */
+public final class FolderCounters {
+    static final byte[] MAGIC = { 'Z', 'F', 'C', '1' };
+
+    final int[] folderIds;     // sorted; null = all
+    final int[] knownIds;      // sorted, parallel with knownModseq
+    final long[] knownModseq;
+    final boolean binary;
+
+    FolderCounters(int[] folderIds, int[] knownIds, long[] knownModseq, boolean binary) {
+        this.folderIds = folderIds;
+        this.knownIds = knownIds;
+        this.knownModseq = knownModseq;
+        this.binary = binary;
+    }
+
+    static FolderCounters parse(ShimRequest req) throws ShimException {
+        int[] folderIds = null;
+        String raw = req.param("folderIds");
+        if (raw != null && !raw.trim().isEmpty()) {
+            folderIds = Arrays.stream(FolderFilter.parseIds(raw)).distinct().toArray();
+            if (folderIds.length == 0) throw ShimException.badRequest("invalid folderIds");
+        }
+        int[] ids = new int[0];
+        long[] seqs = new long[0];
+        String known = req.param("known");
+        if (known != null && !known.trim().isEmpty()) {
+            String[] pairs = known.split(",");
+            long[] packed = new long[pairs.length];
+            for (int i = 0; i < pairs.length; i++) {
+                String p = pairs[i].trim();
+                int colon = p.indexOf(':');
+                int id = colon > 0 ? ShimDispatcher.parseInt(p.substring(0, colon), -1) : -1;
+                long seq = colon > 0 ? ShimDispatcher.parseLong(p.substring(colon + 1), -1) : -1;
+                if (id < 0 || seq < 0 || seq > Integer.MAX_VALUE) throw ShimException.badRequest("invalid known entry: " + p);
+                packed[i] = (long) id << 32 | seq;
+            }
+            // Sort by id, modseq riding along in the low word; a repeated id keeps its highest modseq
+            Arrays.sort(packed);
+            ids = new int[packed.length];
+            seqs = new long[packed.length];
+            int n = 0;
+            for (long v : packed) {
+                int id = (int) (v >>> 32);
+                if (n > 0 && ids[n - 1] == id) n--;
+                ids[n] = id;
+                seqs[n++] = v & 0xffffffffL;
+            }
+            ids = Arrays.copyOf(ids, n);
+            seqs = Arrays.copyOf(seqs, n);
+        }
+        String format = ShimDispatcher.str(req.param("format")).trim();
+        if (!format.isEmpty() && !format.equalsIgnoreCase("json") && !format.equalsIgnoreCase("binary")) {
+            throw ShimException.badRequest("unsupported format: " + format);
+        }
+        return new FolderCounters(folderIds, ids, seqs, format.equalsIgnoreCase("binary"));
+    }
+
+    /** Counters of every folder, one slot per folder, filled by the backend. */
+    public static final class Table {
+        int size;
+        int[] id = new int[64];
+        int[] unread = new int[64];
+        int[] total = new int[64];
+        long[] modseq = new long[64];
+
+        public void add(int folderId, int unreadCount, int totalCount, long folderModseq) {
+            if (size == id.length) {
+                int cap = size * 2;
+                id = Arrays.copyOf(id, cap);
+                unread = Arrays.copyOf(unread, cap);
+                total = Arrays.copyOf(total, cap);
+                modseq = Arrays.copyOf(modseq, cap);
+            }
+            id[size] = folderId;
+            unread[size] = unreadCount;
+            total[size] = totalCount;
+            modseq[size] = folderModseq;
+            size++;
+        }
+    }
+
+    /** Keeps the rows in scope that differ from the known vector, in place; returns the deleted ids. */
+    int[] select(Table t) {
+        int[] requested = folderIds != null ? folderIds : knownIds;
+        boolean[] found = new boolean[requested.length];
+        int n = 0;
+        for (int i = 0; i < t.size; i++) {
+            int id = t.id[i];
+            int r = Arrays.binarySearch(requested, id);
+            if (r >= 0) found[r] = true;
+            if (folderIds != null && r < 0) continue;
+            int k = Arrays.binarySearch(knownIds, id);
+            if (k >= 0 && knownModseq[k] == t.modseq[i]) continue;
+            t.id[n] = id;
+            t.unread[n] = t.unread[i];
+            t.total[n] = t.total[i];
+            t.modseq[n] = t.modseq[i];
+            n++;
+        }
+        t.size = n;
+        int d = 0;
+        int[] deleted = new int[requested.length];
+        for (int r = 0; r < requested.length; r++) {
+            if (!found[r]) deleted[d++] = requested[r];
+        }
+        return Arrays.copyOf(deleted, d);
+    }
+
+    void write(ShimResponse resp, Table t) throws IOException {
+        int[] deleted = select(t);
+        if (!binary) {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("count", t.size);
+            m.put("id", Arrays.copyOf(t.id, t.size));
+            m.put("unread", Arrays.copyOf(t.unread, t.size));
+            m.put("total", Arrays.copyOf(t.total, t.size));
+            m.put("modseq", Arrays.copyOf(t.modseq, t.size));
+            m.put("deleted", deleted);
+            ShimDispatcher.writeJson(resp, m);
+            return;
+        }
+        resp.setContentType("application/octet-stream");
+        resp.setContentLength(MAGIC.length + 4 + t.size * 20L + 4 + deleted.length * 4L);
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(resp.getOutputStream(), 64 * 1024));
+        out.write(MAGIC);
+        out.writeInt(t.size);
+        for (int i = 0; i < t.size; i++) out.writeInt(t.id[i]);
+        for (int i = 0; i < t.size; i++) out.writeInt(t.unread[i]);
+        for (int i = 0; i < t.size; i++) out.writeInt(t.total[i]);
+        for (int i = 0; i < t.size; i++) out.writeLong(t.modseq[i]);
+        out.writeInt(deleted.length);
+        for (int id : deleted) out.writeInt(id);
+        out.flush();
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * getfolders hierarchy filter, applied by backends while walking the folder
+ * tree so filtered-out folders are never materialized or serialized.
+ *
+ *   view=message[,contact...]  only emit folders with one of these default views
+ *                              (non-matching folders are still descended into)
+ *   rootId=N                   walk from folder N instead of the mailbox root
+ *   maxDepth=N                 only emit folders at most N levels below the root
+ *   excludeIds=3,4             skip these folders and their whole subtrees
+ */
+public final class FolderFilter {
+    /** No filtering: the whole tree, as before these parameters existed. */
+    public static final FolderFilter ALL = new FolderFilter(null, -1, -1, new int[0]);
+
+    final String[] views;    // null = any view
+    final int rootId;        // -1 = backend's mailbox root
+    final int maxDepth;      // -1 = unlimited
+    final int[] excludeIds;  // sorted
+
+    FolderFilter(String[] views, int rootId, int maxDepth, int[] excludeIds) {
+        this.views = views;
+        this.rootId = rootId;
+        this.maxDepth = maxDepth;
+        this.excludeIds = excludeIds;
+    }
+
+    static FolderFilter parse(ShimRequest req) {
+        String v = req.param("view");
+        String[] views = null;
+        if (v != null && !v.trim().isEmpty()) {
+            views = v.toLowerCase(Locale.ROOT).split("\\s*,\\s*");
+            for (int i = 0; i < views.length; i++) views[i] = views[i].trim();
+        }
+        int rootId = ShimDispatcher.parseInt(req.param("rootId"), -1);
+        int maxDepth = ShimDispatcher.parseInt(req.param("maxDepth"), -1);
+        int[] exclude = parseIds(req.param("excludeIds"));
+        if (views == null && rootId < 0 && maxDepth < 0 && exclude.length == 0) return ALL;
+        return new FolderFilter(views, rootId, maxDepth, exclude);
+    }
+
+    static int[] parseIds(String raw) {
+        if (raw == null || raw.isEmpty()) return new int[0];
+        String[] parts = raw.split(",");
+        int[] out = new int[parts.length];
+        int n = 0;
+        for (String p : parts) {
+            try { out[n] = Integer.parseInt(p.trim()); n++; } catch (NumberFormatException ignore) {}
+        }
+        out = Arrays.copyOf(out, n);
+        Arrays.sort(out);
+        return out;
+    }
+
+    boolean viewMatches(String view) {
+        if (views == null) return true;
+        for (String v : views) {
+            if (v.equals(view)) return true;
+        }
+        return false;
+    }
+
+    boolean excluded(int folderId) {
+        return excludeIds.length > 0 && Arrays.binarySearch(excludeIds, folderId) >= 0;
+    }
+
+    /** True when children of a folder at {@code relDepth} below the root may still be emitted. */
+    boolean descend(int relDepth) {
+        return maxDepth < 0 || relDepth < maxDepth;
+    }
+
+    /** Full path of a child of {@code parentPath} (roots have path "/"). */
+    static String childPath(String parentPath, String name) {
+        return "/".equals(parentPath) ? "/" + name : parentPath + "/" + name;
+    }
+
+    /** getfolders row in the wire shape shared by all backends. */
+    static Map<String, Object> row(int id, String name, int parentId, int unread, int total, String view, String path, int depth) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("id", id);
+        m.put("name", name);
+        m.put("parentId", parentId);
+        m.put("unread", unread);
+        m.put("total", total);
+        m.put("view", view);
+        m.put("path", path);
+        m.put("depth", depth);
+        return m;
+    }
+}
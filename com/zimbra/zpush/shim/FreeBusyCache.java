@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Short-lived merged busy intervals per attendee account. An entry holds the
+ * account's calendar version (see {@link FreeBusyQuery.Source}) and the whole
+ * UTC days it was loaded for; it is used while the version is unchanged, the
+ * range is covered and the TTL has not run out. Any calendar change therefore
+ * invalidates it on the next lookup, and the TTL bounds staleness for changes
+ * the version cannot see (shared calendars, remote data).
+ *
+ *   zpush.shim.freebusy.ttlMs       entry lifetime (default 60000, 0 = off)
+ *   zpush.shim.freebusy.maxEntries  accounts held (default 10000)
+ */
+final class FreeBusyCache {
+    private static final long DAY_MS = 86_400_000L;
+
+    private final long ttlMs;
+    private final int maxEntries;
+    private final LinkedHashMap<String, CachedBusy> map;
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    FreeBusyCache(long ttlMs, int maxEntries) {
+        this.ttlMs = Math.max(0, ttlMs);
+        this.maxEntries = Math.max(1, maxEntries);
+        this.map = new LinkedHashMap<String, CachedBusy>(256, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedBusy> eldest) {
+                return size() > FreeBusyCache.this.maxEntries;
+            }
+        };
+    }
+
+    static FreeBusyCache fromConfig() {
+        return new FreeBusyCache(ShimConfig.getLong("zpush.shim.freebusy.ttlMs", 60_000L),
+                ShimConfig.getInt("zpush.shim.freebusy.maxEntries", 10_000));
+    }
+
+    /** Fills {@code out} with the busy intervals of one account in [from, to). */
+    interface Loader {
+        void busy(long from, long to, BusyIntervals out) throws ShimException;
+    }
+
+    /** Merged busy intervals of {@code source} clipped to [from, to), packed. */
+    long[] get(FreeBusyQuery.Source source, long from, long to) throws ShimException {
+        long now = System.currentTimeMillis();
+        CachedBusy e;
+        synchronized (map) {
+            e = map.get(source.key);
+        }
+        if (e != null && e.version == source.version && e.expires > now && e.from <= from && e.to >= to) {
+            hits.incrementAndGet();
+            return BusyIntervals.clip(e.merged, from, to);
+        }
+        misses.incrementAndGet();
+        long dayFrom = Math.floorDiv(from, DAY_MS) * DAY_MS;
+        long dayTo = Math.floorDiv(to + DAY_MS - 1, DAY_MS) * DAY_MS;
+        BusyIntervals collected = new BusyIntervals();
+        source.loader.busy(dayFrom, dayTo, collected);
+        long[] merged = BusyIntervals.clip(collected.merge(), dayFrom, dayTo);
+        if (ttlMs > 0) {
+            synchronized (map) {
+                map.put(source.key, new CachedBusy(source.version, dayFrom, dayTo, now + ttlMs, merged));
+            }
+        }
+        return BusyIntervals.clip(merged, from, to);
+    }
+
+    /** Entry count and hit/miss counters. */
+    Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        synchronized (map) {
+            m.put("entries", map.size());
+        }
+        m.put("ttlMs", ttlMs);
+        m.put("hits", hits.get());
+        m.put("misses", misses.get());
+        return m;
+    }
+
+    private static final class CachedBusy {
+        final long version;
+        final long from;
+        final long to;
+        final long expires;
+        final long[] merged;
+
+        CachedBusy(long version, long from, long to, long expires, long[] merged) {
+            this.version = version;
+            this.from = from;
+            this.to = to;
+            this.expires = expires;
+            this.merged = merged;
+        }
+    }
+}
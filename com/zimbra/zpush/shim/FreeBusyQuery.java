@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * getfreebusy request: many attendees, one time range, one round trip.
+ *
+ *   attendees=a@x,b@y   comma-separated addresses (at most {@link #MAX_ATTENDEES})
+ *   start=..&end=..     range, epoch seconds/ms or ISO-8601 (default now to
+ *                       seven days ahead, at most {@link #MAX_DAYS} days)
+ *
+ * Response:
+ *   {"start":S,"end":E,
+ *    "attendees":[{"email":"a@x","status":"ok","busy":[[s,e],...]},
+ *                 {"email":"b@y","status":"unknown"},...],
+ *    "merged":[[s,e],...]}
+ *
+ * {@code busy} is the union of an attendee's busy, tentative and out-of-office
+ * time, clipped to the range and sorted. {@code merged} is the union over all
+ * attendees with status ok, i.e. the times at least one of them is busy.
+ * Status is ok, unknown (no such local account), denied (the caller may not
+ * see that account's free/busy) or error (it could not be read; the others
+ * are still answered).
+ */
+public final class FreeBusyQuery {
+    static final int MAX_ATTENDEES = 100;
+    static final int MAX_DAYS = 93;
+    private static final long DAY_MS = 86_400_000L;
+
+    final List<String> attendees;
+    final long start;
+    final long end;
+
+    FreeBusyQuery(List<String> attendees, long start, long end) {
+        this.attendees = attendees;
+        this.start = start;
+        this.end = end;
+    }
+
+    static FreeBusyQuery parse(ShimRequest req, long now) throws ShimException {
+        String raw = req.param("attendees");
+        List<String> attendees = new ArrayList<>();
+        if (raw != null) {
+            for (String a : raw.split(",")) {
+                String email = a.trim().toLowerCase(Locale.ROOT);
+                if (email.isEmpty() || attendees.contains(email)) continue;
+                if (email.indexOf('@') <= 0) throw ShimException.badRequest("invalid attendee: " + a.trim());
+                attendees.add(email);
+            }
+        }
+        if (attendees.isEmpty()) throw ShimException.badRequest("missing attendees");
+        if (attendees.size() > MAX_ATTENDEES) throw ShimException.badRequest("too many attendees (max " + MAX_ATTENDEES + ")");
+        long start = MessageWindow.parseTime("start", req.param("start"));
+        long end = MessageWindow.parseTime("end", req.param("end"));
+        if (start < 0) start = end >= 0 ? end - 7 * DAY_MS : now;
+        if (end < 0) end = start + 7 * DAY_MS;
+        if (end <= start) throw ShimException.badRequest("end must be after start");
+        if (end - start > MAX_DAYS * DAY_MS) throw ShimException.badRequest("range too large (max " + MAX_DAYS + " days)");
+        return new FreeBusyQuery(attendees, start, end);
+    }
+
+    /**
+     * Where one attendee's busy time comes from. {@code key} identifies the
+     * account for caching and {@code version} must change whenever its
+     * calendars do; the loader only runs on a cache miss.
+     */
+    public static final class Source {
+        static final Source UNKNOWN = new Source("unknown", null, 0, null);
+        static final Source DENIED = new Source("denied", null, 0, null);
+
+        final String status;
+        final String key;
+        final long version;
+        final FreeBusyCache.Loader loader;
+
+        Source(String key, long version, FreeBusyCache.Loader loader) {
+            this("ok", key, version, loader);
+        }
+
+        private Source(String status, String key, long version, FreeBusyCache.Loader loader) {
+            this.status = status;
+            this.key = key;
+            this.version = version;
+            this.loader = loader;
+        }
+    }
+
+    /** Resolves and loads every attendee through {@code cache}; per-attendee failures become status error. */
+    Map<String, Object> run(MailboxBackend backend, ShimAccount acct, FreeBusyCache cache) {
+        List<Map<String, Object>> rows = new ArrayList<>(attendees.size());
+        BusyIntervals all = new BusyIntervals();
+        for (String email : attendees) {
+            Map<String, Object> row = new LinkedHashMap<>();
+            row.put("email", email);
+            try {
+                Source src = backend.getFreeBusySource(acct, email);
+                row.put("status", src.status);
+                if (src.loader != null) {
+                    long[] busy = cache.get(src, start, end);
+                    all.addAll(busy);
+                    row.put("busy", BusyIntervals.pairs(busy));
+                }
+            } catch (ShimException e) {
+                row.put("status", "error");
+            }
+            rows.add(row);
+        }
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("start", start);
+        m.put("end", end);
+        m.put("attendees", rows);
+        m.put("merged", BusyIntervals.pairs(all.merge()));
+        return m;
+    }
+}
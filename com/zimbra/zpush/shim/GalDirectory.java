@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One {@link GalIndex} per domain, loaded on first use and then refreshed in
+ * the background. A search never waits for a refresh: it uses the current
+ * index and, when that is older than the refresh interval, queues an
+ * incremental load (entries changed since the backend's sync token) on a
+ * single daemon thread. Incremental loads cannot see deletions, so a full
+ * load replaces them every {@code fullRefreshMs}. Only the first search of a
+ * domain waits for its load; concurrent first searches share it.
+ *
+ *   zpush.shim.gal.refreshMs      incremental refresh after (default 60000)
+ *   zpush.shim.gal.fullRefreshMs  full reload after (default 3600000)
+ *   zpush.shim.gal.maxDomains     domains kept, least recently used dropped (default 64)
+ */
+final class GalDirectory {
+    /** Receives address list entries from {@link MailboxBackend#loadGal}. */
+    interface Sink {
+        void entry(GalIndex.Entry e);
+    }
+
+    private final long refreshMs;
+    private final long fullRefreshMs;
+    private final int maxDomains;
+    private final LinkedHashMap<String, Domain> domains;
+    private final ThreadPoolExecutor refresher;
+
+    final AtomicLong loads = new AtomicLong();
+    final AtomicLong fullLoads = new AtomicLong();
+    final AtomicLong failed = new AtomicLong();
+
+    GalDirectory(long refreshMs, long fullRefreshMs, int maxDomains) {
+        this.refreshMs = Math.max(0, refreshMs);
+        this.fullRefreshMs = Math.max(this.refreshMs, fullRefreshMs);
+        this.maxDomains = Math.max(1, maxDomains);
+        this.domains = new LinkedHashMap<String, Domain>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Domain> eldest) {
+                return size() > GalDirectory.this.maxDomains;
+            }
+        };
+        this.refresher = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<>(this.maxDomains), r -> {
+                    Thread t = new Thread(r, "zpush-shim-gal");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }, new ThreadPoolExecutor.AbortPolicy());
+        this.refresher.allowCoreThreadTimeOut(true);
+    }
+
+    static GalDirectory fromConfig() {
+        return new GalDirectory(ShimConfig.getLong("zpush.shim.gal.refreshMs", 60_000L),
+                ShimConfig.getLong("zpush.shim.gal.fullRefreshMs", 3_600_000L),
+                ShimConfig.getInt("zpush.shim.gal.maxDomains", 64));
+    }
+
+    /** Current index of {@code domain}; loads it inline the first time. */
+    GalIndex index(MailboxBackend backend, String domain) throws ShimException {
+        Domain d;
+        synchronized (domains) {
+            d = domains.computeIfAbsent(domain, Domain::new);
+        }
+        GalIndex idx = d.index;
+        if (idx == null) {
+            synchronized (d) {
+                if (d.index == null) d.load(backend, true);
+                return d.index;
+            }
+        }
+        long now = System.currentTimeMillis();
+        if (now - d.refreshedAt >= refreshMs && d.refreshing.compareAndSet(false, true)) {
+            final boolean full = now - d.fullAt >= fullRefreshMs;
+            try {
+                refresher.execute(() -> {
+                    try {
+                        synchronized (d) {
+                            d.load(backend, full);
+                        }
+                    } catch (Throwable t) {
+                        failed.incrementAndGet();
+                        d.refreshedAt = System.currentTimeMillis();   // keep serving the old index; retry after refreshMs
+                    } finally {
+                        d.refreshing.set(false);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                d.refreshing.set(false);
+            }
+        }
+        return idx;
+    }
+
+    /** Domains, entries and load counters. */
+    Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        int entries = 0;
+        synchronized (domains) {
+            m.put("domains", domains.size());
+            for (Domain d : domains.values()) {
+                GalIndex idx = d.index;
+                if (idx != null) entries += idx.size();
+            }
+        }
+        m.put("entries", entries);
+        m.put("loads", loads.get());
+        m.put("fullLoads", fullLoads.get());
+        m.put("failed", failed.get());
+        return m;
+    }
+
+    private final class Domain {
+        final String name;
+        final AtomicBoolean refreshing = new AtomicBoolean();
+        volatile GalIndex index;
+        volatile long refreshedAt;
+        long fullAt;
+        Map<String, GalIndex.Entry> byId = new HashMap<>();
+        String token;
+
+        Domain(String name) {
+            this.name = name;
+        }
+
+        // Caller holds the Domain's monitor; the new index is published in one volatile write
+        void load(MailboxBackend backend, boolean full) throws ShimException {
+            long started = System.currentTimeMillis();
+            List<GalIndex.Entry> changed = new ArrayList<>();
+            String next = backend.loadGal(name, full ? null : token, changed::add);
+            loads.incrementAndGet();
+            if (full) fullLoads.incrementAndGet();
+            if (full || !changed.isEmpty()) {
+                Map<String, GalIndex.Entry> all = full ? new HashMap<>(changed.size() * 2) : new HashMap<>(byId);
+                for (GalIndex.Entry e : changed) all.put(e.id != null ? e.id : e.email, e);
+                index = GalIndex.build(all.values());
+                byId = all;
+            }
+            token = next;
+            refreshedAt = started;
+            if (full) fullAt = started;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.text.Normalizer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+/**
+ * Immutable prefix index over one domain's address list. Entries are sorted
+ * by display name. Their search terms (the words of the name, first name,
+ * last name and local part, split at anything but letters and digits) are
+ * folded to lower case without accents and kept once each in a sorted
+ * {@code String[]}; each term points at an ascending run of entry numbers in
+ * one shared {@code int[]}. A prefix is two binary searches for its term
+ * range plus a walk over those runs, and collecting the entries in a bit set
+ * yields them in name order without sorting.
+ *
+ * Multi-word queries match entries where every word is a prefix of some
+ * term: the bit sets of the words are intersected, starting from the word
+ * with the fewest entries.
+ */
+final class GalIndex {
+    private static final Pattern MARKS = Pattern.compile("\\p{M}+");
+
+    /** One address list entry as delivered by the backend. */
+    static final class Entry {
+        final String id;
+        final String email;
+        final String name;
+        final String firstName;
+        final String lastName;
+        final String company;
+        final String title;
+        final String phone;
+        final String mobile;
+
+        Entry(String id, String email, String name, String firstName, String lastName,
+              String company, String title, String phone, String mobile) {
+            this.id = id;
+            this.email = email;
+            this.name = name != null && !name.isEmpty() ? name : email;
+            this.firstName = firstName;
+            this.lastName = lastName;
+            this.company = company;
+            this.title = title;
+            this.phone = phone;
+            this.mobile = mobile;
+        }
+
+        String[] tokens() {
+            LinkedHashSet<String> t = new LinkedHashSet<>();
+            if (name != null) words(fold(name), t);
+            if (firstName != null) words(fold(firstName), t);
+            if (lastName != null) words(fold(lastName), t);
+            if (email != null) words(localPart(fold(email)), t);
+            return t.toArray(new String[0]);
+        }
+
+        Map<String, Object> toMap() {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("email", email);
+            m.put("name", name);
+            if (firstName != null) m.put("firstName", firstName);
+            if (lastName != null) m.put("lastName", lastName);
+            if (company != null) m.put("company", company);
+            if (title != null) m.put("title", title);
+            if (phone != null) m.put("phone", phone);
+            if (mobile != null) m.put("mobile", mobile);
+            return m;
+        }
+    }
+
+    /** Matches in name order, at most the requested limit, and how many there were. */
+    static final class Result {
+        final List<Entry> entries;
+        final int total;
+
+        Result(List<Entry> entries, int total) {
+            this.entries = entries;
+            this.total = total;
+        }
+    }
+
+    private final Entry[] entries;
+    private final String[] terms;
+    private final int[] postStart;   // entries of terms[i] are postings[postStart[i] .. postStart[i + 1])
+    private final int[] postings;
+
+    private GalIndex(Entry[] entries, String[] terms, int[] postStart, int[] postings) {
+        this.entries = entries;
+        this.terms = terms;
+        this.postStart = postStart;
+        this.postings = postings;
+    }
+
+    static GalIndex build(Collection<Entry> source) {
+        Entry[] entries = source.toArray(new Entry[0]);
+        Arrays.sort(entries, (a, b) -> {
+            int c = a.name.compareToIgnoreCase(b.name);
+            return c != 0 ? c : String.valueOf(a.email).compareTo(String.valueOf(b.email));
+        });
+        // Pass 1: entries per term; pass 2 fills the runs in entry order, so each run is ascending
+        String[][] tokens = new String[entries.length][];
+        Map<String, int[]> slots = new HashMap<>();    // term -> {count, next free slot}
+        int n = 0;
+        for (int i = 0; i < entries.length; i++) {
+            tokens[i] = entries[i].tokens();
+            for (String t : tokens[i]) slots.computeIfAbsent(t, k -> new int[2])[0]++;
+            n += tokens[i].length;
+        }
+        String[] terms = slots.keySet().toArray(new String[0]);
+        Arrays.sort(terms);
+        int[] postStart = new int[terms.length + 1];
+        for (int i = 0; i < terms.length; i++) {
+            int[] slot = slots.get(terms[i]);
+            postStart[i + 1] = postStart[i] + slot[0];
+            slot[1] = postStart[i];
+        }
+        int[] postings = new int[n];
+        for (int i = 0; i < entries.length; i++) {
+            for (String t : tokens[i]) postings[slots.get(t)[1]++] = i;
+        }
+        return new GalIndex(entries, terms, postStart, postings);
+    }
+
+    int size() { return entries.length; }
+
+    int termCount() { return terms.length; }
+
+    /** Entries matching every word of {@code query} as a term prefix. */
+    Result search(String query, int limit) {
+        Set<String> words = new LinkedHashSet<>();
+        words(localPart(fold(query)), words);
+        if (words.isEmpty()) return new Result(new ArrayList<>(), 0);
+        // Term range per word, smallest posting count first
+        List<int[]> ranges = new ArrayList<>(words.size());
+        for (String w : words) {
+            int lo = lowerBound(w);
+            int hi = lowerBound(w + Character.MAX_VALUE);
+            ranges.add(new int[] { lo, hi, postStart[hi] - postStart[lo] });
+        }
+        ranges.sort((a, b) -> Integer.compare(a[2], b[2]));
+        BitSet hits = null;
+        for (int[] r : ranges) {
+            BitSet b = new BitSet(entries.length);
+            for (int p = postStart[r[0]]; p < postStart[r[1]]; p++) b.set(postings[p]);
+            if (hits == null) hits = b; else hits.and(b);
+            if (hits.isEmpty()) break;
+        }
+        int total = hits.cardinality();
+        List<Entry> out = new ArrayList<>(Math.min(limit, total));
+        for (int e = hits.nextSetBit(0); e >= 0 && out.size() < limit; e = hits.nextSetBit(e + 1)) out.add(entries[e]);
+        return new Result(out, total);
+    }
+
+    private int lowerBound(String key) {
+        int lo = 0, hi = terms.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (terms[mid].compareTo(key) < 0) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    // Every entry of a domain shares the domain part, so it is neither indexed nor searched
+    private static String localPart(String s) {
+        int at = s.indexOf('@');
+        return at >= 0 ? s.substring(0, at) : s;
+    }
+
+    // Splits folded text at anything that is not a letter or digit
+    private static void words(String s, Set<String> out) {
+        int start = -1;
+        for (int i = 0; i <= s.length(); i++) {
+            boolean word = i < s.length() && Character.isLetterOrDigit(s.charAt(i));
+            if (word && start < 0) start = i;
+            if (!word && start >= 0) {
+                out.add(s.substring(start, i));
+                start = -1;
+            }
+        }
+    }
+
+    /** Lower case without accents, so "jurg" finds "Jürgen" and "lukasz" finds "Łukasz". */
+    static String fold(String s) {
+        boolean ascii = true;
+        for (int i = 0; i < s.length() && ascii; i++) ascii = s.charAt(i) < 0x80;
+        if (ascii) return s.toLowerCase(Locale.ROOT);
+        String f = MARKS.matcher(Normalizer.normalize(s, Normalizer.Form.NFD)).replaceAll("").toLowerCase(Locale.ROOT);
+        // Letters with no decomposition
+        return f.replace('ł', 'l').replace('ø', 'o').replace('đ', 'd').replace("ß", "ss");
+    }
+}
@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * searchgal request: typeahead lookup in the caller's domain address list,
+ * answered from the in-memory {@link GalIndex} of {@link GalDirectory}.
+ *
+ *   query=jo sm   every word must start a word of the name or of the address
+ *                 before the @
+ *                 (case and accents ignored)
+ *   limit=N       rows returned (default {@link #DEFAULT_LIMIT}, at most {@link #MAX_LIMIT})
+ *
+ * Response:
+ *   {"query":"jo sm","total":T,"more":false,
+ *    "results":[{"email","name","firstName","lastName","company","title","phone","mobile"},...]}
+ *
+ * Rows are in display name order; fields without a value are omitted.
+ * {@code total} counts all matches, {@code more} is true when it exceeds the rows sent.
+ */
+public final class GalQuery {
+    static final int DEFAULT_LIMIT = 50;
+    static final int MAX_LIMIT = 100;
+
+    final String query;
+    final int limit;
+
+    GalQuery(String query, int limit) {
+        this.query = query;
+        this.limit = limit;
+    }
+
+    static GalQuery parse(ShimRequest req) throws ShimException {
+        String q = req.param("query");
+        if (q == null || q.trim().isEmpty()) throw ShimException.badRequest("missing query");
+        int limit = ShimDispatcher.parseInt(req.param("limit"), DEFAULT_LIMIT);
+        if (limit <= 0) throw ShimException.badRequest("invalid limit");
+        return new GalQuery(q.trim(), Math.min(limit, MAX_LIMIT));
+    }
+
+    Map<String, Object> run(MailboxBackend backend, ShimAccount acct, GalDirectory gal) throws ShimException {
+        GalIndex.Result r = gal.index(backend, backend.galDomain(acct)).search(query, limit);
+        List<Map<String, Object>> rows = new ArrayList<>(r.entries.size());
+        for (GalIndex.Entry e : r.entries) rows.add(e.toMap());
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("query", query);
+        m.put("total", r.total);
+        m.put("more", r.total > rows.size());
+        m.put("results", rows);
+        return m;
+    }
+}
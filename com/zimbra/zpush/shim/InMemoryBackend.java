@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.io.IOException;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * {@link MailboxBackend} over a {@link SyntheticMailbox}, used by the dev
+ * server, the compat servlet and offline benchmarks. Returns the same row
+ * shapes as {@link ZimbraBackend} so the dispatcher's serialization and paging
+ * behave as in production.
+ *
+ * Like the original mock, tokens are not enforced: an unknown or missing
+ * authToken resolves to the dev account so the mock test harness keeps working.
+ * With {@link #setVerifyCredentials(boolean)} authenticate runs the real
+ * {@link AuthFallbacks} chain (pointed at the fake IMAP/AutoDiscover servers by
+ * the dev server) and fails with 401 when no fallback accepts the password.
+ */
+public final class InMemoryBackend implements MailboxBackend {
+    static final String DEV_ACCOUNT_ID = "dev-account";
+    static final String DEV_ACCOUNT_NAME = "test@example.com";
+
+    private final SyntheticMailbox mbox;
+    private final Map<String, String> sessions = new ConcurrentHashMap<>();
+    private volatile boolean verifyCredentials;
+
+    /** Uses the configured synthetic mailbox, or a small default one. */
+    public InMemoryBackend() {
+        this(defaultMailbox());
+    }
+
+    public InMemoryBackend(SyntheticMailbox mbox) {
+        this.mbox = mbox;
+    }
+
+    static SyntheticMailbox defaultMailbox() {
+        SyntheticMailbox m = SyntheticMailbox.fromConfig();
+        return m != null ? m : new SyntheticMailbox(SyntheticMailbox.Spec.parse(""));
+    }
+
+    public SyntheticMailbox getMailbox() { return mbox; }
+
+    void setVerifyCredentials(boolean verify) { this.verifyCredentials = verify; }
+
+    @Override
+    public String name() { return "memory"; }
+
+    @Override
+    public Map<String, Object> authenticate(ShimRequest req) throws ShimException {
+        String username = req.param("username");
+        if (verifyCredentials) {
+            String password = req.param("password");
+            if (username == null || username.isEmpty() || password == null) throw ShimException.unauthorized("auth failed");
+            if (AuthFallbacks.verify(username, password, AuthFallbacks.NO_LOG) == null) throw ShimException.unauthorized("auth failed");
+        }
+        Map<String, Object> out = CompatCore.authenticate(username);
+        sessions.put((String) out.get("authToken"), username != null && !username.isEmpty() ? username : DEV_ACCOUNT_NAME);
+        return out;
+    }
+
+    // No admin accounts here; the dev server's operator is whoever is on the machine
+    @Override
+    public void requireAdmin(ShimRequest req) throws ShimException {
+        if (!ShimDispatcher.isLoopback(req.remoteAddr())) throw new ShimException(403, "only loopback clients are admins of the dev backend");
+    }
+
+    @Override
+    public ShimAccount resolve(String authToken) {
+        String name = authToken != null ? sessions.get(authToken) : null;
+        return new ShimAccount(DEV_ACCOUNT_ID, name != null ? name : DEV_ACCOUNT_NAME, mbox);
+    }
+
+    // Listings are taken under the mailbox lock and written after it is released
+    @Override
+    public void getFolders(ShimAccount acct, FolderFilter filter, RowSink sink) throws ShimException, IOException {
+        List<Map<String, Object>> out = mbox.getFolders(filter);
+        if (out == null) throw ShimException.failure("no such folder: " + filter.rootId);
+        for (Map<String, Object> row : out) sink.row(row);
+    }
+
+    @Override
+    public void getFolderCounters(ShimAccount acct, FolderCounters.Table out) {
+        mbox.folderCounters(out);
+    }
+
+    @Override
+    public void getMessages(ShimAccount acct, int folderId, int limit, MessageWindow window, RowSink sink) throws IOException {
+        for (Map<String, Object> row : mbox.getMessages(folderId, limit, window)) sink.row(row);
+    }
+
+    @Override
+    public void getConversations(ShimAccount acct, int folderId, int limit, MessageWindow window, RowSink sink) throws IOException {
+        for (Map<String, Object> row : mbox.getConversations(folderId, limit, window)) sink.row(row);
+    }
+
+    @Override
+    public Map<String, Object> getMessage(ShimAccount acct, int messageId) throws ShimException {
+        Map<String, Object> m = mbox.getMessage(messageId);
+        if (m == null) throw ShimException.failure("no such message: " + messageId);
+        return m;
+    }
+
+    @Override
+    public MimeSource getMessageMime(ShimAccount acct, int messageId) throws ShimException {
+        MimeSource m = mbox.getMessageMime(messageId);
+        if (m == null) throw ShimException.failure("no such message: " + messageId);
+        return m;
+    }
+
+    @Override
+    public void getContacts(ShimAccount acct, ContactQuery query, ContactQuery.Sink sink) throws ShimException, IOException {
+        if (!mbox.getContacts(query.folderId, query, sink)) throw ShimException.notFound("no such contact folder: " + query.folderId);
+    }
+
+    @Override
+    public ContactQuery.Photo getContactPhoto(ShimAccount acct, int contactId) {
+        return mbox.getContactPhoto(contactId);
+    }
+
+    @Override
+    public void getAppointments(ShimAccount acct, CalendarQuery query, CalendarQuery.Sink sink) throws ShimException, IOException {
+        if (!mbox.getAppointments(query.folderId, query, sink)) throw ShimException.notFound("no such calendar folder: " + query.folderId);
+    }
+
+    // Every address is a dev attendee; the caller sees the whole calendar, others a stable subset
+    @Override
+    public FreeBusyQuery.Source getFreeBusySource(ShimAccount acct, String email) {
+        final int salt = email.equalsIgnoreCase(acct.name) ? 0 : email.hashCode() | 1;
+        return new FreeBusyQuery.Source(email, mbox.calendarVersion(), (from, to, out) -> mbox.busy(salt, from, to, out));
+    }
+
+    // Nothing leaves the dev server; the message is only recorded in Sent
+    @Override
+    public int sendMail(ShimAccount acct, SendMail send, MimeSpool mime) throws ShimException {
+        return mbox.sendMail((int) Math.min(Integer.MAX_VALUE, mime.size()), send.originalId,
+                send.mode == SendMail.Mode.FORWARD, send.saveInSent);
+    }
+
+    @Override
+    public void search(ShimAccount acct, SearchQuery query, SearchQuery.Sink sink) throws ShimException, IOException {
+        mbox.search(query, sink);
+    }
+
+    @Override
+    public String galDomain(ShimAccount acct) {
+        int at = acct.name.indexOf('@');
+        return at >= 0 ? acct.name.substring(at + 1) : "example.com";
+    }
+
+    // The synthetic directory never changes, so incremental loads are empty
+    @Override
+    public String loadGal(String domain, String token, GalDirectory.Sink sink) {
+        if (token == null) mbox.gal(domain, sink);
+        return "0";
+    }
+
+    @Override
+    public long applyChanges(ShimAccount acct, ChangeBatch.Group group) throws ShimException {
+        return mbox.applyChanges(group.kind, group.tag, group.folderId, group.ids);
+    }
+
+    @Override
+    public Map<String, Object> getUserInfo(ShimAccount acct) {
+        Map<String, Object> m = CompatCore.getUserInfo();
+        m.put("name", acct.name);
+        return m;
+    }
+}
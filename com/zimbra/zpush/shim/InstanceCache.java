@@ -0,0 +1,195 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Instance-bounded LRU of expanded recurrences, one entry per calendar series
+ * keyed by account and item id. An entry remembers the series version (Zimbra
+ * mod_content) and the range it was expanded for; a lookup for another
+ * version or outside that range expands again and replaces it. Expansion
+ * always covers {@link #MARGIN_MS} beyond the requested window on both sides,
+ * so the sliding windows of consecutive syncs are served from memory.
+ *
+ *   zpush.shim.instanceCache.maxInstances  total instances held (default 500000, 0 = off)
+ *   zpush.shim.instanceCache.maxPerSeries  instances kept per expansion (default 5000);
+ *                                          beyond that the set is marked truncated
+ *
+ * Entries larger than an eighth of the budget are not stored.
+ */
+final class InstanceCache {
+    static final long MARGIN_MS = 31L * 86_400_000L;
+
+    private final long maxInstances;
+    private final long maxEntry;
+    private final int maxPerSeries;
+    private long held;
+    private final LinkedHashMap<String, Instances> map = new LinkedHashMap<>(256, 0.75f, true);
+
+    final AtomicLong hits = new AtomicLong();
+    final AtomicLong misses = new AtomicLong();
+
+    InstanceCache(long maxInstances, int maxPerSeries) {
+        this.maxInstances = Math.max(0, maxInstances);
+        this.maxEntry = this.maxInstances / 8;
+        this.maxPerSeries = Math.max(1, maxPerSeries);
+    }
+
+    static InstanceCache fromConfig() {
+        return new InstanceCache(ShimConfig.getLong("zpush.shim.instanceCache.maxInstances", 500_000L),
+                ShimConfig.getInt("zpush.shim.instanceCache.maxPerSeries", 5000));
+    }
+
+    /** Produces the instances of one series overlapping [from, to). */
+    interface Expander {
+        void expand(long from, long to, Instances out) throws ShimException;
+    }
+
+    /**
+     * Instances of series {@code itemId} at {@code version} covering at least
+     * [from, to), from the cache or freshly expanded.
+     */
+    Instances get(String acctId, int itemId, long version, long from, long to, Expander expander) throws ShimException {
+        String key = acctId + ":" + itemId;
+        Instances e;
+        synchronized (map) {
+            e = map.get(key);
+        }
+        if (e != null && e.version == version && e.from <= from && e.to >= to) {
+            hits.incrementAndGet();
+            return e;
+        }
+        misses.incrementAndGet();
+        Instances fresh = new Instances(version, from - MARGIN_MS, to + MARGIN_MS, maxPerSeries);
+        expander.expand(fresh.from, fresh.to, fresh);
+        fresh.seal();
+        put(key, fresh);
+        return fresh;
+    }
+
+    /** Drops a deleted series. */
+    void remove(String acctId, int itemId) {
+        synchronized (map) {
+            Instances old = map.remove(acctId + ":" + itemId);
+            if (old != null) held -= old.n;
+        }
+    }
+
+    private void put(String key, Instances e) {
+        if (e.n > maxEntry) return;
+        synchronized (map) {
+            Instances old = map.put(key, e);
+            if (old != null) held -= old.n;
+            held += e.n;
+            Iterator<Map.Entry<String, Instances>> it = map.entrySet().iterator();
+            while (held > maxInstances && it.hasNext()) {
+                held -= it.next().getValue().n;
+                it.remove();
+            }
+        }
+    }
+
+    /** Entry count, instances held and hit/miss counters. */
+    Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        synchronized (map) {
+            m.put("entries", map.size());
+            m.put("instances", held);
+        }
+        m.put("maxInstances", maxInstances);
+        m.put("hits", hits.get());
+        m.put("misses", misses.get());
+        return m;
+    }
+
+    /**
+     * Expanded instances of one series as parallel start/end arrays (epoch ms)
+     * sorted by start. Filled once by an {@link Expander}, read-only afterwards.
+     */
+    static final class Instances {
+        final long version;
+        long from;
+        long to;
+        private final int cap;
+        private long[] start = new long[16];
+        private long[] end = new long[16];
+        private int n;
+        private long maxDuration;
+        private boolean truncated;
+
+        Instances(long version, long from, long to, int cap) {
+            this.version = version;
+            this.from = from;
+            this.to = to;
+            this.cap = cap;
+        }
+
+        /** Returns false once the per-series cap is reached; the expander should stop. */
+        boolean add(long s, long e) {
+            if (n == cap) {
+                truncated = true;
+                return false;
+            }
+            if (n == start.length) {
+                start = Arrays.copyOf(start, n * 2);
+                end = Arrays.copyOf(end, n * 2);
+            }
+            start[n] = s;
+            end[n] = Math.max(s, e);
+            maxDuration = Math.max(maxDuration, end[n] - s);
+            n++;
+            return true;
+        }
+
+        // Expanders may deliver exceptions out of order; a truncated set only covers up to its last start
+        private void seal() {
+            for (int i = 1; i < n; i++) {
+                if (start[i] < start[i - 1]) {
+                    sortByStart();
+                    break;
+                }
+            }
+            if (truncated && n > 0) to = Math.min(to, start[n - 1] + 1);
+        }
+
+        private void sortByStart() {
+            Integer[] order = new Integer[n];
+            for (int i = 0; i < n; i++) order[i] = i;
+            Arrays.sort(order, (a, b) -> Long.compare(start[a], start[b]));
+            long[] s = new long[n];
+            long[] e = new long[n];
+            for (int i = 0; i < n; i++) {
+                s[i] = start[order[i]];
+                e[i] = end[order[i]];
+            }
+            start = s;
+            end = e;
+        }
+
+        boolean truncated() { return truncated; }
+
+        int size() { return n; }
+
+        long start(int i) { return start[i]; }
+
+        long end(int i) { return end[i]; }
+
+        /** Index of the first instance that can overlap {@code from}. */
+        int first(long from) {
+            long lo = from - maxDuration;
+            int a = 0, b = n;
+            while (a < b) {
+                int mid = (a + b) >>> 1;
+                if (start[mid] < lo) a = mid + 1; else b = mid;
+            }
+            return a;
+        }
+    }
+}
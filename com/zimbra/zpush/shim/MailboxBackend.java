@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Mailbox access used by {@link ShimDispatcher}. Implementations:
+ * - {@link ZimbraBackend}: real Zimbra Provisioning/Mailbox APIs (mailboxd only)
+ * - {@link InMemoryBackend}: synthetic mailbox for dev, benchmarks and tests
+ *
+ * Rows are returned as ordered maps in the wire shape Z-Push expects, so the
+ * dispatcher's serialization is identical for both.
+ */
+public interface MailboxBackend {
+    /**
+     * Receives the rows of a folder, message or conversation listing in order,
+     * as the backend reads them. Errors about the request itself (unknown
+     * folder) are thrown before the first row.
+     */
+    interface RowSink {
+        void row(Map<String, Object> row) throws IOException;
+    }
+
+    /** Short name for logs and ping output ("zimbra", "memory"). */
+    String name();
+
+    Map<String, Object> authenticate(ShimRequest req) throws ShimException;
+
+    /** Resolves a shim authToken issued by {@link #authenticate}. */
+    ShimAccount resolve(String authToken) throws ShimException;
+
+    /** Admits operator-only actions (stats, tracedump): 401 without admin credentials, 403 with others. */
+    void requireAdmin(ShimRequest req) throws ShimException;
+
+    /** Folder rows (id, name, parentId, unread, total, view, path, depth), parents before children. */
+    void getFolders(ShimAccount acct, FolderFilter filter, RowSink sink) throws ShimException, IOException;
+
+    /**
+     * Adds id, unread count, item count and modseq of every folder of the
+     * mailbox to {@code out}; selection and diffing are the caller's.
+     */
+    void getFolderCounters(ShimAccount acct, FolderCounters.Table out) throws ShimException;
+
+    /** Message rows newest first, restricted to {@code window} and capped at {@code limit}. */
+    void getMessages(ShimAccount acct, int folderId, int limit, MessageWindow window, RowSink sink) throws ShimException, IOException;
+
+    /**
+     * Conversation rows (id, subject, date, messageCount, unread, participants,
+     * messageIds) for conversations with a message in the folder and window,
+     * newest first, capped at {@code limit}. Counts span the whole conversation;
+     * messageIds are the members in this folder.
+     */
+    void getConversations(ShimAccount acct, int folderId, int limit, MessageWindow window, RowSink sink) throws ShimException, IOException;
+
+    /** Message metadata (id, subject, from, to, date, size); the dispatcher adds the converted body. */
+    Map<String, Object> getMessage(ShimAccount acct, int messageId) throws ShimException;
+
+    /** Full RFC 822 content of a message for format=mime; nothing is read until it is opened. */
+    MimeSource getMessageMime(ShimAccount acct, int messageId) throws ShimException;
+
+    /**
+     * Streams the contacts of {@code query.folderId}, or the changes since
+     * {@code query.since}, into {@code sink}. Errors about the request itself
+     * (unknown folder) must be thrown before {@link ContactQuery.Sink#begin}.
+     */
+    void getContacts(ShimAccount acct, ContactQuery query, ContactQuery.Sink sink) throws ShimException, IOException;
+
+    /** Picture of a contact, or null when it has none; nothing is read until it is opened. */
+    ContactQuery.Photo getContactPhoto(ShimAccount acct, int contactId) throws ShimException;
+
+    /**
+     * Streams the series of calendar folder {@code query.folderId}, or the
+     * changes since {@code query.since}, into {@code sink}. Full listings may
+     * skip series with no instance in the window; the sink filters again after
+     * expansion. Errors about the request itself (unknown folder) must be
+     * thrown before {@link CalendarQuery.Sink#begin}.
+     */
+    void getAppointments(ShimAccount acct, CalendarQuery query, CalendarQuery.Sink sink) throws ShimException, IOException;
+
+    /**
+     * Free/busy source of attendee {@code email} as seen by {@code acct}:
+     * {@link FreeBusyQuery.Source#UNKNOWN} when there is no such local
+     * account, {@link FreeBusyQuery.Source#DENIED} when acct may not view it.
+     */
+    FreeBusyQuery.Source getFreeBusySource(ShimAccount acct, String email) throws ShimException;
+
+    /**
+     * Applies {@code group} to all of its ids in one mailbox transaction and
+     * returns the mailbox change id afterwards. Throws, changing nothing, when
+     * any id cannot take the change.
+     */
+    long applyChanges(ShimAccount acct, ChangeBatch.Group group) throws ShimException;
+
+    /**
+     * Sends {@code mime} (complete, with the original already added for
+     * reply/forward) as acct, flags {@code send.originalId} replied or
+     * forwarded and returns the id of the copy saved in Sent, or -1.
+     */
+    int sendMail(ShimAccount acct, SendMail send, MimeSpool mime) throws ShimException;
+
+    /**
+     * Runs {@code query} against the mailbox index and streams the page after
+     * its cursor into {@code sink}, then the hit count. Errors about the
+     * request itself (unknown folder, bad query) must be thrown before the
+     * first {@link SearchQuery.Sink#hit}.
+     */
+    void search(ShimAccount acct, SearchQuery query, SearchQuery.Sink sink) throws ShimException, IOException;
+
+    /** Domain whose address list {@code acct} searches; its {@link GalIndex} is shared by the domain. */
+    String galDomain(ShimAccount acct) throws ShimException;
+
+    /**
+     * Feeds the address list of {@code domain} into {@code sink}: all of it
+     * when {@code token} is null, else the entries changed since that token.
+     * Returns the token for the next incremental load. Deletions only show
+     * up as absence from a full load.
+     */
+    String loadGal(String domain, String token, GalDirectory.Sink sink) throws ShimException;
+
+    Map<String, Object> getUserInfo(ShimAccount acct) throws ShimException;
+}
@@ -0,0 +1,110 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.text.ParsePosition;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TimeZone;
+
+/**
+ * getmessages date window. Backends push it into the search (Zimbra:
+ * {@code after:}/{@code before:} day terms) and then filter hits to the exact
+ * millisecond bounds.
+ *
+ *   since=T, until=T   epoch ms, epoch seconds, yyyy-MM-dd or yyyy-MM-ddTHH:mm:ssZ
+ *                      (since inclusive, until exclusive)
+ *   filterType=N       EAS FilterType: 1=1 day, 2=3 days, 3=1 week, 4=2 weeks,
+ *                      5=1 month, 6=3 months, 7=6 months (0 = no limit)
+ *
+ * When both since and filterType are given the narrower (later) start wins.
+ */
+public final class MessageWindow {
+    /** No date restriction. */
+    public static final MessageWindow ALL = new MessageWindow(-1, -1, 0);
+
+    private static final long DAY_MS = 86_400_000L;
+    private static final int[] FILTER_DAYS = { 0, 1, 3, 7, 14, 30, 90, 180 };
+
+    final long since;      // inclusive epoch ms, -1 = open
+    final long until;      // exclusive epoch ms, -1 = open
+    final int filterType;
+
+    MessageWindow(long since, long until, int filterType) {
+        this.since = since;
+        this.until = until;
+        this.filterType = filterType;
+    }
+
+    static MessageWindow parse(ShimRequest req, long now) throws ShimException {
+        long since = parseTime("since", req.param("since"));
+        long until = parseTime("until", req.param("until"));
+        int filterType = ShimDispatcher.parseInt(req.param("filterType"), 0);
+        if (filterType < 0 || filterType >= FILTER_DAYS.length) throw ShimException.badRequest("unsupported filterType: " + filterType);
+        if (filterType > 0) since = Math.max(since, now - FILTER_DAYS[filterType] * DAY_MS);
+        if (since < 0 && until < 0) return ALL;
+        return new MessageWindow(since, until, filterType);
+    }
+
+    boolean isOpen() { return since < 0 && until < 0; }
+
+    boolean contains(long date) {
+        return (since < 0 || date >= since) && (until < 0 || date < until);
+    }
+
+    /**
+     * Zimbra query terms covering the window at day granularity. after:/before:
+     * are exclusive and evaluated in the mailbox time zone, so each side is
+     * widened by two days (exclusivity plus any UTC offset); {@link #contains}
+     * then trims hits to the exact bounds.
+     */
+    String zimbraQueryTerms() {
+        StringBuilder sb = new StringBuilder();
+        SimpleDateFormat fmt = new SimpleDateFormat("MM/dd/yyyy", Locale.US);
+        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        if (since >= 0) sb.append(" after:").append(fmt.format(new Date(since - 2 * DAY_MS)));
+        if (until >= 0) sb.append(" before:").append(fmt.format(new Date(until + 2 * DAY_MS)));
+        return sb.toString();
+    }
+
+    /**
+     * Boundary block for the getmessages envelope. {@code oldest} is the date of
+     * the oldest row returned; when {@code more} is true, ask again with
+     * {@code until=oldest} to page further back.
+     */
+    Map<String, Object> describe(long oldest, boolean more) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("since", since >= 0 ? since : null);
+        m.put("until", until >= 0 ? until : null);
+        m.put("filterType", filterType);
+        m.put("oldest", oldest >= 0 ? oldest : null);
+        m.put("more", more);
+        return m;
+    }
+
+    static long parseTime(String name, String raw) throws ShimException {
+        if (raw == null || raw.trim().isEmpty()) return -1;
+        String s = raw.trim();
+        try {
+            if (s.matches("\\d+")) {
+                long v = Long.parseLong(s);
+                return v < 100_000_000_000L ? v * 1000L : v; // seconds vs. ms
+            }
+            String[] patterns = { "yyyy-MM-dd'T'HH:mm:ssXXX", "yyyy-MM-dd'T'HH:mm:ss'Z'", "yyyy-MM-dd" };
+            for (String p : patterns) {
+                SimpleDateFormat fmt = new SimpleDateFormat(p, Locale.US);
+                fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+                fmt.setLenient(false);
+                ParsePosition pos = new ParsePosition(0);
+                Date d = fmt.parse(s, pos);
+                if (d != null && pos.getIndex() == s.length()) return d.getTime();
+            }
+        } catch (NumberFormatException ignore) {}
+        throw ShimException.badRequest("invalid " + name + ": " + raw);
+    }
+}
@@ -0,0 +1,682 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PushbackInputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Streaming MIME part locator for getattachment. The raw message is walked
+ * once, a line at a time, tracking multipart boundaries; only the current
+ * line and the wanted part's headers are held in memory. The result records
+ * where the part's body sits in the message, so it can be re-read from that
+ * offset through a transfer-encoding decoder.
+ *
+ * Part ids follow IMAP/Zimbra numbering: "1" is the body of a single-part
+ * message; children of a multipart are "1", "2", ... and nested parts "2.1".
+ * An attached message/rfc822 at "2" is itself part "2" and numbers its own
+ * parts "2.1", "2.2", ...
+ */
+final class MimeParts {
+    private static final int MAX_LINE = 8192;
+    private static final int MAX_HEADER_CHARS = 64 * 1024;
+    private static final int CACHE_ENTRIES = 512;
+
+    // Resumed downloads ask for the same part again; remember where it was
+    private static final Map<String, Part> CACHE = new LinkedHashMap<String, Part>(64, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Part> eldest) { return size() > CACHE_ENTRIES; }
+    };
+
+    private MimeParts() {}
+
+    /** Location and metadata of one leaf part. */
+    static final class Part {
+        final String id;
+        final String contentType;   // lowercased type/subtype
+        final String filename;      // decoded, or null
+        final String encoding;      // lowercased Content-Transfer-Encoding
+        final String charset;       // Content-Type charset, or null
+        final long bodyStart;       // offset of the encoded body in the message
+        final long rawLength;       // encoded body length
+        volatile long decodedLength = -1;
+
+        Part(String id, String contentType, String filename, String encoding, String charset, long bodyStart, long rawLength) {
+            this.id = id;
+            this.contentType = contentType;
+            this.filename = filename;
+            this.encoding = encoding;
+            this.charset = charset;
+            this.bodyStart = bodyStart;
+            this.rawLength = rawLength;
+        }
+
+        boolean isBase64() { return "base64".equals(encoding); }
+
+        boolean isQuotedPrintable() { return "quoted-printable".equals(encoding); }
+
+        /** Declared charset when the JVM knows it, else UTF-8 (what unlabeled 8-bit mail usually is). */
+        Charset charsetOrUtf8() {
+            try {
+                if (charset != null && !charset.isEmpty() && !"us-ascii".equalsIgnoreCase(charset)) return Charset.forName(charset);
+            } catch (RuntimeException ignore) {
+                // unknown or illegal charset name
+            }
+            return StandardCharsets.UTF_8;
+        }
+    }
+
+    /** Message body candidates: the first inline text/plain and text/html parts. */
+    static final class Bodies {
+        Part plain;
+        Part html;
+        boolean done;   // stop walking
+
+        boolean isEmpty() { return plain == null && html == null; }
+    }
+
+    /**
+     * Cached {@link #locate} with the decoded length filled in, keyed by account,
+     * message, part and message size. Returns null when the part does not exist.
+     */
+    static Part find(String accountId, int messageId, String partId, MimeSource src) throws IOException {
+        String key = accountId + '/' + messageId + '/' + partId + '/' + src.contentVersion() + '/' + src.size();
+        synchronized (CACHE) {
+            Part p = CACHE.get(key);
+            if (p != null) return p;
+        }
+        Part p = locate(src, partId);
+        if (p == null) return null;
+        if (p.decodedLength < 0) {
+            // Only quoted-printable needs a decoding pass to learn its size
+            try (InputStream in = openDecoded(src, p)) {
+                byte[] buf = new byte[8192];
+                long n = 0;
+                int r;
+                while ((r = in.read(buf)) > 0) n += r;
+                p.decodedLength = n;
+            }
+        }
+        synchronized (CACHE) {
+            CACHE.put(key, p);
+        }
+        return p;
+    }
+
+    /** Walks {@code src} to part {@code partId}; null when there is no such leaf. */
+    static Part locate(MimeSource src, String partId) throws IOException {
+        if (!partId.matches("[1-9][0-9]{0,5}(\\.[1-9][0-9]{0,5}){0,31}")) return null;
+        try (InputStream in = src.open(0)) {
+            return new Walker(new Scanner(in), partId).entity("", "1");
+        }
+    }
+
+    /**
+     * Finds the message body parts in one pass: text/plain and text/html leaves
+     * that are not attachments and not inside an attached message (as in
+     * multipart/alternative or /related). The walk stops once both are found,
+     * or at the first attachment after a body, so a large attachment behind
+     * the text is never read.
+     */
+    static Bodies bodies(MimeSource src) throws IOException {
+        Bodies b = new Bodies();
+        try (InputStream in = src.open(0)) {
+            new Walker(new Scanner(in), null).walk("", "1", false, b);
+        }
+        return b;
+    }
+
+    /** Decoded body of {@code p}, read straight from the message at its offset. */
+    static InputStream openDecoded(MimeSource src, Part p) throws IOException {
+        InputStream raw = new BoundedInputStream(src.open(p.bodyStart), p.rawLength);
+        if (p.isBase64()) return new Base64InputStream(raw);
+        if (p.isQuotedPrintable()) return new QuotedPrintableInputStream(raw);
+        return raw;
+    }
+
+    // ---------- Walk ----------
+
+    private static final class Walker {
+        private final Scanner sc;
+        private final String target;    // null when enumerating body parts
+        private final List<byte[]> bounds = new ArrayList<>();
+
+        Walker(Scanner sc, String target) {
+            this.sc = sc;
+            this.target = target;
+        }
+
+        /**
+         * Reads one entity's headers and body. {@code prefix} numbers the
+         * children of a multipart; {@code leafId} is this entity's id when it is
+         * a single part. Called only when the target lies inside the entity.
+         */
+        Part entity(String prefix, String leafId) throws IOException {
+            Headers h = readHeaders();
+            if (h == null) return null;
+            if (h.type.startsWith("multipart/") && h.boundary != null) return multipart(prefix, h.boundary);
+            if ("message/rfc822".equals(h.type) && !target.equals(leafId) && !prefix.isEmpty()) {
+                // Attached message: its own parts continue the numbering under this id
+                return entity(prefix, prefix + ".1");
+            }
+            if (!target.equals(leafId)) return null;
+            return leaf(leafId, h);
+        }
+
+        private Part multipart(String prefix, String boundary) throws IOException {
+            bounds.add(("--" + boundary).getBytes(StandardCharsets.ISO_8859_1));
+            int depth = bounds.size() - 1;
+            // Preamble up to the first delimiter
+            if (!skipToBoundary() || sc.matchDepth != depth || sc.matchClose) return null;
+            for (int i = 1; ; i++) {
+                String childId = prefix.isEmpty() ? Integer.toString(i) : prefix + "." + i;
+                if (target.equals(childId) || target.startsWith(childId + ".")) {
+                    // Ids are positional: once inside the right child there is nowhere else to look
+                    return entity(childId, childId);
+                }
+                if (!skipToBoundary() || sc.matchDepth != depth || sc.matchClose) return null;
+            }
+        }
+
+        private Part leaf(String id, Headers h) throws IOException {
+            long start = sc.pos;
+            long end = -1;
+            long b64 = 0;
+            int prevTerm = 0;
+            while (sc.next()) {
+                if (sc.matchBoundary(bounds)) {
+                    // The line break before a delimiter belongs to the delimiter
+                    end = Math.max(start, sc.segStart - prevTerm);
+                    break;
+                }
+                if (h.base64) b64 += base64Chars(sc.line, sc.len);
+                prevTerm = sc.termLen;
+            }
+            if (end < 0) end = sc.pos;
+            Part p = new Part(id, h.type, h.filename, h.encoding, h.charset, start, end - start);
+            if (h.base64) p.decodedLength = b64 * 3 / 4;
+            else if (!p.isQuotedPrintable()) p.decodedLength = p.rawLength;
+            return p;
+        }
+
+        /**
+         * Enumerating walk over one entity. On return the scanner sits on the
+         * delimiter that ended the entity ({@code sc.atBoundary}) or at EOF.
+         */
+        void walk(String prefix, String leafId, boolean inAttachedMessage, Bodies out) throws IOException {
+            Headers h = readHeaders();
+            if (h == null) return;
+            if (h.type.startsWith("multipart/") && h.boundary != null) {
+                bounds.add(("--" + h.boundary).getBytes(StandardCharsets.ISO_8859_1));
+                int depth = bounds.size() - 1;
+                try {
+                    if (!skipToBoundary() || sc.matchDepth != depth) return;
+                    for (int i = 1; !sc.matchClose; i++) {
+                        walk(prefix.isEmpty() ? Integer.toString(i) : prefix + "." + i, null, inAttachedMessage, out);
+                        if (out.done) return;
+                        if (!sc.atBoundary || sc.matchDepth != depth) return;
+                    }
+                } finally {
+                    bounds.remove(bounds.size() - 1);
+                }
+                // Epilogue runs to the parent's next delimiter
+                skipToBoundary();
+                return;
+            }
+            String id = leafId != null ? leafId : prefix;
+            boolean text = "text/plain".equals(h.type) || "text/html".equals(h.type);
+            if ((!text || h.attachment) && !out.isEmpty()) {
+                out.done = true;
+                return;
+            }
+            if ("message/rfc822".equals(h.type) && !prefix.isEmpty()) {
+                walk(prefix, prefix + ".1", true, out);
+                return;
+            }
+            if (!text || inAttachedMessage || h.attachment || ("text/plain".equals(h.type) ? out.plain : out.html) != null) {
+                skipToBoundary();
+                return;
+            }
+            Part p = leaf(id, h);
+            if ("text/plain".equals(h.type)) out.plain = p; else out.html = p;
+            out.done = out.plain != null && out.html != null;
+        }
+
+        private boolean skipToBoundary() throws IOException {
+            while (sc.next()) {
+                if (sc.matchBoundary(bounds)) return true;
+            }
+            return false;
+        }
+
+        private Headers readHeaders() throws IOException {
+            StringBuilder all = new StringBuilder();
+            List<String> fields = new ArrayList<>();
+            StringBuilder cur = null;
+            boolean any = false;
+            while (sc.next()) {
+                any = true;
+                if (sc.lineStart && sc.complete && sc.len == sc.termLen) break; // blank line
+                if (sc.matchBoundary(bounds)) return null;                      // malformed: no body
+                String s = new String(sc.line, 0, sc.len - sc.termLen, StandardCharsets.ISO_8859_1);
+                if (all.length() > MAX_HEADER_CHARS) continue;
+                all.append(s);
+                if (sc.lineStart && !s.isEmpty() && (s.charAt(0) == ' ' || s.charAt(0) == '\t') && cur != null) {
+                    cur.append(' ').append(s.trim());
+                } else if (sc.lineStart) {
+                    cur = new StringBuilder(s);
+                    fields.add(null);
+                } else if (cur != null) {
+                    cur.append(s);
+                }
+                if (cur != null) fields.set(fields.size() - 1, cur.toString());
+            }
+            return any ? new Headers(fields) : null;
+        }
+    }
+
+    /** The few header fields the locator needs. */
+    private static final class Headers {
+        String type = "text/plain";
+        String boundary;
+        String encoding = "7bit";
+        String filename;
+        String charset;
+        boolean attachment;
+        boolean base64;
+
+        Headers(List<String> fields) {
+            String ctype = null, disp = null;
+            for (String f : fields) {
+                int c = f.indexOf(':');
+                if (c <= 0) continue;
+                String name = f.substring(0, c).trim().toLowerCase(Locale.ROOT);
+                String value = f.substring(c + 1).trim();
+                switch (name) {
+                    case "content-type": ctype = value; break;
+                    case "content-transfer-encoding": encoding = value.toLowerCase(Locale.ROOT); break;
+                    case "content-disposition": disp = value; break;
+                    default: break;
+                }
+            }
+            if (ctype != null) {
+                int semi = ctype.indexOf(';');
+                String t = (semi < 0 ? ctype : ctype.substring(0, semi)).trim().toLowerCase(Locale.ROOT);
+                if (t.indexOf('/') > 0) type = t;
+                boundary = param(ctype, "boundary");
+                charset = param(ctype, "charset");
+            }
+            if (disp != null) {
+                filename = param(disp, "filename");
+                attachment = disp.regionMatches(true, 0, "attachment", 0, 10);
+            }
+            if (filename == null && ctype != null) filename = param(ctype, "name");
+            base64 = "base64".equals(encoding);
+        }
+    }
+
+    /**
+     * Parameter value from a structured header: quoted or token values, RFC 2231
+     * {@code name*=charset''pct} and continuations, RFC 2047 encoded words.
+     */
+    static String param(String header, String name) {
+        Map<String, String> plain = new LinkedHashMap<>();
+        StringBuilder ext = new StringBuilder();
+        String extCharset = null;
+        int i = header.indexOf(';');
+        while (i >= 0 && i < header.length()) {
+            int eq = header.indexOf('=', i + 1);
+            if (eq < 0) break;
+            String key = header.substring(i + 1, eq).trim().toLowerCase(Locale.ROOT);
+            int j = eq + 1;
+            while (j < header.length() && header.charAt(j) == ' ') j++;
+            StringBuilder val = new StringBuilder();
+            if (j < header.length() && header.charAt(j) == '"') {
+                j++;
+                while (j < header.length() && header.charAt(j) != '"') {
+                    char ch = header.charAt(j++);
+                    if (ch == '\\' && j < header.length()) ch = header.charAt(j++);
+                    val.append(ch);
+                }
+                j = header.indexOf(';', j);
+            } else {
+                int semi = header.indexOf(';', j);
+                val.append((semi < 0 ? header.substring(j) : header.substring(j, semi)).trim());
+                j = semi;
+            }
+            String v = val.toString();
+            if (key.equals(name)) {
+                plain.put(key, v);
+            } else if (key.startsWith(name + "*")) {
+                // name*=, name*0=, name*0*=, name*1*= ... in order
+                boolean encoded = key.endsWith("*");
+                if (encoded && extCharset == null && v.indexOf('\'') >= 0) {
+                    int q1 = v.indexOf('\''), q2 = v.indexOf('\'', q1 + 1);
+                    extCharset = v.substring(0, q1);
+                    v = q2 > q1 ? v.substring(q2 + 1) : v.substring(q1 + 1);
+                }
+                ext.append(encoded ? v : v.replace("%", "%25"));
+            }
+            i = j;
+        }
+        if (ext.length() > 0) {
+            try {
+                String cs = extCharset == null || extCharset.isEmpty() ? "UTF-8" : extCharset;
+                return URLDecoder.decode(ext.toString().replace("+", "%2B"), cs);
+            } catch (UnsupportedEncodingException | IllegalArgumentException ignore) {
+                // fall back to the plain parameter
+            }
+        }
+        String v = plain.get(name);
+        return v == null ? null : decodeWords(utf8(v));
+    }
+
+    // Raw 8-bit header bytes were read as Latin-1; most agents send UTF-8
+    private static String utf8(String latin1) {
+        for (int i = 0; i < latin1.length(); i++) {
+            if (latin1.charAt(i) >= 0x80) return new String(latin1.getBytes(StandardCharsets.ISO_8859_1), StandardCharsets.UTF_8);
+        }
+        return latin1;
+    }
+
+    /** Decodes RFC 2047 {@code =?charset?B|Q?text?=} words; anything malformed is kept as is. */
+    static String decodeWords(String s) {
+        if (s.indexOf("=?") < 0) return s;
+        StringBuilder out = new StringBuilder();
+        int i = 0;
+        boolean lastWasWord = false;
+        while (i < s.length()) {
+            int st = s.indexOf("=?", i);
+            if (st < 0) { out.append(s, i, s.length()); break; }
+            int q1 = s.indexOf('?', st + 2);
+            int q2 = q1 < 0 ? -1 : s.indexOf('?', q1 + 1);
+            int en = q2 < 0 ? -1 : s.indexOf("?=", q2 + 1);
+            if (en < 0) { out.append(s, i, s.length()); break; }
+            String between = s.substring(i, st);
+            // Whitespace between adjacent encoded words is dropped
+            if (!(lastWasWord && between.trim().isEmpty())) out.append(between);
+            String decoded = null;
+            try {
+                Charset cs = Charset.forName(s.substring(st + 2, q1));
+                String enc = s.substring(q1 + 1, q2);
+                String text = s.substring(q2 + 1, en);
+                if ("B".equalsIgnoreCase(enc)) {
+                    decoded = new String(Base64.getDecoder().decode(text), cs);
+                } else if ("Q".equalsIgnoreCase(enc)) {
+                    byte[] b = new byte[text.length()];
+                    int n = 0;
+                    for (int k = 0; k < text.length(); k++) {
+                        char ch = text.charAt(k);
+                        if (ch == '_') b[n++] = ' ';
+                        else if (ch == '=' && k + 2 < text.length()) {
+                            b[n++] = (byte) Integer.parseInt(text.substring(k + 1, k + 3), 16);
+                            k += 2;
+                        } else b[n++] = (byte) ch;
+                    }
+                    decoded = new String(b, 0, n, cs);
+                }
+            } catch (RuntimeException ignore) {
+                decoded = null;
+            }
+            out.append(decoded != null ? decoded : s.substring(st, en + 2));
+            lastWasWord = decoded != null;
+            i = en + 2;
+        }
+        return out.toString();
+    }
+
+    private static long base64Chars(byte[] b, int len) {
+        long n = 0;
+        for (int i = 0; i < len; i++) {
+            if (B64[b[i] & 0xFF] >= 0) n++;
+        }
+        return n;
+    }
+
+    private static final int[] B64 = new int[256];
+    static {
+        java.util.Arrays.fill(B64, -1);
+        String a = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        for (int i = 0; i < a.length(); i++) B64[a.charAt(i)] = i;
+    }
+
+    // ---------- Streams ----------
+
+    /**
+     * Line scanner over a raw message with its own buffer. Lines longer than
+     * {@link #MAX_LINE} come back in segments; only a segment starting a line
+     * can be a boundary.
+     */
+    private static final class Scanner {
+        private final InputStream in;
+        private final byte[] buf = new byte[64 * 1024];
+        private int bufPos, bufLen;
+
+        final byte[] line = new byte[MAX_LINE];
+        int len;
+        int termLen;          // 0, 1 (LF) or 2 (CRLF)
+        boolean lineStart;
+        boolean complete;
+        long segStart;
+        long pos;
+        int matchDepth;
+        boolean matchClose;
+        boolean atBoundary;   // current segment is a delimiter
+        private boolean nextStartsLine = true;
+
+        Scanner(InputStream in) {
+            this.in = in;
+        }
+
+        boolean next() throws IOException {
+            segStart = pos;
+            atBoundary = false;
+            lineStart = nextStartsLine;
+            len = 0;
+            boolean lf = false;
+            while (len < MAX_LINE && !lf) {
+                if (bufPos >= bufLen) {
+                    bufLen = in.read(buf, 0, buf.length);
+                    bufPos = 0;
+                    if (bufLen <= 0) { bufLen = 0; break; }
+                }
+                byte b = buf[bufPos++];
+                line[len++] = b;
+                lf = b == '\n';
+            }
+            if (len == 0) return false;
+            pos += len;
+            complete = lf;
+            termLen = lf ? (len >= 2 && line[len - 2] == '\r' ? 2 : 1) : 0;
+            nextStartsLine = lf;
+            return true;
+        }
+
+        /** True when this line is a delimiter of an open multipart (innermost first). */
+        boolean matchBoundary(List<byte[]> bounds) {
+            if (!lineStart || len < 2 || line[0] != '-' || line[1] != '-') return false;
+            for (int d = bounds.size() - 1; d >= 0; d--) {
+                byte[] b = bounds.get(d);
+                if (len < b.length) continue;
+                boolean eq = true;
+                for (int k = 2; k < b.length && eq; k++) eq = line[k] == b[k];
+                if (!eq) continue;
+                int k = b.length;
+                boolean close = k + 1 < len && line[k] == '-' && line[k + 1] == '-';
+                int rest = close ? k + 2 : k;
+                if (rest < len && line[rest] != ' ' && line[rest] != '\t' && line[rest] != '\r' && line[rest] != '\n') continue;
+                matchDepth = d;
+                matchClose = close;
+                atBoundary = true;
+                return true;
+            }
+            return false;
+        }
+    }
+
+    /** Exposes at most {@code remaining} bytes of the underlying stream. */
+    static final class BoundedInputStream extends FilterInputStream {
+        private long remaining;
+
+        BoundedInputStream(InputStream in, long limit) {
+            super(in);
+            this.remaining = limit;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (remaining <= 0) return -1;
+            int b = in.read();
+            if (b >= 0) remaining--;
+            return b;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (remaining <= 0) return -1;
+            int n = in.read(b, off, (int) Math.min(len, remaining));
+            if (n > 0) remaining -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) throws IOException {
+            long k = in.skip(Math.min(n, remaining));
+            if (k > 0) remaining -= k;
+            return k;
+        }
+
+        @Override
+        public int available() throws IOException { return (int) Math.min(in.available(), remaining); }
+
+        @Override
+        public boolean markSupported() { return false; }
+    }
+
+    /**
+     * Lenient streaming base64 decoder: characters outside the alphabet (line
+     * breaks, padding) are skipped, so output length is exactly
+     * floor(alphabet chars * 3 / 4), matching the locator's count.
+     */
+    static final class Base64InputStream extends InputStream {
+        private final InputStream in;
+        private final byte[] raw = new byte[8192];
+        private final byte[] out = new byte[8192 / 4 * 3 + 3];
+        private int outPos, outLen;
+        private int acc, bits;
+        private boolean eof;
+
+        Base64InputStream(InputStream in) {
+            this.in = in;
+        }
+
+        private boolean fill() throws IOException {
+            while (outPos >= outLen) {
+                if (eof) return false;
+                int n = in.read(raw, 0, raw.length);
+                outPos = 0;
+                outLen = 0;
+                if (n < 0) { eof = true; return false; }
+                for (int i = 0; i < n; i++) {
+                    int v = B64[raw[i] & 0xFF];
+                    if (v < 0) continue;
+                    acc = (acc << 6) | v;
+                    bits += 6;
+                    if (bits >= 8) {
+                        bits -= 8;
+                        out[outLen++] = (byte) (acc >> bits);
+                        acc &= (1 << bits) - 1;
+                    }
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? out[outPos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            if (!fill()) return -1;
+            int k = Math.min(len, outLen - outPos);
+            System.arraycopy(out, outPos, b, off, k);
+            outPos += k;
+            return k;
+        }
+
+        @Override
+        public void close() throws IOException { in.close(); }
+    }
+
+    /** Streaming quoted-printable decoder (soft breaks removed, bad escapes kept literally). */
+    static final class QuotedPrintableInputStream extends InputStream {
+        private final PushbackInputStream in;
+
+        QuotedPrintableInputStream(InputStream in) {
+            this.in = new PushbackInputStream(new java.io.BufferedInputStream(in, 8192), 2);
+        }
+
+        @Override
+        public int read() throws IOException {
+            while (true) {
+                int c = in.read();
+                if (c != '=') return c;
+                int h = in.read();
+                if (h == '\n') continue;                       // soft break (LF)
+                if (h == '\r') {
+                    int l = in.read();
+                    if (l == '\n' || l < 0) continue;           // soft break (CRLF)
+                    in.unread(l);
+                    continue;
+                }
+                int lo = h < 0 ? -1 : in.read();
+                int v = hex(h) < 0 || hex(lo) < 0 ? -1 : hex(h) << 4 | hex(lo);
+                if (v >= 0) return v;
+                if (lo >= 0) in.unread(lo);
+                if (h >= 0) in.unread(h);
+                return '=';
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) return 0;
+            int n = 0;
+            while (n < len) {
+                int c = read();
+                if (c < 0) break;
+                b[off + n++] = (byte) c;
+            }
+            return n == 0 ? -1 : n;
+        }
+
+        private static int hex(int c) {
+            if (c >= '0' && c <= '9') return c - '0';
+            if (c >= 'A' && c <= 'F') return c - 'A' + 10;
+            if (c >= 'a' && c <= 'f') return c - 'a' + 10;
+            return -1;
+        }
+
+        @Override
+        public void close() throws IOException { in.close(); }
+    }
+}
@@ -0,0 +1,39 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Raw RFC 822 message content of known size, opened lazily so the dispatcher
+ * can stream it (or a byte range of it) without holding the message in heap.
+ */
+public interface MimeSource {
+    /** Exact length in bytes of the stream returned by {@link #open(long)} at offset 0. */
+    long size();
+
+    /**
+     * Changes whenever the content does (Zimbra's mod_content), so derived data
+     * such as converted bodies can be cached by it. Immutable sources keep 0.
+     */
+    default long contentVersion() { return 0; }
+
+    /** Stream positioned at {@code offset}; the caller closes it. */
+    InputStream open(long offset) throws IOException;
+
+    /** Skips exactly {@code n} bytes (InputStream.skip may stop short). */
+    static void skipFully(InputStream in, long n) throws IOException {
+        while (n > 0) {
+            long k = in.skip(n);
+            if (k <= 0) {
+                if (in.read() < 0) throw new EOFException("stream ended " + n + " bytes before offset");
+                k = 1;
+            }
+            n -= k;
+        }
+    }
+}
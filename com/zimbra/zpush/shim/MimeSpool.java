@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Write-once buffer for uploaded MIME. The first {@link #MEMORY_BYTES} stay on
+ * the heap; a larger message continues in a temporary file, so a 30 MB
+ * upload costs no more heap than a small one. Once closed it is read back as
+ * a {@link MimeSource}; {@link #discard()} deletes the file.
+ */
+final class MimeSpool extends OutputStream implements MimeSource {
+    static final int MEMORY_BYTES = 256 * 1024;
+
+    /** Thrown by the write that would exceed the spool's limit. */
+    static final class Overflow extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        Overflow(long max) {
+            super("message exceeds " + max + " bytes");
+        }
+    }
+
+    private final long maxBytes;
+    private byte[] buf = new byte[8192];
+    private long size;
+    private File file;
+    private OutputStream fileOut;
+
+    MimeSpool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /** Copies {@code in} to the end of the spool. */
+    void copyFrom(InputStream in) throws IOException {
+        byte[] chunk = new byte[64 * 1024];
+        int n;
+        while ((n = in.read(chunk)) > 0) write(chunk, 0, n);
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        write(new byte[] { (byte) b }, 0, 1);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        if (size + len > maxBytes) throw new Overflow(maxBytes);
+        if (file == null && size + len <= MEMORY_BYTES) {
+            if (size + len > buf.length) buf = Arrays.copyOf(buf, (int) Math.min(MEMORY_BYTES, Math.max(buf.length * 2L, size + len)));
+            System.arraycopy(b, off, buf, (int) size, len);
+        } else {
+            if (file == null) {
+                file = File.createTempFile("zpush-shim-", ".eml");
+                fileOut = new BufferedOutputStream(new FileOutputStream(file), 64 * 1024);
+                fileOut.write(buf, 0, (int) size);
+                buf = null;
+            }
+            fileOut.write(b, off, len);
+        }
+        size += len;
+    }
+
+    /** Ends writing; the content can then be read. */
+    @Override
+    public void close() throws IOException {
+        if (fileOut != null) fileOut.close();
+    }
+
+    @Override
+    public long size() { return size; }
+
+    /** Backing file, or null while the content is in memory. */
+    File file() { return file; }
+
+    @Override
+    public InputStream open(long offset) throws IOException {
+        if (file == null) return new ByteArrayInputStream(buf, (int) offset, (int) (size - offset));
+        FileInputStream in = new FileInputStream(file);
+        in.getChannel().position(offset);
+        return in;
+    }
+
+    /** Releases the content; the spool must not be used afterwards. */
+    void discard() {
+        try { close(); } catch (IOException ignore) {}
+        if (file != null && !file.delete()) file.deleteOnExit();
+        buf = null;
+    }
+}
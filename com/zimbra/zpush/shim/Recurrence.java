@@ -0,0 +1,260 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.LocalTime;
+import java.time.YearMonth;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.temporal.ChronoUnit;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Arrays;
+import java.util.Locale;
+
+/**
+ * RFC 5545 RRULE subset used by the synthetic calendar: FREQ
+ * DAILY/WEEKLY/MONTHLY/YEARLY with INTERVAL, COUNT, UNTIL, BYDAY (with
+ * ordinals for MONTHLY, e.g. 2TU or -1FR) and BYMONTHDAY. Instances keep their
+ * wall-clock time in the series time zone across DST changes. On mailboxd the
+ * shim uses Zimbra's own expansion instead (CalendarItem.expandInstances).
+ *
+ * Expansion skips straight to the window for DAILY and WEEKLY, so a daily
+ * series started years ago costs the same as one started yesterday.
+ */
+final class Recurrence {
+    enum Freq { DAILY, WEEKLY, MONTHLY, YEARLY }
+
+    /** Upper bound on generated candidates per expansion. */
+    static final int MAX_CANDIDATES = 200_000;
+
+    final Freq freq;
+    final int interval;
+    final int count;         // 0 = unbounded
+    final long until;        // inclusive epoch ms, -1 = none
+    final DayOfWeek[] byDay; // null = dtstart's weekday (WEEKLY) / day of month (MONTHLY)
+    final int[] byDayOrd;    // per byDay: 0 = every such weekday, n / -n = nth / nth-last (MONTHLY)
+    final int byMonthDay;    // 0 = none
+
+    Recurrence(Freq freq, int interval, int count, long until, DayOfWeek[] byDay, int[] byDayOrd, int byMonthDay) {
+        this.freq = freq;
+        this.interval = Math.max(1, interval);
+        this.count = Math.max(0, count);
+        this.until = until;
+        this.byDay = byDay;
+        this.byDayOrd = byDayOrd;
+        this.byMonthDay = byMonthDay;
+    }
+
+    /** Parses {@code FREQ=WEEKLY;INTERVAL=2;BYDAY=MO,WE;COUNT=10}; null for anything outside the subset. */
+    static Recurrence parse(String rrule) {
+        if (rrule == null) return null;
+        Freq freq = null;
+        int interval = 1, count = 0, monthDay = 0;
+        long until = -1;
+        DayOfWeek[] days = null;
+        int[] ords = null;
+        try {
+            for (String part : rrule.trim().toUpperCase(Locale.ROOT).split(";")) {
+                int eq = part.indexOf('=');
+                if (eq <= 0) continue;
+                String k = part.substring(0, eq);
+                String v = part.substring(eq + 1);
+                switch (k) {
+                    case "FREQ": freq = Freq.valueOf(v); break;
+                    case "INTERVAL": interval = Integer.parseInt(v); break;
+                    case "COUNT": count = Integer.parseInt(v); break;
+                    case "UNTIL": until = MessageWindow.parseTime("UNTIL", untilToIso(v)); break;
+                    case "BYMONTHDAY": monthDay = Integer.parseInt(v); break;
+                    case "BYDAY": {
+                        String[] list = v.split(",");
+                        days = new DayOfWeek[list.length];
+                        ords = new int[list.length];
+                        for (int i = 0; i < list.length; i++) {
+                            String d = list[i].trim();
+                            int split = d.length() - 2;
+                            days[i] = day(d.substring(split));
+                            ords[i] = split > 0 ? Integer.parseInt(d.substring(0, split).replace("+", "")) : 0;
+                        }
+                        break;
+                    }
+                    default: return null;
+                }
+            }
+        } catch (RuntimeException | ShimException e) {
+            return null;
+        }
+        return freq == null ? null : new Recurrence(freq, interval, count, until, days, ords, monthDay);
+    }
+
+    // 20250131T235959Z / 20250131 -> ISO forms MessageWindow.parseTime accepts
+    private static String untilToIso(String v) {
+        String d = v.substring(0, 4) + "-" + v.substring(4, 6) + "-" + v.substring(6, 8);
+        if (v.length() >= 15) d += "T" + v.substring(9, 11) + ":" + v.substring(11, 13) + ":" + v.substring(13, 15) + "Z";
+        return d;
+    }
+
+    private static DayOfWeek day(String two) {
+        switch (two) {
+            case "MO": return DayOfWeek.MONDAY;
+            case "TU": return DayOfWeek.TUESDAY;
+            case "WE": return DayOfWeek.WEDNESDAY;
+            case "TH": return DayOfWeek.THURSDAY;
+            case "FR": return DayOfWeek.FRIDAY;
+            case "SA": return DayOfWeek.SATURDAY;
+            case "SU": return DayOfWeek.SUNDAY;
+            default: throw new IllegalArgumentException(two);
+        }
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder("FREQ=").append(freq);
+        if (interval > 1) sb.append(";INTERVAL=").append(interval);
+        if (byDay != null) {
+            sb.append(";BYDAY=");
+            for (int i = 0; i < byDay.length; i++) {
+                if (i > 0) sb.append(',');
+                if (byDayOrd[i] != 0) sb.append(byDayOrd[i]);
+                sb.append(byDay[i].name(), 0, 2);
+            }
+        }
+        if (byMonthDay != 0) sb.append(";BYMONTHDAY=").append(byMonthDay);
+        if (count > 0) sb.append(";COUNT=").append(count);
+        if (until >= 0) {
+            ZonedDateTime u = Instant.ofEpochMilli(until).atZone(ZoneId.of("UTC"));
+            sb.append(String.format(Locale.ROOT, ";UNTIL=%04d%02d%02dT%02d%02d%02dZ",
+                    u.getYear(), u.getMonthValue(), u.getDayOfMonth(), u.getHour(), u.getMinute(), u.getSecond()));
+        }
+        return sb.toString();
+    }
+
+    /** Receives instance start times in ascending order. */
+    interface Consumer {
+        /** Return false to stop the expansion. */
+        boolean instance(long start);
+    }
+
+    /**
+     * Feeds the starts of all instances overlapping [from, to) to {@code out},
+     * ascending, skipping {@code exdates} (sorted epoch ms). COUNT counts
+     * excluded dates too, as RFC 5545 specifies.
+     */
+    void expand(ZonedDateTime dtstart, long durationMs, long from, long to, long[] exdates, Consumer out) {
+        long lo = from - Math.max(0, durationMs);   // earliest start that still overlaps
+        ZoneId zone = dtstart.getZone();
+        LocalTime time = dtstart.toLocalTime();
+        LocalDate d0 = dtstart.toLocalDate();
+        long first = dtstart.toInstant().toEpochMilli();
+
+        long period = 0;      // index of the first period to generate
+        long emitted = 0;     // candidates counted towards COUNT before that period
+        LocalDate loDate = Instant.ofEpochMilli(Math.max(lo, first)).atZone(zone).toLocalDate().minusDays(1);
+        if (freq == Freq.DAILY) {
+            period = Math.max(0, ChronoUnit.DAYS.between(d0, loDate) / interval);
+            emitted = period;
+        } else if (freq == Freq.WEEKLY) {
+            LocalDate w0 = d0.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+            long weeks = ChronoUnit.WEEKS.between(w0, loDate.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY)));
+            period = Math.max(0, weeks / interval - 1);
+            if (period > 0) emitted = weekDates(w0, d0).length + (period - 1) * (byDay == null ? 1 : byDay.length);
+        }
+        if (count > 0 && emitted >= count) return;
+
+        int generated = 0;
+        for (; generated < MAX_CANDIDATES; period++) {
+            LocalDate[] dates = periodDates(d0, period);
+            for (LocalDate date : dates) {
+                if (++generated > MAX_CANDIDATES) return;
+                long start = ZonedDateTime.of(date, time, zone).toInstant().toEpochMilli();
+                if (start < first) continue;
+                if (until >= 0 && start > until) return;
+                if (count > 0 && ++emitted > count) return;
+                if (start >= to) return;
+                if (start <= lo) continue;
+                if (exdates != null && Arrays.binarySearch(exdates, start) >= 0) continue;
+                if (!out.instance(start)) return;
+            }
+            if (dates.length == 0 && periodStartYear(d0, period) > 9999) return;
+        }
+    }
+
+    private int periodStartYear(LocalDate d0, long period) {
+        return freq == Freq.YEARLY ? d0.getYear() + (int) Math.min(10_000, period * interval) : d0.getYear();
+    }
+
+    private DayOfWeek[] weekDays() {
+        if (byDay == null) return null;
+        DayOfWeek[] sorted = byDay.clone();
+        Arrays.sort(sorted);
+        return sorted;
+    }
+
+    private LocalDate[] weekDates(LocalDate weekStart, LocalDate d0) {
+        DayOfWeek[] days = weekDays();
+        if (days == null) days = new DayOfWeek[] { d0.getDayOfWeek() };
+        LocalDate[] out = new LocalDate[days.length];
+        int n = 0;
+        for (DayOfWeek d : days) {
+            LocalDate date = weekStart.plusDays(d.getValue() - 1);
+            if (!date.isBefore(d0)) out[n++] = date;
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    // Candidate dates of one period, ascending
+    private LocalDate[] periodDates(LocalDate d0, long period) {
+        long step = period * interval;
+        switch (freq) {
+            case DAILY:
+                return new LocalDate[] { d0.plusDays(step) };
+            case WEEKLY: {
+                LocalDate w0 = d0.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+                LocalDate ws = w0.plusWeeks(step);
+                if (period == 0) return weekDates(ws, d0);
+                DayOfWeek[] days = weekDays();
+                if (days == null) return new LocalDate[] { ws.plusDays(d0.getDayOfWeek().getValue() - 1) };
+                LocalDate[] out = new LocalDate[days.length];
+                for (int i = 0; i < days.length; i++) out[i] = ws.plusDays(days[i].getValue() - 1);
+                return out;
+            }
+            case MONTHLY:
+                return monthDates(YearMonth.from(d0).plusMonths(step), d0);
+            default: {
+                YearMonth ym = YearMonth.from(d0).plusYears(step);
+                int dom = d0.getDayOfMonth();
+                return dom <= ym.lengthOfMonth() ? new LocalDate[] { ym.atDay(dom) } : new LocalDate[0];
+            }
+        }
+    }
+
+    private LocalDate[] monthDates(YearMonth ym, LocalDate d0) {
+        if (byDay == null) {
+            int dom = byMonthDay > 0 ? byMonthDay : byMonthDay < 0 ? ym.lengthOfMonth() + 1 + byMonthDay : d0.getDayOfMonth();
+            return dom >= 1 && dom <= ym.lengthOfMonth() ? new LocalDate[] { ym.atDay(dom) } : new LocalDate[0];
+        }
+        LocalDate[] out = new LocalDate[31];
+        int n = 0;
+        for (int i = 0; i < byDay.length; i++) {
+            DayOfWeek dow = byDay[i];
+            int ord = byDayOrd[i];
+            if (ord == 0) {
+                for (LocalDate d = ym.atDay(1).with(TemporalAdjusters.nextOrSame(dow)); d.getMonth() == ym.getMonth(); d = d.plusWeeks(1)) {
+                    out[n++] = d;
+                }
+            } else {
+                LocalDate d = ord > 0
+                        ? ym.atDay(1).with(TemporalAdjusters.dayOfWeekInMonth(ord, dow))
+                        : ym.atEndOfMonth().with(TemporalAdjusters.dayOfWeekInMonth(ord, dow));
+                if (d.getMonth() == ym.getMonth()) out[n++] = d;
+            }
+        }
+        out = Arrays.copyOf(out, n);
+        Arrays.sort(out);
+        return out;
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * search request: a user query run against the mailbox index (EAS Search,
+ * Store=Mailbox). Hits are newest first and are written as the backend
+ * produces them; only the page is ever loaded, the rest is just counted.
+ *
+ *   query=text          required; Zimbra search syntax, so plain words match
+ *                       subject, addresses and body
+ *   folderId=2,257      restrict to these folders (default: whole mailbox
+ *                       without Trash and Junk, like the web client)
+ *   recursive=1         include subfolders of folderId (EAS DeepTraversal)
+ *   since=..&until=..   date window, same forms as getmessages (also filterType)
+ *   limit=N             rows returned (default {@link #DEFAULT_LIMIT}, at most {@link #MAX_LIMIT})
+ *   cursor=C            continue after the last row of a previous response
+ *
+ * Wire format (streamed):
+ *   {"query":"..","results":[{"id","subject","from","date","size","flags","read","folderId"},...],
+ *    "total":T,"exact":true,"more":true,"cursor":"C"}
+ *
+ * {@code total} counts the hits from the cursor on (all of them on the first
+ * page). Counting stops at {@code zpush.shim.search.countLimit} (default
+ * 10000) hits past the page; {@code exact} is then false and {@code total} a
+ * lower bound. {@code cursor} is only sent when {@code more} is true.
+ */
+public final class SearchQuery {
+    static final int DEFAULT_LIMIT = 50;
+    static final int MAX_LIMIT = 500;
+    private static final int MAX_FOLDERS = 64;
+
+    final String query;
+    final List<Integer> folderIds;   // empty = whole mailbox
+    final boolean recursive;
+    final MessageWindow window;
+    final int limit;
+    final int countLimit;
+    final long cursorDate;           // -1 = first page
+    final int cursorId;
+
+    SearchQuery(String query, List<Integer> folderIds, boolean recursive, MessageWindow window,
+                int limit, int countLimit, long cursorDate, int cursorId) {
+        this.query = query;
+        this.folderIds = folderIds;
+        this.recursive = recursive;
+        this.window = window;
+        this.limit = limit;
+        this.countLimit = countLimit;
+        this.cursorDate = cursorDate;
+        this.cursorId = cursorId;
+    }
+
+    static SearchQuery parse(ShimRequest req, long now) throws ShimException {
+        String q = req.param("query");
+        if (q == null || q.trim().isEmpty()) throw ShimException.badRequest("missing query");
+        List<Integer> folders = Collections.emptyList();
+        String raw = req.param("folderId");
+        if (raw != null && !raw.trim().isEmpty()) {
+            folders = new ArrayList<>();
+            for (String f : raw.split(",")) {
+                int id = ShimDispatcher.parseInt(f.trim(), -1);
+                if (id <= 0) throw ShimException.badRequest("invalid folderId: " + f.trim());
+                if (!folders.contains(id)) folders.add(id);
+            }
+            if (folders.size() > MAX_FOLDERS) throw ShimException.badRequest("too many folders (max " + MAX_FOLDERS + ")");
+        }
+        int limit = ShimDispatcher.parseInt(req.param("limit"), DEFAULT_LIMIT);
+        if (limit <= 0) throw ShimException.badRequest("invalid limit");
+        long cursorDate = -1;
+        int cursorId = 0;
+        String c = req.param("cursor");
+        if (c != null && !c.trim().isEmpty()) {
+            String[] p = c.trim().split("\\.");
+            cursorDate = p.length == 2 ? ShimDispatcher.parseLong(p[0], -1) : -1;
+            cursorId = p.length == 2 ? ShimDispatcher.parseInt(p[1], -1) : -1;
+            if (cursorDate < 0 || cursorId < 0) throw ShimException.badRequest("invalid cursor: " + c);
+        }
+        return new SearchQuery(q.trim(), folders, ShimDispatcher.isTrue(req.param("recursive")),
+                MessageWindow.parse(req, now), Math.min(limit, MAX_LIMIT),
+                Math.max(0, ShimConfig.getInt("zpush.shim.search.countLimit", 10_000)), cursorDate, cursorId);
+    }
+
+    /** Window to search in: the requested one, ending just after the cursor when there is one. */
+    MessageWindow scanWindow() {
+        if (cursorDate < 0 || (window.until >= 0 && window.until <= cursorDate + 1)) return window;
+        return new MessageWindow(window.since, cursorDate + 1, window.filterType);
+    }
+
+    /** True when a hit sorts after the cursor (date descending, then id descending). */
+    boolean afterCursor(long date, int id) {
+        return cursorDate < 0 || date < cursorDate || (date == cursorDate && id < cursorId);
+    }
+
+    /**
+     * Receives one search. Backends deliver at most {@code limit} rows after
+     * the cursor, in order, then the number of hits from the cursor on.
+     */
+    public interface Sink {
+        /** {@code row} holds at least id, folderId and date; every entry is written. */
+        void hit(Map<String, Object> row) throws IOException;
+
+        /** {@code exact} is false when counting stopped at {@code countLimit}. */
+        void counted(int total, boolean exact) throws IOException;
+    }
+
+    /**
+     * Writes the wire format above through a 64 KB buffer. The response is only
+     * committed at the first row or the count, so backend errors before then can
+     * still be reported as a normal JSON error.
+     */
+    final class JsonSink implements Sink {
+        private final ShimResponse resp;
+        private JsonWriter out;
+        private int rows;
+        private long lastDate = -1;
+        private int lastId;
+
+        JsonSink(ShimResponse resp) {
+            this.resp = resp;
+        }
+
+        boolean begun() { return out != null; }
+
+        private void begin() throws IOException {
+            resp.setContentType("application/json; charset=UTF-8");
+            out = new JsonWriter(new BufferedWriter(new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8), 64 * 1024));
+            out.beginObject();
+            out.name("query").value(query);
+            out.name("results").beginArray();
+        }
+
+        @Override
+        public void hit(Map<String, Object> row) throws IOException {
+            if (out == null) begin();
+            out.beginObject();
+            for (Map.Entry<String, Object> e : row.entrySet()) {
+                out.name(e.getKey());
+                Object v = e.getValue();
+                if (v == null) out.nullValue();
+                else if (v instanceof Number) out.value((Number) v);
+                else if (v instanceof Boolean) out.value((Boolean) v);
+                else out.value(v.toString());
+            }
+            out.endObject();
+            rows++;
+            lastDate = ((Number) row.get("date")).longValue();
+            lastId = ((Number) row.get("id")).intValue();
+        }
+
+        @Override
+        public void counted(int total, boolean exact) throws IOException {
+            if (out == null) begin();
+            boolean more = total > rows && rows > 0;
+            out.endArray();
+            out.name("total").value(total);
+            out.name("exact").value(exact);
+            out.name("more").value(more);
+            if (more) out.name("cursor").value(lastDate + "." + lastId);
+            out.endObject();
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,217 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * sendmail request: a message composed on the device, sent as the raw RFC 822
+ * request body (e.g. {@code Content-Type: message/rfc822}) and streamed into
+ * the mailbox's send path. Parameters go in the query string:
+ *
+ *   mode=send|reply|forward   default send (EAS SendMail/SmartReply/SmartForward)
+ *   messageId=N               the original message, for reply and forward
+ *   replaceMime=1             the device already included the original (EAS ReplaceMime)
+ *   saveInSent=0              do not keep a copy in Sent
+ *
+ * For reply and forward the device only sends its new text; the original is
+ * added on the server from the mailbox blob, so it never travels through
+ * Z-Push. The device's message becomes the first part of a multipart/mixed
+ * message, followed by the original's plain text quoted with "> " (reply) or
+ * by the original itself as a message/rfc822 attachment (forward). The
+ * original is flagged replied/forwarded and the sent message joins its
+ * conversation.
+ *
+ * The body is spooled through a {@link MimeSpool} (heap up to 256 KB, then a
+ * temporary file) and limited to {@code zpush.shim.sendmail.maxBytes}
+ * (default 32 MB, larger uploads get 413).
+ *
+ * Response:
+ *   {"success":true,"mode":"reply","size":N,"savedId":M}
+ *
+ * {@code size} is the size of the message as sent; {@code savedId} is the
+ * copy in Sent, absent when none was saved.
+ */
+public final class SendMail {
+    /** Plain text of the original quoted in a reply, at most. */
+    static final int QUOTE_BYTES = 256 * 1024;
+    private static final int MAX_HEADER_BYTES = 256 * 1024;
+    private static final byte[] CRLF = { '\r', '\n' };
+
+    public enum Mode { SEND, REPLY, FORWARD }
+
+    public final Mode mode;
+    /** Original message for REPLY/FORWARD, else -1. */
+    public final int originalId;
+    public final boolean replaceMime;
+    public final boolean saveInSent;
+
+    SendMail(Mode mode, int originalId, boolean replaceMime, boolean saveInSent) {
+        this.mode = mode;
+        this.originalId = originalId;
+        this.replaceMime = replaceMime;
+        this.saveInSent = saveInSent;
+    }
+
+    static SendMail parse(ShimRequest req) throws ShimException {
+        String m = req.param("mode");
+        Mode mode;
+        try {
+            mode = m == null || m.isEmpty() ? Mode.SEND : Mode.valueOf(m.toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            throw ShimException.badRequest("invalid mode: " + m);
+        }
+        int originalId = -1;
+        if (mode != Mode.SEND) {
+            originalId = ShimDispatcher.parseInt(req.param("messageId"), -1);
+            if (originalId <= 0) throw ShimException.badRequest(mode.name().toLowerCase(Locale.ROOT) + " needs messageId");
+        }
+        String save = req.param("saveInSent");
+        return new SendMail(mode, originalId, ShimDispatcher.isTrue(req.param("replaceMime")),
+                save == null || ShimDispatcher.isTrue(save));
+    }
+
+    /** Spools the request body, adds the original when needed and hands the result to {@code backend}. */
+    Map<String, Object> run(MailboxBackend backend, ShimAccount acct, ShimRequest req) throws ShimException, IOException {
+        InputStream in = req.body();
+        if (in == null) throw ShimException.badRequest("sendmail needs the message as the request body");
+        long maxBytes = ShimConfig.getLong("zpush.shim.sendmail.maxBytes", 32L * 1024 * 1024);
+        MimeSpool upload = new MimeSpool(maxBytes);
+        MimeSpool composed = null;
+        try {
+            try {
+                upload.copyFrom(in);
+            } catch (MimeSpool.Overflow e) {
+                throw new ShimException(413, e.getMessage());
+            } finally {
+                upload.close();
+            }
+            if (upload.size() == 0) throw ShimException.badRequest("empty message");
+            MimeSpool send = upload;
+            if (mode != Mode.SEND && !replaceMime) {
+                MimeSource original = backend.getMessageMime(acct, originalId);
+                composed = new MimeSpool(Long.MAX_VALUE);
+                try {
+                    compose(upload, original, composed);
+                } finally {
+                    composed.close();
+                }
+                send = composed;
+            }
+            int saved = backend.sendMail(acct, this, send);
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("success", true);
+            m.put("mode", mode.name().toLowerCase(Locale.ROOT));
+            m.put("size", send.size());
+            if (saved > 0) m.put("savedId", saved);
+            return m;
+        } finally {
+            upload.discard();
+            if (composed != null) composed.discard();
+        }
+    }
+
+    /**
+     * Writes {@code device} wrapped in multipart/mixed with the original added
+     * as the second part. The device's Content-* fields move to the first
+     * part; every other header field stays on the outer message unchanged.
+     */
+    void compose(MimeSource device, MimeSource original, OutputStream out) throws IOException {
+        String boundary = "=_zpush_shim_" + Long.toHexString(ThreadLocalRandom.current().nextLong());
+        try (InputStream in = new BufferedInputStream(device.open(0), 64 * 1024)) {
+            ByteArrayOutputStream outer = new ByteArrayOutputStream();
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            ByteArrayOutputStream field = null;
+            ByteArrayOutputStream line = new ByteArrayOutputStream();
+            int read = 0;
+            while (true) {
+                line.reset();
+                boolean eol = readLine(in, line);
+                read += line.size();
+                if (read > MAX_HEADER_BYTES) throw new IOException("header block too large");
+                byte[] b = line.toByteArray();
+                boolean blank = b.length == 0 || (b.length == 1 && b[0] == '\r');
+                if (!blank && (b[0] == ' ' || b[0] == '\t') && field != null) {
+                    field.write(b);
+                    field.write('\n');
+                    continue;
+                }
+                if (field != null) {
+                    String name = fieldName(field.toByteArray());
+                    if (name.startsWith("content-")) field.writeTo(content);
+                    else if (!name.equals("mime-version")) field.writeTo(outer);
+                }
+                if (blank || !eol) break;
+                field = new ByteArrayOutputStream();
+                field.write(b);
+                field.write('\n');
+            }
+            outer.writeTo(out);
+            ascii(out, "MIME-Version: 1.0\r\nContent-Type: multipart/mixed; boundary=\"" + boundary + "\"\r\n\r\n"
+                    + "--" + boundary + "\r\n");
+            content.writeTo(out);
+            out.write(CRLF);
+            byte[] chunk = new byte[64 * 1024];
+            int n;
+            while ((n = in.read(chunk)) > 0) out.write(chunk, 0, n);
+        }
+        ascii(out, "\r\n--" + boundary + "\r\n");
+        if (mode == Mode.FORWARD) {
+            ascii(out, "Content-Type: message/rfc822\r\nContent-Disposition: attachment\r\n\r\n");
+            try (InputStream in = original.open(0)) {
+                byte[] chunk = new byte[64 * 1024];
+                int n;
+                while ((n = in.read(chunk)) > 0) out.write(chunk, 0, n);
+            }
+        } else {
+            ascii(out, "Content-Type: text/plain; charset=UTF-8\r\nContent-Disposition: inline\r\n"
+                    + "Content-Transfer-Encoding: base64\r\n\r\n");
+            out.write(Base64.getMimeEncoder().encode(quote(original)));
+        }
+        ascii(out, "\r\n--" + boundary + "--\r\n");
+    }
+
+    // "> "-quoted plain text of the original, cut at QUOTE_BYTES of source text
+    private static byte[] quote(MimeSource original) throws IOException {
+        BodyConverter.Converted c = BodyConverter.convert(original, MimeParts.bodies(original), BodyConverter.Type.TEXT, QUOTE_BYTES);
+        String text = new String(c.data, 0, BodyConverter.charBoundary(c.data, c.data.length), StandardCharsets.UTF_8);
+        StringBuilder sb = new StringBuilder(text.length() + text.length() / 16 + 64);
+        sb.append("-----Original Message-----\r\n");
+        for (String l : text.split("\r?\n", -1)) sb.append("> ").append(l).append("\r\n");
+        if (!c.complete) sb.append("> [...]\r\n");
+        return sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    // Reads up to LF (not included; a CR before it is kept); false at end of stream
+    private static boolean readLine(InputStream in, ByteArrayOutputStream line) throws IOException {
+        int c;
+        while ((c = in.read()) >= 0) {
+            if (c == '\n') return true;
+            line.write(c);
+            if (line.size() > MAX_HEADER_BYTES) throw new IOException("header line too long");
+        }
+        return false;
+    }
+
+    private static String fieldName(byte[] field) {
+        int colon = 0;
+        while (colon < field.length && field[colon] != ':') colon++;
+        return new String(field, 0, colon, StandardCharsets.ISO_8859_1).trim().toLowerCase(Locale.ROOT);
+    }
+
+    private static void ascii(OutputStream out, String s) throws IOException {
+        out.write(s.getBytes(StandardCharsets.US_ASCII));
+    }
+}
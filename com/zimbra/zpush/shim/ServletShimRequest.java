@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import javax.servlet.http.Cookie;
+import javax.servlet.http.HttpServletRequest;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Collection;
+import java.util.Collections;
+
+/** {@link ShimRequest} over a servlet request (mailboxd / compat servlet). */
+final class ServletShimRequest implements ShimRequest {
+    private final HttpServletRequest req;
+
+    ServletShimRequest(HttpServletRequest req) {
+        this.req = req;
+    }
+
+    @Override
+    public String param(String name) { return req.getParameter(name); }
+
+    @Override
+    public Collection<String> paramNames() { return Collections.list(req.getParameterNames()); }
+
+    @Override
+    public String header(String name) { return req.getHeader(name); }
+
+    @Override
+    public String cookie(String name) {
+        Cookie[] cookies = req.getCookies();
+        if (cookies == null) return null;
+        for (Cookie c : cookies) {
+            if (name.equals(c.getName())) return c.getValue();
+        }
+        return null;
+    }
+
+    @Override
+    public String remoteAddr() { return req.getRemoteAddr(); }
+
+    @Override
+    public InputStream body() throws IOException {
+        if (ShimRequest.isForm(req.getContentType())) return null;
+        return req.getInputStream();
+    }
+
+    @Override
+    public Object nativeRequest() { return req; }
+}
@@ -0,0 +1,35 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/** {@link ShimResponse} over a servlet response (mailboxd / compat servlet). */
+final class ServletShimResponse implements ShimResponse {
+    private final HttpServletResponse resp;
+
+    ServletShimResponse(HttpServletResponse resp) {
+        this.resp = resp;
+    }
+
+    @Override
+    public void setStatus(int status) { resp.setStatus(status); }
+
+    @Override
+    public void setHeader(String name, String value) { resp.setHeader(name, value); }
+
+    @Override
+    public void setContentType(String type) { resp.setContentType(type); }
+
+    @Override
+    public void setContentLength(long length) {
+        if (length >= 0) resp.setContentLengthLong(length);
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException { return resp.getOutputStream(); }
+}
@@ -0,0 +1,21 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+/**
+ * Account resolved from a shim authToken. {@code handle} is the backend's own
+ * account object (a Zimbra Account for {@link ZimbraBackend}).
+ */
+public final class ShimAccount {
+    public final String id;
+    public final String name;
+    public final Object handle;
+
+    public ShimAccount(String id, String name, Object handle) {
+        this.id = id;
+        this.name = name;
+        this.handle = handle;
+    }
+}
@@ -0,0 +1,62 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.util.Locale;
+
+/**
+ * Known shim actions with stable numeric codes for compact binary records
+ * (request traces). Codes are append-only: never reorder or reuse them.
+ */
+enum ShimAction {
+    UNKNOWN(0),
+    PING(1),
+    AUTHENTICATE(2),
+    GETFOLDERS(3),
+    GETMESSAGES(4),
+    GETMESSAGE(5),
+    GETUSERINFO(6),
+    GETATTACHMENT(7),
+    GETCONVERSATIONS(8),
+    GETCONTACTS(9),
+    GETCONTACTPHOTO(10),
+    GETAPPOINTMENTS(11),
+    GETFREEBUSY(12),
+    APPLYCHANGES(13),
+    SENDMAIL(14),
+    SEARCHGAL(15),
+    SEARCH(16),
+    STATS(17),
+    TRACEDUMP(18),
+    GETFOLDERCOUNTERS(19),
+    GETSYNCSTATE(20),
+    PUTSYNCSTATE(21);
+
+    private static final ShimAction[] VALUES = values();
+
+    final int code;
+
+    ShimAction(int code) {
+        this.code = code;
+    }
+
+    /** Wire name as used in the {@code action} parameter. */
+    String wireName() { return name().toLowerCase(Locale.ROOT); }
+
+    static ShimAction of(String action) {
+        if (action == null || action.isEmpty()) return UNKNOWN;
+        for (ShimAction a : VALUES) {
+            if (a != UNKNOWN && a.wireName().equals(action)) return a;
+        }
+        return UNKNOWN;
+    }
+
+    static ShimAction ofCode(int code) {
+        for (ShimAction a : VALUES) {
+            if (a.code == code) return a;
+        }
+        return UNKNOWN;
+    }
+}
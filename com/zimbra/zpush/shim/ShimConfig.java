@@ -0,0 +1,52 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+/**
+ * Settings lookup used across the shim: JVM system property first (e.g.
+ * -Dzpush.shim.trace.dir=...), then the matching environment variable
+ * (ZPUSH_SHIM_TRACE_DIR), then the default.
+ */
+final class ShimConfig {
+    private ShimConfig() {}
+
+    static String get(String prop, String def) {
+        try {
+            String v = System.getProperty(prop);
+            if (v != null && !v.isEmpty()) return v;
+        } catch (Throwable ignore) {}
+        try {
+            String v = System.getenv(envName(prop));
+            if (v != null && !v.isEmpty()) return v;
+        } catch (Throwable ignore) {}
+        return def;
+    }
+
+    static int getInt(String prop, int def) {
+        try { return Integer.parseInt(get(prop, String.valueOf(def)).trim()); } catch (NumberFormatException e) { return def; }
+    }
+
+    static long getLong(String prop, long def) {
+        try { return Long.parseLong(get(prop, String.valueOf(def)).trim()); } catch (NumberFormatException e) { return def; }
+    }
+
+    static boolean getBool(String prop, boolean def) {
+        String v = get(prop, null);
+        if (v == null) return def;
+        return "1".equals(v) || "true".equalsIgnoreCase(v) || "yes".equalsIgnoreCase(v);
+    }
+
+    // zpush.shim.trace.dir -> ZPUSH_SHIM_TRACE_DIR
+    static String envName(String prop) {
+        StringBuilder sb = new StringBuilder(prop.length());
+        for (int i = 0; i < prop.length(); i++) {
+            char c = prop.charAt(i);
+            if (c == '.') sb.append('_');
+            else if (Character.isUpperCase(c)) sb.append('_').append(c);
+            else sb.append(Character.toUpperCase(c));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,893 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+
+/**
+ * Servlet-agnostic action dispatcher shared by every front end (Zimbra
+ * extension handler, compat servlet, standalone dev server). Parses action
+ * parameters, calls the {@link MailboxBackend} and serializes the result, so
+ * the code path profiled on a laptop is the one that runs in mailboxd.
+ *
+ * When {@code zpush.shim.trace.dir} is set every dispatched request is also
+ * recorded to a {@link TraceFile} for later replay with {@link TraceReplay}.
+ * When {@code zpush.shim.prefetch.count} is set, listings warm the body cache
+ * for their top rows through a {@link BodyPrefetcher}. Expanded calendar
+ * recurrences are kept in an {@link InstanceCache}, merged free/busy
+ * intervals in a short-lived {@link FreeBusyCache}.
+ *
+ * Identical concurrent reads of one account are computed once and shared
+ * through {@link SingleFlight}. Every action but ping, stats and tracedump
+ * passes an {@link AdmissionController} first, which bounds concurrency per
+ * account and per action and sheds load with 429. The stats action reports
+ * it and the caches, to admins only ({@link MailboxBackend#requireAdmin}).
+ * Failed, slow and sampled requests are kept in a {@link TraceRing}, read
+ * with the (also admin-only) tracedump action.
+ */
+public final class ShimDispatcher {
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+    private static final int STREAM_BUFFER = 64 * 1024;
+
+    private final MailboxBackend backend;
+    private final TraceFile.Writer trace;
+    private final BodyCache bodies = BodyCache.fromConfig();
+    private final int maxBodyBytes = ShimConfig.getInt("zpush.shim.body.maxBytes", 4 * 1024 * 1024);
+    private final int ndjsonFlushRows = Math.max(1, ShimConfig.getInt("zpush.shim.ndjson.flushRows", 200));
+    private final AtomicInteger active = new AtomicInteger();
+    private final BodyPrefetcher prefetcher;
+    private final InstanceCache instances = InstanceCache.fromConfig();
+    private final FreeBusyCache freeBusy = FreeBusyCache.fromConfig();
+    private final GalDirectory gal = GalDirectory.fromConfig();
+    private final AdmissionController admission = AdmissionController.fromConfig();
+    private final SingleFlight flights = SingleFlight.fromConfig();
+    private final TraceRing ring = TraceRing.fromConfig();
+    private final SyncStateStore syncStates = SyncStateStore.fromConfig();
+    private final Map<String, Supplier<Map<String, Object>>> extraStats = new ConcurrentHashMap<>();
+
+    public ShimDispatcher(MailboxBackend backend) {
+        this.backend = backend;
+        this.trace = TraceFile.Writer.fromConfig();
+        this.prefetcher = BodyPrefetcher.fromConfig(backend, bodies, active::get);
+    }
+
+    public MailboxBackend getBackend() { return backend; }
+
+    BodyCache getBodyCache() { return bodies; }
+
+    InstanceCache getInstanceCache() { return instances; }
+
+    FreeBusyCache getFreeBusyCache() { return freeBusy; }
+
+    GalDirectory getGalDirectory() { return gal; }
+
+    /** Null unless prefetch is configured. */
+    BodyPrefetcher getPrefetcher() { return prefetcher; }
+
+    AdmissionController getAdmission() { return admission; }
+
+    /** Adds a front end's own counters (e.g. its thread pool) to the stats action. */
+    void addStats(String name, Supplier<Map<String, Object>> stats) { extraStats.put(name, stats); }
+
+    public void dispatch(ShimRequest req, ShimResponse resp) throws IOException {
+        dispatch(req, resp, new Call());
+    }
+
+    /** Dispatches a request whose admission was settled by {@link #tryAdmit} and {@link #admit}. */
+    void dispatch(ShimRequest req, ShimResponse resp, Pass pass) throws IOException {
+        dispatch(req, resp, pass.call);
+    }
+
+    /**
+     * Admission ahead of dispatch for a front end that can suspend requests
+     * ({@link AsyncDispatch}): the pass is granted when a slot was free (or
+     * the action needs none, or it already failed and will only write its
+     * error); otherwise hand it to {@link #admit} to queue.
+     */
+    Pass tryAdmit(ShimRequest req) {
+        Pass pass = new Pass(str(req.param("action")).toLowerCase(Locale.ROOT));
+        try {
+            pass.key = admissionKey(req, pass.action, pass.call);
+            if (pass.key != null) pass.call.ticket = admission.tryAcquire(pass.key, pass.action);
+            pass.call.admitted = pass.key == null || pass.call.ticket != null;
+        } catch (ShimException e) {
+            pass.reject(e);
+        }
+        return pass;
+    }
+
+    /**
+     * Queues a pass {@link #tryAdmit} did not grant. {@code then} runs once,
+     * on the thread that frees a slot or on the admission timer, or before
+     * this returns when the queue is full; a rejected pass writes its 429.
+     */
+    void admit(Pass pass, Consumer<Pass> then) {
+        if (pass.granted()) {
+            then.accept(pass);
+            return;
+        }
+        try {
+            admission.acquire(pass.key, pass.action, new AdmissionController.Waiter() {
+                @Override
+                public void granted(AdmissionController.Ticket t) {
+                    pass.call.ticket = t;
+                    pass.call.admitted = true;
+                    then.accept(pass);
+                }
+
+                @Override
+                public void rejected(AdmissionController.Rejected e) {
+                    pass.reject(e);
+                    then.accept(pass);
+                }
+            });
+        } catch (AdmissionController.Rejected e) {
+            pass.reject(e);
+            then.accept(pass);
+        }
+    }
+
+    /** Gives back the slot of a granted pass that will not be dispatched. */
+    void release(Pass pass) {
+        release(pass.call);
+    }
+
+    private void dispatch(ShimRequest req, ShimResponse resp, Call call) throws IOException {
+        active.incrementAndGet();
+        try {
+            if (trace == null && ring == null) {
+                dispatch(req, resp, call, str(req.param("action")).toLowerCase(Locale.ROOT));
+                return;
+            }
+            long t0 = System.nanoTime();
+            MeteredResponse metered = new MeteredResponse(resp);
+            String action = str(req.param("action")).toLowerCase(Locale.ROOT);
+            boolean failed = true;
+            TraceRing.clearNote();
+            try {
+                dispatch(req, metered, call, action);
+                failed = false;
+            } finally {
+                long micros = (System.nanoTime() - t0) / 1000L;
+                if (ring != null) {
+                    ring.record(ShimAction.of(action), metered.status, micros, metered.counter != null ? metered.counter.count : 0,
+                            call.account != null ? call.account.name : req.param("username"), failed);
+                }
+                if (trace != null) record(req, metered, call, micros);
+            }
+        } finally {
+            release(call);
+            active.decrementAndGet();
+        }
+    }
+
+    private void release(Call call) {
+        AdmissionController.Ticket t = call.ticket;
+        call.ticket = null;
+        if (t != null) admission.release(t);
+    }
+
+    private void dispatch(ShimRequest req, ShimResponse resp, Call call, String action) throws IOException {
+        if (call.rejected != null) {
+            writeError(resp, call.rejected);
+            return;
+        }
+        // Sharing a response means buffering it, which is what stream=ndjson avoids
+        boolean coalesce = flights.coalesces(action) && !"ndjson".equalsIgnoreCase(str(req.param("stream")).trim());
+        if (coalesce || isWrite(action)) {
+            try {
+                String acct = account(req, call).id;
+                if (!coalesce) {
+                    flights.wrote(acct);
+                } else {
+                    // A duplicate only waits for the leader, so it gives its slot back; it queues again if it has to run
+                    flights.run(flights.key(acct, action, req), resp, r -> admitAndPerform(req, r, call, action), () -> {
+                        release(call);
+                        call.admitted = false;
+                    });
+                    return;
+                }
+            } catch (ShimException e) {
+                writeError(resp, e);
+                return;
+            }
+        }
+        admitAndPerform(req, resp, call, action);
+    }
+
+    private static boolean isWrite(String action) {
+        return action.equals("applychanges") || action.equals("sendmail");
+    }
+
+    // Without a pass admission happens here, and a request that finds no free slot gets 429 at once
+    private void admitAndPerform(ShimRequest req, ShimResponse resp, Call call, String action) throws IOException {
+        if (!call.admitted) {
+            try {
+                String key = admissionKey(req, action, call);
+                if (key != null) call.ticket = admission.acquire(key, action);
+            } catch (ShimException e) {
+                writeError(resp, e);
+                return;
+            }
+            call.admitted = true;
+        }
+        perform(req, resp, call, action);
+    }
+
+    // Authentication is keyed by user name, everything else by the resolved account; null = not admitted
+    private String admissionKey(ShimRequest req, String action, Call call) throws ShimException {
+        ShimAction a = ShimAction.of(action);
+        if (!admission.enabled() || a == ShimAction.UNKNOWN || a == ShimAction.PING || a == ShimAction.STATS
+                || a == ShimAction.TRACEDUMP) return null;
+        return a == ShimAction.AUTHENTICATE
+                ? "user:" + str(req.param("username")).toLowerCase(Locale.ROOT)
+                : account(req, call).id;
+    }
+
+    private void perform(ShimRequest req, ShimResponse resp, Call call, String action) throws IOException {
+        try {
+            switch (action) {
+                case "ping":
+                    writeJson(resp, CompatCore.ping());
+                    return;
+                case "stats":
+                    backend.requireAdmin(req);
+                    writeJson(resp, stats());
+                    return;
+                case "tracedump":
+                    backend.requireAdmin(req);
+                    writeJson(resp, traceDump(req));
+                    return;
+                case "authenticate":
+                    writeJson(resp, backend.authenticate(req));
+                    return;
+                case "getfolders": {
+                    long started = System.nanoTime();
+                    boolean ndjson = ndjson(req);
+                    ShimAccount acct = account(req, call);
+                    FolderFilter filter = FolderFilter.parse(req);
+                    if (ndjson) {
+                        NdjsonSink sink = streamRows(resp, started, "folder listing", s -> backend.getFolders(acct, filter, s), null);
+                        sink.end(trailer(sink.rows, false));
+                        return;
+                    }
+                    List<Map<String, Object>> rows = new ArrayList<>();
+                    backend.getFolders(acct, filter, rows::add);
+                    writeJson(resp, rows);
+                    return;
+                }
+                case "getfoldercounters": {
+                    FolderCounters query = FolderCounters.parse(req);
+                    FolderCounters.Table table = new FolderCounters.Table();
+                    backend.getFolderCounters(account(req, call), table);
+                    query.write(resp, table);
+                    return;
+                }
+                case "getsyncstate":
+                    writeJson(resp, syncStates().get(account(req, call).id, req));
+                    return;
+                case "putsyncstate":
+                    writeJson(resp, syncStates().put(account(req, call).id, req));
+                    return;
+                case "getmessages": {
+                    long started = System.nanoTime();
+                    boolean ndjson = ndjson(req);
+                    int folderId = parseInt(req.param("folderId"), -1);
+                    int limit = parseInt(req.param("limit"), 100);
+                    if (folderId < 0) throw ShimException.failure("missing folderId");
+                    MessageWindow window = MessageWindow.parse(req, System.currentTimeMillis());
+                    ShimAccount acct = account(req, call);
+                    int prefetch = parseInt(req.param("prefetch"), Integer.MAX_VALUE);
+                    if (ndjson) {
+                        List<Map<String, Object>> picks = new ArrayList<>();
+                        NdjsonSink sink = streamRows(resp, started, "message listing", s -> backend.getMessages(acct, folderId, limit, window, s),
+                                prefetcher != null ? prefetcher.candidates(picks, prefetch) : null);
+                        if (prefetcher != null) prefetcher.afterListing(acct, picks, prefetch);
+                        boolean more = sink.rows >= limit;
+                        Map<String, Object> t = trailer(sink.rows, more);
+                        if (more && sink.oldest >= 0) t.put("cursor", sink.oldest);
+                        t.put("window", window.describe(sink.oldest, more));
+                        sink.end(t);
+                        return;
+                    }
+                    List<Map<String, Object>> rows = new ArrayList<>();
+                    backend.getMessages(acct, folderId, limit, window, rows::add);
+                    if (prefetcher != null) prefetcher.afterListing(acct, rows, prefetch);
+                    if (!isTrue(req.param("envelope"))) {
+                        writeJson(resp, rows);
+                        return;
+                    }
+                    // Opt-in envelope carries the window boundary so Z-Push can widen or page incrementally
+                    long oldest = -1;
+                    for (Map<String, Object> m : rows) {
+                        Object d = m.get("date");
+                        if (d instanceof Number && (oldest < 0 || ((Number) d).longValue() < oldest)) oldest = ((Number) d).longValue();
+                    }
+                    boolean more = rows.size() >= limit;
+                    Map<String, Object> env = new LinkedHashMap<>();
+                    env.put("messages", rows);
+                    env.put("window", window.describe(oldest, more));
+                    writeJson(resp, env);
+                    return;
+                }
+                case "getconversations": {
+                    long started = System.nanoTime();
+                    boolean ndjson = ndjson(req);
+                    int folderId = parseInt(req.param("folderId"), -1);
+                    int limit = parseInt(req.param("limit"), 100);
+                    if (folderId < 0) throw ShimException.failure("missing folderId");
+                    MessageWindow window = MessageWindow.parse(req, System.currentTimeMillis());
+                    ShimAccount acct = account(req, call);
+                    if (ndjson) {
+                        NdjsonSink sink = streamRows(resp, started, "conversation listing", s -> backend.getConversations(acct, folderId, limit, window, s), null);
+                        sink.end(trailer(sink.rows, sink.rows >= limit));
+                        return;
+                    }
+                    List<Map<String, Object>> rows = new ArrayList<>();
+                    backend.getConversations(acct, folderId, limit, window, rows::add);
+                    writeJson(resp, rows);
+                    return;
+                }
+                case "getmessage": {
+                    int messageId = parseInt(req.param("messageId"), -1);
+                    if (messageId < 0) throw ShimException.failure("missing messageId");
+                    String format = str(req.param("format")).toLowerCase(Locale.ROOT);
+                    int bodyType = parseInt(req.param("bodyType"), 0);
+                    if ("mime".equals(format) || bodyType == 4) {
+                        writeMime(req, resp, backend.getMessageMime(account(req, call), messageId), messageId);
+                        return;
+                    }
+                    if (bodyType == 3) throw ShimException.badRequest("RTF bodies are not supported");
+                    BodyConverter.Type type = bodyType == 2 || (bodyType == 0 && "html".equals(format))
+                            ? BodyConverter.Type.HTML : BodyConverter.Type.TEXT;
+                    ShimAccount acct = account(req, call);
+                    Map<String, Object> m = backend.getMessage(acct, messageId);
+                    addBody(m, req, acct, backend.getMessageMime(acct, messageId), messageId, type);
+                    writeJson(resp, m);
+                    return;
+                }
+                case "getattachment": {
+                    int messageId = parseInt(req.param("messageId"), -1);
+                    String partId = str(req.param("part")).trim();
+                    if (messageId < 0) throw ShimException.badRequest("missing messageId");
+                    if (partId.isEmpty()) throw ShimException.badRequest("missing part");
+                    ShimAccount acct = account(req, call);
+                    writeAttachment(req, resp, acct, backend.getMessageMime(acct, messageId), messageId, partId);
+                    return;
+                }
+                case "getcontacts":
+                    writeContacts(resp, account(req, call), ContactQuery.parse(req));
+                    return;
+                case "getcontactphoto": {
+                    int contactId = parseInt(req.param("contactId"), -1);
+                    if (contactId < 0) throw ShimException.badRequest("missing contactId");
+                    ContactQuery.Photo photo = backend.getContactPhoto(account(req, call), contactId);
+                    if (photo == null) throw ShimException.notFound("no photo for contact " + contactId);
+                    writePhoto(req, resp, contactId, photo);
+                    return;
+                }
+                case "getappointments":
+                    writeAppointments(resp, account(req, call), CalendarQuery.parse(req, System.currentTimeMillis()));
+                    return;
+                case "getfreebusy": {
+                    ShimAccount acct = account(req, call);
+                    writeJson(resp, FreeBusyQuery.parse(req, System.currentTimeMillis()).run(backend, acct, freeBusy));
+                    return;
+                }
+                case "applychanges": {
+                    ShimAccount acct = account(req, call);
+                    writeJson(resp, ChangeBatch.parse(req).run(backend, acct));
+                    return;
+                }
+                case "sendmail": {
+                    ShimAccount acct = account(req, call);
+                    writeJson(resp, SendMail.parse(req).run(backend, acct, req));
+                    return;
+                }
+                case "search":
+                    writeSearch(resp, account(req, call), SearchQuery.parse(req, System.currentTimeMillis()));
+                    return;
+                case "searchgal": {
+                    ShimAccount acct = account(req, call);
+                    writeJson(resp, GalQuery.parse(req).run(backend, acct, gal));
+                    return;
+                }
+                case "getuserinfo":
+                    writeJson(resp, backend.getUserInfo(account(req, call)));
+                    return;
+                default:
+                    resp.setStatus(400);
+                    writeRaw(resp, "{\"success\":false,\"error\":\"Unknown or missing action\"}");
+            }
+        } catch (ShimException e) {
+            writeError(resp, e);
+        }
+    }
+
+    private static void writeError(ShimResponse resp, ShimException e) throws IOException {
+        resp.setStatus(e.getStatus());
+        if (e instanceof AdmissionController.Rejected) resp.setHeader("Retry-After", String.valueOf(((AdmissionController.Rejected) e).retryAfter));
+        writeRaw(resp, "{\"success\":false,\"error\":\"" + safe(e.getMessage()) + "\"}");
+    }
+
+    // Token policy (required vs. dev-lenient) is the backend's call; resolved once per request
+    private ShimAccount account(ShimRequest req, Call call) throws ShimException {
+        if (call.account != null) return call.account;
+        ShimAccount acct = backend.resolve(str(req.param("authToken")));
+        call.account = acct;
+        return acct;
+    }
+
+    /** Admission, caches and front-end counters for the stats action. */
+    Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("active", active.get());
+        m.put("admission", admission.stats());
+        m.put("singleFlight", flights.stats());
+        m.put("bodyCache", bodies.stats());
+        if (prefetcher != null) m.put("prefetch", prefetcher.stats());
+        m.put("instances", instances.stats());
+        m.put("freeBusy", freeBusy.stats());
+        m.put("gal", gal.stats());
+        if (ring != null) m.put("traceRing", ring.stats());
+        if (syncStates != null) m.put("syncState", syncStates.stats());
+        for (Map.Entry<String, Supplier<Map<String, Object>>> e : extraStats.entrySet()) m.put(e.getKey(), e.getValue().get());
+        return m;
+    }
+
+    /**
+     * Newest ring records first: {@code limit} (default 200), optionally only
+     * one {@code action}, at least {@code minLatencyMs} slow, or {@code errors=1}.
+     */
+    private Map<String, Object> traceDump(ShimRequest req) throws ShimException {
+        if (ring == null) throw ShimException.notFound("trace ring is off (zpush.shim.tracering.size=0)");
+        String only = str(req.param("filterAction")).toLowerCase(Locale.ROOT);
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("size", ring.size());
+        m.put("written", ring.written());
+        m.put("records", ring.dump(Math.max(1, parseInt(req.param("limit"), 200)), only.isEmpty() ? null : only,
+                parseLong(req.param("minLatencyMs"), 0) * 1000L, isTrue(req.param("errors"))));
+        return m;
+    }
+
+    private SyncStateStore syncStates() throws ShimException {
+        if (syncStates == null) throw ShimException.notFound("sync state store is off (zpush.shim.syncstate.dir unset)");
+        return syncStates;
+    }
+
+    static boolean isLoopback(String addr) {
+        if (addr == null || addr.isEmpty()) return false;
+        // An IP literal is parsed without a name lookup
+        if (!addr.matches("[0-9a-fA-F:.%]+")) return false;
+        try {
+            return java.net.InetAddress.getByName(addr).isLoopbackAddress();
+        } catch (java.net.UnknownHostException e) {
+            return false;
+        }
+    }
+
+    private void record(ShimRequest req, MeteredResponse resp, Call call, long latencyMicros) {
+        try {
+            TraceFile.Record r = new TraceFile.Record();
+            r.timestamp = System.currentTimeMillis();
+            r.action = str(req.param("action")).toLowerCase(Locale.ROOT);
+            String acct = call.account != null ? call.account.name : req.param("username");
+            r.accountHash = TraceFile.hashAccount(trace.salt(), acct);
+            for (String name : req.paramNames()) {
+                if (TraceFile.isSecret(name)) continue;
+                r.params.put(name, TraceFile.truncate(req.param(name)));
+            }
+            r.status = resp.status;
+            r.responseBytes = resp.counter != null ? resp.counter.count : 0;
+            r.latencyMicros = latencyMicros;
+            trace.write(r);
+        } catch (Throwable ignore) {
+            // Tracing must never fail a request
+        }
+    }
+
+    /** Per-request state: the account, resolved once for admission and the action, and kept for the trace. */
+    private static final class Call {
+        ShimAccount account;
+        boolean admitted;
+        AdmissionController.Ticket ticket;
+        ShimException rejected;
+    }
+
+    /** A request's way through admission, settled before its front end hands it to another thread. */
+    static final class Pass {
+        private final String action;
+        private final Call call = new Call();
+        private String key;
+
+        private Pass(String action) {
+            this.action = action;
+        }
+
+        /** False while the request still has to queue through {@link ShimDispatcher#admit}. */
+        boolean granted() { return call.admitted; }
+
+        private void reject(ShimException e) {
+            call.rejected = e;
+            call.admitted = true;
+        }
+    }
+
+    /** Records status and counts body bytes on the way through. */
+    private static final class MeteredResponse implements ShimResponse {
+        private final ShimResponse delegate;
+        int status = 200;
+        TraceFile.CountingOutputStream counter;
+
+        MeteredResponse(ShimResponse delegate) {
+            this.delegate = delegate;
+        }
+
+        @Override
+        public void setStatus(int status) {
+            this.status = status;
+            delegate.setStatus(status);
+        }
+
+        @Override
+        public void setHeader(String name, String value) { delegate.setHeader(name, value); }
+
+        @Override
+        public void setContentType(String type) { delegate.setContentType(type); }
+
+        @Override
+        public void setContentLength(long length) { delegate.setContentLength(length); }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            if (counter == null) counter = new TraceFile.CountingOutputStream(delegate.getOutputStream());
+            return counter;
+        }
+    }
+
+    /**
+     * Adds the converted body (EAS BodyPreference): {@code truncation} bytes
+     * (-1 = whole, up to zpush.shim.body.maxBytes) and an optional
+     * {@code preview} of up to 255 characters.
+     */
+    private void addBody(Map<String, Object> m, ShimRequest req, ShimAccount acct, MimeSource src, int messageId,
+                         BodyConverter.Type type) throws ShimException {
+        long truncation = parseLong(req.param("truncation"), -1);
+        int preview = parseInt(req.param("preview"), 0);
+        try {
+            BodyConverter.Body body = BodyConverter.body(bodies, acct.id, messageId, src, type, truncation, maxBodyBytes);
+            m.put("body", body.text);
+            m.put("bodyType", type.wireName());
+            m.put("estimatedDataSize", body.estimatedSize);
+            m.put("truncated", body.truncated);
+            if (preview > 0) m.put("preview", BodyConverter.preview(bodies, acct.id, messageId, src, preview));
+        } catch (IOException e) {
+            throw ShimException.failure("cannot read message " + messageId + ": " + e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Streams raw MIME through a fixed buffer. {@code truncation} (EAS
+     * MIMETruncation/TruncationSize, bytes) shortens the entity; a Range header
+     * then selects within it. Content-Length is always declared up front.
+     */
+    private static void writeMime(ShimRequest req, ShimResponse resp, MimeSource src, int messageId) throws IOException, ShimException {
+        long size = src.size();
+        long truncation = parseLong(req.param("truncation"), -1);
+        long entity = truncation >= 0 && truncation < size ? truncation : size;
+        // No validators to compare against, so a conditional range gets the whole entity
+        ByteRange range = req.header("If-Range") == null ? ByteRange.parse(req.header("Range"), entity) : null;
+        if (range == ByteRange.UNSATISFIABLE) {
+            resp.setHeader("Content-Range", range.contentRange(entity));
+            throw new ShimException(416, "range not satisfiable");
+        }
+        long start = range != null ? range.start : 0;
+        long length = range != null ? range.length() : entity;
+
+        // Open before committing headers so a store failure still gets a JSON error
+        InputStream in;
+        try {
+            in = src.open(start);
+        } catch (IOException e) {
+            throw ShimException.failure("cannot read message " + messageId + ": " + e.getMessage(), e);
+        }
+        try {
+            if (range != null) {
+                resp.setStatus(206);
+                resp.setHeader("Content-Range", range.contentRange(entity));
+            }
+            resp.setHeader("Accept-Ranges", "bytes");
+            resp.setHeader("X-Zpush-Shim-Size", Long.toString(size));
+            if (entity < size) resp.setHeader("X-Zpush-Shim-Truncated", "1");
+            resp.setContentType("message/rfc822");
+            resp.setContentLength(length);
+            copy(in, resp.getOutputStream(), length, "message " + messageId);
+        } finally {
+            try { in.close(); } catch (IOException ignore) {}
+        }
+    }
+
+    /**
+     * Streams one decoded MIME part located by {@link MimeParts}. The part's
+     * offset and decoded size are cached, so a resumed download (Range, with
+     * If-Range carrying the ETag) seeks straight to the part.
+     */
+    private static void writeAttachment(ShimRequest req, ShimResponse resp, ShimAccount acct, MimeSource src,
+                                        int messageId, String partId) throws IOException, ShimException {
+        MimeParts.Part part;
+        InputStream in;
+        try {
+            part = MimeParts.find(acct.id, messageId, partId, src);
+            if (part == null) throw ShimException.notFound("no such part: " + partId);
+            in = MimeParts.openDecoded(src, part);
+        } catch (IOException e) {
+            throw ShimException.failure("cannot read message " + messageId + ": " + e.getMessage(), e);
+        }
+        try {
+            long entity = part.decodedLength;
+            String etag = "\"" + messageId + "." + partId + "." + src.contentVersion() + "." + src.size() + "\"";
+            String ifRange = req.header("If-Range");
+            ByteRange range = ifRange == null || ifRange.equals(etag) ? ByteRange.parse(req.header("Range"), entity) : null;
+            if (range == ByteRange.UNSATISFIABLE) {
+                resp.setHeader("Content-Range", range.contentRange(entity));
+                throw new ShimException(416, "range not satisfiable");
+            }
+            long length = entity;
+            if (range != null) {
+                MimeSource.skipFully(in, range.start);
+                length = range.length();
+                resp.setStatus(206);
+                resp.setHeader("Content-Range", range.contentRange(entity));
+            }
+            resp.setHeader("Accept-Ranges", "bytes");
+            resp.setHeader("ETag", etag);
+            resp.setHeader("Content-Disposition", contentDisposition(part.filename, partId));
+            resp.setContentType(part.contentType);
+            resp.setContentLength(length);
+            copy(in, resp.getOutputStream(), length, "part " + partId + " of message " + messageId);
+        } finally {
+            try { in.close(); } catch (IOException ignore) {}
+        }
+    }
+
+    /**
+     * Streams a contact listing. A failure before the first byte is a normal
+     * JSON error; a later one aborts the response, so the client sees truncated
+     * JSON instead of a short listing that parses.
+     */
+    private void writeContacts(ShimResponse resp, ShimAccount acct, ContactQuery query) throws IOException, ShimException {
+        ContactQuery.JsonSink sink = query.new JsonSink(resp);
+        try {
+            backend.getContacts(acct, query, sink);
+        } catch (ShimException e) {
+            if (sink.begun()) throw new IOException("contact listing failed: " + e.getMessage(), e);
+            throw e;
+        }
+        sink.end();
+    }
+
+    /** Streams a calendar listing; errors after the first byte abort it like contacts do. */
+    private void writeAppointments(ShimResponse resp, ShimAccount acct, CalendarQuery query) throws IOException, ShimException {
+        CalendarQuery.JsonSink sink = query.new JsonSink(resp, instances, acct.id);
+        try {
+            backend.getAppointments(acct, query, sink);
+        } catch (ShimException e) {
+            if (sink.begun()) throw new IOException("calendar listing failed: " + e.getMessage(), e);
+            throw e;
+        }
+        sink.end();
+    }
+
+    /** Streams search hits; errors after the first byte abort it like contacts do. */
+    private void writeSearch(ShimResponse resp, ShimAccount acct, SearchQuery query) throws IOException, ShimException {
+        SearchQuery.JsonSink sink = query.new JsonSink(resp);
+        try {
+            backend.search(acct, query, sink);
+        } catch (ShimException e) {
+            if (sink.begun()) throw new IOException("search failed: " + e.getMessage(), e);
+            throw e;
+        }
+    }
+
+    /**
+     * Contact picture with an ETag of contact id and picture version. Clients
+     * keep it for a day and then revalidate with If-None-Match (304).
+     */
+    private static void writePhoto(ShimRequest req, ShimResponse resp, int contactId, ContactQuery.Photo photo)
+            throws IOException, ShimException {
+        String etag = "\"" + contactId + "." + photo.version + "\"";
+        resp.setHeader("ETag", etag);
+        resp.setHeader("Cache-Control", "private, max-age=86400");
+        if (etagMatches(req.header("If-None-Match"), etag)) {
+            resp.setStatus(304);
+            return;
+        }
+        InputStream in;
+        try {
+            in = photo.data.open(0);
+        } catch (IOException e) {
+            throw ShimException.failure("cannot read photo of contact " + contactId + ": " + e.getMessage(), e);
+        }
+        try {
+            resp.setContentType(photo.contentType);
+            resp.setContentLength(photo.data.size());
+            copy(in, resp.getOutputStream(), photo.data.size(), "photo of contact " + contactId);
+        } finally {
+            try { in.close(); } catch (IOException ignore) {}
+        }
+    }
+
+    // If-None-Match: "*" or a list of (possibly weak) entity tags
+    static boolean etagMatches(String header, String etag) {
+        if (header == null) return false;
+        for (String t : header.split(",")) {
+            String v = t.trim();
+            if (v.startsWith("W/")) v = v.substring(2);
+            if (v.equals("*") || v.equals(etag)) return true;
+        }
+        return false;
+    }
+
+    // ASCII fallback plus RFC 5987 filename* for non-ASCII names
+    static String contentDisposition(String filename, String partId) {
+        String name = filename == null || filename.trim().isEmpty() ? "part-" + partId : filename.trim();
+        StringBuilder ascii = new StringBuilder();
+        StringBuilder ext = new StringBuilder();
+        boolean plain = true;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            int c = b & 0xFF;
+            boolean safe = c > 0x20 && c < 0x7F && c != '"' && c != '\\' && c != '%' && c != ';' && c != '\'';
+            plain &= safe || c == ' ';
+            if (c < 0x80) ascii.append(c >= 0x20 && c != '"' && c != '\\' && c != 0x7F ? (char) c : '_');
+            else if ((c & 0xC0) != 0x80) ascii.append('_');
+            if (safe) ext.append((char) c); else ext.append('%').append(String.format("%02X", c));
+        }
+        String out = "attachment; filename=\"" + ascii + "\"";
+        return plain ? out : out + "; filename*=UTF-8''" + ext;
+    }
+
+    // Content-Length is already on the wire; a short source can only abort the response
+    private static void copy(InputStream in, OutputStream out, long length, String what) throws IOException {
+        byte[] buf = new byte[STREAM_BUFFER];
+        long left = length;
+        while (left > 0) {
+            int n = in.read(buf, 0, (int) Math.min(buf.length, left));
+            if (n < 0) throw new IOException(what + " ended " + left + " bytes early");
+            out.write(buf, 0, n);
+            left -= n;
+        }
+        out.flush();
+    }
+
+    /** True for {@code stream=ndjson}; the default (no stream parameter) is one JSON document. */
+    private static boolean ndjson(ShimRequest req) throws ShimException {
+        String stream = str(req.param("stream")).trim();
+        if (stream.isEmpty() || stream.equalsIgnoreCase("json")) return false;
+        if (stream.equalsIgnoreCase("ndjson")) return true;
+        throw ShimException.badRequest("unsupported stream: " + stream);
+    }
+
+    private static Map<String, Object> trailer(int count, boolean more) {
+        Map<String, Object> t = new LinkedHashMap<>();
+        t.put("count", count);
+        t.put("more", more);
+        return t;
+    }
+
+    /** One backend listing call, fed into the given sink. */
+    private interface Listing {
+        void run(MailboxBackend.RowSink sink) throws ShimException, IOException;
+    }
+
+    /**
+     * Streams a listing as NDJSON; {@code also} (may be null) sees every row
+     * too. Errors after the first row abort it like contacts do. The caller
+     * ends the sink with the trailer.
+     */
+    private NdjsonSink streamRows(ShimResponse resp, long startedNanos, String what, Listing listing,
+                                  MailboxBackend.RowSink also) throws IOException, ShimException {
+        NdjsonSink sink = new NdjsonSink(resp, startedNanos);
+        try {
+            listing.run(also == null ? sink : row -> {
+                sink.row(row);
+                also.row(row);
+            });
+        } catch (ShimException e) {
+            if (sink.begun()) throw new IOException(what + " failed: " + e.getMessage(), e);
+            throw e;
+        }
+        return sink;
+    }
+
+    /**
+     * Writes rows as newline-delimited JSON as the backend hands them over,
+     * one row per line, and ends with one {@code {"trailer":{...}}} line. The
+     * output is flushed every {@code zpush.shim.ndjson.flushRows} rows so the
+     * client can start on the first rows while the backend is still reading,
+     * and the listing is never held in memory. The response is committed at
+     * the first row, so backend errors before then are a normal JSON error.
+     * The trailer gets {@code elapsedMs}, from {@code startedNanos} to the
+     * last row written.
+     */
+    private final class NdjsonSink implements MailboxBackend.RowSink {
+        private final ShimResponse resp;
+        private final long startedNanos;
+        private Writer out;
+        int rows;
+        /** Smallest numeric date seen, -1 when none. */
+        long oldest = -1;
+
+        NdjsonSink(ShimResponse resp, long startedNanos) {
+            this.resp = resp;
+            this.startedNanos = startedNanos;
+        }
+
+        boolean begun() { return out != null; }
+
+        private void begin() throws IOException {
+            resp.setContentType("application/x-ndjson; charset=UTF-8");
+            out = new BufferedWriter(new OutputStreamWriter(resp.getOutputStream(), StandardCharsets.UTF_8), STREAM_BUFFER);
+        }
+
+        @Override
+        public void row(Map<String, Object> row) throws IOException {
+            if (out == null) begin();
+            GSON.toJson(row, out);
+            out.write('\n');
+            Object d = row.get("date");
+            if (d instanceof Number && (oldest < 0 || ((Number) d).longValue() < oldest)) oldest = ((Number) d).longValue();
+            if (++rows % ndjsonFlushRows == 0) out.flush();
+        }
+
+        void end(Map<String, Object> trailer) throws IOException {
+            if (out == null) begin();
+            trailer.put("elapsedMs", (System.nanoTime() - startedNanos) / 1_000_000L);
+            GSON.toJson(Collections.singletonMap("trailer", trailer), out);
+            out.write('\n');
+            out.flush();
+        }
+    }
+
+    public static void writeJson(ShimResponse resp, Object obj) throws IOException {
+        writeBytes(resp, GSON.toJson(obj).getBytes(StandardCharsets.UTF_8));
+    }
+
+    static void writeRaw(ShimResponse resp, String body) throws IOException {
+        writeBytes(resp, body.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void writeBytes(ShimResponse resp, byte[] bytes) throws IOException {
+        resp.setContentType("application/json; charset=UTF-8");
+        resp.setContentLength(bytes.length);
+        OutputStream out = resp.getOutputStream();
+        out.write(bytes);
+        out.flush();
+    }
+
+    static String str(String s) { return s == null ? "" : s; }
+    static boolean isTrue(String s) { return "1".equals(s) || "true".equalsIgnoreCase(s) || "yes".equalsIgnoreCase(s); }
+    static int parseInt(String s, int def) { try { return Integer.parseInt(s); } catch (Exception e) { return def; } }
+    static long parseLong(String s, long def) { try { return Long.parseLong(s); } catch (Exception e) { return def; } }
+    static String safe(String s) { return s == null ? "" : s.replace("\\", "\\\\").replace("\"", "\\\""); }
+}
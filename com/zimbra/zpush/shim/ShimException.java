@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+/**
+ * Backend-neutral failure carrying the HTTP status the dispatcher should
+ * return. Backends translate their native errors (e.g. Zimbra's
+ * ServiceException) into this type.
+ */
+public class ShimException extends Exception {
+    private static final long serialVersionUID = 1L;
+
+    private final int status;
+
+    public ShimException(int status, String message) {
+        super(message);
+        this.status = status;
+    }
+
+    public ShimException(int status, String message, Throwable cause) {
+        super(message, cause);
+        this.status = status;
+    }
+
+    public int getStatus() { return status; }
+
+    public static ShimException badRequest(String message) { return new ShimException(400, message); }
+    public static ShimException unauthorized(String message) { return new ShimException(401, message); }
+    public static ShimException notFound(String message) { return new ShimException(404, message); }
+    public static ShimException failure(String message) { return new ShimException(500, message); }
+    public static ShimException failure(String message, Throwable cause) { return new ShimException(500, message, cause); }
+}
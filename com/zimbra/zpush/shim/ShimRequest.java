@@ -0,0 +1,40 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+/**
+ * Minimal, servlet-agnostic view of an incoming shim request so the same
+ * dispatcher runs inside mailboxd and in the standalone dev server.
+ */
+public interface ShimRequest {
+    /** Request parameter (form or query), or null when absent. */
+    String param(String name);
+
+    /** Names of all request parameters (form and query). */
+    java.util.Collection<String> paramNames();
+
+    /** Request header, or null when absent. */
+    String header(String name);
+
+    /** Cookie value, or null when absent. */
+    String cookie(String name);
+
+    String remoteAddr();
+
+    /**
+     * Raw request body, or null when it was read as form parameters
+     * (application/x-www-form-urlencoded). Read at most once.
+     */
+    java.io.InputStream body() throws java.io.IOException;
+
+    /** Underlying container request (HttpServletRequest in mailboxd), or null. */
+    Object nativeRequest();
+
+    /** Whether a body of this Content-Type carries form parameters (a missing type counts as form). */
+    static boolean isForm(String contentType) {
+        return contentType == null || contentType.isEmpty()
+                || contentType.toLowerCase(java.util.Locale.ROOT).startsWith("application/x-www-form-urlencoded");
+    }
+}
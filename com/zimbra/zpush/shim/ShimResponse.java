@@ -0,0 +1,25 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Minimal, servlet-agnostic response. Status, headers and length must be set
+ * before the first call to {@link #getOutputStream()}.
+ */
+public interface ShimResponse {
+    void setStatus(int status);
+
+    void setHeader(String name, String value);
+
+    void setContentType(String type);
+
+    /** Declares the body length up front; -1 (default) means unknown/chunked. */
+    void setContentLength(long length);
+
+    OutputStream getOutputStream() throws IOException;
+}
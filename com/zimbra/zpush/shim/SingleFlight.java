@@ -0,0 +1,190 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Coalesces identical concurrent requests. When a user's phone, tablet and
+ * Z-Push's own retries ask for the same listing at the same moment, the first
+ * request (the leader) computes it into a buffer and every duplicate that
+ * arrives while it runs waits and gets a copy of the same bytes, status and
+ * headers. Nothing is kept once the leader finishes: this is not a cache,
+ * only in-flight sharing.
+ *
+ * Requests are identical when account, action and parameters (secrets left
+ * out, names sorted) match. A mutating action of the account bumps its write
+ * generation, which is part of the key, so a read that arrives after a change
+ * started never joins a computation from before it. Generations live in a
+ * fixed array of stripes by account hash, so accounts sharing a stripe only
+ * coalesce a little less.
+ *
+ * A duplicate waits at most {@code waitMs} and then runs the work itself, as
+ * it does when the leader failed or was shed (429/503): one slow or refused
+ * leader must not answer for everybody who asked the same thing.
+ *
+ *   zpush.shim.singleflight.actions   comma list (default {@link #DEFAULT_ACTIONS},
+ *                                     empty = off); only actions whose response
+ *                                     is built in memory anyway belong here
+ *   zpush.shim.singleflight.waitMs    longest wait for the leader (default 10000)
+ */
+final class SingleFlight {
+    static final String DEFAULT_ACTIONS = "getfolders,getmessages,getconversations,getuserinfo,getfreebusy,searchgal";
+
+    /** Writes one response; run by the leader only. */
+    interface Work {
+        void run(ShimResponse resp) throws IOException;
+    }
+
+    private static final int WRITE_STRIPES = 4096;
+
+    private final Set<String> actions;
+    private final long waitMs;
+    private final ConcurrentHashMap<String, CompletableFuture<Captured>> inFlight = new ConcurrentHashMap<>();
+    private final AtomicLongArray writes = new AtomicLongArray(WRITE_STRIPES);
+
+    final AtomicLong leaders = new AtomicLong();
+    final AtomicLong shared = new AtomicLong();
+    final AtomicLong fallbacks = new AtomicLong();
+
+    SingleFlight(Set<String> actions, long waitMs) {
+        this.actions = actions;
+        this.waitMs = Math.max(1, waitMs);
+    }
+
+    static SingleFlight fromConfig() {
+        Set<String> actions = new HashSet<>();
+        for (String a : ShimConfig.get("zpush.shim.singleflight.actions", DEFAULT_ACTIONS).split(",")) {
+            if (!a.trim().isEmpty()) actions.add(a.trim().toLowerCase(Locale.ROOT));
+        }
+        return new SingleFlight(actions, ShimConfig.getLong("zpush.shim.singleflight.waitMs", 10_000L));
+    }
+
+    boolean coalesces(String action) { return actions.contains(action); }
+
+    /** Called when a mutating action of {@code account} starts. */
+    void wrote(String account) {
+        writes.incrementAndGet(stripe(account));
+    }
+
+    /** Key of a request of {@code account}: write generation, action and sorted non-secret parameters. */
+    String key(String account, String action, ShimRequest req) {
+        List<String> names = new ArrayList<>(req.paramNames());
+        Collections.sort(names);
+        StringBuilder sb = new StringBuilder(account).append('\n')
+                .append(writes.get(stripe(account))).append('\n').append(action);
+        for (String n : names) {
+            if (TraceFile.isSecret(n) || n.equals("action")) continue;
+            sb.append('\n').append(n).append('=').append(req.param(n));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Runs {@code work} for {@code key} unless the same key is already in
+     * flight, in which case {@code joined} runs and the result is copied to
+     * {@code resp}. A duplicate whose leader failed, was shed or is still
+     * running after {@code waitMs} runs the work itself.
+     */
+    void run(String key, ShimResponse resp, Work work, Runnable joined) throws IOException {
+        CompletableFuture<Captured> mine = new CompletableFuture<>();
+        CompletableFuture<Captured> running = inFlight.putIfAbsent(key, mine);
+        if (running != null) {
+            joined.run();
+            try {
+                Captured c = running.get(waitMs, TimeUnit.MILLISECONDS);
+                if (c.status != 429 && c.status != 503) {
+                    shared.incrementAndGet();
+                    c.writeTo(resp);
+                    return;
+                }
+            } catch (ExecutionException | TimeoutException e) {
+                // Run it ourselves below
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("interrupted while waiting for an identical request");
+            }
+            fallbacks.incrementAndGet();
+            work.run(resp);
+            return;
+        }
+        leaders.incrementAndGet();
+        Captured c = new Captured();
+        try {
+            work.run(c);
+            mine.complete(c);
+        } catch (Throwable t) {
+            mine.completeExceptionally(t);
+            throw t;
+        } finally {
+            inFlight.remove(key, mine);
+        }
+        c.writeTo(resp);
+    }
+
+    private static int stripe(String account) {
+        return (account.hashCode() & 0x7fffffff) % WRITE_STRIPES;
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("inFlight", inFlight.size());
+        m.put("leaders", leaders.get());
+        m.put("shared", shared.get());
+        m.put("fallbacks", fallbacks.get());
+        return m;
+    }
+
+    /** A response held in memory so it can be written to every waiting client. */
+    static final class Captured implements ShimResponse {
+        private int status = 200;
+        private final Map<String, String> headers = new LinkedHashMap<>();
+        private String contentType;
+        private long contentLength = -1;
+        private final ByteArrayOutputStream body = new ByteArrayOutputStream();
+
+        @Override
+        public void setStatus(int status) { this.status = status; }
+
+        @Override
+        public void setHeader(String name, String value) { headers.put(name, value); }
+
+        @Override
+        public void setContentType(String type) { this.contentType = type; }
+
+        @Override
+        public void setContentLength(long length) { this.contentLength = length; }
+
+        @Override
+        public OutputStream getOutputStream() { return body; }
+
+        void writeTo(ShimResponse resp) throws IOException {
+            resp.setStatus(status);
+            for (Map.Entry<String, String> h : headers.entrySet()) resp.setHeader(h.getKey(), h.getValue());
+            if (contentType != null) resp.setContentType(contentType);
+            resp.setContentLength(contentLength >= 0 ? contentLength : body.size());
+            OutputStream out = resp.getOutputStream();
+            body.writeTo(out);
+            out.flush();
+        }
+    }
+}
@@ -0,0 +1,753 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Z-Push sync states kept by the shim (getsyncstate/putsyncstate), keyed by
+ * account, device and folder. Each account has one append-only log and one
+ * memory-mapped hash index, so a Sync that touches a thousand folders costs a
+ * single sequential append instead of a thousand small state files.
+ *
+ * Log {@code <account>.log}: "ZSSLOG1\n", then records
+ *   int32 length of the rest, byte type (1 = put, 2 = delete), uint16 key
+ *   length, key (UTF-8 "device\0folder"), int32 value length, value,
+ *   int32 CRC32 of type..value
+ *
+ * Index {@code <account>.idx}, mapped read-write: a 64-byte header, then an
+ * open-addressing table of 32-byte slots
+ *   int64 key hash, int64 device hash, int64 record offset,
+ *   int32 record size (-1 = deleted), int32 second key hash
+ * A lookup probes by key hash and confirms the key against the record it
+ * reads. The header's dirty flag is set before the first change after the
+ * files are opened and cleared when they are closed cleanly; an index that is
+ * dirty, unreadable or behind the log is rebuilt from the log, after a torn
+ * tail (bad length or CRC) has been cut off.
+ *
+ * When the log is over {@code compactMinBytes} and more than
+ * {@code compactRatio} times the size of its live records, the live records
+ * are copied to a new log with a new index, both forced and renamed into
+ * place.
+ *
+ *   zpush.shim.syncstate.dir              store directory (unset = off; the dev server
+ *                                         defaults to a temp directory)
+ *   zpush.shim.syncstate.fsync            force the log after each put (default true)
+ *   zpush.shim.syncstate.maxOpen          accounts with open files (default 512)
+ *   zpush.shim.syncstate.maxValueBytes    largest state (default 1 MB)
+ *   zpush.shim.syncstate.compactMinBytes  default 1 MB
+ *   zpush.shim.syncstate.compactRatio     default 2
+ */
+final class SyncStateStore {
+    static final int MAX_STATES = 10_000;
+    private static final int MAX_DEVICE = 128;
+    private static final int MAX_FOLDER = 256;
+
+    private static final byte[] LOG_MAGIC = "ZSSLOG1\n".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] IDX_MAGIC = "ZSSIDX1\n".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER = 64;
+    private static final int SLOT = 32;
+    private static final byte PUT = 1;
+    private static final byte DELETE = 2;
+
+    private final File dir;
+    private final boolean fsync;
+    private final int maxOpen;
+    private final int maxValueBytes;
+    private final long compactMinBytes;
+    private final int compactRatio;
+
+    // Guarded by this; access order, so the eldest entry is the least recently used
+    private final LinkedHashMap<String, Shard> open = new LinkedHashMap<>(16, 0.75f, true);
+
+    final AtomicLong reads = new AtomicLong();
+    final AtomicLong writes = new AtomicLong();
+    final AtomicLong appendedBytes = new AtomicLong();
+    final AtomicLong compactions = new AtomicLong();
+    final AtomicLong rebuilds = new AtomicLong();
+
+    SyncStateStore(File dir, boolean fsync, int maxOpen, int maxValueBytes, long compactMinBytes, int compactRatio) {
+        this.dir = dir;
+        this.fsync = fsync;
+        this.maxOpen = Math.max(1, maxOpen);
+        this.maxValueBytes = Math.max(1024, maxValueBytes);
+        this.compactMinBytes = compactMinBytes;
+        this.compactRatio = Math.max(2, compactRatio);
+    }
+
+    /** Null when no directory is configured. */
+    static SyncStateStore fromConfig() {
+        String dir = ShimConfig.get("zpush.shim.syncstate.dir", null);
+        if (dir == null || dir.trim().isEmpty()) return null;
+        SyncStateStore s = new SyncStateStore(new File(dir.trim()),
+                ShimConfig.getBool("zpush.shim.syncstate.fsync", true),
+                ShimConfig.getInt("zpush.shim.syncstate.maxOpen", 512),
+                ShimConfig.getInt("zpush.shim.syncstate.maxValueBytes", 1024 * 1024),
+                ShimConfig.getLong("zpush.shim.syncstate.compactMinBytes", 1024L * 1024),
+                ShimConfig.getInt("zpush.shim.syncstate.compactRatio", 2));
+        // A clean close spares the index rebuild on the next start
+        Runtime.getRuntime().addShutdownHook(new Thread(s::closeAll, "zpush-shim-syncstate-close"));
+        return s;
+    }
+
+    // ---------- Actions ----------
+
+    /**
+     * getsyncstate: {@code device}, optional {@code folders} (comma list; default
+     * every state of the device). Returns
+     * {"device":"..","states":{"folder":"state",...},"missing":["folder",...]}.
+     */
+    Map<String, Object> get(String account, ShimRequest req) throws ShimException {
+        String device = device(req);
+        List<String> folders = null;
+        String raw = req.param("folders");
+        if (raw != null && !raw.trim().isEmpty()) {
+            folders = new ArrayList<>();
+            for (String f : raw.split(",")) {
+                if (!f.trim().isEmpty()) folders.add(folder(f.trim()));
+            }
+            if (folders.size() > MAX_STATES) throw ShimException.badRequest("too many folders (max " + MAX_STATES + ")");
+        }
+        Map<String, String> states;
+        try {
+            states = read(account, device, folders);
+        } catch (IOException e) {
+            throw ShimException.failure("sync state store: " + e.getMessage(), e);
+        }
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("device", device);
+        m.put("states", states);
+        if (folders != null) {
+            List<String> missing = new ArrayList<>();
+            for (String f : folders) if (!states.containsKey(f)) missing.add(f);
+            m.put("missing", missing);
+        }
+        return m;
+    }
+
+    /**
+     * putsyncstate: {@code device}, {@code states} (JSON object folder → state,
+     * null deletes) and {@code clear=1} to drop the device's other states first.
+     * Returns {"success":true,"written":N,"deleted":D,"bytes":B}.
+     */
+    Map<String, Object> put(String account, ShimRequest req) throws ShimException {
+        String device = device(req);
+        boolean clear = ShimDispatcher.isTrue(req.param("clear"));
+        Map<String, String> states = new LinkedHashMap<>();
+        String raw = req.param("states");
+        if (raw != null && !raw.trim().isEmpty()) {
+            JsonObject obj;
+            try {
+                obj = JsonParser.parseString(raw).getAsJsonObject();
+            } catch (RuntimeException e) {
+                throw ShimException.badRequest("states must be a JSON object");
+            }
+            for (Map.Entry<String, JsonElement> e : obj.entrySet()) {
+                String folder = folder(e.getKey());
+                JsonElement v = e.getValue();
+                if (!v.isJsonNull() && !(v.isJsonPrimitive() && v.getAsJsonPrimitive().isString())) {
+                    throw ShimException.badRequest("state of " + folder + " must be a string or null");
+                }
+                states.put(folder, v.isJsonNull() ? null : v.getAsString());
+            }
+        } else if (!clear) {
+            throw ShimException.badRequest("missing states");
+        }
+        if (states.size() > MAX_STATES) throw ShimException.badRequest("too many states (max " + MAX_STATES + ")");
+        long[] result;
+        try {
+            result = write(account, device, states, clear);
+        } catch (IOException e) {
+            throw ShimException.failure("sync state store: " + e.getMessage(), e);
+        }
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("success", true);
+        m.put("written", result[0]);
+        m.put("deleted", result[1]);
+        m.put("bytes", result[2]);
+        return m;
+    }
+
+    private static String device(ShimRequest req) throws ShimException {
+        String d = ShimDispatcher.str(req.param("device")).trim();
+        if (d.isEmpty()) throw ShimException.badRequest("missing device");
+        if (d.length() > MAX_DEVICE || d.indexOf('\0') >= 0) throw ShimException.badRequest("invalid device");
+        return d;
+    }
+
+    private static String folder(String f) throws ShimException {
+        if (f.isEmpty() || f.length() > MAX_FOLDER || f.indexOf('\0') >= 0 || f.indexOf(',') >= 0) {
+            throw ShimException.badRequest("invalid folder key: " + f);
+        }
+        return f;
+    }
+
+    // ---------- Store ----------
+
+    /** States of {@code folders} (null = all of the device) that exist. */
+    Map<String, String> read(String account, String device, List<String> folders) throws IOException, ShimException {
+        for (;;) {
+            Shard s = shard(account);
+            s.lock.readLock().lock();
+            try {
+                if (s.closed) continue;
+                Map<String, String> out = s.read(device, folders);
+                reads.addAndGet(out.size());
+                return out;
+            } finally {
+                s.lock.readLock().unlock();
+            }
+        }
+    }
+
+    /** Appends the puts and deletes in one write; returns {written, deleted, bytes appended}. */
+    long[] write(String account, String device, Map<String, String> states, boolean clear) throws IOException, ShimException {
+        for (;;) {
+            Shard s = shard(account);
+            s.lock.writeLock().lock();
+            try {
+                if (s.closed) continue;
+                long[] r = s.write(device, states, clear);
+                writes.addAndGet(r[0] + r[1]);
+                appendedBytes.addAndGet(r[2]);
+                if (s.logSize > compactMinBytes && s.logSize > compactRatio * (s.liveBytes + LOG_MAGIC.length)) {
+                    s.compact();
+                    compactions.incrementAndGet();
+                }
+                return r;
+            } finally {
+                s.lock.writeLock().unlock();
+            }
+        }
+    }
+
+    private synchronized Shard shard(String account) throws IOException {
+        Shard s = open.get(account);
+        if (s != null) return s;
+        String name = fileName(account);
+        File sub = new File(dir, hex(sha256(account)).substring(0, 2));
+        if (!sub.isDirectory() && !sub.mkdirs()) throw new IOException("cannot create " + sub);
+        s = new Shard(new File(sub, name + ".log"), new File(sub, name + ".idx"));
+        open.put(account, s);
+        if (open.size() > maxOpen) {
+            Iterator<Shard> it = open.values().iterator();
+            Shard eldest = it.next();
+            it.remove();
+            eldest.close();
+        }
+        return s;
+    }
+
+    void closeAll() {
+        List<Shard> all;
+        synchronized (this) {
+            all = new ArrayList<>(open.values());
+            open.clear();
+        }
+        for (Shard s : all) s.close();
+    }
+
+    Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        synchronized (this) {
+            m.put("openAccounts", open.size());
+        }
+        m.put("statesRead", reads.get());
+        m.put("statesWritten", writes.get());
+        m.put("appendedBytes", appendedBytes.get());
+        m.put("compactions", compactions.get());
+        m.put("rebuilds", rebuilds.get());
+        return m;
+    }
+
+    // Zimbra account ids are UUIDs and used as is; anything else is hashed
+    private static String fileName(String account) {
+        return account.matches("[A-Za-z0-9_-]{1,64}") ? account : hex(sha256(account)).substring(0, 40);
+    }
+
+    /** One account's log and index. Reads hold the read lock, changes the write lock. */
+    private final class Shard {
+        final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+        final File logFile;
+        final File idxFile;
+        FileChannel log;
+        long logSize;
+        MappedByteBuffer idx;
+        int capacity;
+        int used;          // occupied slots, deleted ones included
+        int live;
+        long liveBytes;
+        boolean dirty;
+        boolean closed;
+
+        Shard(File logFile, File idxFile) throws IOException {
+            this.logFile = logFile;
+            this.idxFile = idxFile;
+            log = new RandomAccessFile(logFile, "rw").getChannel();
+            if (log.size() == 0) {
+                writeFully(log, ByteBuffer.wrap(LOG_MAGIC), 0);
+                log.force(true);
+            }
+            try {
+                ByteBuffer magic = ByteBuffer.allocate(LOG_MAGIC.length);
+                readFully(log, magic, 0);
+                if (!Arrays.equals(magic.array(), LOG_MAGIC)) throw new IOException("not a sync state log: " + logFile);
+                logSize = log.size();
+                if (!loadIndex()) rebuild();
+            } catch (IOException | RuntimeException e) {
+                log.close();
+                throw e;
+            }
+        }
+
+        // ---------- Reads ----------
+
+        Map<String, String> read(String device, List<String> folders) throws IOException, ShimException {
+            Map<String, String> out = new LinkedHashMap<>();
+            if (folders == null) {
+                long dh = fnv(device.getBytes(StandardCharsets.UTF_8));
+                List<long[]> hits = new ArrayList<>();
+                for (int i = 0; i < capacity; i++) {
+                    int p = HEADER + i * SLOT;
+                    if (idx.getLong(p) != 0 && idx.getLong(p + 8) == dh && idx.getInt(p + 24) >= 0) {
+                        hits.add(new long[] { idx.getLong(p + 16), idx.getInt(p + 24) });
+                    }
+                }
+                // In log order, so the reads move forward through the file
+                hits.sort((a, b) -> Long.compare(a[0], b[0]));
+                String prefix = device + '\0';
+                for (long[] h : hits) {
+                    Record r = readRecord(h[0], (int) h[1]);
+                    if (r.key.startsWith(prefix)) out.put(r.key.substring(prefix.length()), r.value);
+                }
+                return out;
+            }
+            for (String f : folders) {
+                String key = device + '\0' + f;
+                int slot = find(key.getBytes(StandardCharsets.UTF_8));
+                if (slot < 0) continue;
+                int p = HEADER + slot * SLOT;
+                int size = idx.getInt(p + 24);
+                if (size < 0) continue;
+                Record r = readRecord(idx.getLong(p + 16), size);
+                if (!r.key.equals(key)) throw ShimException.failure("sync state index out of step for " + f);
+                out.put(f, r.value);
+            }
+            return out;
+        }
+
+        Record readRecord(long offset, int size) throws IOException, ShimException {
+            ByteBuffer b = ByteBuffer.allocate(size);
+            readFully(log, b, offset);
+            b.flip();
+            Record r = Record.parse(b, size);
+            if (r == null) throw ShimException.failure("corrupt sync state record at " + offset + " in " + logFile);
+            return r;
+        }
+
+        // ---------- Writes ----------
+
+        long[] write(String device, Map<String, String> states, boolean clear) throws IOException, ShimException {
+            List<byte[]> keys = new ArrayList<>();
+            List<byte[]> values = new ArrayList<>();
+            long written = 0, deleted = 0;
+            if (clear) {
+                for (String f : read(device, null).keySet()) {
+                    if (states.containsKey(f)) continue;
+                    keys.add((device + '\0' + f).getBytes(StandardCharsets.UTF_8));
+                    values.add(null);
+                }
+            }
+            for (Map.Entry<String, String> e : states.entrySet()) {
+                byte[] key = (device + '\0' + e.getKey()).getBytes(StandardCharsets.UTF_8);
+                byte[] value = e.getValue() != null ? e.getValue().getBytes(StandardCharsets.UTF_8) : null;
+                if (value != null && value.length > maxValueBytes) {
+                    throw ShimException.badRequest("state too large: " + e.getKey() + " (max " + maxValueBytes + " bytes)");
+                }
+                keys.add(key);
+                values.add(value);
+            }
+            // Deletes of states that do not exist are dropped, so they cost nothing
+            int total = 0;
+            for (int i = 0; i < keys.size(); i++) {
+                if (values.get(i) == null) {
+                    int slot = find(keys.get(i));
+                    if (slot < 0 || idx.getInt(HEADER + slot * SLOT + 24) < 0) {
+                        keys.set(i, null);
+                        continue;
+                    }
+                }
+                total += Record.size(keys.get(i), values.get(i));
+            }
+            if (total == 0) return new long[] { 0, 0, 0 };
+
+            markDirty();
+            ByteBuffer batch = ByteBuffer.allocate(total);
+            long[] offsets = new long[keys.size()];
+            for (int i = 0; i < keys.size(); i++) {
+                if (keys.get(i) == null) continue;
+                offsets[i] = logSize + batch.position();
+                Record.write(batch, keys.get(i), values.get(i));
+            }
+            batch.flip();
+            writeFully(log, batch, logSize);
+            if (fsync) log.force(false);
+            logSize += total;
+
+            int adding = 0;
+            for (byte[] key : keys) if (key != null) adding++;
+            if (used + adding > capacity * 7L / 10) resize(live + adding);
+            for (int i = 0; i < keys.size(); i++) {
+                byte[] key = keys.get(i);
+                if (key == null) continue;
+                byte[] value = values.get(i);
+                int size = value != null ? Record.size(key, value) : -1;
+                set(key, offsets[i], size);
+                if (value != null) written++; else deleted++;
+            }
+            writeHeader();
+            return new long[] { written, deleted, total };
+        }
+
+        // Replaces the slot of key, or takes a free one
+        private void set(byte[] key, long offset, int size) {
+            long kh = fnv(key);
+            int check = Arrays.hashCode(key);
+            int slot = probe(kh, check);
+            int p = HEADER + slot * SLOT;
+            boolean occupied = idx.getLong(p) != 0;
+            int old = occupied ? idx.getInt(p + 24) : -1;
+            if (old >= 0) {
+                live--;
+                liveBytes -= old;
+            }
+            if (!occupied) used++;
+            if (size >= 0) {
+                live++;
+                liveBytes += size;
+            }
+            idx.putLong(p, kh);
+            idx.putLong(p + 8, fnv(Arrays.copyOf(key, indexOf(key, (byte) 0))));
+            idx.putLong(p + 16, offset);
+            idx.putInt(p + 24, size);
+            idx.putInt(p + 28, check);
+        }
+
+        /** Slot holding key, or -1. */
+        private int find(byte[] key) {
+            long kh = fnv(key);
+            int slot = probe(kh, Arrays.hashCode(key));
+            return idx.getLong(HEADER + slot * SLOT) != 0 ? slot : -1;
+        }
+
+        // First slot that holds this key or is free (the table is never full)
+        private int probe(long kh, int check) {
+            int mask = capacity - 1;
+            for (int slot = (int) (kh ^ (kh >>> 32)) & mask; ; slot = (slot + 1) & mask) {
+                int p = HEADER + slot * SLOT;
+                long h = idx.getLong(p);
+                if (h == 0 || (h == kh && idx.getInt(p + 28) == check)) return slot;
+            }
+        }
+
+        private void markDirty() {
+            if (dirty) return;
+            idx.putInt(20, 1);
+            idx.force();
+            dirty = true;
+        }
+
+        private void writeHeader() {
+            idx.putInt(8, capacity);
+            idx.putInt(12, used);
+            idx.putInt(16, live);
+            idx.putLong(24, liveBytes);
+            idx.putLong(32, logSize);
+        }
+
+        // ---------- Index files ----------
+
+        private boolean loadIndex() throws IOException {
+            if (!idxFile.isFile() || idxFile.length() < HEADER) return false;
+            try (RandomAccessFile f = new RandomAccessFile(idxFile, "rw")) {
+                MappedByteBuffer m = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, f.length());
+                byte[] magic = new byte[IDX_MAGIC.length];
+                m.get(magic);
+                int cap = m.getInt(8);
+                if (!Arrays.equals(magic, IDX_MAGIC) || m.getInt(20) != 0 || m.getLong(32) != logSize
+                        || cap < 16 || Integer.bitCount(cap) != 1 || f.length() != HEADER + (long) cap * SLOT) {
+                    return false;
+                }
+                idx = m;
+                capacity = cap;
+                used = m.getInt(12);
+                live = m.getInt(16);
+                liveBytes = m.getLong(24);
+                return true;
+            }
+        }
+
+        /** Scans the log, cuts a torn tail and writes a fresh index of its live records. */
+        private void rebuild() throws IOException {
+            if (logSize > LOG_MAGIC.length || idxFile.exists()) rebuilds.incrementAndGet();
+            Map<String, long[]> latest = new HashMap<>();   // key -> {offset, size}, size -1 = deleted
+            long pos = LOG_MAGIC.length;
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), 64 * 1024))) {
+                in.skipBytes(LOG_MAGIC.length);
+                while (pos < logSize) {
+                    int len;
+                    try {
+                        len = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (len < 11 || pos + 4 + len > logSize) break;
+                    byte[] body = new byte[len];
+                    in.readFully(body);
+                    ByteBuffer b = ByteBuffer.allocate(len + 4);
+                    b.putInt(len).put(body).flip();
+                    Record r = Record.parse(b, len + 4);
+                    if (r == null) break;
+                    latest.put(r.key, new long[] { pos, r.value != null ? len + 4 : -1 });
+                    pos += 4 + len;
+                }
+            }
+            if (pos < logSize) {
+                log.truncate(pos);
+                log.force(true);
+                logSize = pos;
+            }
+            List<long[]> entries = new ArrayList<>();
+            for (Map.Entry<String, long[]> e : latest.entrySet()) {
+                if (e.getValue()[1] < 0) continue;
+                byte[] key = e.getKey().getBytes(StandardCharsets.UTF_8);
+                entries.add(entry(key, e.getValue()[0], (int) e.getValue()[1]));
+            }
+            swapIndex(entries, capacityFor(entries.size()));
+        }
+
+        // Sized for the keys to come, so slots of deleted states are reclaimed too
+        private void resize(int keys) throws IOException {
+            swapIndex(liveEntries(), capacityFor(keys));
+            markDirty();
+        }
+
+        /** Rewrites the log with the live records only, in their current order. */
+        void compact() throws IOException {
+            List<long[]> entries = liveEntries();
+            entries.sort((a, b) -> Long.compare(a[2], b[2]));
+            File tmp = new File(logFile.getPath() + ".tmp");
+            try (FileChannel out = new RandomAccessFile(tmp, "rw").getChannel()) {
+                out.truncate(0);
+                writeFully(out, ByteBuffer.wrap(LOG_MAGIC), 0);
+                long pos = LOG_MAGIC.length;
+                out.position(pos);
+                for (long[] e : entries) {
+                    long from = e[2];
+                    int size = (int) e[3];
+                    for (long done = 0; done < size; ) done += log.transferTo(from + done, size - done, out);
+                    e[2] = pos;
+                    pos += size;
+                }
+                out.force(true);
+            }
+            log.close();
+            Files.move(tmp.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            log = new RandomAccessFile(logFile, "rw").getChannel();
+            logSize = log.size();
+            swapIndex(entries, capacityFor(entries.size()));
+        }
+
+        // {key hash, device hash, offset, size, check} of every live slot
+        private List<long[]> liveEntries() {
+            List<long[]> entries = new ArrayList<>(live);
+            for (int i = 0; i < capacity; i++) {
+                int p = HEADER + i * SLOT;
+                if (idx.getLong(p) == 0 || idx.getInt(p + 24) < 0) continue;
+                entries.add(new long[] { idx.getLong(p), idx.getLong(p + 8), idx.getLong(p + 16), idx.getInt(p + 24), idx.getInt(p + 28) });
+            }
+            return entries;
+        }
+
+        private long[] entry(byte[] key, long offset, int size) {
+            return new long[] { fnv(key), fnv(Arrays.copyOf(key, indexOf(key, (byte) 0))), offset, size, Arrays.hashCode(key) };
+        }
+
+        /** Writes {@code entries} into a new index file, forces it and renames it over the current one. */
+        private void swapIndex(List<long[]> entries, int cap) throws IOException {
+            File tmp = new File(idxFile.getPath() + ".tmp");
+            MappedByteBuffer m;
+            try (RandomAccessFile f = new RandomAccessFile(tmp, "rw")) {
+                f.setLength(0);
+                f.setLength(HEADER + (long) cap * SLOT);
+                m = f.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, f.length());
+            }
+            idx = m;
+            capacity = cap;
+            used = 0;
+            live = 0;
+            liveBytes = 0;
+            idx.put(IDX_MAGIC);
+            for (long[] e : entries) {
+                int slot = probe(e[0], (int) e[4]);
+                int p = HEADER + slot * SLOT;
+                idx.putLong(p, e[0]);
+                idx.putLong(p + 8, e[1]);
+                idx.putLong(p + 16, e[2]);
+                idx.putInt(p + 24, (int) e[3]);
+                idx.putInt(p + 28, (int) e[4]);
+                used++;
+                live++;
+                liveBytes += e[3];
+            }
+            idx.putInt(20, 0);
+            writeHeader();
+            idx.force();
+            Files.move(tmp.toPath(), idxFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            dirty = false;
+        }
+
+        void close() {
+            lock.writeLock().lock();
+            try {
+                if (closed) return;
+                closed = true;
+                if (!fsync) log.force(true);
+                writeHeader();
+                idx.putInt(20, 0);
+                idx.force();
+                log.close();
+            } catch (IOException ignore) {
+                // The dirty flag stays set and the index is rebuilt on the next open
+            } finally {
+                lock.writeLock().unlock();
+            }
+        }
+    }
+
+    /** One log record. {@code value} is null for a delete. */
+    private static final class Record {
+        final String key;
+        final String value;
+
+        Record(String key, String value) {
+            this.key = key;
+            this.value = value;
+        }
+
+        static int size(byte[] key, byte[] value) {
+            return 4 + 1 + 2 + key.length + 4 + (value != null ? value.length : 0) + 4;
+        }
+
+        static void write(ByteBuffer b, byte[] key, byte[] value) {
+            int start = b.position();
+            b.putInt(size(key, value) - 4);
+            b.put(value != null ? PUT : DELETE);
+            b.putShort((short) key.length);
+            b.put(key);
+            b.putInt(value != null ? value.length : 0);
+            if (value != null) b.put(value);
+            CRC32 crc = new CRC32();
+            crc.update(b.array(), start + 4, b.position() - start - 4);
+            b.putInt((int) crc.getValue());
+        }
+
+        /** Null when the bytes are not one intact record of {@code size} bytes. */
+        static Record parse(ByteBuffer b, int size) {
+            if (size < 15 || b.remaining() < size || b.getInt(b.position()) != size - 4) return null;
+            int start = b.position();
+            CRC32 crc = new CRC32();
+            crc.update(b.array(), b.arrayOffset() + start + 4, size - 8);
+            if ((int) crc.getValue() != b.getInt(start + size - 4)) return null;
+            b.position(start + 4);
+            byte type = b.get();
+            int keyLen = b.getShort() & 0xffff;
+            if (keyLen > size - 15) return null;
+            byte[] key = new byte[keyLen];
+            b.get(key);
+            int valueLen = b.getInt();
+            if (valueLen != size - 15 - keyLen) return null;
+            byte[] value = new byte[valueLen];
+            b.get(value);
+            return new Record(new String(key, StandardCharsets.UTF_8),
+                    type == PUT ? new String(value, StandardCharsets.UTF_8) : null);
+        }
+    }
+
+    // ---------- Helpers ----------
+
+    private static int capacityFor(int entries) {
+        int cap = 1024;
+        while (cap / 2 < entries) cap <<= 1;
+        return cap;
+    }
+
+    // FNV-1a; 0 marks a free slot, so it is never returned
+    private static long fnv(byte[] b) {
+        long h = 0xcbf29ce484222325L;
+        for (byte x : b) {
+            h ^= x & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h != 0 ? h : 1;
+    }
+
+    private static int indexOf(byte[] b, byte v) {
+        for (int i = 0; i < b.length; i++) if (b[i] == v) return i;
+        return b.length;
+    }
+
+    private static void readFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) {
+            int n = ch.read(b, pos);
+            if (n < 0) throw new EOFException("short read at " + pos);
+            pos += n;
+        }
+    }
+
+    private static void writeFully(FileChannel ch, ByteBuffer b, long pos) throws IOException {
+        while (b.hasRemaining()) pos += ch.write(b, pos);
+    }
+
+    private static byte[] sha256(String s) {
+        try {
+            return java.security.MessageDigest.getInstance("SHA-256").digest(s.getBytes(StandardCharsets.UTF_8));
+        } catch (java.security.NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String hex(byte[] b) {
+        StringBuilder sb = new StringBuilder(b.length * 2);
+        for (byte x : b) sb.append(Character.forDigit((x >> 4) & 0xf, 16)).append(Character.forDigit(x & 0xf, 16));
+        return sb.toString();
+    }
+}
@@ -0,0 +1,285 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.io.IOException;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Appointments of a {@link SyntheticMailbox}. Only id, folder, modseq and
+ * edit count are stored per series; subject, time zone, start and recurrence
+ * rule are derived from (seed, id, edit count) on demand and expanded with
+ * {@link Recurrence}. The mix covers single meetings, daily series with
+ * skipped days, weekly and biweekly series, monthly "second Tuesday" style
+ * rules and yearly all-day events, started up to {@code years} back so
+ * multi-year expansion is exercised. Deletions leave {@link Tombstones}.
+ *
+ * Not thread-safe: the mailbox calls in under its own lock, and listings are
+ * taken as a {@link Selection} so series are expanded after the lock is released.
+ */
+final class SyntheticCalendar {
+    /** Appointment ids live above contact ids so nothing collides. */
+    static final int ID_BASE = 600_000_000;
+    private static final int MAX_TOMBSTONES = 10_000;
+    private static final long DAY_MS = 86_400_000L;
+
+    private static final String[] ZONES = {
+        "Europe/Berlin", "America/New_York", "Europe/London", "Asia/Tokyo", "UTC", "Australia/Sydney", "America/Los_Angeles"
+    };
+    private static final String[] MEETINGS = {
+        "Standup", "1:1", "Sprint Review", "Budget Planning", "Kundentermin", "Réunion d'équipe",
+        "Architecture Sync", "Ops Review", "Zahnarzt", "Yoga", "月次報告", "Board Meeting", "Lunch"
+    };
+    private static final String[] PLACES = {
+        "Room 4.12", "Konferenzraum Süd", "https://meet.example.com/abc-defg", "Café Central", "", "Salle Écluse"
+    };
+    private static final String[] PEOPLE = {
+        "anna.mueller@example.com", "ivan.ivanov@example.org", "yuki.tanaka@example.com", "boss@example.com"
+    };
+    private static final String[] BIRTHDAYS = { "Anna", "Jürgen", "Yuki", "Priya", "Søren" };
+    private static final DayOfWeek[] WEEKDAYS = {
+        DayOfWeek.MONDAY, DayOfWeek.TUESDAY, DayOfWeek.WEDNESDAY, DayOfWeek.THURSDAY, DayOfWeek.FRIDAY
+    };
+
+    private final long seed;
+    private final long anchor;       // "today", UTC midnight
+    private final int years;
+    private final int[] folderIds;   // appointment folders; [0] is Calendar (10)
+    private int count;
+    private int[] folder;            // folder id, -1 when deleted
+    private int[] modseq;
+    private int[] version;           // edit count, feeds the generator
+    private int lastChange = 1;      // modseq of the last add/edit/delete, the free/busy version
+
+    private final Tombstones dead = new Tombstones(MAX_TOMBSTONES);
+
+    SyntheticCalendar(long seed, long anchor, int years, int n, int[] folderIds, Random rnd) {
+        this.seed = seed;
+        this.anchor = anchor;
+        this.years = years;
+        this.folderIds = folderIds;
+        int cap = Math.max(16, n + n / 8);
+        folder = new int[cap];
+        modseq = new int[cap];
+        version = new int[cap];
+        for (int i = 0; i < n; i++) add(pickFolder(rnd), 1);
+    }
+
+    private int pickFolder(Random rnd) {
+        if (folderIds.length == 1 || rnd.nextInt(10) < 8) return folderIds[0];
+        return folderIds[1 + rnd.nextInt(folderIds.length - 1)];
+    }
+
+    private int add(int folderId, int seq) {
+        if (count == folder.length) {
+            int cap = count + (count >> 1) + 16;
+            folder = Arrays.copyOf(folder, cap);
+            modseq = Arrays.copyOf(modseq, cap);
+            version = Arrays.copyOf(version, cap);
+        }
+        int idx = count++;
+        folder[idx] = folderId;
+        modseq[idx] = seq;
+        version[idx] = 0;
+        return idx;
+    }
+
+    int count() { return count; }
+
+    /** Folder id of the series at {@code idx}, -1 once deleted. */
+    int folderAt(int idx) { return folder[idx]; }
+
+    boolean isCalendarFolder(int folderId) {
+        for (int f : folderIds) {
+            if (f == folderId) return true;
+        }
+        return false;
+    }
+
+    // ---------- Listing ----------
+
+    /**
+     * Series of {@code folderId} changed after {@code since} (all of them when
+     * since is -1 or older than the cutoff) plus the matching tombstones.
+     */
+    Selection select(int folderId, long since, int current) {
+        boolean delta = since >= 0 && since >= dead.cutoff();
+        Selection s = new Selection(current, delta);
+        for (int i = 0; i < count; i++) {
+            if (folder[i] != folderId || (delta && modseq[i] <= since)) continue;
+            s.add(i, modseq[i], version[i]);
+        }
+        if (delta) s.deleted = dead.since(folderId, since);
+        return s;
+    }
+
+    /** Snapshot of one listing; series are generated while it is written, outside the lock. */
+    final class Selection {
+        final long modseq;
+        final boolean delta;
+        private int n;
+        private int[] rows = new int[48];   // idx, modseq, version
+        int[] deleted = new int[0];
+
+        Selection(long modseq, boolean delta) {
+            this.modseq = modseq;
+            this.delta = delta;
+        }
+
+        private void add(int idx, int seq, int ver) {
+            if (3 * n + 3 > rows.length) rows = Arrays.copyOf(rows, rows.length * 2);
+            rows[3 * n] = idx;
+            rows[3 * n + 1] = seq;
+            rows[3 * n + 2] = ver;
+            n++;
+        }
+
+        void writeTo(CalendarQuery.Sink sink) throws IOException {
+            sink.begin(modseq, delta);
+            for (int i = 0; i < n; i++) sink.appointment(series(rows[3 * i], rows[3 * i + 1], rows[3 * i + 2]));
+            for (int id : deleted) sink.deleted(id);
+        }
+    }
+
+    /**
+     * Series definition. The kind and time zone are fixed per id; each edit
+     * moves the start by up to two hours and may retitle it, like a reschedule.
+     */
+    CalendarQuery.Series series(int idx, int seq, int ver) {
+        int id = ID_BASE + idx;
+        Random r = new Random((seed + 401) ^ (id * 0x9E3779B97F4A7C15L));
+        Random e = new Random((seed + 409) ^ (id * 0xC2B2AE3D27D4EB4FL) ^ (ver * 0x165667B19E3779F9L));
+        int kind = r.nextInt(100);
+        ZoneId zone = ZoneId.of(ZONES[r.nextInt(ZONES.length)]);
+        long day = anchor - (long) r.nextInt(years * 365) * DAY_MS + (long) r.nextInt(60) * DAY_MS;
+        ZonedDateTime dtstart = Instant.ofEpochMilli(day).atZone(zone).toLocalDate()
+                .atTime(7 + r.nextInt(10) + e.nextInt(3) - 1, r.nextInt(2) * 30).atZone(zone);
+        long duration = (1 + r.nextInt(4)) * 30L * 60_000L;
+        String subject = MEETINGS[(r.nextInt(MEETINGS.length) + e.nextInt(2)) % MEETINGS.length];
+        boolean allDay = false;
+        Recurrence rule = null;
+        long[] exdates = null;
+        if (kind < 35) {
+            dtstart = dtstart.plusDays(r.nextInt(years * 365));   // singles scatter across the years
+        } else if (kind < 50) {
+            int count = r.nextInt(3) == 0 ? 10 + r.nextInt(200) : 0;
+            rule = new Recurrence(Recurrence.Freq.DAILY, 1, count, -1, null, null, 0);
+            exdates = new long[1 + r.nextInt(3)];
+            for (int k = 0; k < exdates.length; k++) exdates[k] = dtstart.plusDays(1 + r.nextInt(400)).toInstant().toEpochMilli();
+            Arrays.sort(exdates);
+        } else if (kind < 75) {
+            int interval = r.nextInt(4) == 0 ? 2 : 1;
+            DayOfWeek[] days = r.nextBoolean()
+                    ? new DayOfWeek[] { dtstart.getDayOfWeek() }
+                    : new DayOfWeek[] { WEEKDAYS[r.nextInt(5)], WEEKDAYS[r.nextInt(5)] };
+            if (days.length == 2 && days[0] == days[1]) days = new DayOfWeek[] { days[0] };
+            long until = r.nextInt(4) == 0 ? dtstart.plusDays(90 + r.nextInt(700)).toInstant().toEpochMilli() : -1;
+            rule = new Recurrence(Recurrence.Freq.WEEKLY, interval, 0, until, days, new int[days.length], 0);
+        } else if (kind < 90) {
+            rule = r.nextBoolean()
+                    ? new Recurrence(Recurrence.Freq.MONTHLY, 1, 0, -1,
+                            new DayOfWeek[] { WEEKDAYS[r.nextInt(5)] }, new int[] { r.nextInt(5) == 0 ? -1 : 1 + r.nextInt(3) }, 0)
+                    : new Recurrence(Recurrence.Freq.MONTHLY, 1, 0, -1, null, null, 1 + r.nextInt(28));
+        } else {
+            allDay = true;
+            dtstart = dtstart.toLocalDate().atStartOfDay(zone);
+            duration = DAY_MS;
+            subject = "Geburtstag " + BIRTHDAYS[r.nextInt(BIRTHDAYS.length)];
+            rule = new Recurrence(Recurrence.Freq.YEARLY, 1, 0, -1, null, null, 0);
+        }
+        final ZonedDateTime start0 = dtstart;
+        final long dur = duration;
+        final Recurrence rrule = rule;
+        final long[] skip = exdates;
+        CalendarQuery.Series s = new CalendarQuery.Series(id, seq, ver, (from, to, out) -> {
+            if (rrule == null) {
+                long t = start0.toInstant().toEpochMilli();
+                if (t < to && t + dur > from) out.add(t, t + dur);
+                return;
+            }
+            rrule.expand(start0, dur, from, to, skip, t -> out.add(t, t + dur));
+        });
+        s.uid = "synthetic-" + seed + "-" + id;
+        s.subject = subject;
+        s.location = PLACES[r.nextInt(PLACES.length)];
+        s.organizer = PEOPLE[r.nextInt(PEOPLE.length)];
+        s.allDay = allDay;
+        s.tz = zone.getId();
+        s.dtstart = dtstart.toInstant().toEpochMilli();
+        s.duration = duration;
+        s.recurring = rule != null;
+        s.rrule = rule != null ? rule.toString() : null;
+        return s;
+    }
+
+    // ---------- Free/busy ----------
+
+    /** Modseq of the newest change to any series; free/busy caches key on it. */
+    int lastChange() { return lastChange; }
+
+    /** Live series as (idx, modseq, version) triples; expanded by {@link #busy} outside the lock. */
+    int[] live() {
+        int[] out = new int[3 * count];
+        int n = 0;
+        for (int i = 0; i < count; i++) {
+            if (folder[i] < 0) continue;
+            out[n++] = i;
+            out[n++] = modseq[i];
+            out[n++] = version[i];
+        }
+        return Arrays.copyOf(out, n);
+    }
+
+    /**
+     * Busy time of the series in {@code live} over [from, to). All-day events
+     * count as free, as they do in Zimbra by default. A non-zero {@code salt}
+     * keeps a salt-dependent third of the series, so every dev attendee gets
+     * a different, stable calendar out of the one synthetic mailbox.
+     */
+    void busy(int[] live, int salt, long from, long to, BusyIntervals out) throws ShimException {
+        for (int k = 0; k + 2 < live.length; k += 3) {
+            int idx = live[k];
+            if (salt != 0 && Math.floorMod((idx * 0x9E3779B1) ^ salt, 3) != 0) continue;
+            CalendarQuery.Series s = series(idx, live[k + 1], live[k + 2]);
+            if (s.allDay) continue;
+            InstanceCache.Instances x = new InstanceCache.Instances(s.version, from, to, 5000);
+            s.expander.expand(from, to, x);
+            for (int i = 0; i < x.size(); i++) out.add(x.start(i), x.end(i));
+        }
+    }
+
+    // ---------- Mutations ----------
+
+    /** Adds, reschedules or deletes one series at {@code seq}; returns the affected id and folders. */
+    int[] mutate(Random rnd, int seq) {
+        lastChange = seq;
+        int r = rnd.nextInt(20);
+        if (r < 8 || count == 0) {
+            int idx = add(pickFolder(rnd), seq);
+            return new int[] { ID_BASE + idx, 0, folder[idx] };
+        }
+        int idx = -1;
+        for (int tries = 0; tries < 32 && idx < 0; tries++) {
+            int k = rnd.nextInt(count);
+            if (folder[k] >= 0) idx = k;
+        }
+        if (idx < 0) return null;
+        int f = folder[idx];
+        if (r < 17) {
+            version[idx]++;
+            modseq[idx] = seq;
+            return new int[] { ID_BASE + idx, f, f };
+        }
+        folder[idx] = -1;
+        modseq[idx] = seq;
+        dead.add(ID_BASE + idx, f, seq);
+        return new int[] { ID_BASE + idx, f, 0 };
+    }
+}
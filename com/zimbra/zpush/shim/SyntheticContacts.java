@@ -0,0 +1,311 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.zip.CRC32;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Contacts of a {@link SyntheticMailbox}. Only id, folder, modseq, edit count
+ * and flags are stored per contact; names, addresses and phones are derived
+ * from (seed, id, edit count) on demand and pictures are generated PNGs.
+ * Deletions leave {@link Tombstones} for delta sync.
+ *
+ * Not thread-safe: the mailbox calls in under its own lock, and listings are
+ * taken as a {@link Selection} so rows are streamed after the lock is released.
+ */
+final class SyntheticContacts {
+    /** Contact ids live above message ids so the two never collide. */
+    static final int ID_BASE = 500_000_000;
+    private static final int FLAG_PHOTO = 1;
+    private static final int MAX_TOMBSTONES = 10_000;
+
+    private static final String[] FIRST = {
+        "Anna", "Jürgen", "Françoise", "Ivan", "Yuki", "María", "Łukasz", "Søren", "Zoë",
+        "Mohammed", "Chen", "Olivia", "Noah", "Émile", "Ingrid", "Priya", "Tomás"
+    };
+    private static final String[] LAST = {
+        "Müller", "Dubois", "Ivanov", "Tanaka", "García", "Kowalski", "Jensen", "O'Brien",
+        "Smith", "Nakamura", "Rossi", "van der Berg", "Öztürk", "Novák", "Patel"
+    };
+    private static final String[] COMPANIES = {
+        "Example GmbH", "Vendor Example Ltd", "Monitoring Example", "Acme Corp", "Société Exemple", "株式会社サンプル"
+    };
+    private static final String[] TITLES = {
+        "Engineer", "Account Manager", "CFO", "Support Lead", "Designer", "Consultant", "Geschäftsführer"
+    };
+    private static final String[] DOMAINS = { "example.com", "example.org", "example.de", "vendor.example" };
+
+    private final long seed;
+    private final int[] folderIds;   // contact folders; [0] is Contacts (7)
+    private int count;
+    private int[] folder;            // folder id, -1 when deleted
+    private int[] modseq;
+    private int[] version;           // edit count, feeds the field generator
+    private int[] photoSeq;          // modseq of the last picture change, 0 = none
+    private int[] flags;
+
+    private final Tombstones dead = new Tombstones(MAX_TOMBSTONES);
+
+    SyntheticContacts(long seed, int n, int[] folderIds, Random rnd) {
+        this.seed = seed;
+        this.folderIds = folderIds;
+        int cap = Math.max(16, n + n / 8);
+        folder = new int[cap];
+        modseq = new int[cap];
+        version = new int[cap];
+        photoSeq = new int[cap];
+        flags = new int[cap];
+        for (int i = 0; i < n; i++) add(pickFolder(rnd), rnd.nextInt(5) == 0, 1);
+    }
+
+    // Mostly Contacts, some Emailed Contacts (13), the rest in user contact folders
+    private int pickFolder(Random rnd) {
+        int r = rnd.nextInt(10);
+        if (r < 8 || folderIds.length == 1) return folderIds[0];
+        if (r == 8 && folderIds.length > 1) return folderIds[1];
+        return folderIds[1 + rnd.nextInt(folderIds.length - 1)];
+    }
+
+    private int add(int folderId, boolean photo, int seq) {
+        if (count == folder.length) {
+            int cap = count + (count >> 1) + 16;
+            folder = Arrays.copyOf(folder, cap);
+            modseq = Arrays.copyOf(modseq, cap);
+            version = Arrays.copyOf(version, cap);
+            photoSeq = Arrays.copyOf(photoSeq, cap);
+            flags = Arrays.copyOf(flags, cap);
+        }
+        int idx = count++;
+        folder[idx] = folderId;
+        modseq[idx] = seq;
+        version[idx] = 0;
+        flags[idx] = photo ? FLAG_PHOTO : 0;
+        photoSeq[idx] = photo ? seq : 0;
+        return idx;
+    }
+
+    int count() { return count; }
+
+    /** Folder id of the contact at {@code idx}, -1 once deleted. */
+    int folderAt(int idx) { return folder[idx]; }
+
+    boolean isContactFolder(int folderId) {
+        for (int f : folderIds) {
+            if (f == folderId) return true;
+        }
+        return false;
+    }
+
+    // ---------- Listing ----------
+
+    /**
+     * Contacts of {@code folderId} changed after {@code since} (all of them when
+     * since is -1 or older than the cutoff) plus the matching tombstones.
+     */
+    Selection select(int folderId, long since, int current) {
+        boolean delta = since >= 0 && since >= dead.cutoff();
+        Selection s = new Selection(current, delta);
+        for (int i = 0; i < count; i++) {
+            if (folder[i] != folderId || (delta && modseq[i] <= since)) continue;
+            s.add(i, modseq[i], version[i], photoSeq[i]);
+        }
+        if (delta) s.deleted = dead.since(folderId, since);
+        return s;
+    }
+
+    /** Snapshot of one listing; fields are generated while it is written, outside the lock. */
+    final class Selection {
+        final long modseq;
+        final boolean delta;
+        private int n;
+        private int[] rows = new int[64];   // idx, modseq, version, photoSeq
+        int[] deleted = new int[0];
+
+        Selection(long modseq, boolean delta) {
+            this.modseq = modseq;
+            this.delta = delta;
+        }
+
+        private void add(int idx, int seq, int ver, int photo) {
+            if (4 * n + 4 > rows.length) rows = Arrays.copyOf(rows, rows.length * 2);
+            rows[4 * n] = idx;
+            rows[4 * n + 1] = seq;
+            rows[4 * n + 2] = ver;
+            rows[4 * n + 3] = photo;
+            n++;
+        }
+
+        void writeTo(ContactQuery.Sink sink) throws IOException {
+            sink.begin(modseq, delta);
+            for (int i = 0; i < n; i++) {
+                int idx = rows[4 * i];
+                int photo = rows[4 * i + 3];
+                sink.contact(ID_BASE + idx, rows[4 * i + 1], photo > 0 ? Integer.toString(photo) : null, fields(idx, rows[4 * i + 2]));
+            }
+            for (int id : deleted) sink.deleted(id);
+        }
+    }
+
+    // Names are fixed per contact; title and phones change with each edit
+    Map<String, String> fields(int idx, int ver) {
+        int id = ID_BASE + idx;
+        Random r = new Random((seed + 307) ^ (id * 0x9E3779B97F4A7C15L));
+        String first = FIRST[r.nextInt(FIRST.length)];
+        String last = LAST[r.nextInt(LAST.length)];
+        String domain = DOMAINS[r.nextInt(DOMAINS.length)];
+        String company = r.nextInt(3) == 0 ? null : COMPANIES[r.nextInt(COMPANIES.length)];
+        boolean second = r.nextInt(10) < 3;
+        Random e = new Random((seed + 311) ^ (id * 0xC2B2AE3D27D4EB4FL) ^ (ver * 0x165667B19E3779F9L));
+        Map<String, String> m = new LinkedHashMap<>();
+        m.put("firstName", first);
+        m.put("lastName", last);
+        m.put("fullName", first + " " + last);
+        if (company != null) {
+            m.put("company", company);
+            m.put("jobTitle", TITLES[e.nextInt(TITLES.length)]);
+        }
+        String local = ascii(first) + "." + ascii(last);
+        m.put("email", local + "@" + domain);
+        if (second) m.put("email2", local + (idx % 100) + "@mail.example");
+        m.put("mobilePhone", "+49 17" + e.nextInt(10) + " " + (1_000_000 + e.nextInt(9_000_000)));
+        if (company != null) m.put("workPhone", "+1 555 " + (100 + e.nextInt(900)) + " " + (1000 + e.nextInt(9000)));
+        if (e.nextInt(10) < 4) m.put("homePhone", "+33 1 " + (10 + e.nextInt(90)) + " " + (10 + e.nextInt(90)) + " " + (10 + e.nextInt(90)));
+        return m;
+    }
+
+    /** Address list entry {@code n} of {@code domain}; addresses get a number once the name pairs run out. */
+    static GalIndex.Entry galEntry(long salt, int n, String domain) {
+        Random r = new Random((salt + 313) ^ (n * 0x9E3779B97F4A7C15L));
+        String first = FIRST[r.nextInt(FIRST.length)];
+        String last = LAST[r.nextInt(LAST.length)];
+        int round = n / (FIRST.length * LAST.length);
+        String email = ascii(first) + "." + ascii(last) + (round > 0 ? Integer.toString(n) : "") + "@" + domain;
+        String title = TITLES[r.nextInt(TITLES.length)];
+        String phone = "+1 555 " + (100 + r.nextInt(900)) + " " + (1000 + r.nextInt(9000));
+        String mobile = r.nextBoolean() ? "+49 17" + r.nextInt(10) + " " + (1_000_000 + r.nextInt(9_000_000)) : null;
+        return new GalIndex.Entry("gal-" + n, email, first + " " + last, first, last, domain, title, phone, mobile);
+    }
+
+    private static String ascii(String s) {
+        String d = Normalizer.normalize(s, Normalizer.Form.NFD).toLowerCase(Locale.ROOT);
+        StringBuilder sb = new StringBuilder(d.length());
+        for (int i = 0; i < d.length(); i++) {
+            char c = d.charAt(i);
+            if (c >= 'a' && c <= 'z') sb.append(c);
+            else if (c == 'ł') sb.append('l');
+            else if (c == 'ø') sb.append('o');
+        }
+        return sb.toString();
+    }
+
+    // ---------- Pictures ----------
+
+    /** Picture of contact {@code id}, or null when it has none or does not exist. */
+    ContactQuery.Photo photo(int id) {
+        int idx = id - ID_BASE;
+        if (idx < 0 || idx >= count || folder[idx] < 0 || (flags[idx] & FLAG_PHOTO) == 0) return null;
+        final int seq = photoSeq[idx];
+        final byte[] png = png(48, 48, (int) ((seed * 31 + id) * 0x9E3779B1L ^ seq * 0x85EBCA6BL));
+        return new ContactQuery.Photo("image/png", Integer.toString(seq), new MimeSource() {
+            @Override
+            public long size() { return png.length; }
+
+            @Override
+            public long contentVersion() { return seq; }
+
+            @Override
+            public InputStream open(long offset) {
+                return new ByteArrayInputStream(png, (int) Math.min(offset, png.length), png.length);
+            }
+        });
+    }
+
+    /** Smallest valid PNG we need: a two-tone diagonal split, 8-bit RGB. */
+    static byte[] png(int w, int h, int color) {
+        try {
+            ByteArrayOutputStream raw = new ByteArrayOutputStream();
+            try (DeflaterOutputStream z = new DeflaterOutputStream(raw)) {
+                int other = ~color;
+                for (int y = 0; y < h; y++) {
+                    z.write(0);   // filter: none
+                    for (int x = 0; x < w; x++) {
+                        int c = x > y ? color : other;
+                        z.write(c >> 16);
+                        z.write(c >> 8);
+                        z.write(c);
+                    }
+                }
+            }
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            DataOutputStream d = new DataOutputStream(out);
+            d.write(new byte[] { (byte) 0x89, 'P', 'N', 'G', '\r', '\n', 0x1A, '\n' });
+            ByteArrayOutputStream ihdr = new ByteArrayOutputStream();
+            DataOutputStream ih = new DataOutputStream(ihdr);
+            ih.writeInt(w);
+            ih.writeInt(h);
+            ih.write(new byte[] { 8, 2, 0, 0, 0 });
+            chunk(d, "IHDR", ihdr.toByteArray());
+            chunk(d, "IDAT", raw.toByteArray());
+            chunk(d, "IEND", new byte[0]);
+            return out.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void chunk(DataOutputStream out, String type, byte[] data) throws IOException {
+        byte[] t = type.getBytes(java.nio.charset.StandardCharsets.US_ASCII);
+        CRC32 crc = new CRC32();
+        crc.update(t);
+        crc.update(data);
+        out.writeInt(data.length);
+        out.write(t);
+        out.write(data);
+        out.writeInt((int) crc.getValue());
+    }
+
+    // ---------- Mutations ----------
+
+    /** Adds, edits or deletes one contact at {@code seq}; returns the affected contact id and folders. */
+    int[] mutate(Random rnd, int seq) {
+        int r = rnd.nextInt(20);
+        if (r < 10 || count == 0) {
+            int idx = add(pickFolder(rnd), rnd.nextInt(5) == 0, seq);
+            return new int[] { ID_BASE + idx, 0, folder[idx] };
+        }
+        int idx = -1;
+        for (int tries = 0; tries < 32 && idx < 0; tries++) {
+            int k = rnd.nextInt(count);
+            if (folder[k] >= 0) idx = k;
+        }
+        if (idx < 0) return null;
+        int f = folder[idx];
+        if (r < 17) {
+            version[idx]++;
+            modseq[idx] = seq;
+            if (rnd.nextInt(5) == 0) {
+                flags[idx] ^= FLAG_PHOTO;
+                photoSeq[idx] = (flags[idx] & FLAG_PHOTO) != 0 ? seq : 0;
+            }
+            return new int[] { ID_BASE + idx, f, f };
+        }
+        folder[idx] = -1;
+        modseq[idx] = seq;
+        dead.add(ID_BASE + idx, f, seq);
+        return new int[] { ID_BASE + idx, f, 0 };
+    }
+}
@@ -0,0 +1,1263 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deterministic, seeded synthetic mailbox for the mock paths (CompatCore and
+ * DevServer). Generates deep folder trees with realistic names (spaces,
+ * Unicode), per-folder message populations threaded into conversations,
+ * bodies of varying size, contacts (see {@link SyntheticContacts}) and
+ * recurring appointments (see {@link SyntheticCalendar}), and can apply a
+ * configurable mutation stream (new mail, flag changes, moves, deletes) so
+ * scale and change tracking can be exercised without Zimbra.
+ *
+ * Configure with -Dzpush.shim.synthetic=SPEC or ZPUSH_SHIM_SYNTHETIC=SPEC, where
+ * SPEC is a comma-separated list such as
+ * "seed=42,folders=15000,messages=1000000,maxDepth=12,mutations=50".
+ * The same seed (and anchor) always produces the same mailbox.
+ */
+public final class SyntheticMailbox {
+
+    // Zimbra flag bitmasks (Flag.FlagInfo) so mock "flags" match real mailboxd output
+    static final int FLAG_FROM_ME = 1;
+    static final int FLAG_ATTACHED = 1 << 1;
+    static final int FLAG_REPLIED = 1 << 2;
+    static final int FLAG_FORWARDED = 1 << 3;
+    static final int FLAG_FLAGGED = 1 << 5;
+    static final int FLAG_UNREAD = 1 << 9;
+
+    static final int ROOT_ID = 1;
+    static final int INBOX_ID = 2;
+    static final int FIRST_USER_ID = 257;
+
+    /** Parsed generator settings. */
+    public static final class Spec {
+        long seed = 1;
+        int folders = 40;          // user folders on top of the system folders
+        int messages = 2000;
+        int maxDepth = 8;
+        int bodyMin = 512;
+        int bodyMax = 256 * 1024;
+        int years = 5;             // how far back message dates go
+        long anchor = 0;           // newest message date; 0 = today (UTC midnight)
+        int mutations = 0;         // mutations per second applied by the ticker
+        int wNew = 4, wFlag = 3, wMove = 2, wDelete = 1;
+        int contacts = 500;
+        int wContact = 0;          // contact add/edit/delete weight in the mutation stream
+        int appointments = 300;
+        int wCalendar = 0;         // appointment add/reschedule/delete weight in the mutation stream
+        int gal = 5000;            // global address list entries per domain
+
+        public static Spec parse(String raw) {
+            Spec s = new Spec();
+            if (raw == null) return s;
+            for (String p : raw.split(",")) {
+                int eq = p.indexOf('=');
+                if (eq <= 0) continue;
+                String k = p.substring(0, eq).trim();
+                String v = p.substring(eq + 1).trim();
+                try {
+                    switch (k) {
+                        case "seed": s.seed = Long.parseLong(v); break;
+                        case "folders": s.folders = Math.max(0, Integer.parseInt(v)); break;
+                        case "messages": s.messages = Math.max(0, Integer.parseInt(v)); break;
+                        case "maxDepth": s.maxDepth = Math.max(1, Integer.parseInt(v)); break;
+                        case "bodyMin": s.bodyMin = Math.max(1, Integer.parseInt(v)); break;
+                        case "bodyMax": s.bodyMax = Math.max(1, Integer.parseInt(v)); break;
+                        case "years": s.years = Math.max(1, Integer.parseInt(v)); break;
+                        case "anchor": s.anchor = Long.parseLong(v); break;
+                        case "mutations": s.mutations = Math.max(0, Integer.parseInt(v)); break;
+                        case "new": s.wNew = Math.max(0, Integer.parseInt(v)); break;
+                        case "flag": s.wFlag = Math.max(0, Integer.parseInt(v)); break;
+                        case "move": s.wMove = Math.max(0, Integer.parseInt(v)); break;
+                        case "delete": s.wDelete = Math.max(0, Integer.parseInt(v)); break;
+                        case "contacts": s.contacts = Math.max(0, Integer.parseInt(v)); break;
+                        case "contact": s.wContact = Math.max(0, Integer.parseInt(v)); break;
+                        case "appointments": s.appointments = Math.max(0, Integer.parseInt(v)); break;
+                        case "calendar": s.wCalendar = Math.max(0, Integer.parseInt(v)); break;
+                        case "gal": s.gal = Math.max(0, Integer.parseInt(v)); break;
+                        default: break;
+                    }
+                } catch (NumberFormatException ignore) {}
+            }
+            if (s.bodyMax < s.bodyMin) s.bodyMax = s.bodyMin;
+            return s;
+        }
+    }
+
+    /** One applied change from the mutation stream. */
+    public static final class Mutation {
+        public enum Kind { NEW, FLAG, MOVE, DELETE, CONTACT, APPOINTMENT }
+        public final Kind kind;
+        public final int messageId;     // contact id for CONTACT, appointment id for APPOINTMENT
+        public final int fromFolderId;
+        public final int toFolderId;
+        public final int flags;
+        public final int modseq;
+
+        Mutation(Kind kind, int messageId, int fromFolderId, int toFolderId, int flags, int modseq) {
+            this.kind = kind;
+            this.messageId = messageId;
+            this.fromFolderId = fromFolderId;
+            this.toFolderId = toFolderId;
+            this.flags = flags;
+            this.modseq = modseq;
+        }
+    }
+
+    private static final String[] NAME_WORDS = {
+        "Projects", "Clients", "Archive", "Receipts", "Travel", "Team Updates", "Newsletters",
+        "Invoices", "Support Tickets", "Board Meetings", "HR", "Legal", "Vendors", "Q3 Planning",
+        "Old Stuff", "Family", "Recruiting", "Build Reports", "Alerts", "Customer Feedback",
+        "Überweisungen", "Réunions", "Проекты", "日本の取引先", "Clientes España", "Ομάδα",
+        "Ärzte & Kliniken", "Café Notes", "מסמכים", "東京オフィス", "Kundenservice", "Fakturor",
+        "Año Fiscal", "Zürich Office", "Säljmöten", "Документы", "🚀 Launch", "Ödeme Kayıtları"
+    };
+    private static final String[] SUBJECT_WORDS = {
+        "Re:", "Fwd:", "Weekly", "status", "update", "invoice", "meeting", "agenda", "notes",
+        "Überprüfung", "réunion", "отчёт", "確認", "follow-up", "draft", "contract", "review",
+        "urgent", "lunch", "report", "release", "outage", "budget", "plan", "photos", "ticket"
+    };
+    private static final String[] SENDERS = {
+        "boss@example.com", "alice@example.com", "bob@example.org", "noreply@service.example",
+        "jürgen.müller@example.de", "françoise@example.fr", "ivan@example.ru", "yuki@example.jp",
+        "billing@vendor.example", "alerts@monitoring.example", "team@lists.example.com"
+    };
+    private static final String[] BODY_WORDS = {
+        "the", "meeting", "is", "moved", "to", "next", "week", "please", "review", "attached",
+        "document", "and", "send", "comments", "before", "Friday", "thanks", "regards", "schön",
+        "déjà", "пожалуйста", "ありがとう", "numbers", "look", "good", "we", "should", "ship"
+    };
+
+    private static final byte[][] BODY_WORD_BYTES = new byte[BODY_WORDS.length][];
+    static {
+        for (int i = 0; i < BODY_WORDS.length; i++) BODY_WORD_BYTES[i] = BODY_WORDS[i].getBytes(java.nio.charset.StandardCharsets.UTF_8);
+    }
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] SPACE = { ' ' };
+
+    private final Spec spec;
+    private final Object lock = new Object();
+
+    // Folders (index-addressed; idx 0 is USER_ROOT)
+    private int folderCount;
+    private int[] fId;
+    private int[] fParent;     // parent folder idx, -1 for USER_ROOT
+    private int[] fDepth;
+    private String[] fView;
+    private String[] fName;
+    private int[] fUnread;
+    private int[] fTotal;
+    private int[] fModseq;
+    private IntList[] fMessages;  // message idx sorted by id (== date order)
+    private int[] fChildStart;     // children of idx i are fChildren[fChildStart[i] .. fChildStart[i + 1])
+    private int[] fChildren;
+    private final Map<Integer, Integer> folderIdx = new HashMap<>();
+    private int[] mailFolders;     // folder idx eligible for mail
+    private double[] mailWeights;  // cumulative Zipf weights over mailFolders
+
+    // Messages (index-addressed; id = msgBase + idx)
+    private int msgBase;
+    private int msgCount;
+    private int[] mFolder;      // folder idx, -1 when deleted
+    private long[] mDate;
+    private int[] mFlags;
+    private int[] mSize;
+    private int[] mModseq;
+    private int[] mConv;        // conversation root idx (== idx for the first message)
+    private int[] mConvNext;    // next member of the same conversation, -1 at the end
+    private final Map<Integer, Set<String>> tags = new HashMap<>();  // by idx; only client-set tags
+
+    // Recently started conversations that new messages may reply to
+    private static final int OPEN_THREADS = 64;
+    private final int[] openThreads = new int[OPEN_THREADS];
+    private int openCount;
+    private int openPos;
+    private final Random convRnd;
+
+    private SyntheticContacts contacts;
+    private SyntheticCalendar calendar;
+
+    private int changeId = 1;
+    private final Random mutRnd;
+    private ScheduledExecutorService ticker;
+
+    public SyntheticMailbox(Spec spec) {
+        this.spec = spec;
+        this.mutRnd = new Random(spec.seed * 31 + 7);
+        // Separate stream so threading does not shift the rest of the seeded data
+        this.convRnd = new Random(spec.seed * 131 + 3);
+        Random rnd = new Random(spec.seed);
+        buildFolders(rnd);
+        buildMessages(rnd);
+        buildContacts(new Random(spec.seed * 17 + 5));
+        buildCalendar(new Random(spec.seed * 19 + 11));
+    }
+
+    /** Returns a mailbox for SPEC from system property/env, or null when not configured. */
+    public static SyntheticMailbox fromConfig() {
+        String raw = null;
+        try { raw = System.getProperty("zpush.shim.synthetic"); } catch (Throwable ignore) {}
+        if (raw == null || raw.isEmpty()) { try { raw = System.getenv("ZPUSH_SHIM_SYNTHETIC"); } catch (Throwable ignore) {} }
+        if (raw == null || raw.isEmpty()) return null;
+        return new SyntheticMailbox(Spec.parse(raw));
+    }
+
+    public Spec getSpec() { return spec; }
+
+    // ---------- Generation ----------
+
+    private void buildFolders(Random rnd) {
+        int cap = 16 + spec.folders;
+        fId = new int[cap];
+        fParent = new int[cap];
+        fDepth = new int[cap];
+        fView = new String[cap];
+        fName = new String[cap];
+        fUnread = new int[cap];
+        fTotal = new int[cap];
+        fModseq = new int[cap];
+        fMessages = new IntList[cap];
+        List<Set<String>> siblingNames = new ArrayList<>(cap);
+
+        addFolder(ROOT_ID, -1, "USER_ROOT", "unknown", siblingNames);
+        int root = 0;
+        addFolder(INBOX_ID, root, "Inbox", "message", siblingNames);
+        addFolder(3, root, "Trash", "message", siblingNames);
+        addFolder(4, root, "Junk", "message", siblingNames);
+        addFolder(5, root, "Sent", "message", siblingNames);
+        addFolder(6, root, "Drafts", "message", siblingNames);
+        int contacts = addFolder(7, root, "Contacts", "contact", siblingNames);
+        int calendar = addFolder(10, root, "Calendar", "appointment", siblingNames);
+        addFolder(13, root, "Emailed Contacts", "contact", siblingNames);
+        int tasks = addFolder(15, root, "Tasks", "task", siblingNames);
+        addFolder(16, root, "Briefcase", "document", siblingNames);
+
+        // Candidate parents per view; mail folders may live under USER_ROOT or Inbox
+        List<Integer> mailParents = new ArrayList<>();
+        mailParents.add(root);
+        mailParents.add(folderIdx.get(INBOX_ID));
+        List<Integer> contactParents = new ArrayList<>(Collections.singletonList(contacts));
+        List<Integer> calParents = new ArrayList<>(Collections.singletonList(calendar));
+        List<Integer> taskParents = new ArrayList<>(Collections.singletonList(tasks));
+
+        int nextId = FIRST_USER_ID;
+        for (int i = 0; i < spec.folders; i++) {
+            int r = rnd.nextInt(100);
+            String view;
+            List<Integer> parents;
+            if (r < 85) { view = "message"; parents = mailParents; }
+            else if (r < 90) { view = "contact"; parents = contactParents; }
+            else if (r < 95) { view = "appointment"; parents = calParents; }
+            else { view = "task"; parents = taskParents; }
+            // Half the time extend one of the most recent folders to build deep chains
+            int parent;
+            if (rnd.nextBoolean() && parents.size() > 2) {
+                int window = Math.min(16, parents.size());
+                parent = parents.get(parents.size() - 1 - rnd.nextInt(window));
+            } else {
+                parent = parents.get(rnd.nextInt(parents.size()));
+            }
+            if (fDepth[parent] + 1 > spec.maxDepth) parent = parents.get(0);
+            int idx = addFolder(nextId++, parent, folderName(rnd), view, siblingNames);
+            if (fDepth[idx] < spec.maxDepth) parents.add(idx);
+        }
+
+        // Child index (CSR) for hierarchy walks; folders are only created here
+        fChildStart = new int[folderCount + 1];
+        for (int i = 1; i < folderCount; i++) fChildStart[fParent[i] + 1]++;
+        for (int i = 0; i < folderCount; i++) fChildStart[i + 1] += fChildStart[i];
+        fChildren = new int[Math.max(0, folderCount - 1)];
+        int[] fill = Arrays.copyOf(fChildStart, folderCount);
+        for (int i = 1; i < folderCount; i++) fChildren[fill[fParent[i]]++] = i;
+
+        // Zipf-like weights: Inbox and Sent get most mail, the rest fall off by random rank
+        List<Integer> mail = new ArrayList<>();
+        for (int i = 0; i < folderCount; i++) {
+            if ("message".equals(fView[i])) mail.add(i);
+        }
+        mailFolders = new int[mail.size()];
+        for (int i = 0; i < mailFolders.length; i++) mailFolders[i] = mail.get(i);
+        int[] rank = new int[mailFolders.length];
+        for (int i = 0; i < rank.length; i++) rank[i] = i;
+        for (int i = rank.length - 1; i > 0; i--) {
+            if (i < 2) break;
+            int j = 2 + rnd.nextInt(i - 1);
+            int t = rank[i]; rank[i] = rank[j]; rank[j] = t;
+        }
+        int sent = folderIdx.get(5);
+        mailWeights = new double[mailFolders.length];
+        double acc = 0;
+        for (int i = 0; i < mailFolders.length; i++) {
+            int fi = mailFolders[i];
+            int rk = fi == folderIdx.get(INBOX_ID) ? 0 : (fi == sent ? 1 : Math.max(2, rank[i]));
+            acc += 1.0 / Math.pow(rk + 1, 1.1);
+            mailWeights[i] = acc;
+        }
+    }
+
+    private int addFolder(int id, int parent, String name, String view, List<Set<String>> siblingNames) {
+        int idx = folderCount++;
+        if (parent >= 0) {
+            Set<String> names = siblingNames.get(parent);
+            String base = name;
+            int n = 2;
+            while (!names.add(name.toLowerCase(Locale.ROOT))) name = base + " (" + (n++) + ")";
+        }
+        siblingNames.add(new HashSet<String>());
+        fId[idx] = id;
+        fParent[idx] = parent;
+        fDepth[idx] = parent < 0 ? 0 : fDepth[parent] + 1;
+        fView[idx] = view;
+        fName[idx] = name;
+        fModseq[idx] = 1;
+        fMessages[idx] = new IntList();
+        folderIdx.put(id, idx);
+        return idx;
+    }
+
+    private String folderName(Random rnd) {
+        String w = NAME_WORDS[rnd.nextInt(NAME_WORDS.length)];
+        int r = rnd.nextInt(100);
+        if (r < 55) return w;
+        if (r < 80) return w + " " + (2008 + rnd.nextInt(18));
+        if (r < 90) return w + " - " + NAME_WORDS[rnd.nextInt(NAME_WORDS.length)];
+        return w + " " + (char) ('A' + rnd.nextInt(26)) + rnd.nextInt(100);
+    }
+
+    private void buildMessages(Random rnd) {
+        msgBase = Math.max(1000, FIRST_USER_ID + spec.folders + 1);
+        int n = spec.messages;
+        int cap = Math.max(16, n + n / 8);
+        mFolder = new int[cap];
+        mDate = new long[cap];
+        mFlags = new int[cap];
+        mSize = new int[cap];
+        mModseq = new int[cap];
+        mConv = new int[cap];
+        mConvNext = new int[cap];
+        long anchor = anchor();
+        long span = spec.years * 365L * 86400000L;
+        long step = n > 0 ? Math.max(1, span / n) : 1;
+        long start = anchor - span;
+        for (int i = 0; i < n; i++) {
+            int folder = pickMailFolder(rnd);
+            // Strictly increasing with idx so id order equals date order within every folder
+            long date = start + i * step + (step > 1 ? (long) (rnd.nextDouble() * (step - 1)) : 0);
+            int flags = 0;
+            double age = (double) (n - i) / Math.max(1, n);
+            if (rnd.nextDouble() < 0.5 * (1 - age) * (1 - age)) flags |= FLAG_UNREAD;
+            if (rnd.nextInt(50) == 0) flags |= FLAG_FLAGGED;
+            if (rnd.nextInt(8) == 0) flags |= FLAG_ATTACHED;
+            if (rnd.nextInt(10) == 0) flags |= FLAG_REPLIED;
+            if (fId[folder] == 5) flags = (flags & ~FLAG_UNREAD) | FLAG_FROM_ME;
+            thread(appendMessage(folder, date, flags, bodySize(rnd), 1));
+        }
+    }
+
+    // Own random stream, so the contact count does not shift the seeded mail data
+    private void buildContacts(Random rnd) {
+        int[] ids = new int[folderCount];
+        int n = 0;
+        for (int i = 0; i < folderCount; i++) {
+            if ("contact".equals(fView[i])) ids[n++] = fId[i];
+        }
+        contacts = new SyntheticContacts(spec.seed, spec.contacts, Arrays.copyOf(ids, n), rnd);
+        for (int i = 0; i < contacts.count(); i++) fTotal[folderIdx.get(contacts.folderAt(i))]++;
+    }
+
+    private void buildCalendar(Random rnd) {
+        int[] ids = new int[folderCount];
+        int n = 0;
+        for (int i = 0; i < folderCount; i++) {
+            if ("appointment".equals(fView[i])) ids[n++] = fId[i];
+        }
+        calendar = new SyntheticCalendar(spec.seed, anchor(), spec.years, spec.appointments, Arrays.copyOf(ids, n), rnd);
+        for (int i = 0; i < calendar.count(); i++) fTotal[folderIdx.get(calendar.folderAt(i))]++;
+    }
+
+    private long anchor() {
+        return spec.anchor > 0 ? spec.anchor : (System.currentTimeMillis() / 86400000L) * 86400000L;
+    }
+
+    private int pickMailFolder(Random rnd) {
+        double x = rnd.nextDouble() * mailWeights[mailWeights.length - 1];
+        int lo = 0, hi = mailWeights.length - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mailWeights[mid] < x) lo = mid + 1; else hi = mid;
+        }
+        return mailFolders[lo];
+    }
+
+    // Log-normal around ~4KB, clamped to [bodyMin, bodyMax]
+    private int bodySize(Random rnd) {
+        double v = Math.exp(Math.log(4096) + rnd.nextGaussian() * 1.2);
+        long s = Math.round(v);
+        if (s < spec.bodyMin) s = spec.bodyMin;
+        if (s > spec.bodyMax) s = spec.bodyMax;
+        return (int) s;
+    }
+
+    private int appendMessage(int folder, long date, int flags, int size, int modseq) {
+        if (msgCount == mFolder.length) {
+            int cap = mFolder.length + (mFolder.length >> 1) + 16;
+            mFolder = Arrays.copyOf(mFolder, cap);
+            mDate = Arrays.copyOf(mDate, cap);
+            mFlags = Arrays.copyOf(mFlags, cap);
+            mSize = Arrays.copyOf(mSize, cap);
+            mModseq = Arrays.copyOf(mModseq, cap);
+            mConv = Arrays.copyOf(mConv, cap);
+            mConvNext = Arrays.copyOf(mConvNext, cap);
+        }
+        int idx = msgCount++;
+        mFolder[idx] = folder;
+        mDate[idx] = date;
+        mFlags[idx] = flags;
+        mSize[idx] = size;
+        mModseq[idx] = modseq;
+        fMessages[folder].add(idx);
+        fTotal[folder]++;
+        if ((flags & FLAG_UNREAD) != 0) fUnread[folder]++;
+        return idx;
+    }
+
+    // About a third of new messages reply to one of the recently started conversations
+    private void thread(int idx) {
+        int root = idx;
+        if (openCount > 0 && convRnd.nextInt(100) < 35) root = openThreads[convRnd.nextInt(openCount)];
+        thread(idx, root);
+    }
+
+    private void thread(int idx, int root) {
+        mConv[idx] = root;
+        mConvNext[idx] = -1;
+        if (root != idx) {
+            mConvNext[idx] = mConvNext[root];
+            mConvNext[root] = idx;
+            return;
+        }
+        openThreads[openPos] = idx;
+        openPos = (openPos + 1) % OPEN_THREADS;
+        if (openCount < OPEN_THREADS) openCount++;
+    }
+
+    // ---------- Read API (same shapes as ZPushShimHandler) ----------
+
+    public List<Map<String, Object>> getFolders() {
+        return getFolders(FolderFilter.ALL);
+    }
+
+    /** Depth-first (parents before children) listing pruned by {@code filter}; see {@link FolderFilter}. */
+    public List<Map<String, Object>> getFolders(FolderFilter filter) {
+        synchronized (lock) {
+            List<Map<String, Object>> out = new ArrayList<>();
+            int start = 0;
+            if (filter.rootId >= 0 && filter.rootId != 11) {
+                Integer r = folderIdx.get(filter.rootId);
+                if (r == null) return null;
+                start = r;
+            }
+            if (filter.excluded(fId[start])) return out;
+            String[] paths = new String[folderCount];
+            paths[start] = pathOf(start);
+            int[] stack = new int[folderCount];
+            int sp = 0;
+            stack[sp++] = start;
+            while (sp > 0) {
+                int i = stack[--sp];
+                int rel = fDepth[i] - fDepth[start];
+                if (filter.viewMatches(fView[i])) {
+                    out.add(FolderFilter.row(fId[i], fName[i], fParent[i] < 0 ? 11 : fId[fParent[i]],
+                            fUnread[i], fTotal[i], fView[i], paths[i], fDepth[i]));
+                }
+                if (!filter.descend(rel)) continue;
+                // Push in reverse so children pop in id order
+                for (int c = fChildStart[i + 1] - 1; c >= fChildStart[i]; c--) {
+                    int child = fChildren[c];
+                    if (filter.excluded(fId[child])) continue;
+                    paths[child] = FolderFilter.childPath(paths[i], fName[child]);
+                    stack[sp++] = child;
+                }
+            }
+            return out;
+        }
+    }
+
+    /** Id, unread, total and modseq of every folder, in index order. */
+    public void folderCounters(FolderCounters.Table out) {
+        synchronized (lock) {
+            for (int i = 0; i < folderCount; i++) out.add(fId[i], fUnread[i], fTotal[i], fModseq[i]);
+        }
+    }
+
+    private String pathOf(int idx) {
+        if (fParent[idx] < 0) return "/";
+        return FolderFilter.childPath(pathOf(fParent[idx]), fName[idx]);
+    }
+
+    public List<Map<String, Object>> getMessages(int folderId, int limit) {
+        return getMessages(folderId, limit, MessageWindow.ALL);
+    }
+
+    /** Newest first within {@code window}; ids follow date order, so the bounds are binary searches. */
+    public List<Map<String, Object>> getMessages(int folderId, int limit, MessageWindow window) {
+        synchronized (lock) {
+            Integer fi = folderIdx.get(folderId);
+            List<Map<String, Object>> out = new ArrayList<>();
+            if (fi == null) return out;
+            IntList list = fMessages[fi];
+            int lim = limit > 0 ? limit : 100;
+            int hi = window.until >= 0 ? lowerBoundByDate(list, window.until) : list.size();
+            // Newest first, matching SortBy.DATE_DESC on mailboxd
+            for (int k = hi - 1; k >= 0 && out.size() < lim; k--) {
+                int idx = list.get(k);
+                if (window.since >= 0 && mDate[idx] < window.since) break;
+                out.add(messageRow(idx));
+            }
+            return out;
+        }
+    }
+
+    /**
+     * One row per conversation with a message in the folder inside {@code window},
+     * ordered by that message, newest first. Counts, latest date and participants
+     * cover the whole conversation (every folder), like Zimbra's conversation
+     * rows; {@code messageIds} lists the members in this folder and window.
+     */
+    public List<Map<String, Object>> getConversations(int folderId, int limit, MessageWindow window) {
+        synchronized (lock) {
+            Integer fi = folderIdx.get(folderId);
+            List<Map<String, Object>> out = new ArrayList<>();
+            if (fi == null) return out;
+            IntList list = fMessages[fi];
+            int lim = limit > 0 ? limit : 100;
+            int hi = window.until >= 0 ? lowerBoundByDate(list, window.until) : list.size();
+            Set<Integer> seen = new HashSet<>();
+            for (int k = hi - 1; k >= 0 && out.size() < lim; k--) {
+                int idx = list.get(k);
+                if (window.since >= 0 && mDate[idx] < window.since) break;
+                if (seen.add(mConv[idx])) out.add(conversationRow(mConv[idx], fi, window));
+            }
+            return out;
+        }
+    }
+
+    /**
+     * Matches every word of the query as a word prefix of subject or sender,
+     * newest first, like a Zimbra text search with SortBy.DATE_DESC. The page
+     * and the count are taken under the lock and written after it is released.
+     */
+    public void search(SearchQuery query, SearchQuery.Sink sink) throws ShimException, java.io.IOException {
+        List<String> words = new ArrayList<>();
+        for (String w : GalIndex.fold(query.query).split("[^\\p{L}\\p{N}:]+")) {
+            w = w.substring(w.indexOf(':') + 1);    // field:value searches the value everywhere
+            if (!w.isEmpty()) words.add(w);
+        }
+        List<Map<String, Object>> page = new ArrayList<>();
+        int total = 0;
+        boolean exact = true;
+        synchronized (lock) {
+            boolean[] scope = new boolean[folderCount];
+            if (query.folderIds.isEmpty()) {
+                for (int fi : mailFolders) scope[fi] = fId[fi] != 3 && fId[fi] != 4;     // Trash and Junk
+            } else {
+                for (int id : query.folderIds) {
+                    Integer fi = folderIdx.get(id);
+                    if (fi == null || !"message".equals(fView[fi])) throw ShimException.notFound("no such mail folder: " + id);
+                    markScope(fi, query.recursive, scope);
+                }
+            }
+            MessageWindow w = query.scanWindow();
+            // Message idx follow date order, so until is a binary search over all of them
+            int lo = 0, hi = msgCount;
+            while (w.until >= 0 && lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (mDate[mid] < w.until) lo = mid + 1; else hi = mid;
+            }
+            for (int idx = (w.until >= 0 ? lo : msgCount) - 1; idx >= 0; idx--) {
+                if (w.since >= 0 && mDate[idx] < w.since) break;
+                if (mFolder[idx] < 0 || !scope[mFolder[idx]] || !query.afterCursor(mDate[idx], msgBase + idx)) continue;
+                if (!matches(idx, words)) continue;
+                if (page.size() < query.limit) {
+                    Map<String, Object> row = messageRow(idx);
+                    row.put("folderId", fId[mFolder[idx]]);
+                    page.add(row);
+                } else if (total - page.size() >= query.countLimit) {
+                    exact = false;
+                    break;
+                }
+                total++;
+            }
+        }
+        for (Map<String, Object> row : page) sink.hit(row);
+        sink.counted(total, exact);
+    }
+
+    private void markScope(int fi, boolean recursive, boolean[] scope) {
+        scope[fi] = true;
+        if (!recursive) return;
+        for (int k = fChildStart[fi]; k < fChildStart[fi + 1]; k++) {
+            if ("message".equals(fView[fChildren[k]])) markScope(fChildren[k], true, scope);
+        }
+    }
+
+    private boolean matches(int idx, List<String> words) {
+        if (words.isEmpty()) return true;
+        String text = " " + GalIndex.fold(subject(msgBase + idx) + " " + sender(msgBase + idx)).replaceAll("[^\\p{L}\\p{N}]+", " ");
+        for (String w : words) {
+            if (!text.contains(" " + w)) return false;
+        }
+        return true;
+    }
+
+    private Map<String, Object> conversationRow(int root, int folder, MessageWindow window) {
+        IntList members = new IntList();
+        for (int idx = root; idx >= 0; idx = mConvNext[idx]) {
+            if (mFolder[idx] >= 0) members.insertSorted(idx);
+        }
+        int unread = 0;
+        Set<String> participants = new LinkedHashSet<>();
+        List<Integer> ids = new ArrayList<>();
+        for (int k = members.size() - 1; k >= 0; k--) {
+            int idx = members.get(k);
+            if ((mFlags[idx] & FLAG_UNREAD) != 0) unread++;
+            if (mFolder[idx] == folder && window.contains(mDate[idx])) ids.add(msgBase + idx);
+        }
+        for (int k = 0; k < members.size(); k++) participants.add(sender(msgBase + members.get(k)));
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("id", msgBase + root);
+        m.put("subject", threadSubject(msgBase + root));
+        m.put("date", mDate[members.get(members.size() - 1)]);
+        m.put("messageCount", members.size());
+        m.put("unread", unread);
+        m.put("participants", new ArrayList<>(participants));
+        m.put("messageIds", ids);
+        return m;
+    }
+
+    /**
+     * Streams the contacts of {@code folderId} (or the changes since
+     * {@code query.since}) into {@code sink}. The selection is taken under the
+     * lock; rows are generated and written after it is released. Returns false
+     * when the folder is not a contact folder.
+     */
+    public boolean getContacts(int folderId, ContactQuery query, ContactQuery.Sink sink) throws java.io.IOException {
+        SyntheticContacts.Selection sel;
+        synchronized (lock) {
+            if (!contacts.isContactFolder(folderId)) return false;
+            sel = contacts.select(folderId, query.since, changeId);
+        }
+        sel.writeTo(sink);
+        return true;
+    }
+
+    public ContactQuery.Photo getContactPhoto(int contactId) {
+        synchronized (lock) {
+            return contacts.photo(contactId);
+        }
+    }
+
+    /**
+     * Streams the appointments of {@code folderId} (or the changes since
+     * {@code query.since}) into {@code sink}. The selection is taken under the
+     * lock; series are generated and expanded after it is released. Returns
+     * false when the folder is not a calendar folder.
+     */
+    public boolean getAppointments(int folderId, CalendarQuery query, CalendarQuery.Sink sink) throws java.io.IOException {
+        SyntheticCalendar.Selection sel;
+        synchronized (lock) {
+            if (!calendar.isCalendarFolder(folderId)) return false;
+            sel = calendar.select(folderId, query.since, changeId);
+        }
+        sel.writeTo(sink);
+        return true;
+    }
+
+    /** Calendar version for free/busy caching: the modseq of the last appointment change. */
+    public long calendarVersion() {
+        synchronized (lock) {
+            return calendar.lastChange();
+        }
+    }
+
+    /** Busy time over [from, to); see {@link SyntheticCalendar#busy}. Expanded outside the lock. */
+    void busy(int salt, long from, long to, BusyIntervals out) throws ShimException {
+        int[] live;
+        synchronized (lock) {
+            live = calendar.live();
+        }
+        calendar.busy(live, salt, from, to, out);
+    }
+
+    // First position in a folder list whose message date is >= t
+    private int lowerBoundByDate(IntList list, long t) {
+        int lo = 0, hi = list.size();
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (mDate[list.get(mid)] < t) lo = mid + 1; else hi = mid;
+        }
+        return lo;
+    }
+
+    public Map<String, Object> getMessage(int messageId) {
+        synchronized (lock) {
+            int idx = messageId - msgBase;
+            if (idx < 0 || idx >= msgCount || mFolder[idx] < 0) return null;
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("id", messageId);
+            m.put("subject", subject(messageId));
+            m.put("from", sender(messageId));
+            m.put("to", Collections.singletonList("user@example.com"));
+            m.put("date", mDate[idx]);
+            m.put("size", mSize[idx]);
+            return m;
+        }
+    }
+
+    /**
+     * RFC 822 form of a message, generated on read so a 25 MB synthetic message
+     * costs no more heap than a 2 KB one. Plain messages are a text/plain body
+     * of exactly {@code size} UTF-8 bytes; every fourth message is
+     * multipart/alternative with the same text also as text/html. Messages
+     * flagged as having an attachment are multipart/mixed: a short text part
+     * ("1") and a base64 application/pdf part ("2") of {@code size} random bytes.
+     */
+    public MimeSource getMessageMime(int messageId) {
+        final int size;
+        final boolean attached;
+        final String headers;
+        synchronized (lock) {
+            int idx = messageId - msgBase;
+            if (idx < 0 || idx >= msgCount || mFolder[idx] < 0) return null;
+            size = mSize[idx];
+            attached = (mFlags[idx] & FLAG_ATTACHED) != 0;
+            headers = mimeHeaders(messageId, mDate[idx]);
+        }
+        final long bodySeed = (spec.seed + 101) ^ (messageId * 0x165667B19E3779F9L);
+        final long attachSeed = (spec.seed + 211) ^ (messageId * 0x9E3779B97F4A7C15L);
+        if (!attached && messageId % 4 == 0) {
+            String boundary = "=_alt_" + messageId;
+            final byte[] head = utf8(headers
+                    + "Content-Type: multipart/alternative; boundary=\"" + boundary + "\"\r\n\r\n"
+                    + "--" + boundary + "\r\n"
+                    + "Content-Type: text/plain; charset=UTF-8\r\nContent-Transfer-Encoding: 8bit\r\n\r\n");
+            final byte[] mid = utf8("\r\n--" + boundary + "\r\n"
+                    + "Content-Type: text/html; charset=UTF-8\r\nContent-Transfer-Encoding: 8bit\r\n\r\n"
+                    + "<html><head><style>p { margin: 0 }</style></head><body><p>");
+            final byte[] tail = utf8("</p></body></html>\r\n--" + boundary + "--\r\n");
+            return new MimeSource() {
+                @Override
+                public long size() { return head.length + 2L * size + mid.length + tail.length; }
+
+                @Override
+                public java.io.InputStream open(long offset) throws java.io.IOException {
+                    // Body words contain no markup characters, so the same stream serves as HTML text
+                    java.io.InputStream in = new java.io.SequenceInputStream(Collections.enumeration(Arrays.<java.io.InputStream>asList(
+                            new MimeBodyStream(head, size, new Random(bodySeed)),
+                            new MimeBodyStream(mid, size, new Random(bodySeed)),
+                            new java.io.ByteArrayInputStream(tail))));
+                    MimeSource.skipFully(in, offset);
+                    return in;
+                }
+            };
+        }
+        if (!attached) {
+            final byte[] head = utf8(headers + "Content-Type: text/plain; charset=UTF-8\r\nContent-Transfer-Encoding: 8bit\r\n\r\n");
+            return new MimeSource() {
+                @Override
+                public long size() { return head.length + (long) size; }
+
+                @Override
+                public java.io.InputStream open(long offset) throws java.io.IOException {
+                    java.io.InputStream in = new MimeBodyStream(head, size, new Random(bodySeed));
+                    MimeSource.skipFully(in, offset);
+                    return in;
+                }
+            };
+        }
+        String boundary = "=_synthetic_" + messageId;
+        String name = "Prüfbericht " + messageId + ".pdf";
+        final int textSize = Math.min(size, 1024);
+        final byte[] head = utf8(headers
+                + "Content-Type: multipart/mixed; boundary=\"" + boundary + "\"\r\n\r\n"
+                + "This is a multi-part message in MIME format.\r\n"
+                + "--" + boundary + "\r\n"
+                + "Content-Type: text/plain; charset=UTF-8\r\nContent-Transfer-Encoding: 8bit\r\n\r\n");
+        final byte[] mid = utf8("\r\n--" + boundary + "\r\n"
+                + "Content-Type: application/pdf; name=\"=?UTF-8?B?" + Base64.getEncoder().encodeToString(utf8(name)) + "?=\"\r\n"
+                + "Content-Disposition: attachment; filename*=UTF-8''" + pctEncode(name) + "\r\n"
+                + "Content-Transfer-Encoding: base64\r\n\r\n");
+        final byte[] tail = utf8("--" + boundary + "--\r\n");
+        return new MimeSource() {
+            @Override
+            public long size() { return head.length + (long) textSize + mid.length + Base64LineStream.encodedSize(size) + tail.length; }
+
+            @Override
+            public java.io.InputStream open(long offset) throws java.io.IOException {
+                java.io.InputStream in = new java.io.SequenceInputStream(Collections.enumeration(Arrays.<java.io.InputStream>asList(
+                        new MimeBodyStream(head, textSize, new Random(bodySeed)),
+                        new java.io.ByteArrayInputStream(mid),
+                        new Base64LineStream(size, new Random(attachSeed)),
+                        new java.io.ByteArrayInputStream(tail))));
+                MimeSource.skipFully(in, offset);
+                return in;
+            }
+        };
+    }
+
+    private String mimeHeaders(int id, long date) {
+        java.text.SimpleDateFormat fmt = new java.text.SimpleDateFormat("EEE, dd MMM yyyy HH:mm:ss Z", Locale.US);
+        fmt.setTimeZone(TimeZone.getTimeZone("UTC"));
+        String subject = subject(id);
+        boolean ascii = true;
+        for (int i = 0; i < subject.length() && ascii; i++) ascii = subject.charAt(i) < 0x80;
+        if (!ascii) subject = "=?UTF-8?B?" + Base64.getEncoder().encodeToString(utf8(subject)) + "?=";
+        return "From: " + sender(id) + "\r\n"
+                + "To: user@example.com\r\n"
+                + "Subject: " + subject + "\r\n"
+                + "Date: " + fmt.format(new Date(date)) + "\r\n"
+                + "Message-ID: <" + id + "." + spec.seed + "@synthetic.example>\r\n"
+                + inReplyTo(id)
+                + "MIME-Version: 1.0\r\n";
+    }
+
+    private String inReplyTo(int id) {
+        int root = mConv[id - msgBase];
+        if (root == id - msgBase) return "";
+        String ref = "<" + (msgBase + root) + "." + spec.seed + "@synthetic.example>";
+        return "In-Reply-To: " + ref + "\r\nReferences: " + ref + "\r\n";
+    }
+
+    private static byte[] utf8(String s) { return s.getBytes(java.nio.charset.StandardCharsets.UTF_8); }
+
+    private static String pctEncode(String s) {
+        StringBuilder sb = new StringBuilder();
+        for (byte b : utf8(s)) {
+            int c = b & 0xFF;
+            if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '.' || c == '-' || c == '_') sb.append((char) c);
+            else sb.append('%').append(String.format("%02X", c));
+        }
+        return sb.toString();
+    }
+
+    /** Base64 of {@code size} seeded random bytes in 76-column CRLF lines, encoded on read. */
+    private static final class Base64LineStream extends java.io.InputStream {
+        private static final int LINE_BYTES = 57; // 76 base64 chars
+        private final Random rnd;
+        private long left;
+        private byte[] chunk = new byte[0];
+        private int chunkPos;
+
+        Base64LineStream(long size, Random rnd) {
+            this.left = size;
+            this.rnd = rnd;
+        }
+
+        static long encodedSize(long size) {
+            long rem = size % LINE_BYTES;
+            return size / LINE_BYTES * 78 + (rem > 0 ? 4 * ((rem + 2) / 3) + 2 : 0);
+        }
+
+        private boolean fill() {
+            if (left <= 0) return false;
+            byte[] raw = new byte[(int) Math.min(LINE_BYTES, left)];
+            rnd.nextBytes(raw);
+            left -= raw.length;
+            byte[] enc = Base64.getEncoder().encode(raw);
+            chunk = Arrays.copyOf(enc, enc.length + 2);
+            chunk[enc.length] = '\r';
+            chunk[enc.length + 1] = '\n';
+            chunkPos = 0;
+            return true;
+        }
+
+        @Override
+        public int read() {
+            while (chunkPos >= chunk.length) {
+                if (!fill()) return -1;
+            }
+            return chunk[chunkPos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            int n = 0;
+            while (n < len) {
+                if (chunkPos >= chunk.length && !fill()) break;
+                int k = Math.min(len - n, chunk.length - chunkPos);
+                System.arraycopy(chunk, chunkPos, b, off + n, k);
+                chunkPos += k;
+                n += k;
+            }
+            return n == 0 ? -1 : n;
+        }
+    }
+
+    /** Headers, then {@link #BODY_WORDS} drawn from the body seed until exactly bodySize bytes. */
+    private static final class MimeBodyStream extends java.io.InputStream {
+        private final Random rnd;
+        private byte[] chunk;
+        private int chunkPos;
+        private long bodyLeft;
+        private int line;
+
+        MimeBodyStream(byte[] head, int bodySize, Random rnd) {
+            this.rnd = rnd;
+            this.chunk = head;
+            this.bodyLeft = bodySize;
+        }
+
+        // Next word plus separator; the tail is padded with spaces so multi-byte words are never cut
+        private boolean fill() {
+            if (bodyLeft <= 0) return false;
+            int w = rnd.nextInt(BODY_WORDS.length);
+            byte[] word = BODY_WORD_BYTES[w];
+            line += BODY_WORDS[w].length() + 1;
+            byte[] sep = line > 72 ? CRLF : SPACE;
+            if (line > 72) line = 0;
+            byte[] next = new byte[word.length + sep.length];
+            System.arraycopy(word, 0, next, 0, word.length);
+            System.arraycopy(sep, 0, next, word.length, sep.length);
+            if (next.length > bodyLeft) {
+                next = new byte[(int) bodyLeft];
+                Arrays.fill(next, (byte) ' ');
+            }
+            bodyLeft -= next.length;
+            chunk = next;
+            chunkPos = 0;
+            return true;
+        }
+
+        @Override
+        public int read() {
+            while (chunkPos >= chunk.length) {
+                if (!fill()) return -1;
+            }
+            return chunk[chunkPos++] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) {
+            if (len == 0) return 0;
+            int n = 0;
+            while (n < len) {
+                if (chunkPos >= chunk.length && !fill()) break;
+                int k = Math.min(len - n, chunk.length - chunkPos);
+                System.arraycopy(chunk, chunkPos, b, off + n, k);
+                chunkPos += k;
+                n += k;
+            }
+            return n == 0 ? -1 : n;
+        }
+    }
+
+    private Map<String, Object> messageRow(int idx) {
+        int id = msgBase + idx;
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("id", id);
+        m.put("subject", subject(id));
+        m.put("from", sender(id));
+        m.put("date", mDate[idx]);
+        m.put("size", mSize[idx]);
+        m.put("flags", mFlags[idx]);
+        m.put("read", (mFlags[idx] & FLAG_UNREAD) == 0);
+        return m;
+    }
+
+    public int getFolderCount() { synchronized (lock) { return folderCount; } }
+    public int getMessageCount() { synchronized (lock) { return msgCount; } }
+    public int getLastChangeId() { synchronized (lock) { return changeId; } }
+
+    // Subject/sender/body are derived from (seed, id) on demand to keep the heap small
+    private String subject(int id) {
+        int idx = id - msgBase;
+        if (idx >= 0 && idx < msgCount && mConv[idx] != idx) return "Re: " + threadSubject(msgBase + mConv[idx]);
+        return threadSubject(id);
+    }
+
+    private String threadSubject(int id) {
+        Random r = new Random(spec.seed ^ (id * 0x9E3779B97F4A7C15L));
+        int words = 2 + r.nextInt(6);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < words; i++) {
+            if (i > 0) sb.append(' ');
+            sb.append(SUBJECT_WORDS[r.nextInt(SUBJECT_WORDS.length)]);
+        }
+        sb.append(" #").append(id);
+        return sb.toString();
+    }
+
+    private String sender(int id) {
+        Random r = new Random((spec.seed + 17) ^ (id * 0xC2B2AE3D27D4EB4FL));
+        return SENDERS[r.nextInt(SENDERS.length)];
+    }
+
+    // ---------- Mutation stream ----------
+
+    /** Applies up to {@code count} random mutations and returns what was applied. */
+    public List<Mutation> mutate(int count) {
+        List<Mutation> out = new ArrayList<>(count);
+        int total = spec.wNew + spec.wFlag + spec.wMove + spec.wDelete + spec.wContact + spec.wCalendar;
+        if (total <= 0) return out;
+        synchronized (lock) {
+            for (int i = 0; i < count; i++) {
+                int r = mutRnd.nextInt(total);
+                Mutation m;
+                if (r < spec.wNew) m = newMail();
+                else if (r < spec.wNew + spec.wFlag) m = flagChange();
+                else if (r < spec.wNew + spec.wFlag + spec.wMove) m = move();
+                else if (r < spec.wNew + spec.wFlag + spec.wMove + spec.wDelete) m = delete();
+                else if (r < total - spec.wCalendar) m = contactChange();
+                else m = calendarChange();
+                if (m != null) out.add(m);
+            }
+        }
+        return out;
+    }
+
+    private Mutation newMail() {
+        int folder = pickMailFolder(mutRnd);
+        long last = msgCount > 0 ? mDate[msgCount - 1] : 0;
+        long date = Math.max(System.currentTimeMillis(), last + 1);
+        int seq = ++changeId;
+        int idx = appendMessage(folder, date, FLAG_UNREAD, bodySize(mutRnd), seq);
+        thread(idx);
+        fModseq[folder] = seq;
+        return new Mutation(Mutation.Kind.NEW, msgBase + idx, 0, fId[folder], FLAG_UNREAD, seq);
+    }
+
+    private Mutation flagChange() {
+        int idx = randomLiveMessage();
+        if (idx < 0) return null;
+        int folder = mFolder[idx];
+        int old = mFlags[idx];
+        int flags = mutRnd.nextInt(4) == 0 ? old ^ FLAG_FLAGGED : old ^ FLAG_UNREAD;
+        int seq = ++changeId;
+        setFlags(idx, flags, seq);
+        return new Mutation(Mutation.Kind.FLAG, msgBase + idx, fId[folder], fId[folder], flags, seq);
+    }
+
+    private Mutation move() {
+        int idx = randomLiveMessage();
+        if (idx < 0) return null;
+        int from = mFolder[idx];
+        int to = pickMailFolder(mutRnd);
+        if (to == from) return null;
+        int seq = ++changeId;
+        moveMessage(idx, to, seq);
+        return new Mutation(Mutation.Kind.MOVE, msgBase + idx, fId[from], fId[to], mFlags[idx], seq);
+    }
+
+    private Mutation delete() {
+        int idx = randomLiveMessage();
+        if (idx < 0) return null;
+        int from = mFolder[idx];
+        int seq = ++changeId;
+        deleteMessage(idx, seq);
+        return new Mutation(Mutation.Kind.DELETE, msgBase + idx, fId[from], 0, mFlags[idx], seq);
+    }
+
+    // Per-message changes shared by the mutation stream and applyChanges; the caller holds the lock
+
+    private void setFlags(int idx, int flags, int seq) {
+        int folder = mFolder[idx];
+        int old = mFlags[idx];
+        if ((old & FLAG_UNREAD) != (flags & FLAG_UNREAD)) fUnread[folder] += (flags & FLAG_UNREAD) != 0 ? 1 : -1;
+        mFlags[idx] = flags;
+        mModseq[idx] = seq;
+        fModseq[folder] = seq;
+    }
+
+    private void moveMessage(int idx, int to, int seq) {
+        int from = mFolder[idx];
+        if (to == from) return;
+        fMessages[from].removeSorted(idx);
+        fMessages[to].insertSorted(idx);
+        fTotal[from]--;
+        fTotal[to]++;
+        if ((mFlags[idx] & FLAG_UNREAD) != 0) { fUnread[from]--; fUnread[to]++; }
+        mFolder[idx] = to;
+        mModseq[idx] = seq;
+        fModseq[from] = seq;
+        fModseq[to] = seq;
+    }
+
+    private void deleteMessage(int idx, int seq) {
+        int from = mFolder[idx];
+        fMessages[from].removeSorted(idx);
+        fTotal[from]--;
+        if ((mFlags[idx] & FLAG_UNREAD) != 0) fUnread[from]--;
+        mFolder[idx] = -1;
+        mModseq[idx] = seq;
+        fModseq[from] = seq;
+        tags.remove(idx);
+    }
+
+    // ---------- Address list ----------
+
+    /** The {@code spec.gal} address list entries of {@code domain}, derived from (seed, domain, n). */
+    void gal(String domain, GalDirectory.Sink sink) {
+        long salt = spec.seed ^ domain.hashCode();
+        for (int i = 0; i < spec.gal; i++) sink.entry(SyntheticContacts.galEntry(salt, i, domain));
+    }
+
+    // ---------- Client changes ----------
+
+    /**
+     * Records a message of {@code size} bytes sent by the user: a copy in
+     * Sent (unless {@code save} is false) in the conversation of
+     * {@code originalId}, which gets the replied or forwarded flag. Returns
+     * the copy's id, or -1 when none was saved.
+     */
+    public int sendMail(int size, int originalId, boolean forward, boolean save) throws ShimException {
+        synchronized (lock) {
+            int orig = -1;
+            if (originalId > 0) {
+                orig = originalId - msgBase;
+                if (orig < 0 || orig >= msgCount || mFolder[orig] < 0) throw ShimException.notFound("no such message: " + originalId);
+            }
+            int seq = ++changeId;
+            if (orig >= 0) setFlags(orig, mFlags[orig] | (forward ? FLAG_FORWARDED : FLAG_REPLIED), seq);
+            if (!save) return -1;
+            int sent = folderIdx.get(5);
+            long last = msgCount > 0 ? mDate[msgCount - 1] : 0;
+            int idx = appendMessage(sent, Math.max(System.currentTimeMillis(), last + 1), FLAG_FROM_ME, size, seq);
+            if (orig >= 0) thread(idx, mConv[orig]); else thread(idx, idx);
+            fModseq[sent] = seq;
+            return msgBase + idx;
+        }
+    }
+
+    /**
+     * Applies one change to every message in {@code ids} as a single change
+     * (one change id) and returns that id. All ids are checked first; if any
+     * is not a live message, or the move target is not a mail folder, nothing
+     * is changed.
+     */
+    public int applyChanges(ChangeBatch.Kind kind, String tag, int folderId, int[] ids) throws ShimException {
+        synchronized (lock) {
+            int[] idx = new int[ids.length];
+            for (int i = 0; i < ids.length; i++) {
+                int k = ids[i] - msgBase;
+                if (k < 0 || k >= msgCount || mFolder[k] < 0) throw ShimException.notFound("no such message: " + ids[i]);
+                idx[i] = k;
+            }
+            int to = -1;
+            if (kind == ChangeBatch.Kind.MOVE) {
+                Integer f = folderIdx.get(folderId);
+                if (f == null || !"message".equals(fView[f])) throw ShimException.notFound("no such mail folder: " + folderId);
+                to = f;
+            }
+            int seq = ++changeId;
+            for (int k : idx) {
+                switch (kind) {
+                    case READ: setFlags(k, mFlags[k] & ~FLAG_UNREAD, seq); break;
+                    case UNREAD: setFlags(k, mFlags[k] | FLAG_UNREAD, seq); break;
+                    case FLAG: setFlags(k, mFlags[k] | FLAG_FLAGGED, seq); break;
+                    case UNFLAG: setFlags(k, mFlags[k] & ~FLAG_FLAGGED, seq); break;
+                    case TAG: tags.computeIfAbsent(k, x -> new HashSet<>()).add(tag); setFlags(k, mFlags[k], seq); break;
+                    case UNTAG:
+                        Set<String> t = tags.get(k);
+                        if (t != null && t.remove(tag) && t.isEmpty()) tags.remove(k);
+                        setFlags(k, mFlags[k], seq);
+                        break;
+                    case MOVE: moveMessage(k, to, seq); break;
+                    case DELETE: deleteMessage(k, seq); break;
+                }
+            }
+            return seq;
+        }
+    }
+
+    private Mutation contactChange() {
+        int seq = ++changeId;
+        int[] c = contacts.mutate(mutRnd, seq);
+        if (c == null) return null;
+        if (c[1] != c[2]) {
+            if (c[1] > 0) fTotal[folderIdx.get(c[1])]--;
+            if (c[2] > 0) fTotal[folderIdx.get(c[2])]++;
+        }
+        fModseq[folderIdx.get(c[1] > 0 ? c[1] : c[2])] = seq;
+        return new Mutation(Mutation.Kind.CONTACT, c[0], c[1], c[2], 0, seq);
+    }
+
+    private Mutation calendarChange() {
+        int seq = ++changeId;
+        int[] c = calendar.mutate(mutRnd, seq);
+        if (c == null) return null;
+        if (c[1] != c[2]) {
+            if (c[1] > 0) fTotal[folderIdx.get(c[1])]--;
+            if (c[2] > 0) fTotal[folderIdx.get(c[2])]++;
+        }
+        fModseq[folderIdx.get(c[1] > 0 ? c[1] : c[2])] = seq;
+        return new Mutation(Mutation.Kind.APPOINTMENT, c[0], c[1], c[2], 0, seq);
+    }
+
+    private int randomLiveMessage() {
+        if (msgCount == 0) return -1;
+        for (int tries = 0; tries < 32; tries++) {
+            int idx = mutRnd.nextInt(msgCount);
+            if (mFolder[idx] >= 0) return idx;
+        }
+        return -1;
+    }
+
+    /** Starts a daemon ticker applying {@code spec.mutations} mutations per second. */
+    public synchronized void startMutations() {
+        if (ticker != null || spec.mutations <= 0) return;
+        ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "zpush-shim-synthetic-mutations");
+            t.setDaemon(true);
+            return t;
+        });
+        final int perTick = Math.max(1, spec.mutations / 10);
+        final long period = Math.max(1, 1000L * perTick / spec.mutations);
+        ticker.scheduleAtFixedRate(() -> {
+            try { mutate(perTick); } catch (Throwable ignore) {}
+        }, period, period, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stopMutations() {
+        if (ticker != null) { ticker.shutdownNow(); ticker = null; }
+    }
+
+    // Minimal growable int array kept sorted by value (message idx == id order)
+    static final class IntList {
+        private int[] a = new int[4];
+        private int n;
+
+        int size() { return n; }
+        int get(int i) { return a[i]; }
+
+        void add(int v) {
+            if (n == a.length) a = Arrays.copyOf(a, n + (n >> 1) + 4);
+            a[n++] = v;
+        }
+
+        void insertSorted(int v) {
+            int pos = Arrays.binarySearch(a, 0, n, v);
+            if (pos >= 0) return;
+            pos = -pos - 1;
+            if (n == a.length) a = Arrays.copyOf(a, n + (n >> 1) + 4);
+            System.arraycopy(a, pos, a, pos + 1, n - pos);
+            a[pos] = v;
+            n++;
+        }
+
+        void removeSorted(int v) {
+            int pos = Arrays.binarySearch(a, 0, n, v);
+            if (pos < 0) return;
+            System.arraycopy(a, pos + 1, a, pos, n - pos - 1);
+            n--;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.util.Arrays;
+
+/**
+ * Deleted item ids in modseq order for the synthetic delta listings. Beyond
+ * {@code max} entries the older half is purged and {@link #cutoff()} moves
+ * forward, as Zimbra's tombstone lifetime does: a client whose last sync is
+ * older than the cutoff must be sent a full listing.
+ *
+ * Not thread-safe; owners call in under their mailbox lock.
+ */
+final class Tombstones {
+    private final int max;
+    private int[] id = new int[16];
+    private int[] folder = new int[16];
+    private int[] seq = new int[16];
+    private int count;
+    private int cutoff;
+
+    Tombstones(int max) {
+        this.max = Math.max(2, max);
+    }
+
+    int cutoff() { return cutoff; }
+
+    void add(int itemId, int folderId, int modseq) {
+        if (count == max) {
+            int drop = max / 2;
+            cutoff = seq[drop - 1];
+            System.arraycopy(id, drop, id, 0, count - drop);
+            System.arraycopy(folder, drop, folder, 0, count - drop);
+            System.arraycopy(seq, drop, seq, 0, count - drop);
+            count -= drop;
+        }
+        if (count == id.length) {
+            int cap = count * 2;
+            id = Arrays.copyOf(id, cap);
+            folder = Arrays.copyOf(folder, cap);
+            seq = Arrays.copyOf(seq, cap);
+        }
+        id[count] = itemId;
+        folder[count] = folderId;
+        seq[count] = modseq;
+        count++;
+    }
+
+    /** Ids deleted from {@code folderId} after {@code since}, oldest first. */
+    int[] since(int folderId, long since) {
+        int lo = 0, hi = count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (seq[mid] <= since) lo = mid + 1; else hi = mid;
+        }
+        int[] out = new int[8];
+        int n = 0;
+        for (int k = lo; k < count; k++) {
+            if (folder[k] != folderId) continue;
+            if (n == out.length) out = Arrays.copyOf(out, n * 2);
+            out[n++] = id[k];
+        }
+        return Arrays.copyOf(out, n);
+    }
+}
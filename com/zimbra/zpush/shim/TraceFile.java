@@ -0,0 +1,266 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.util.*;
+
+/**
+ * Compact binary request trace: one record per dispatched action, written to
+ * a rolling set of files and read back by {@link TraceReplay}.
+ *
+ * File layout: magic "ZPST", u8 version, i64 base epoch ms, then records:
+ *   varint  ts delta (ms, from previous record or base)
+ *   u8      action code ({@link ShimAction}); 0 is followed by the action as str
+ *   8 bytes account hash (salted SHA-256 prefix; zero when unknown)
+ *   varint  param count, then (str key, str value) pairs
+ *   varint  HTTP status, varint response bytes, varint latency (µs)
+ * where str = varint length + UTF-8 bytes. Secrets (passwords, tokens,
+ * usernames) are never written.
+ */
+final class TraceFile {
+    static final byte[] MAGIC = { 'Z', 'P', 'S', 'T' };
+    static final int VERSION = 1;
+
+    // Parameters never written to a trace
+    private static final Set<String> SECRET_PARAMS = new HashSet<>(Arrays.asList(
+            "password", "authToken", "zmAuthToken", "username", "debug", "action"));
+    private static final int MAX_VALUE_LEN = 256;
+
+    private TraceFile() {}
+
+    /** One captured request. */
+    static final class Record {
+        long timestamp;
+        String action;
+        byte[] accountHash = new byte[8];
+        final LinkedHashMap<String, String> params = new LinkedHashMap<>();
+        int status;
+        long responseBytes;
+        long latencyMicros;
+
+        String accountHex() {
+            StringBuilder sb = new StringBuilder(16);
+            for (byte b : accountHash) sb.append(String.format("%02x", b));
+            return sb.toString();
+        }
+    }
+
+    static boolean isSecret(String param) {
+        return SECRET_PARAMS.contains(param);
+    }
+
+    static byte[] hashAccount(String salt, String account) {
+        byte[] out = new byte[8];
+        if (account == null || account.isEmpty()) return out;
+        try {
+            MessageDigest md = MessageDigest.getInstance("SHA-256");
+            md.update(salt.getBytes(StandardCharsets.UTF_8));
+            md.update((byte) 0);
+            byte[] h = md.digest(account.toLowerCase(Locale.ROOT).getBytes(StandardCharsets.UTF_8));
+            System.arraycopy(h, 0, out, 0, 8);
+        } catch (Exception ignore) {}
+        return out;
+    }
+
+    /**
+     * Rolling trace writer. Enabled when {@code zpush.shim.trace.dir} is set;
+     * rolls at {@code zpush.shim.trace.maxBytes} (default 64 MB) and keeps at
+     * most {@code zpush.shim.trace.maxFiles} files (default 10).
+     */
+    static final class Writer implements Closeable {
+        private final File dir;
+        private final long maxBytes;
+        private final int maxFiles;
+        private final String salt;
+        private DataOutputStream out;
+        private CountingOutputStream counter;
+        private long lastTs;
+        private long lastFlush;
+
+        Writer(File dir, long maxBytes, int maxFiles, String salt) {
+            this.dir = dir;
+            this.maxBytes = Math.max(64 * 1024, maxBytes);
+            this.maxFiles = Math.max(1, maxFiles);
+            this.salt = salt;
+        }
+
+        /** Returns a writer from configuration, or null when capture is off. */
+        static Writer fromConfig() {
+            String dir = ShimConfig.get("zpush.shim.trace.dir", null);
+            if (dir == null) return null;
+            Writer w = new Writer(new File(dir),
+                    ShimConfig.getLong("zpush.shim.trace.maxBytes", 64L * 1024 * 1024),
+                    ShimConfig.getInt("zpush.shim.trace.maxFiles", 10),
+                    ShimConfig.get("zpush.shim.trace.salt", "zpush-shim"));
+            // Flush the buffered tail on normal JVM shutdown (mailboxd restart, Ctrl+C)
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try { w.close(); } catch (IOException ignore) {}
+            }, "zpush-shim-trace-close"));
+            return w;
+        }
+
+        String salt() { return salt; }
+
+        synchronized void write(Record r) throws IOException {
+            if (out == null || counter.count >= maxBytes) roll(r.timestamp);
+            writeVarint(out, Math.max(0, r.timestamp - lastTs));
+            lastTs = r.timestamp;
+            ShimAction a = ShimAction.of(r.action);
+            out.writeByte(a.code);
+            if (a == ShimAction.UNKNOWN) writeStr(out, r.action == null ? "" : r.action);
+            out.write(r.accountHash, 0, 8);
+            writeVarint(out, r.params.size());
+            for (Map.Entry<String, String> e : r.params.entrySet()) {
+                writeStr(out, e.getKey());
+                writeStr(out, e.getValue());
+            }
+            writeVarint(out, r.status);
+            writeVarint(out, r.responseBytes);
+            writeVarint(out, r.latencyMicros);
+            long now = System.currentTimeMillis();
+            if (now - lastFlush > 1000) { out.flush(); lastFlush = now; }
+        }
+
+        private void roll(long ts) throws IOException {
+            if (out != null) { out.close(); out = null; }
+            if (!dir.isDirectory() && !dir.mkdirs()) throw new IOException("cannot create trace dir " + dir);
+            prune(maxFiles - 1);
+            File f = new File(dir, "zpush-shim-trace-" + ts + ".bin");
+            counter = new CountingOutputStream(new FileOutputStream(f));
+            out = new DataOutputStream(new BufferedOutputStream(counter, 64 * 1024));
+            out.write(MAGIC);
+            out.writeByte(VERSION);
+            out.writeLong(ts);
+            lastTs = ts;
+        }
+
+        private void prune(int keep) {
+            File[] files = listTraceFiles(dir);
+            for (int i = 0; i < files.length - keep; i++) {
+                if (!files[i].delete()) break;
+            }
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (out != null) { out.close(); out = null; }
+        }
+    }
+
+    /** Sequential reader over one trace file. */
+    static final class Reader implements Closeable {
+        private final DataInputStream in;
+        private long lastTs;
+
+        Reader(File f) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(f), 64 * 1024));
+            byte[] magic = new byte[4];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, MAGIC)) { in.close(); throw new IOException("not a shim trace: " + f); }
+            int v = in.readUnsignedByte();
+            if (v != VERSION) { in.close(); throw new IOException("unsupported trace version " + v + ": " + f); }
+            lastTs = in.readLong();
+        }
+
+        /** Next record, or null at end of file (a truncated tail is treated as EOF). */
+        Record next() throws IOException {
+            Record r = new Record();
+            try {
+                long delta = readVarint(in);
+                r.timestamp = lastTs + delta;
+                int code = in.readUnsignedByte();
+                ShimAction a = ShimAction.ofCode(code);
+                r.action = a == ShimAction.UNKNOWN ? readStr(in) : a.wireName();
+                in.readFully(r.accountHash);
+                long n = readVarint(in);
+                for (long i = 0; i < n; i++) r.params.put(readStr(in), readStr(in));
+                r.status = (int) readVarint(in);
+                r.responseBytes = readVarint(in);
+                r.latencyMicros = readVarint(in);
+            } catch (EOFException eof) {
+                return null;
+            }
+            lastTs = r.timestamp;
+            return r;
+        }
+
+        @Override
+        public void close() throws IOException { in.close(); }
+    }
+
+    /** Trace files in a directory, oldest first. */
+    static File[] listTraceFiles(File dir) {
+        File[] files = dir.listFiles((d, name) -> name.startsWith("zpush-shim-trace-") && name.endsWith(".bin"));
+        if (files == null) return new File[0];
+        Arrays.sort(files, (a, b) -> Long.compare(fileTs(a), fileTs(b)));
+        return files;
+    }
+
+    private static long fileTs(File f) {
+        String n = f.getName();
+        try { return Long.parseLong(n.substring("zpush-shim-trace-".length(), n.length() - 4)); } catch (Exception e) { return 0; }
+    }
+
+    static String truncate(String v) {
+        if (v == null) return "";
+        return v.length() > MAX_VALUE_LEN ? v.substring(0, MAX_VALUE_LEN) : v;
+    }
+
+    static void writeVarint(DataOutput out, long v) throws IOException {
+        while ((v & ~0x7FL) != 0) {
+            out.writeByte((int) ((v & 0x7F) | 0x80));
+            v >>>= 7;
+        }
+        out.writeByte((int) v);
+    }
+
+    static long readVarint(DataInput in) throws IOException {
+        long v = 0;
+        for (int shift = 0; shift < 64; shift += 7) {
+            int b = in.readUnsignedByte();
+            v |= (long) (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) return v;
+        }
+        throw new IOException("malformed varint");
+    }
+
+    private static void writeStr(DataOutput out, String s) throws IOException {
+        byte[] b = s.getBytes(StandardCharsets.UTF_8);
+        writeVarint(out, b.length);
+        out.write(b);
+    }
+
+    private static String readStr(DataInput in) throws IOException {
+        long n = readVarint(in);
+        if (n > 1 << 20) throw new IOException("string too long: " + n);
+        byte[] b = new byte[(int) n];
+        in.readFully(b);
+        return new String(b, StandardCharsets.UTF_8);
+    }
+
+    /** Byte counter for rolling decisions and response-size metering. */
+    static final class CountingOutputStream extends FilterOutputStream {
+        long count;
+
+        CountingOutputStream(OutputStream out) {
+            super(out);
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+    }
+}
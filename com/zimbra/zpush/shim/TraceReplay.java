@@ -0,0 +1,341 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+
+import javax.net.ssl.*;
+import java.io.*;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Replays a {@link TraceFile} capture against a shim endpoint (dev server or
+ * mailboxd) with the original inter-arrival times, optionally time-scaled.
+ *
+ * Usage:
+ *   java -cp build:lib/gson.jar com.zimbra.zpush.shim.TraceReplay \
+ *     [--url URL] [--speed 1|10|max] [--threads N] [--user U --password P] \
+ *     [--account-map FILE] [--insecure] [--include-writes] TRACE_FILE_OR_DIR...
+ *
+ * Traces never contain credentials or tokens, so replay authenticates on its
+ * own: each recorded account hash is mapped to a login through
+ * --account-map (lines of {@code <hash-hex> <username> <password>}), falling
+ * back to --user/--password, or no token at all (dev server is lenient).
+ *
+ * Actions that change mailbox or device state ({@link #WRITE_ACTIONS}) are
+ * skipped and counted unless --include-writes is given: replaying a
+ * production capture must not resend mail or re-apply moves and deletes.
+ */
+public final class TraceReplay {
+    static final Set<String> WRITE_ACTIONS = Collections.unmodifiableSet(new TreeSet<>(Arrays.asList(
+            "applychanges", "sendmail", "putsyncstate")));
+
+    private final String url;
+    private final double speed;
+    private final int threads;
+    private final String defaultUser;
+    private final String defaultPassword;
+    private final Map<String, String[]> accountMap;
+    private final Map<String, String> tokens = new ConcurrentHashMap<>();
+    private final Map<String, Stats> stats = new ConcurrentSkipListMap<>();
+    private final AtomicLong errors = new AtomicLong();
+    private final AtomicLong statusMismatch = new AtomicLong();
+
+    private TraceReplay(String url, double speed, int threads, String user, String password, Map<String, String[]> accountMap) {
+        this.url = url;
+        this.speed = speed;
+        this.threads = threads;
+        this.defaultUser = user;
+        this.defaultPassword = password;
+        this.accountMap = accountMap;
+    }
+
+    public static void main(String[] args) throws Exception {
+        String url = "http://127.0.0.1:8081/service/extension/zpush-shim";
+        double speed = 1.0;
+        int threads = 16;
+        String user = null, password = null, mapFile = null;
+        boolean insecure = false;
+        boolean includeWrites = false;
+        List<File> inputs = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            String a = args[i];
+            if ("--url".equals(a) && i + 1 < args.length) {
+                url = args[++i];
+            } else if ("--speed".equals(a) && i + 1 < args.length) {
+                String s = args[++i];
+                speed = "max".equalsIgnoreCase(s) ? 0 : Double.parseDouble(s);
+            } else if ("--threads".equals(a) && i + 1 < args.length) {
+                threads = Integer.parseInt(args[++i]);
+            } else if ("--user".equals(a) && i + 1 < args.length) {
+                user = args[++i];
+            } else if ("--password".equals(a) && i + 1 < args.length) {
+                password = args[++i];
+            } else if ("--account-map".equals(a) && i + 1 < args.length) {
+                mapFile = args[++i];
+            } else if ("--insecure".equals(a)) {
+                insecure = true;
+            } else if ("--include-writes".equals(a)) {
+                includeWrites = true;
+            } else if (a.startsWith("-")) {
+                usage("unknown option " + a);
+            } else {
+                inputs.add(new File(a));
+            }
+        }
+        if (inputs.isEmpty()) usage("no trace files given");
+        if (insecure) trustAll();
+
+        List<TraceFile.Record> records = load(inputs);
+        if (records.isEmpty()) usage("trace contains no records");
+        Map<String, Integer> skipped = new TreeMap<>();
+        if (!includeWrites) records = withoutWrites(records, skipped);
+        if (!skipped.isEmpty()) {
+            System.out.println("Skipping write requests " + skipped + " (pass --include-writes to replay them)");
+        }
+        if (records.isEmpty()) usage("trace contains no read requests; pass --include-writes to replay writes");
+        Map<String, String[]> accounts = mapFile != null ? loadAccountMap(new File(mapFile)) : Collections.<String, String[]>emptyMap();
+        new TraceReplay(url, speed, Math.max(1, threads), user, password, accounts).run(records, skipped);
+    }
+
+    private static void usage(String msg) {
+        System.err.println("TraceReplay: " + msg);
+        System.err.println("usage: TraceReplay [--url URL] [--speed 1|10|max] [--threads N] [--user U --password P]"
+                + " [--account-map FILE] [--insecure] [--include-writes] TRACE_FILE_OR_DIR...");
+        System.exit(2);
+    }
+
+    static List<TraceFile.Record> load(List<File> inputs) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (File f : inputs) {
+            if (f.isDirectory()) files.addAll(Arrays.asList(TraceFile.listTraceFiles(f)));
+            else files.add(f);
+        }
+        List<TraceFile.Record> out = new ArrayList<>();
+        for (File f : files) {
+            try (TraceFile.Reader r = new TraceFile.Reader(f)) {
+                TraceFile.Record rec;
+                while ((rec = r.next()) != null) out.add(rec);
+            }
+        }
+        // Files from separate dispatchers may interleave
+        out.sort((a, b) -> Long.compare(a.timestamp, b.timestamp));
+        return out;
+    }
+
+    // Drops WRITE_ACTIONS records, counting them per action into skipped
+    static List<TraceFile.Record> withoutWrites(List<TraceFile.Record> records, Map<String, Integer> skipped) {
+        List<TraceFile.Record> out = new ArrayList<>(records.size());
+        for (TraceFile.Record r : records) {
+            if (WRITE_ACTIONS.contains(r.action)) skipped.merge(r.action, 1, Integer::sum);
+            else out.add(r);
+        }
+        return out;
+    }
+
+    private static Map<String, String[]> loadAccountMap(File f) throws IOException {
+        Map<String, String[]> m = new HashMap<>();
+        try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(f), StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = br.readLine()) != null) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] p = line.split("\\s+", 3);
+                if (p.length == 3) m.put(p[0].toLowerCase(Locale.ROOT), new String[] { p[1], p[2] });
+            }
+        }
+        return m;
+    }
+
+    private void run(List<TraceFile.Record> records, Map<String, Integer> skipped) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        long t0 = records.get(0).timestamp;
+        long start = System.nanoTime();
+        System.out.println("Replaying " + records.size() + " requests against " + url
+                + " (speed " + (speed <= 0 ? "max" : speed + "x") + ", " + threads + " threads)");
+        for (TraceFile.Record r : records) {
+            if (speed > 0) {
+                long dueNanos = (long) ((r.timestamp - t0) * 1_000_000L / speed);
+                long wait = dueNanos - (System.nanoTime() - start);
+                if (wait > 0) TimeUnit.NANOSECONDS.sleep(wait);
+            }
+            pool.execute(() -> replay(r));
+        }
+        pool.shutdown();
+        pool.awaitTermination(1, TimeUnit.DAYS);
+        report(records.size(), (System.nanoTime() - start) / 1_000_000L, skipped);
+    }
+
+    private void replay(TraceFile.Record r) {
+        Stats s = stats.computeIfAbsent(r.action.isEmpty() ? "(none)" : r.action, k -> new Stats());
+        Map<String, String> params = new LinkedHashMap<>();
+        params.put("action", r.action);
+        params.putAll(r.params);
+        String[] login = login(r.accountHex());
+        if ("authenticate".equals(r.action)) {
+            if (login != null) {
+                params.put("username", login[0]);
+                params.put("password", login[1]);
+            }
+        } else {
+            String token = token(r.accountHex(), login);
+            if (token != null) params.put("authToken", token);
+        }
+        long t = System.nanoTime();
+        int status;
+        try {
+            status = post(params, null);
+        } catch (IOException e) {
+            status = -1;
+        }
+        s.add((System.nanoTime() - t) / 1000L, r.latencyMicros);
+        if (status < 200 || status >= 300) errors.incrementAndGet();
+        if (status != r.status) statusMismatch.incrementAndGet();
+    }
+
+    private String[] login(String hash) {
+        String[] m = accountMap.get(hash);
+        if (m != null) return m;
+        return defaultUser != null ? new String[] { defaultUser, defaultPassword == null ? "" : defaultPassword } : null;
+    }
+
+    private String token(String hash, String[] login) {
+        if (login == null) return null;
+        String key = login[0];
+        String tok = tokens.get(key);
+        if (tok != null) return tok;
+        synchronized (tokens) {
+            tok = tokens.get(key);
+            if (tok != null) return tok;
+            Map<String, String> p = new LinkedHashMap<>();
+            p.put("action", "authenticate");
+            p.put("username", login[0]);
+            p.put("password", login[1]);
+            StringBuilder body = new StringBuilder();
+            try {
+                if (post(p, body) == 200) {
+                    JsonObject o = JsonParser.parseString(body.toString()).getAsJsonObject();
+                    if (o.has("authToken")) tok = o.get("authToken").getAsString();
+                }
+            } catch (Exception ignore) {}
+            if (tok == null) {
+                System.err.println("TraceReplay: authentication failed for " + login[0] + " (account " + hash + ")");
+                tok = "";
+            }
+            tokens.put(key, tok);
+            return tok;
+        }
+    }
+
+    /** POSTs a form and returns the status; the body is drained (or captured when {@code body} is non-null). */
+    private int post(Map<String, String> params, StringBuilder body) throws IOException {
+        StringBuilder form = new StringBuilder();
+        for (Map.Entry<String, String> e : params.entrySet()) {
+            if (form.length() > 0) form.append('&');
+            form.append(URLEncoder.encode(e.getKey(), "UTF-8")).append('=').append(URLEncoder.encode(e.getValue(), "UTF-8"));
+        }
+        byte[] bytes = form.toString().getBytes(StandardCharsets.UTF_8);
+        HttpURLConnection c = (HttpURLConnection) new URL(url).openConnection();
+        c.setRequestMethod("POST");
+        c.setDoOutput(true);
+        c.setConnectTimeout(10_000);
+        c.setReadTimeout(120_000);
+        c.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+        c.setFixedLengthStreamingMode(bytes.length);
+        try (OutputStream os = c.getOutputStream()) {
+            os.write(bytes);
+        }
+        int status = c.getResponseCode();
+        InputStream in = status >= 400 ? c.getErrorStream() : c.getInputStream();
+        if (in != null) {
+            try (InputStream is = in) {
+                byte[] buf = new byte[8192];
+                ByteArrayOutputStream keep = body != null ? new ByteArrayOutputStream() : null;
+                int n;
+                while ((n = is.read(buf)) > 0) {
+                    if (keep != null) keep.write(buf, 0, n);
+                }
+                if (keep != null) body.append(new String(keep.toByteArray(), StandardCharsets.UTF_8));
+            }
+        }
+        return status;
+    }
+
+    private void report(int total, long elapsedMs, Map<String, Integer> skipped) {
+        int skippedTotal = 0;
+        for (int n : skipped.values()) skippedTotal += n;
+        System.out.println(String.format("Done: %d requests in %d ms (%.1f req/s), %d errors, %d status mismatches, %d writes skipped",
+                total, elapsedMs, elapsedMs > 0 ? total * 1000.0 / elapsedMs : 0.0, errors.get(), statusMismatch.get(), skippedTotal));
+        for (Map.Entry<String, Integer> e : skipped.entrySet()) {
+            System.out.println(String.format("%-16s %8d skipped", e.getKey(), e.getValue()));
+        }
+        System.out.println(String.format("%-16s %8s %10s %10s %10s   %10s %10s %10s",
+                "action", "count", "p50 ms", "p95 ms", "p99 ms", "rec p50", "rec p95", "rec p99"));
+        Stats all = new Stats();
+        for (Map.Entry<String, Stats> e : stats.entrySet()) {
+            e.getValue().print(e.getKey());
+            all.merge(e.getValue());
+        }
+        all.print("ALL");
+    }
+
+    /** Replayed vs. recorded latencies (µs) for one action. */
+    private static final class Stats {
+        private long[] replayed = new long[64];
+        private long[] recorded = new long[64];
+        private int n;
+
+        synchronized void add(long replayedMicros, long recordedMicros) {
+            if (n == replayed.length) {
+                replayed = Arrays.copyOf(replayed, n * 2);
+                recorded = Arrays.copyOf(recorded, n * 2);
+            }
+            replayed[n] = replayedMicros;
+            recorded[n] = recordedMicros;
+            n++;
+        }
+
+        synchronized void merge(Stats o) {
+            synchronized (o) {
+                for (int i = 0; i < o.n; i++) add(o.replayed[i], o.recorded[i]);
+            }
+        }
+
+        synchronized void print(String label) {
+            long[] a = Arrays.copyOf(replayed, n);
+            long[] b = Arrays.copyOf(recorded, n);
+            Arrays.sort(a);
+            Arrays.sort(b);
+            System.out.println(String.format("%-16s %8d %10.2f %10.2f %10.2f   %10.2f %10.2f %10.2f", label, n,
+                    pct(a, 50), pct(a, 95), pct(a, 99), pct(b, 50), pct(b, 95), pct(b, 99)));
+        }
+
+        private static double pct(long[] sorted, int p) {
+            if (sorted.length == 0) return 0;
+            int idx = (int) Math.ceil(p / 100.0 * sorted.length) - 1;
+            return sorted[Math.max(0, Math.min(sorted.length - 1, idx))] / 1000.0;
+        }
+    }
+
+    private static void trustAll() throws Exception {
+        TrustManager[] tm = { new X509TrustManager() {
+            public void checkClientTrusted(X509Certificate[] c, String a) {}
+            public void checkServerTrusted(X509Certificate[] c, String a) {}
+            public X509Certificate[] getAcceptedIssuers() { return new X509Certificate[0]; }
+        } };
+        SSLContext ctx = SSLContext.getInstance("TLS");
+        ctx.init(null, tm, new java.security.SecureRandom());
+        HttpsURLConnection.setDefaultSSLSocketFactory(ctx.getSocketFactory());
+        HttpsURLConnection.setDefaultHostnameVerifier((h, s) -> true);
+    }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Fixed-size in-memory ring of recent requests, replacing a log line per
+ * request. Each record is {@value #WORDS} longs in one preallocated
+ * {@link AtomicLongArray} (sequence stamp, time, latency, bytes, and action,
+ * reason, status and account packed into one word) plus an optional constant
+ * note, so recording allocates nothing. Writers claim a slot with one atomic
+ * increment and publish it by writing its stamp last; a reader that finds the
+ * stamp changed while copying a slot skips it.
+ *
+ * A request is recorded when it failed (status 400 and up), was slow, or was
+ * picked by its action's 1-in-N sampling counter. The ring is read with the
+ * loopback-only tracedump action.
+ *
+ *   zpush.shim.tracering.size           records kept (default 4096, rounded up to a
+ *                                       power of two; 0 = off)
+ *   zpush.shim.tracering.every          sample 1 in N requests per action (default 100,
+ *                                       1 = all, 0 = errors and slow requests only)
+ *   zpush.shim.tracering.every.ACTION   the same for one action
+ *   zpush.shim.tracering.slowMs         always record requests at least this slow (default 1000)
+ *
+ * Accounts are kept as a 32-bit hash salted per process: the same account
+ * shows the same value until mailboxd restarts, and never its name.
+ */
+final class TraceRing {
+    static final int ERROR = 1;
+    static final int SLOW = 2;
+    static final int SAMPLED = 4;
+
+    private static final int WORDS = 5;
+    private static final ThreadLocal<String> NOTE = new ThreadLocal<>();
+
+    private final int mask;
+    private final AtomicLongArray slots;
+    private final AtomicReferenceArray<String> notes;
+    private final AtomicLong next = new AtomicLong();
+    private final int[] every;
+    private final AtomicLongArray seen;
+    private final long slowMicros;
+    private final int salt = ThreadLocalRandom.current().nextInt();
+
+    final AtomicLong errors = new AtomicLong();
+    final AtomicLong slow = new AtomicLong();
+    final AtomicLong sampled = new AtomicLong();
+
+    TraceRing(int size, int[] every, long slowMs) {
+        int n = Integer.highestOneBit(Math.max(1, Math.min(size, 1 << 20)));
+        if (n < size) n <<= 1;
+        this.mask = n - 1;
+        this.slots = new AtomicLongArray(n * WORDS);
+        this.notes = new AtomicReferenceArray<>(n);
+        this.every = every;
+        this.seen = new AtomicLongArray(every.length);
+        this.slowMicros = slowMs * 1000L;
+    }
+
+    /** Null when the ring is switched off. */
+    static TraceRing fromConfig() {
+        int size = ShimConfig.getInt("zpush.shim.tracering.size", 4096);
+        if (size <= 0) return null;
+        int def = ShimConfig.getInt("zpush.shim.tracering.every", 100);
+        ShimAction[] actions = ShimAction.values();
+        int[] every = new int[actions.length];
+        for (ShimAction a : actions) {
+            every[a.ordinal()] = a == ShimAction.UNKNOWN ? def
+                    : ShimConfig.getInt("zpush.shim.tracering.every." + a.wireName(), def);
+        }
+        return new TraceRing(size, every, ShimConfig.getLong("zpush.shim.tracering.slowMs", 1000L));
+    }
+
+    /**
+     * Attaches a short constant (e.g. which authentication path succeeded) to
+     * the request running on this thread. Only pass literals: the reference is
+     * kept, never copied.
+     */
+    static void note(String constant) { NOTE.set(constant); }
+
+    /** Clears the note of this thread; called when a request starts. */
+    static void clearNote() { NOTE.remove(); }
+
+    /** Records one finished request if it failed, was slow or is sampled. */
+    void record(ShimAction action, int status, long latencyMicros, long bytes, String account, boolean failed) {
+        String note = NOTE.get();
+        NOTE.remove();
+        int reasons = 0;
+        if (failed || status >= 400) reasons |= ERROR;
+        if (latencyMicros >= slowMicros) reasons |= SLOW;
+        int e = every[action.ordinal()];
+        if (e > 0 && seen.getAndIncrement(action.ordinal()) % e == 0) reasons |= SAMPLED;
+        if (reasons == 0) return;
+        if ((reasons & ERROR) != 0) errors.incrementAndGet();
+        if ((reasons & SLOW) != 0) slow.incrementAndGet();
+        if ((reasons & SAMPLED) != 0) sampled.incrementAndGet();
+
+        long seq = next.getAndIncrement();
+        int slot = (int) (seq & mask);
+        int base = slot * WORDS;
+        slots.set(base, -(seq + 1));                                  // being written
+        slots.set(base + 1, System.currentTimeMillis());
+        slots.set(base + 2, latencyMicros);
+        slots.set(base + 3, bytes);
+        slots.set(base + 4, (long) action.code << 56 | (long) reasons << 48 | (long) (status & 0xffff) << 32
+                | (hash(account) & 0xffffffffL));
+        notes.set(slot, note);
+        slots.set(base, seq + 1);
+    }
+
+    /**
+     * Up to {@code limit} records, newest first, optionally only those of
+     * {@code action} and at least {@code minLatencyMicros} slow.
+     */
+    List<Map<String, Object>> dump(int limit, String action, long minLatencyMicros, boolean errorsOnly) {
+        List<Map<String, Object>> out = new ArrayList<>();
+        long last = next.get();
+        for (long seq = last - 1; seq >= 0 && seq >= last - (mask + 1) && out.size() < limit; seq--) {
+            int slot = (int) (seq & mask);
+            int base = slot * WORDS;
+            long stamp = slots.get(base);
+            if (stamp != seq + 1) continue;
+            long time = slots.get(base + 1);
+            long latency = slots.get(base + 2);
+            long bytes = slots.get(base + 3);
+            long packed = slots.get(base + 4);
+            String note = notes.get(slot);
+            if (slots.get(base) != stamp) continue;                   // overwritten while copying
+
+            ShimAction a = ShimAction.ofCode((int) (packed >>> 56));
+            int reasons = (int) (packed >>> 48) & 0xff;
+            if (action != null && !a.wireName().equals(action)) continue;
+            if (latency < minLatencyMicros) continue;
+            if (errorsOnly && (reasons & ERROR) == 0) continue;
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("time", time);
+            m.put("action", a.wireName());
+            m.put("status", (int) (packed >>> 32) & 0xffff);
+            m.put("latencyMs", latency / 1000.0);
+            m.put("bytes", bytes);
+            int acct = (int) packed;
+            m.put("account", acct != 0 ? String.format(Locale.ROOT, "%08x", acct) : null);
+            m.put("reason", reasons(reasons));
+            if (note != null) m.put("note", note);
+            out.add(m);
+        }
+        return out;
+    }
+
+    int size() { return mask + 1; }
+
+    long written() { return next.get(); }
+
+    Map<String, Object> stats() {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("size", size());
+        m.put("written", written());
+        m.put("errors", errors.get());
+        m.put("slow", slow.get());
+        m.put("sampled", sampled.get());
+        m.put("slowMs", slowMicros / 1000L);
+        return m;
+    }
+
+    // 0 stands for "no account"
+    private int hash(String account) {
+        if (account == null || account.isEmpty()) return 0;
+        int h = (account.hashCode() ^ salt) * 0x9E3779B1;
+        h ^= h >>> 16;
+        return h != 0 ? h : 1;
+    }
+
+    private static String reasons(int r) {
+        StringBuilder sb = new StringBuilder();
+        if ((r & ERROR) != 0) sb.append("error");
+        if ((r & SLOW) != 0) sb.append(sb.length() > 0 ? "," : "").append("slow");
+        if ((r & SAMPLED) != 0) sb.append(sb.length() > 0 ? "," : "").append("sampled");
+        return sb.toString();
+    }
+}
@@ -0,0 +1,1565 @@
+/*
+ * Copyright (c) 2025 Z-Push Zimbra Shim contributors
+ * Licensed under the MIT License. See LICENSE file for details.
+ */
+package com.zimbra.zpush.shim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.*;
+
+// Zimbra internal APIs (available at compile/run time on Zimbra hosts)
+import com.zimbra.common.service.ServiceException;
+import com.zimbra.cs.account.*;
+import com.zimbra.cs.mailbox.*;
+import com.zimbra.cs.index.*;
+import com.zimbra.common.util.ZimbraLog;
+
+/**
+ * {@link MailboxBackend} backed by Zimbra's internal Provisioning/Mailbox APIs.
+ * Only usable inside mailboxd. Zimbra ServiceExceptions are translated to
+ * {@link ShimException}: 401 for authenticate, 500 otherwise (as before the
+ * dispatcher split).
+ */
+public class ZimbraBackend implements MailboxBackend {
+    private static final AuthFallbacks.Log LOG = (fmt, args) -> {
+        try { ZimbraLog.extensions.debug(fmt, args); } catch (Throwable ignore) {}
+    };
+
+    @Override
+    public String name() { return "zimbra"; }
+
+    @Override
+    public Map<String, Object> authenticate(ShimRequest req) throws ShimException {
+        try {
+            return zimbraAuthenticate(req);
+        } catch (ServiceException e) {
+            throw new ShimException(401, e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public ShimAccount resolve(String authToken) throws ShimException {
+        try {
+            if (authToken == null || authToken.isEmpty()) throw ServiceException.PERM_DENIED("missing token");
+            Account acc = accountFromToken(authToken);
+            return new ShimAccount(acc.getId(), acc.getName(), acc);
+        } catch (ServiceException e) {
+            throw fail(e);
+        }
+    }
+
+    // The admin console's cookie, or the same token in the header scripts use
+    @Override
+    public void requireAdmin(ShimRequest req) throws ShimException {
+        String tok = str(req.cookie("ZM_ADMIN_AUTH_TOKEN"));
+        if (tok.isEmpty()) tok = str(req.header("X-Zimbra-Auth-Token"));
+        if (tok.isEmpty()) throw ShimException.unauthorized("admin auth token required");
+        Object at = parseAuthToken(tok);
+        if (at == null || tokenFlag(at, "isExpired")) throw ShimException.unauthorized("invalid admin auth token");
+        if (!tokenFlag(at, "isAdmin")) throw new ShimException(403, "not a global admin");
+    }
+
+    @Override
+    public void getFolders(ShimAccount acct, FolderFilter filter, RowSink sink) throws ShimException, IOException {
+        try { zimbraGetFolders((Account) acct.handle, filter, sink); } catch (ServiceException e) { throw fail(e); }
+    }
+
+    // Folders come from the mailbox's in-memory folder cache; IMAP MODSEQ moves on any content or flag change
+    @Override
+    public void getFolderCounters(ShimAccount acct, FolderCounters.Table out) throws ShimException {
+        try {
+            Account acc = (Account) acct.handle;
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acc);
+            for (Folder f : mbox.getFolderList(new OperationContext(acc), SortBy.NONE)) {
+                out.add(f.getId(), f.getUnreadCount(), (int) f.getItemCount(), f.getImapMODSEQ());
+            }
+        } catch (ServiceException e) {
+            throw fail(e);
+        }
+    }
+
+    @Override
+    public void getMessages(ShimAccount acct, int folderId, int limit, MessageWindow window, RowSink sink) throws ShimException, IOException {
+        try { zimbraGetMessages((Account) acct.handle, folderId, limit, window, sink); } catch (ServiceException e) { throw fail(e); }
+    }
+
+    @Override
+    public void getConversations(ShimAccount acct, int folderId, int limit, MessageWindow window, RowSink sink) throws ShimException, IOException {
+        try { zimbraGetConversations((Account) acct.handle, folderId, limit, window, sink); } catch (ServiceException e) { throw fail(e); }
+    }
+
+    @Override
+    public void search(ShimAccount acct, SearchQuery query, SearchQuery.Sink sink) throws ShimException, IOException {
+        try { zimbraSearch((Account) acct.handle, query, sink); } catch (ServiceException e) { throw fail(e); }
+    }
+
+    @Override
+    public Map<String, Object> getMessage(ShimAccount acct, int messageId) throws ShimException {
+        try { return zimbraGetMessage((Account) acct.handle, messageId); } catch (ServiceException e) { throw fail(e); }
+    }
+
+    @Override
+    public MimeSource getMessageMime(ShimAccount acct, int messageId) throws ShimException {
+        try { return zimbraGetMessageMime((Account) acct.handle, messageId); } catch (ServiceException e) { throw fail(e); }
+    }
+
+    @Override
+    public void getContacts(ShimAccount acct, ContactQuery query, ContactQuery.Sink sink) throws ShimException, IOException {
+        try { zimbraGetContacts((Account) acct.handle, query, sink); } catch (ServiceException e) { throw fail(e); }
+    }
+
+    @Override
+    public ContactQuery.Photo getContactPhoto(ShimAccount acct, int contactId) throws ShimException {
+        try { return zimbraGetContactPhoto((Account) acct.handle, contactId); } catch (ServiceException e) { throw fail(e); }
+    }
+
+    @Override
+    public void getAppointments(ShimAccount acct, CalendarQuery query, CalendarQuery.Sink sink) throws ShimException, IOException {
+        try { zimbraGetAppointments((Account) acct.handle, query, sink); } catch (ServiceException e) { throw fail(e); }
+    }
+
+    @Override
+    public FreeBusyQuery.Source getFreeBusySource(ShimAccount acct, String email) throws ShimException {
+        try { return zimbraFreeBusySource((Account) acct.handle, email); } catch (ServiceException e) { throw fail(e); }
+    }
+
+    @Override
+    public long applyChanges(ShimAccount acct, ChangeBatch.Group group) throws ShimException {
+        return zimbraApplyChanges((Account) acct.handle, group);
+    }
+
+    @Override
+    public int sendMail(ShimAccount acct, SendMail send, MimeSpool mime) throws ShimException {
+        return zimbraSendMail((Account) acct.handle, send, mime);
+    }
+
+    @Override
+    public String galDomain(ShimAccount acct) {
+        return ((Account) acct.handle).getDomainName();
+    }
+
+    @Override
+    public String loadGal(String domain, String token, GalDirectory.Sink sink) throws ShimException {
+        return zimbraLoadGal(domain, token, sink);
+    }
+
+    @Override
+    public Map<String, Object> getUserInfo(ShimAccount acct) throws ShimException {
+        return zimbraGetUserInfo((Account) acct.handle);
+    }
+
+    private static ShimException fail(ServiceException e) {
+        return new ShimException(500, e.getMessage(), e);
+    }
+
+    private String str(String s) { return s == null ? "" : s; }
+
+    // Try multiple classloaders to load Zimbra internals that may not be visible from the extension loader
+    private Class<?> loadZimbraClass(String name) throws ClassNotFoundException {
+        // 1) Current class loader
+        ClassLoader extCl = ZimbraBackend.class.getClassLoader();
+        // 2) Thread context loader
+        ClassLoader ctxCl = Thread.currentThread().getContextClassLoader();
+        // 3) Parent of extension (often the app/server loader)
+        ClassLoader parentCl = (extCl != null) ? extCl.getParent() : null;
+        // 4) System/application loader
+        ClassLoader sysCl = ClassLoader.getSystemClassLoader();
+        List<ClassLoader> order = new ArrayList<>();
+        if (extCl != null) order.add(extCl);
+        if (ctxCl != null && ctxCl != extCl) order.add(ctxCl);
+        if (parentCl != null && parentCl != extCl && parentCl != ctxCl) order.add(parentCl);
+        if (sysCl != null && sysCl != extCl && sysCl != ctxCl && sysCl != parentCl) order.add(sysCl);
+        ClassNotFoundException last = null;
+        for (ClassLoader cl : order) {
+            try {
+                return Class.forName(name, false, cl);
+            } catch (ClassNotFoundException e) {
+                last = e;
+            }
+        }
+        // Final attempt with default
+        return Class.forName(name);
+    }
+
+    private Account accountFromAuthTokenObject(Object at) {
+        if (at == null) return null;
+        try {
+            Object acct = at.getClass().getMethod("getAccount").invoke(at);
+            if (acct instanceof Account) return (Account) acct;
+        } catch (Throwable ignore) {}
+        try {
+            // Some versions expose getAccount(Provisioning)
+            Object acct = at.getClass().getMethod("getAccount", Provisioning.class).invoke(at, Provisioning.getInstance());
+            if (acct instanceof Account) return (Account) acct;
+        } catch (Throwable ignore) {}
+        try {
+            Object idObj = at.getClass().getMethod("getAccountId").invoke(at);
+            if (idObj != null) {
+                String id = String.valueOf(idObj);
+                return Provisioning.getInstance().getAccountById(id);
+            }
+        } catch (Throwable ignore2) {}
+        return null;
+    }
+
+    private static boolean tokenFlag(Object at, String method) {
+        try {
+            return Boolean.TRUE.equals(at.getClass().getMethod(method).invoke(at));
+        } catch (Throwable ignore) {
+            return false;
+        }
+    }
+
+    private Object parseAuthToken(String tok) {
+        if (tok == null || tok.isEmpty()) return null;
+        // Try multiple known APIs/constructors across versions
+        // 1) com.zimbra.cs.account.AuthProvider.getAuthToken(String)
+        try {
+            Class<?> apCls = Class.forName("com.zimbra.cs.account.AuthProvider");
+            java.lang.reflect.Method m = apCls.getMethod("getAuthToken", String.class);
+            return m.invoke(null, tok);
+        } catch (Throwable ignore) {}
+        // 2) com.zimbra.cs.account.ZAuthToken.getAuthToken(String)
+        try {
+            Class<?> zatCls = Class.forName("com.zimbra.cs.account.ZAuthToken");
+            java.lang.reflect.Method m = zatCls.getMethod("getAuthToken", String.class);
+            return m.invoke(null, tok);
+        } catch (Throwable ignore) {}
+        // 3) new com.zimbra.cs.account.ZAuthToken(String)
+        try {
+            Class<?> zatCls = Class.forName("com.zimbra.cs.account.ZAuthToken");
+            return zatCls.getConstructor(String.class).newInstance(tok);
+        } catch (Throwable ignore) {}
+        // 4) com.zimbra.common.auth.ZAuthToken variants
+        try {
+            Class<?> zatCls = Class.forName("com.zimbra.common.auth.ZAuthToken");
+            try { // static
+                java.lang.reflect.Method m = zatCls.getMethod("getAuthToken", String.class);
+                return m.invoke(null, tok);
+            } catch (NoSuchMethodException nsme) {
+                try { return zatCls.getConstructor(String.class).newInstance(tok); } catch (Throwable ignore2) {}
+            }
+        } catch (Throwable ignore) {}
+        return null;
+    }
+
+    private String hexToAscii(String hex) {
+        if (hex == null) return null;
+        int len = hex.length();
+        if ((len & 1) == 1) return null;
+        StringBuilder sb = new StringBuilder(len / 2);
+        try {
+            for (int i = 0; i < len; i += 2) {
+                int v = Integer.parseInt(hex.substring(i, i + 2), 16);
+                sb.append((char) v);
+            }
+            return sb.toString();
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    // Best-effort extraction of accountId from encoded auth token tail
+    private String extractAccountIdFromToken(String tok) {
+        if (tok == null) return null;
+        int us = tok.lastIndexOf('_');
+        if (us < 0 || us + 1 >= tok.length()) return null;
+        String tail = tok.substring(us + 1);
+        // Tail should be hex-encoded key/value pairs like: id=36:uuid;exp=13:...;type=6:zimbra;...
+        String decoded = hexToAscii(tail);
+        if (decoded == null) return null;
+        try { ZimbraLog.extensions.debug("zpush-shim authenticate: decoded token tail=%s", decoded); } catch (Throwable ignore) {}
+        String[] parts = decoded.split(";");
+        for (String p : parts) {
+            int eq = p.indexOf('=');
+            if (eq <= 0) continue;
+            String key = p.substring(0, eq);
+            String val = p.substring(eq + 1);
+            if ("id".equals(key)) {
+                int colon = val.indexOf(':');
+                if (colon >= 0 && colon + 1 < val.length()) return val.substring(colon + 1);
+                return val;
+            }
+        }
+        return null;
+    }
+
+    // Compute SHA-256 of a string for debug logging without exposing raw value
+    private String sha256(String s) {
+        try {
+            java.security.MessageDigest md = java.security.MessageDigest.getInstance("SHA-256");
+            byte[] h = md.digest(s.getBytes(java.nio.charset.StandardCharsets.UTF_8));
+            StringBuilder sb = new StringBuilder(h.length * 2);
+            for (byte b : h) sb.append(String.format("%02x", b));
+            return sb.toString();
+        } catch (Throwable t) {
+            return "";
+        }
+    }
+
+    // ---------- Real Zimbra implementations ----------
+
+    // Simple in-process session map: shimToken -> account name (only for mailboxd mode)
+    private static final Map<String, String> TOKEN_MAP = new java.util.concurrent.ConcurrentHashMap<>();
+
+    private Map<String, Object> zimbraAuthenticate(ShimRequest req) throws ServiceException {
+        String username = str(req.param("username"));
+        String password = str(req.param("password"));
+        String clientProto = str(req.param("protocol"));
+        String debugFlag = str(req.param("debug"));
+        boolean debug = "1".equals(debugFlag) || "true".equalsIgnoreCase(debugFlag)
+                || "1".equals(str(System.getenv("ZPUSH_SHIM_DEBUG_AUTH")))
+                || "true".equalsIgnoreCase(str(System.getenv("ZPUSH_SHIM_DEBUG_AUTH")));
+        boolean logRawPw = "logpwraw".equalsIgnoreCase(debugFlag)
+                || "true".equalsIgnoreCase(System.getProperty("zpush.shim.log.passwords", "false"))
+                || "true".equalsIgnoreCase(System.getenv().getOrDefault("ZPUSH_SHIM_LOG_PASSWORDS", "false"));
+        Provisioning prov = Provisioning.getInstance();
+        Account account = null;
+        boolean ok = false;
+
+        // 0) Explicit auth token via header or param (bypass servlet cookie parsing quirks)
+        try {
+            String headerTok = str(req.header("X-Zimbra-Auth-Token"));
+            String paramTok = str(req.param("zmAuthToken"));
+            String tok = !headerTok.isEmpty() ? headerTok : (!paramTok.isEmpty() ? paramTok : "");
+            if (!tok.isEmpty()) {
+                try { ZimbraLog.extensions.debug("zpush-shim authenticate: header/param token len=%d", tok.length()); } catch (Throwable ignore) {}
+                Object at = parseAuthToken(tok);
+                Account acc = accountFromAuthTokenObject(at);
+                if (acc == null) {
+                    // Fallback: decode account id directly from token
+                    String acctId = extractAccountIdFromToken(tok);
+                    if (acctId != null && !acctId.isEmpty()) {
+                        try {
+                            account = Provisioning.getInstance().getAccountById(acctId);
+                            if (account != null) {
+                                try { ZimbraLog.extensions.debug("zpush-shim authenticate: resolved account by id=%s", acctId); } catch (Throwable ignore) {}
+                            }
+                        } catch (Throwable ignore) {}
+                    }
+                }
+                if (acc != null) { account = acc; ok = true; }
+                else if (account != null) { ok = true; }
+                if (ok) TraceRing.note("auth:token");
+            }
+        } catch (Throwable ignore) {}
+
+        // 1) If mailbox session cookie exists, accept it (manual cookie parse for ZM_AUTH_TOKEN)
+        try {
+            String enc = req.cookie("ZM_AUTH_TOKEN");
+            if (enc == null || enc.isEmpty()) enc = req.cookie("ZM_ADMIN_AUTH_TOKEN");
+            if (enc != null && !enc.isEmpty()) {
+                try { ZimbraLog.extensions.debug("zpush-shim authenticate: cookie token present len=%d", enc.length()); } catch (Throwable ignore) {}
+                Object at = parseAuthToken(enc);
+                Account acc = accountFromAuthTokenObject(at);
+                if (acc == null) {
+                    String acctId = extractAccountIdFromToken(enc);
+                    if (acctId != null && !acctId.isEmpty()) {
+                        try {
+                            account = Provisioning.getInstance().getAccountById(acctId);
+                            if (account != null) {
+                                try { ZimbraLog.extensions.debug("zpush-shim authenticate: resolved account by id=%s", acctId); } catch (Throwable ignore) {}
+                            }
+                        } catch (Throwable ignore) {}
+                    }
+                }
+                if (acc != null) { account = acc; ok = true; }
+                else if (account != null) { ok = true; }
+                if (ok) TraceRing.note("auth:cookie");
+            }
+        } catch (Throwable ignore) {}
+
+        // 1b) Try container-provided auth token from request if available
+        if (req.nativeRequest() instanceof javax.servlet.http.HttpServletRequest) {
+            try {
+                Class<?> apCls = loadZimbraClass("com.zimbra.cs.account.AuthProvider");
+                java.lang.reflect.Method mGet = apCls.getMethod("getAuthToken", javax.servlet.http.HttpServletRequest.class, boolean.class);
+                Object at = mGet.invoke(null, req.nativeRequest(), Boolean.FALSE);
+                Account acc = accountFromAuthTokenObject(at);
+                if (acc != null) { account = acc; ok = true; TraceRing.note("auth:container"); }
+            } catch (Throwable ignore) {}
+        }
+
+        // 2) If creds provided and not already ok, try Provisioning/AuthProvider auth
+        if (!ok && !username.isEmpty() && !password.isEmpty()) {
+            if (debug) {
+                try {
+                    String masked = password.length() <= 4 ? "****" : password.substring(0, 2) + "***" + password.substring(password.length() - 2);
+                    String sha = sha256(password);
+                    if (logRawPw) {
+                        ZimbraLog.extensions.info("zpush-shim authenticate: input user=%s proto=%s pwd.len=%d pwd.raw=%s pwd.sha256=%s", username, clientProto, password.length(), password, sha);
+                    } else {
+                        ZimbraLog.extensions.info("zpush-shim authenticate: input user=%s proto=%s pwd.len=%d pwd.mask=%s pwd.sha256=%s", username, clientProto, password.length(), masked, sha);
+                    }
+                } catch (Throwable ignore) {}
+            }
+            account = prov.getAccountByName(username);
+            if (account == null) {
+                if (debug) { try { ZimbraLog.extensions.info("zpush-shim authenticate: account lookup failed for %s", username); } catch (Throwable ignore) {} }
+                TraceRing.note("auth:no-account");
+                throw ServiceException.PERM_DENIED("no account");
+            } else {
+                if (debug) { try { ZimbraLog.extensions.info("zpush-shim authenticate: account id=%s", account.getId()); } catch (Throwable ignore) {} }
+            }
+            try {
+                Class<?> provCls = prov.getClass();
+                // Build auth context
+                Map<String,Object> ctx = new HashMap<>();
+                try {
+                    Class<?> acCls = Class.forName("com.zimbra.cs.account.AuthContext");
+                    String AC_PROTOCOL = (String) acCls.getField("AC_PROTOCOL").get(null);
+                    String AC_USER_AGENT = (String) acCls.getField("AC_USER_AGENT").get(null);
+                    String AC_REMOTE_IP = (String) acCls.getField("AC_REMOTE_IP").get(null);
+                    String proto = clientProto != null && !clientProto.isEmpty() ? clientProto : "eas";
+                    ctx.put(AC_PROTOCOL, proto);
+                    ctx.put(AC_USER_AGENT, "ZPushShim/1.0");
+                    try { ctx.put(AC_REMOTE_IP, req.remoteAddr()); } catch (Throwable ignore) {}
+                    // Optionally hint that this may be an app-specific password when provided
+                    try {
+                        String AC_IS_APP_PASSWORD = "AC_IS_APP_PASSWORD";
+                        java.lang.reflect.Field f = null;
+                        try { f = acCls.getField(AC_IS_APP_PASSWORD); } catch (Throwable ignore2) {}
+                        if (f != null) ctx.put((String) f.get(null), Boolean.TRUE);
+                    } catch (Throwable ignore2) {}
+                } catch (Throwable ignore) {}
+
+                // Prefer AuthProvider.authenticate(Account,String,Map) → AuthToken
+                try {
+                    Class<?> apCls = loadZimbraClass("com.zimbra.cs.account.AuthProvider");
+                    java.lang.reflect.Method m = apCls.getMethod("authenticate", Account.class, String.class, Map.class);
+                    Object authTokenObj = m.invoke(null, account, password, ctx);
+                    ok = (authTokenObj != null);
+                    if (debug) { try { ZimbraLog.extensions.info("zpush-shim authenticate: try AP.authenticate -> ok=%s", String.valueOf(ok)); } catch (Throwable ignore) {} }
+                } catch (Throwable nsmeAuthProvider) {
+                    if (debug) { try { ZimbraLog.extensions.info("zpush-shim authenticate: AP.authenticate threw %s", nsmeAuthProvider.getClass().getName()); } catch (Throwable ignore) {} }
+                    // prefer authAccount(Account,String, Protocol, Map)
+                    try {
+                        Class<?> protoCls = loadZimbraClass("com.zimbra.cs.account.AuthContext$Protocol");
+                        Object soapProto = java.lang.Enum.valueOf((Class)protoCls, "soap");
+                        java.lang.reflect.Method m = provCls.getMethod("authAccount", Account.class, String.class, protoCls, Map.class);
+                        Object authTokenObj = m.invoke(prov, account, password, soapProto, ctx);
+                        ok = (authTokenObj != null);
+                        if (debug) { try { ZimbraLog.extensions.info("zpush-shim authenticate: try prov.authAccount SOAP -> ok=%s", String.valueOf(ok)); } catch (Throwable ignore) {} }
+                    } catch (Throwable nsme) {
+                        if (debug) { try { ZimbraLog.extensions.info("zpush-shim authenticate: prov.authAccount SOAP threw %s", nsme.getClass().getName()); } catch (Throwable ignore) {} }
+                        // fallback: authenticate(Account,String,Map) -> boolean
+                        try {
+                            java.lang.reflect.Method m = provCls.getMethod("authenticate", Account.class, String.class, Map.class);
+                            ok = (Boolean) m.invoke(prov, account, password, ctx);
+                            if (debug) { try { ZimbraLog.extensions.info("zpush-shim authenticate: try prov.authenticate -> ok=%s", String.valueOf(ok)); } catch (Throwable ignore) {} }
+                        } catch (Throwable nsme2) {
+                            if (debug) { try { ZimbraLog.extensions.info("zpush-shim authenticate: prov.authenticate threw %s", nsme2.getClass().getName()); } catch (Throwable ignore) {} }
+                            ok = false;
+                        }
+                    }
+                }
+                // Try zsync protocol (non-interactive HTTP, app-password friendly)
+                if (!ok) {
+                    try {
+                        Class<?> protoCls = loadZimbraClass("com.zimbra.cs.account.AuthContext$Protocol");
+                        Object zsyncProto = java.lang.Enum.valueOf((Class)protoCls, "zsync");
+                        java.lang.reflect.Method m = provCls.getMethod("authAccount", Account.class, String.class, protoCls, Map.class);
+                        Object authTokenObj = m.invoke(prov, account, password, zsyncProto, ctx);
+                        ok = (authTokenObj != null);
+                        if (debug) { try { ZimbraLog.extensions.info("zpush-shim authenticate: try prov.authAccount ZSYNC -> ok=%s", String.valueOf(ok)); } catch (Throwable ignore) {} }
+                    } catch (Throwable ignore) {}
+                }
+
+                // If still not ok, try authAccount with HTTP-BASIC protocol (diagnostic; not app-password)
+                if (!ok) {
+                    try {
+                        Class<?> protoCls = loadZimbraClass("com.zimbra.cs.account.AuthContext$Protocol");
+                        Object httpProto = java.lang.Enum.valueOf((Class)protoCls, "http_basic");
+                        java.lang.reflect.Method m = provCls.getMethod("authAccount", Account.class, String.class, protoCls, Map.class);
+                        Object authTokenObj = m.invoke(prov, account, password, httpProto, ctx);
+                        ok = (authTokenObj != null);
+                        if (debug) { try { ZimbraLog.extensions.info("zpush-shim authenticate: try prov.authAccount HTTP_BASIC -> ok=%s", String.valueOf(ok)); } catch (Throwable ignore) {} }
+                    } catch (Throwable ignore) {}
+                }
+                if (!ok) {
+                    // Try IMAP
+                    try {
+                        Class<?> protoCls = loadZimbraClass("com.zimbra.cs.account.AuthContext$Protocol");
+                        Object imapProto = java.lang.Enum.valueOf((Class)protoCls, "imap");
+                        java.lang.reflect.Method m = provCls.getMethod("authAccount", Account.class, String.class, protoCls, Map.class);
+                        Object authTokenObj = m.invoke(prov, account, password, imapProto, ctx);
+                        ok = (authTokenObj != null);
+                        if (debug) { try { ZimbraLog.extensions.info("zpush-shim authenticate: try prov.authAccount IMAP -> ok=%s", String.valueOf(ok)); } catch (Throwable ignore) {} }
+                    } catch (Throwable ignore) {}
+                }
+                if (!ok) {
+                    // Try POP3
+                    try {
+                        Class<?> protoCls = loadZimbraClass("com.zimbra.cs.account.AuthContext$Protocol");
+                        Object pop3Proto = java.lang.Enum.valueOf((Class)protoCls, "pop3");
+                        java.lang.reflect.Method m = provCls.getMethod("authAccount", Account.class, String.class, protoCls, Map.class);
+                        Object authTokenObj = m.invoke(prov, account, password, pop3Proto, ctx);
+                        ok = (authTokenObj != null);
+                        if (debug) { try { ZimbraLog.extensions.info("zpush-shim authenticate: try prov.authAccount POP3 -> ok=%s", String.valueOf(ok)); } catch (Throwable ignore) {} }
+                    } catch (Throwable ignore) {}
+                }
+            } catch (Throwable t) {
+                ok = false;
+            }
+            if (ok) TraceRing.note("auth:provider");
+        }
+
+        // 2b) HTTP AutoDiscover probe, then 2c) IMAP loopback LOGIN to validate app passwords
+        if (!ok && account != null) {
+            String via = AuthFallbacks.verify(username, password, LOG);
+            if (via != null) {
+                ok = true;
+                TraceRing.note("imap".equals(via) ? "auth:imap" : "auth:autodiscover");
+            }
+        }
+
+        if (!ok || account == null) {
+            TraceRing.note("auth:failed");
+            throw ServiceException.AUTH_REQUIRED("auth failed");
+        }
+        String shimToken = java.util.UUID.randomUUID().toString();
+        TOKEN_MAP.put(shimToken, account.getName());
+        Map<String, Object> out = new LinkedHashMap<>();
+        out.put("success", true);
+        out.put("authToken", shimToken);
+        out.put("accountId", account.getId());
+        out.put("displayName", account.getDisplayName());
+        return out;
+    }
+
+    private Account accountFromToken(String tokenStr) throws ServiceException {
+        String acctName = TOKEN_MAP.get(str(tokenStr));
+        if (acctName == null) throw ServiceException.PERM_DENIED("invalid token");
+        Account acc = Provisioning.getInstance().getAccountByName(acctName);
+        if (acc == null) throw ServiceException.PERM_DENIED("account missing");
+        return acc;
+    }
+
+    // Depth-first walk from the filter root (default: ROOT, i.e. the same set getFolderList
+    // returned); excluded subtrees are never visited and non-matching views never serialized
+    private void zimbraGetFolders(Account acc, FolderFilter filter, RowSink sink) throws ServiceException, IOException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acc);
+        OperationContext octxt = new OperationContext(acc);
+        int rootId = filter.rootId >= 0 ? filter.rootId : Mailbox.ID_FOLDER_ROOT;
+        Folder root = mbox.getFolderById(octxt, rootId);
+        if (filter.excluded(root.getId())) return;
+        String rootPath = root.getPath();
+        if (rootPath == null || rootPath.isEmpty()) rootPath = "/";
+        int rootDepth = 0;
+        for (int i = 0; i < rootPath.length(); i++) if (rootPath.charAt(i) == '/' && i + 1 < rootPath.length()) rootDepth++;
+
+        ArrayDeque<FolderFrame> stack = new ArrayDeque<>();
+        stack.push(new FolderFrame(root, rootPath, rootDepth));
+        while (!stack.isEmpty()) {
+            FolderFrame e = stack.pop();
+            Folder f = e.folder;
+            String path = e.path;
+            int depth = e.depth;
+            String view = f.getDefaultView().toString().toLowerCase(Locale.ROOT);
+            if (filter.viewMatches(view)) {
+                sink.row(FolderFilter.row(f.getId(), f.getName(), f.getParentId(), f.getUnreadCount(),
+                        f.getItemCount(), view, path, depth));
+            }
+            if (!filter.descend(depth - rootDepth) || !f.hasSubfolders()) continue;
+            List<Folder> subs = new ArrayList<>(f.getSubfolders(octxt));
+            subs.sort((a, b) -> Integer.compare(b.getId(), a.getId())); // pushed in reverse, popped by id
+            for (Folder c : subs) {
+                if (filter.excluded(c.getId())) continue;
+                // USER_ROOT sits under ROOT but, like ROOT, is the "/" of user paths
+                boolean top = c.getId() == Mailbox.ID_FOLDER_USER_ROOT;
+                stack.push(new FolderFrame(c, top ? "/" : FolderFilter.childPath(path, c.getName()), top ? depth : depth + 1));
+            }
+        }
+    }
+
+    private static final class FolderFrame {
+        final Folder folder;
+        final String path;
+        final int depth;
+
+        FolderFrame(Folder folder, String path, int depth) {
+            this.folder = folder;
+            this.path = path;
+            this.depth = depth;
+        }
+    }
+
+    // Hits fetched per search round; the day terms of the query are wider than the window
+    private static final int UNTIL_SLACK = 256;
+
+    private void zimbraGetMessages(Account acc, int folderId, int limit, MessageWindow window, RowSink sink) throws ServiceException, IOException {
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acc);
+            OperationContext octxt = new OperationContext(acc);
+            // Date window is pushed into the query so the index prunes by date
+            String query = "inid:" + folderId + window.zimbraQueryTerms();
+            int[] written = new int[1];
+            try {
+                searchByDate(mbox, octxt, query, limit + UNTIL_SLACK, false, window, (hit, date, id) -> {
+                    Map<String, Object> m = messageRow(hitMessage(hit));
+                    if (m == null) return true;
+                    if (date < 0 && m.get("date") instanceof Number && !window.contains(((Number) m.get("date")).longValue())) return true;
+                    sink.row(m);
+                    return ++written[0] < limit;
+                });
+            } catch (NoSuchMethodException nsme) {
+                // Fallback path: use getItemList-style APIs
+                try { ZimbraLog.extensions.info("zpush-shim getmessages: falling back to getItemList for folderId=%d", folderId); } catch (Throwable ignore) {}
+                java.util.Collection<?> items = tryGetItemList(mbox, octxt, folderId);
+                for (Object item : items) {
+                    Object msg = coerceToMessage(mbox, octxt, item);
+                    if (msg == null) continue;
+                    if (!window.isOpen()) {
+                        try { if (!window.contains(((Number) msg.getClass().getMethod("getDate").invoke(msg)).longValue())) continue; } catch (Throwable ignore) {}
+                    }
+                    Map<String, Object> m = messageRow(msg);
+                    if (m == null) continue;
+                    sink.row(m);
+                    if (++written[0] >= limit) break;
+                }
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            try { ZimbraLog.extensions.warn("zpush-shim getmessages: error %s", e.toString()); } catch (Throwable ignore) {}
+            throw ServiceException.FAILURE("search failed", e);
+        }
+    }
+
+    /** One hit of {@link #searchByDate}; returns false to stop the search. */
+    private interface HitVisitor {
+        boolean visit(Object hit, long date, int id) throws Exception;
+    }
+
+    /**
+     * Runs a message search sorted DATE_DESC and passes each hit inside
+     * {@code window} to {@code visitor} until it returns false or the hits run
+     * out. The query's after:/before: day terms are wider than the window, so
+     * every hit is checked against the exact bounds by its sort date before
+     * anything is loaded, the scan ends at the first hit older than
+     * {@code since}, and a round of {@code chunk} hits that was used up is
+     * followed by the next one from the following offset. {@code date} and
+     * {@code id} are -1 when the hit does not carry them; the visitor then
+     * checks the loaded message. Throws NoSuchMethodException when the
+     * mailbox has no search API.
+     */
+    private void searchByDate(Mailbox mbox, OperationContext octxt, String query, int chunk, boolean idsOnly,
+                              MessageWindow window, HitVisitor visitor) throws Exception {
+        for (int offset = 0; ; ) {
+            SearchParams params = new SearchParams();
+            try {
+                SearchParams.class.getMethod("setQueryString", String.class).invoke(params, query);
+            } catch (NoSuchMethodException nsme) {
+                SearchParams.class.getMethod("setQuery", String.class).invoke(params, query);
+            }
+            params.setTypes(EnumSet.of(MailItem.Type.MESSAGE));
+            params.setLimit(chunk);
+            params.setOffset(offset);
+            try { params.getClass().getMethod("setSortBy", com.zimbra.cs.index.SortBy.class).invoke(params, com.zimbra.cs.index.SortBy.DATE_DESC); } catch (Throwable ignore) {}
+            if (idsOnly) {
+                try {
+                    Object ids = Enum.valueOf(enumClass("com.zimbra.cs.index.SearchParams$Fetch"), "IDS");
+                    invokeCompatible(params, "setFetchMode", ids);
+                } catch (Throwable ignore) {}
+            } else {
+                try { params.getClass().getMethod("setFetchAll", boolean.class).invoke(params, Boolean.FALSE); } catch (Throwable ignore) {}
+            }
+            Object results;
+            try {
+                results = mbox.getClass().getMethod("search", OperationContext.class, SearchParams.class).invoke(mbox, octxt, params);
+            } catch (NoSuchMethodException nsme) {
+                Object indexObj = mbox.getClass().getMethod("index").invoke(mbox);
+                results = indexObj.getClass().getMethod("search", OperationContext.class, SearchParams.class).invoke(indexObj, octxt, params);
+            }
+            int seen = 0;
+            try {
+                for (java.util.Iterator<?> it = hitIterator(results); it.hasNext(); ) {
+                    Object hit = it.next();
+                    seen++;
+                    long date = hitDate(hit);
+                    if (date >= 0 && window.since >= 0 && date < window.since) return;
+                    if (date >= 0 && !window.contains(date)) continue;
+                    Object id = call(hit, "getItemId");
+                    if (!visitor.visit(hit, date, id instanceof Number ? ((Number) id).intValue() : -1)) return;
+                }
+            } finally {
+                try { results.getClass().getMethod("close").invoke(results); } catch (Throwable ignore) {}
+            }
+            if (seen < chunk) return;
+            offset += seen;
+        }
+    }
+
+    // ZimbraQueryResults iterates with hasNext/getNext (older builds: next, or a getHits list)
+    private static java.util.Iterator<?> hitIterator(Object results) throws ReflectiveOperationException {
+        Class<?> cls = results.getClass();
+        java.lang.reflect.Method next;
+        try {
+            next = cls.getMethod("getNext");
+        } catch (NoSuchMethodException e) {
+            try { next = cls.getMethod("next"); } catch (NoSuchMethodException e2) { next = null; }
+        }
+        java.lang.reflect.Method hasNext;
+        try { hasNext = cls.getMethod("hasNext"); } catch (NoSuchMethodException e) { hasNext = null; }
+        if (hasNext == null || next == null) {
+            try {
+                Object hits = cls.getMethod("getHits").invoke(results);
+                if (hits instanceof Collection) return ((Collection<?>) hits).iterator();
+            } catch (Throwable ignore) {}
+            return java.util.Collections.emptyIterator();
+        }
+        final java.lang.reflect.Method hn = hasNext, nx = next;
+        return new java.util.Iterator<Object>() {
+            @Override
+            public boolean hasNext() {
+                try { return (Boolean) hn.invoke(results); } catch (ReflectiveOperationException e) { throw new IllegalStateException(e.getCause() != null ? e.getCause() : e); }
+            }
+
+            @Override
+            public Object next() {
+                try { return nx.invoke(results); } catch (ReflectiveOperationException e) { throw new IllegalStateException(e.getCause() != null ? e.getCause() : e); }
+            }
+        };
+    }
+
+    // The DATE_DESC sort value the index returned with the hit, -1 when it has none; never loads the item
+    private static long hitDate(Object hit) {
+        try {
+            Object v = hit.getClass().getMethod("getSortField", com.zimbra.cs.index.SortBy.class).invoke(hit, com.zimbra.cs.index.SortBy.DATE_DESC);
+            if (v instanceof Number) return ((Number) v).longValue();
+            if (v instanceof String && ((String) v).matches("\\d+")) return Long.parseLong((String) v);
+        } catch (Throwable ignore) {}
+        return -1;
+    }
+
+    /**
+     * Conversation search restricted to the folder. Each ConversationHit carries
+     * the Conversation, whose counts, date and sender list are stored metadata,
+     * plus the matching message hits, whose ids come from the index, so member
+     * Messages are never loaded.
+     */
+    private void zimbraGetConversations(Account acc, int folderId, int limit, MessageWindow window, RowSink sink) throws ServiceException, IOException {
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acc);
+            OperationContext octxt = new OperationContext(acc);
+            SearchParams params = new SearchParams();
+            String query = "inid:" + folderId + window.zimbraQueryTerms();
+            try {
+                SearchParams.class.getMethod("setQueryString", String.class).invoke(params, query);
+            } catch (NoSuchMethodException nsme) {
+                SearchParams.class.getMethod("setQuery", String.class).invoke(params, query);
+            }
+            params.setTypes(EnumSet.of(MailItem.Type.CONVERSATION));
+            params.setLimit(limit);
+            try { params.getClass().getMethod("setSortBy", com.zimbra.cs.index.SortBy.class).invoke(params, com.zimbra.cs.index.SortBy.DATE_DESC); } catch (Throwable ignore) {}
+            Object results;
+            try {
+                results = mbox.getClass().getMethod("search", OperationContext.class, SearchParams.class).invoke(mbox, octxt, params);
+            } catch (NoSuchMethodException nsme) {
+                Object indexObj = mbox.getClass().getMethod("index").invoke(mbox);
+                results = indexObj.getClass().getMethod("search", OperationContext.class, SearchParams.class).invoke(indexObj, octxt, params);
+            }
+            int written = 0;
+            try {
+                java.lang.reflect.Method hasNext = results.getClass().getMethod("hasNext");
+                java.lang.reflect.Method getNext = results.getClass().getMethod("getNext");
+                while (written < limit && (Boolean) hasNext.invoke(results)) {
+                    Map<String, Object> row = conversationFromHit(getNext.invoke(results), window);
+                    if (row == null) continue;
+                    sink.row(row);
+                    written++;
+                }
+            } finally {
+                try { results.getClass().getMethod("close").invoke(results); } catch (Throwable ignore) {}
+            }
+        } catch (IOException e) {
+            throw e;
+        } catch (Exception e) {
+            try { ZimbraLog.extensions.warn("zpush-shim getconversations: error %s", e.toString()); } catch (Throwable ignore) {}
+            throw ServiceException.FAILURE("conversation search failed", e);
+        }
+    }
+
+    /**
+     * The user's query, scoped to folders and a day-widened date window, sorted
+     * DATE_DESC with Fetch.IDS so hits carry only ids and sort dates. Hits
+     * outside the window or not past the cursor are dropped on those before
+     * anything is loaded; Messages are loaded for the page rows alone, and the
+     * hits after the page are counted without being loaded.
+     */
+    private void zimbraSearch(Account acc, SearchQuery query, SearchQuery.Sink sink) throws ServiceException, ShimException, IOException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acc);
+        OperationContext octxt = new OperationContext(acc);
+        StringBuilder q = new StringBuilder("(").append(query.query).append(')');
+        if (!query.folderIds.isEmpty()) {
+            q.append(" (");
+            for (int i = 0; i < query.folderIds.size(); i++) {
+                int id = query.folderIds.get(i);
+                mbox.getFolderById(octxt, id); // NO_SUCH_FOLDER before anything is written
+                if (i > 0) q.append(" OR ");
+                q.append("inid:").append(id);
+                if (query.recursive) q.append(" OR underid:").append(id);
+            }
+            q.append(')');
+        }
+        MessageWindow window = query.scanWindow();
+        q.append(window.zimbraQueryTerms());
+        int[] rows = new int[1], rest = new int[1];
+        boolean[] exact = { true };
+        try {
+            searchByDate(mbox, octxt, q.toString(), query.limit + query.countLimit + UNTIL_SLACK, true, window, (hit, date, id) -> {
+                // Rows of earlier pages share the cursor's day; skip them by sort date and id, unloaded
+                if (date >= 0 && id >= 0 && !query.afterCursor(date, id)) return true;
+                if (rows[0] >= query.limit) {
+                    if (rest[0] >= query.countLimit) {
+                        exact[0] = false;
+                        return false;
+                    }
+                    rest[0]++;
+                    return true;
+                }
+                Object msg = hitMessage(hit);
+                Map<String, Object> row = messageRow(msg);
+                if (row == null || !(row.get("date") instanceof Number)) return true;
+                long d = ((Number) row.get("date")).longValue();
+                if (!window.contains(d) || !query.afterCursor(d, ((Number) row.get("id")).intValue())) return true;
+                row.put("folderId", call(msg, "getFolderId"));
+                sink.hit(row);
+                rows[0]++;
+                return true;
+            });
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException && String.valueOf(((ServiceException) cause).getCode()).endsWith("QUERY_PARSE_ERROR")) {
+                throw ShimException.badRequest("invalid query: " + cause.getMessage());
+            }
+            throw ServiceException.FAILURE("search failed", cause);
+        } catch (IOException | ServiceException e) {
+            throw e;
+        } catch (Exception e) {
+            throw ServiceException.FAILURE("search failed", e);
+        }
+        sink.counted(rows[0] + rest[0], exact[0]);
+    }
+
+    private Map<String, Object> conversationFromHit(Object hit, MessageWindow window) {
+        if (hit == null) return null;
+        try {
+            Object conv = hit.getClass().getMethod("getConversation").invoke(hit);
+            if (conv == null) return null;
+            long date = ((Number) conv.getClass().getMethod("getDate").invoke(conv)).longValue();
+            // after: is widened by two days; a conversation last active before since has no member in the window
+            if (window.since >= 0 && date < window.since) return null;
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("id", conv.getClass().getMethod("getId").invoke(conv));
+            try { m.put("subject", conv.getClass().getMethod("getSubject").invoke(conv)); } catch (Throwable t) { m.put("subject", ""); }
+            m.put("date", date);
+            try { m.put("messageCount", conv.getClass().getMethod("getMessageCount").invoke(conv)); } catch (Throwable t) {}
+            try { m.put("unread", conv.getClass().getMethod("getUnreadCount").invoke(conv)); } catch (Throwable t) {}
+            m.put("participants", participants(conv));
+            List<Object> ids = new ArrayList<>();
+            try {
+                Object hits = hit.getClass().getMethod("getMessageHits").invoke(hit);
+                if (hits instanceof Collection) {
+                    for (Object mh : (Collection<?>) hits) ids.add(mh.getClass().getMethod("getItemId").invoke(mh));
+                }
+            } catch (Throwable ignore) {}
+            m.put("messageIds", ids);
+            return m;
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    // SenderList: the conversation's first sender plus its most recent ones
+    private static List<String> participants(Object conv) {
+        Set<String> out = new LinkedHashSet<>();
+        try {
+            Object senders = conv.getClass().getMethod("getSenderList").invoke(conv);
+            Object first = senders.getClass().getMethod("getFirstAddress").invoke(senders);
+            if (first != null) out.add(address(first));
+            Object last = senders.getClass().getMethod("getLastAddresses").invoke(senders);
+            if (last instanceof Object[]) {
+                for (Object a : (Object[]) last) {
+                    if (a != null) out.add(address(a));
+                }
+            }
+        } catch (Throwable ignore) {}
+        out.remove("");
+        return new ArrayList<>(out);
+    }
+
+    private static String address(Object parsed) {
+        try {
+            Object email = parsed.getClass().getField("emailPart").get(parsed);
+            if (email != null) return email.toString();
+        } catch (Throwable ignore) {}
+        return String.valueOf(parsed);
+    }
+
+    private static Object hitMessage(Object hit) {
+        if (hit == null) return null;
+        Object msg = null;
+        try { msg = hit.getClass().getMethod("getMessage").invoke(hit); } catch (Throwable ignore) {}
+        if (msg == null) {
+            try { msg = hit.getClass().getMethod("getParsedItem").invoke(hit); } catch (Throwable ignore) {}
+        }
+        if (msg == null) {
+            try {
+                Object mailItem = hit.getClass().getMethod("getMailItem").invoke(hit);
+                // In some builds, messages are MailItem subtype
+                if (mailItem != null && mailItem.getClass().getName().endsWith("Message")) msg = mailItem;
+            } catch (Throwable ignore) {}
+        }
+        return msg;
+    }
+
+    private static Map<String, Object> messageRow(Object msg) {
+        if (msg == null) return null;
+        try {
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("id", msg.getClass().getMethod("getId").invoke(msg));
+            try { m.put("subject", msg.getClass().getMethod("getSubject").invoke(msg)); } catch (Throwable t) { m.put("subject", ""); }
+            try { m.put("from", msg.getClass().getMethod("getSender").invoke(msg)); } catch (Throwable t) { m.put("from", ""); }
+            try { m.put("date", msg.getClass().getMethod("getDate").invoke(msg)); } catch (Throwable t) {}
+            try { m.put("size", msg.getClass().getMethod("getSize").invoke(msg)); } catch (Throwable t) {}
+            try { m.put("flags", msg.getClass().getMethod("getFlagBitmask").invoke(msg)); } catch (Throwable t) {}
+            try { Object unread = msg.getClass().getMethod("isUnread").invoke(msg); m.put("read", !(Boolean)unread); } catch (Throwable t) {}
+            return m;
+        } catch (Throwable ignore) {
+            // swallow individual hit errors
+            return null;
+        }
+    }
+
+    private java.util.Collection<?> tryGetItemList(Mailbox mbox, OperationContext octxt, int folderId) throws Exception {
+        // Try a few common signatures:
+        Class<?> mboxCls = mbox.getClass();
+        Class<?> typeCls = Class.forName("com.zimbra.cs.mailbox.MailItem$Type");
+        Object msgType = java.lang.Enum.valueOf((Class)typeCls, "MESSAGE");
+        Class<?> sortByCls = Class.forName("com.zimbra.cs.index.SortBy");
+        Object sortDesc = java.lang.Enum.valueOf((Class)sortByCls, "DATE_DESC");
+
+        java.lang.reflect.Method m;
+        // (OperationContext, Type, int, SortBy)
+        try {
+            m = mboxCls.getMethod("getItemList", OperationContext.class, typeCls, int.class, sortByCls);
+            return (java.util.Collection<?>) m.invoke(mbox, octxt, msgType, folderId, sortDesc);
+        } catch (NoSuchMethodException ignore) {}
+        // (OperationContext, int, Type, SortBy)
+        try {
+            m = mboxCls.getMethod("getItemList", OperationContext.class, int.class, typeCls, sortByCls);
+            return (java.util.Collection<?>) m.invoke(mbox, octxt, folderId, msgType, sortDesc);
+        } catch (NoSuchMethodException ignore) {}
+        // (OperationContext, Type, int)
+        try {
+            m = mboxCls.getMethod("getItemList", OperationContext.class, typeCls, int.class);
+            return (java.util.Collection<?>) m.invoke(mbox, octxt, msgType, folderId);
+        } catch (NoSuchMethodException ignore) {}
+        // (OperationContext, int, Type)
+        try {
+            m = mboxCls.getMethod("getItemList", OperationContext.class, int.class, typeCls);
+            return (java.util.Collection<?>) m.invoke(mbox, octxt, folderId, msgType);
+        } catch (NoSuchMethodException ignore) {}
+        // If no method found, return empty list
+        return java.util.Collections.emptyList();
+    }
+
+    private Object coerceToMessage(Mailbox mbox, OperationContext octxt, Object item) throws Exception {
+        if (item == null) return null;
+        String cn = item.getClass().getName();
+        if (cn.endsWith("Message")) {
+            return item;
+        }
+        // If it's an id
+        if (item instanceof Number) {
+            int id = ((Number) item).intValue();
+            return mbox.getMessageById(octxt, id);
+        }
+        if (item instanceof String) {
+            try {
+                int id = Integer.parseInt((String)item);
+                return mbox.getMessageById(octxt, id);
+            } catch (NumberFormatException ignore) {}
+        }
+        // Try to get an id via getId()
+        try {
+            Object idObj = item.getClass().getMethod("getId").invoke(item);
+            if (idObj instanceof Number) return mbox.getMessageById(octxt, ((Number) idObj).intValue());
+            if (idObj instanceof String) return mbox.getMessageById(octxt, Integer.parseInt((String) idObj));
+        } catch (Throwable ignore) {}
+        return null;
+    }
+
+    private Map<String, Object> zimbraGetMessage(Account acc, int messageId) throws ServiceException {
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acc);
+            OperationContext octxt = new OperationContext(acc);
+            Message msg = mbox.getMessageById(octxt, messageId);
+            Map<String, Object> m = new LinkedHashMap<>();
+            m.put("id", msg.getId());
+            m.put("subject", msg.getSubject());
+            m.put("from", msg.getSender());
+            m.put("date", msg.getDate());
+            m.put("size", msg.getSize());
+            return m;
+        } catch (Exception e) {
+            throw ServiceException.FAILURE("getMessage failed", e);
+        }
+    }
+
+    // The blob is only opened by the dispatcher, after Range/truncation are resolved
+    private MimeSource zimbraGetMessageMime(Account acc, int messageId) throws ServiceException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acc);
+        OperationContext octxt = new OperationContext(acc);
+        final Message msg = mbox.getMessageById(octxt, messageId);
+        final long size = msg.getSize();
+        final long version = msg.getSavedSequence();
+        return new MimeSource() {
+            @Override
+            public long size() { return size; }
+
+            @Override
+            public long contentVersion() { return version; }
+
+            @Override
+            public InputStream open(long offset) throws IOException {
+                InputStream in;
+                try {
+                    in = msg.getContentStream();
+                } catch (ServiceException e) {
+                    throw new IOException("blob unavailable: " + e.getMessage(), e);
+                }
+                if (in == null) throw new IOException("blob missing for message " + msg.getId());
+                try {
+                    MimeSource.skipFully(in, offset);
+                } catch (IOException e) {
+                    try { in.close(); } catch (IOException ignore) {}
+                    throw e;
+                }
+                return in;
+            }
+        };
+    }
+
+    // Contacts are loaded by id in batches of this size while the listing streams
+    private static final int CONTACT_BATCH = 500;
+
+    /**
+     * Full listing: the folder's contact ids (TypedIdList), then the contacts in
+     * batches. Delta: Mailbox.getModifiedItems since the given modseq, whose
+     * second half is the tombstones. A modseq older than the mailbox's sync
+     * cutoff (tombstones purged) falls back to a full listing.
+     */
+    @SuppressWarnings("unchecked")
+    private void zimbraGetContacts(Account acc, ContactQuery query, ContactQuery.Sink sink) throws ServiceException, IOException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acc);
+        OperationContext octxt = new OperationContext(acc);
+        mbox.getFolderById(octxt, query.folderId); // NO_SUCH_FOLDER before anything is written
+        long modseq = mbox.getLastChangeID();
+        boolean delta = query.isDelta();
+        if (delta) {
+            try {
+                int cutoff = ((Number) mbox.getClass().getMethod("getSyncCutoff").invoke(mbox)).intValue();
+                if (query.since < cutoff) delta = false;
+            } catch (Throwable ignore) {}
+        }
+        List<Integer> ids;
+        List<Integer> deleted = Collections.emptyList();
+        try {
+            if (delta) {
+                Object pair = mbox.getClass().getMethod("getModifiedItems", OperationContext.class, int.class, MailItem.Type.class, Set.class)
+                        .invoke(mbox, octxt, (int) query.since, MailItem.Type.CONTACT, Collections.singleton(query.folderId));
+                ids = (List<Integer>) pair.getClass().getMethod("getFirst").invoke(pair);
+                Object tombstones = pair.getClass().getMethod("getSecond").invoke(pair);
+                if (tombstones != null) deleted = typedIds(tombstones, MailItem.Type.CONTACT);
+            } else {
+                ids = typedIds(mbox.getClass().getMethod("getItemIds", OperationContext.class, int.class).invoke(mbox, octxt, query.folderId), MailItem.Type.CONTACT);
+            }
+        } catch (Exception e) {
+            throw ServiceException.FAILURE("contact listing failed", e);
+        }
+        sink.begin(modseq, delta);
+        java.lang.reflect.Method byIds;
+        try {
+            byIds = mbox.getClass().getMethod("getItemById", OperationContext.class, int[].class, MailItem.Type.class);
+        } catch (NoSuchMethodException e) {
+            byIds = null;
+        }
+        for (int from = 0; from < ids.size(); from += CONTACT_BATCH) {
+            int[] batch = new int[Math.min(CONTACT_BATCH, ids.size() - from)];
+            for (int i = 0; i < batch.length; i++) batch[i] = ids.get(from + i);
+            Object[] items;
+            try {
+                if (byIds != null) {
+                    items = (Object[]) byIds.invoke(mbox, octxt, batch, MailItem.Type.CONTACT);
+                } else {
+                    items = new Object[batch.length];
+                    for (int i = 0; i < batch.length; i++) items[i] = mbox.getContactById(octxt, batch[i]);
+                }
+            } catch (Exception e) {
+                throw new IOException("contact batch failed: " + e.getMessage(), e);
+            }
+            for (Object item : items) {
+                if (!(item instanceof Contact)) continue;
+                Contact c = (Contact) item;
+                sink.contact(c.getId(), c.getModifiedSequence(), hasPhoto(c) ? Integer.toString(c.getSavedSequence()) : null, c.getFields());
+            }
+        }
+        for (Integer id : deleted) sink.deleted(id);
+    }
+
+    // TypedIdList (ids grouped by item type): the ids of one type, else all of them
+    @SuppressWarnings("unchecked")
+    private static List<Integer> typedIds(Object typed, MailItem.Type type) throws Exception {
+        try {
+            Object l = typed.getClass().getMethod("getIds", MailItem.Type.class).invoke(typed, type);
+            return l != null ? new ArrayList<>((Collection<Integer>) l) : new ArrayList<Integer>();
+        } catch (NoSuchMethodException e) {
+            return new ArrayList<>((Collection<Integer>) typed.getClass().getMethod("getAllIds").invoke(typed));
+        }
+    }
+
+    private static Object photoAttachment(Contact c) {
+        try {
+            List<?> attachments = c.getAttachments();
+            if (attachments == null) return null;
+            for (Object a : attachments) {
+                if ("image".equals(a.getClass().getMethod("getName").invoke(a))) return a;
+            }
+        } catch (Throwable ignore) {}
+        return null;
+    }
+
+    private static boolean hasPhoto(Contact c) {
+        return photoAttachment(c) != null;
+    }
+
+    // The image attachment is only read when the dispatcher opens the source
+    private ContactQuery.Photo zimbraGetContactPhoto(Account acc, int contactId) throws ServiceException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acc);
+        final Contact c = mbox.getContactById(new OperationContext(acc), contactId);
+        final Object image = photoAttachment(c);
+        if (image == null) return null;
+        String type = "application/octet-stream";
+        final long size;
+        try {
+            Object ct = image.getClass().getMethod("getContentType").invoke(image);
+            if (ct != null) type = ct.toString();
+            size = ((Number) image.getClass().getMethod("getSize").invoke(image)).longValue();
+        } catch (Exception e) {
+            throw ServiceException.FAILURE("contact photo unavailable", e);
+        }
+        final long version = c.getSavedSequence();
+        return new ContactQuery.Photo(type, Long.toString(version), new MimeSource() {
+            @Override
+            public long size() { return size; }
+
+            @Override
+            public long contentVersion() { return version; }
+
+            @Override
+            public InputStream open(long offset) throws IOException {
+                InputStream in;
+                try {
+                    in = (InputStream) image.getClass().getMethod("getInputStream").invoke(image);
+                } catch (Exception e) {
+                    throw new IOException("photo unavailable for contact " + c.getId(), e);
+                }
+                try {
+                    MimeSource.skipFully(in, offset);
+                } catch (IOException e) {
+                    try { in.close(); } catch (IOException ignore) {}
+                    throw e;
+                }
+                return in;
+            }
+        });
+    }
+
+    /**
+     * Full listing: Mailbox.getCalendarItemsForRange over the window, which
+     * answers from Zimbra's own start/end index so series with no instance in
+     * the window are never loaded. Delta: getModifiedItems(APPOINTMENT) since
+     * the given modseq plus its tombstones, with the same sync-cutoff fallback
+     * as contacts. Instances come from CalendarItem.expandInstances, i.e.
+     * Zimbra's recurrence rules, exceptions and VTIMEZONE definitions, and
+     * only on an instance cache miss.
+     */
+    @SuppressWarnings("unchecked")
+    private void zimbraGetAppointments(Account acc, CalendarQuery query, CalendarQuery.Sink sink) throws ServiceException, IOException {
+        Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acc);
+        OperationContext octxt = new OperationContext(acc);
+        mbox.getFolderById(octxt, query.folderId); // NO_SUCH_FOLDER before anything is written
+        long modseq = mbox.getLastChangeID();
+        boolean delta = query.isDelta();
+        if (delta) {
+            try {
+                int cutoff = ((Number) mbox.getClass().getMethod("getSyncCutoff").invoke(mbox)).intValue();
+                if (query.since < cutoff) delta = false;
+            } catch (Throwable ignore) {}
+        }
+        Collection<?> items;
+        List<Integer> deleted = Collections.emptyList();
+        try {
+            if (delta) {
+                Object pair = mbox.getClass().getMethod("getModifiedItems", OperationContext.class, int.class, MailItem.Type.class, Set.class)
+                        .invoke(mbox, octxt, (int) query.since, MailItem.Type.APPOINTMENT, Collections.singleton(query.folderId));
+                List<Integer> ids = (List<Integer>) pair.getClass().getMethod("getFirst").invoke(pair);
+                Object tombstones = pair.getClass().getMethod("getSecond").invoke(pair);
+                if (tombstones != null) deleted = typedIds(tombstones, MailItem.Type.APPOINTMENT);
+                items = calendarItemsById(mbox, octxt, ids);
+            } else {
+                items = calendarItemsForRange(mbox, octxt, query);
+            }
+        } catch (Exception e) {
+            throw ServiceException.FAILURE("calendar listing failed", e);
+        }
+        sink.begin(modseq, delta);
+        for (Object item : items) {
+            if (item instanceof MailItem) sink.appointment(appointmentSeries((MailItem) item));
+        }
+        for (Integer id : deleted) sink.deleted(id);
+    }
+
+    private static Collection<?> calendarItemsForRange(Mailbox mbox, OperationContext octxt, CalendarQuery query) throws Exception {
+        try {
+            return (Collection<?>) mbox.getClass().getMethod("getCalendarItemsForRange", OperationContext.class, MailItem.Type.class,
+                    long.class, long.class, int.class, int[].class)
+                    .invoke(mbox, octxt, MailItem.Type.APPOINTMENT, query.start, query.end, query.folderId, null);
+        } catch (NoSuchMethodException e) {
+            return (Collection<?>) mbox.getClass().getMethod("getCalendarItemsForRange", OperationContext.class,
+                    long.class, long.class, int.class, int[].class)
+                    .invoke(mbox, octxt, query.start, query.end, query.folderId, null);
+        }
+    }
+
+    private static List<Object> calendarItemsById(Mailbox mbox, OperationContext octxt, List<Integer> ids) throws Exception {
+        int[] arr = new int[ids.size()];
+        for (int i = 0; i < arr.length; i++) arr[i] = ids.get(i);
+        try {
+            Object[] items = (Object[]) mbox.getClass().getMethod("getItemById", OperationContext.class, int[].class, MailItem.Type.class)
+                    .invoke(mbox, octxt, arr, MailItem.Type.APPOINTMENT);
+            return Arrays.asList(items);
+        } catch (NoSuchMethodException e) {
+            java.lang.reflect.Method one = mbox.getClass().getMethod("getItemById", OperationContext.class, int.class, MailItem.Type.class);
+            List<Object> out = new ArrayList<>(arr.length);
+            for (int id : arr) out.add(one.invoke(mbox, octxt, id, MailItem.Type.APPOINTMENT));
+            return out;
+        }
+    }
+
+    // Series fields from the default invite; instances are expanded lazily by the instance cache
+    private static CalendarQuery.Series appointmentSeries(final MailItem item) {
+        final int id = item.getId();
+        CalendarQuery.Series s = new CalendarQuery.Series(id, item.getModifiedSequence(), item.getSavedSequence(), (from, to, out) -> {
+            try {
+                Collection<?> instances = (Collection<?>) item.getClass().getMethod("expandInstances", long.class, long.class, boolean.class)
+                        .invoke(item, from, to, Boolean.FALSE);
+                if (instances == null) return;
+                for (Object inst : instances) {
+                    if (!(Boolean) inst.getClass().getMethod("hasStart").invoke(inst)) continue;
+                    long start = ((Number) inst.getClass().getMethod("getStart").invoke(inst)).longValue();
+                    long end = ((Number) inst.getClass().getMethod("getEnd").invoke(inst)).longValue();
+                    if (!out.add(start, end)) break;
+                }
+            } catch (Exception e) {
+                throw ShimException.failure("cannot expand appointment " + id + ": " + e.getMessage(), e);
+            }
+        });
+        s.uid = (String) call(item, "getUid");
+        s.subject = item.getSubject();
+        Object inv = call(item, "getDefaultInviteOrNull");
+        if (inv == null) return s;
+        String name = (String) call(inv, "getName");
+        if (name != null) s.subject = name;
+        s.location = (String) call(inv, "getLocation");
+        Object org = call(inv, "getOrganizer");
+        if (org != null) s.organizer = (String) call(org, "getAddress");
+        s.allDay = Boolean.TRUE.equals(call(inv, "isAllDayEvent"));
+        s.recurring = Boolean.TRUE.equals(call(inv, "isRecurrence"));
+        Object dt = call(inv, "getStartTime");
+        if (dt != null) {
+            Object utc = call(dt, "getUtcTime");
+            if (utc instanceof Number) s.dtstart = ((Number) utc).longValue();
+            s.tz = (String) call(dt, "getTZName");
+        }
+        try {
+            Object dur = call(inv, "getEffectiveDuration");
+            if (dur != null) s.duration = ((Number) dur.getClass().getMethod("getDurationAsMsecs", Date.class).invoke(dur, new Date(s.dtstart))).longValue();
+        } catch (Throwable ignore) {}
+        if (s.recurring) s.rrule = rrule(call(inv, "getRecurrence"));
+        return s;
+    }
+
+    // First RRULE of the recurrence (a ZRecur prints as RRULE text); null when it has none
+    private static String rrule(Object recurrence) {
+        try {
+            Iterator<?> it = (Iterator<?>) recurrence.getClass().getMethod("addRulesIterator").invoke(recurrence);
+            while (it != null && it.hasNext()) {
+                Object rule = call(it.next(), "getRule");
+                if (rule != null) return rule.toString();
+            }
+        } catch (Throwable ignore) {}
+        return null;
+    }
+
+    private static Object call(Object target, String method) {
+        try {
+            return target.getClass().getMethod(method).invoke(target);
+        } catch (Throwable t) {
+            return null;
+        }
+    }
+
+    /**
+     * Local attendee accounts only, after the viewFreeBusy right check. The
+     * loader runs Mailbox.getFreeBusy over all calendars that count towards
+     * free/busy, so transparency, declined invites and exceptions follow
+     * Zimbra's rules; every non-free interval counts as busy. The version is
+     * the highest modseq of the attendee's appointment folders.
+     */
+    private FreeBusyQuery.Source zimbraFreeBusySource(Account requester, String email) throws ServiceException {
+        Account target = Provisioning.getInstance().getAccountByName(email);
+        if (target == null) return FreeBusyQuery.Source.UNKNOWN;
+        if (!canViewFreeBusy(requester, target)) return FreeBusyQuery.Source.DENIED;
+        final Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(target);
+        long version = 0;
+        for (Folder f : mbox.getFolderList(new OperationContext(target), SortBy.NONE)) {
+            if (f.getDefaultView() == MailItem.Type.APPOINTMENT) version = Math.max(version, f.getImapMODSEQ());
+        }
+        return new FreeBusyQuery.Source(target.getId(), version, (from, to, out) -> {
+            try {
+                Object fb = mbox.getClass().getMethod("getFreeBusy", OperationContext.class, long.class, long.class, int.class)
+                        .invoke(mbox, null, from, to, -1); // FreeBusyQuery.CALENDAR_FOLDER_ALL
+                Iterator<?> it = (Iterator<?>) fb.getClass().getMethod("iterator").invoke(fb);
+                while (it.hasNext()) {
+                    Object iv = it.next();
+                    if ("F".equals(call(iv, "getStatus"))) continue;
+                    out.add(((Number) call(iv, "getStart")).longValue(), ((Number) call(iv, "getEnd")).longValue());
+                }
+            } catch (Exception e) {
+                throw ShimException.failure("free/busy unavailable for " + email + ": " + e.getMessage(), e);
+            }
+        });
+    }
+
+    // AccessManager.canDo(requester, target, User.R_viewFreeBusy); anything we cannot check is denied
+    private boolean canViewFreeBusy(Account requester, Account target) {
+        if (requester.getId().equals(target.getId())) return true;
+        try {
+            Class<?> amCls = loadZimbraClass("com.zimbra.cs.account.AccessManager");
+            Object am = amCls.getMethod("getInstance").invoke(null);
+            Object right = loadZimbraClass("com.zimbra.cs.account.accesscontrol.User").getField("R_viewFreeBusy").get(null);
+            for (java.lang.reflect.Method m : amCls.getMethods()) {
+                Class<?>[] p = m.getParameterTypes();
+                if (!m.getName().equals("canDo") || p.length != 4 || p[3] != boolean.class) continue;
+                if (!p[0].isInstance(requester) || !p[1].isInstance(target) || !p[2].isInstance(right)) continue;
+                return Boolean.TRUE.equals(m.invoke(am, requester, target, right, Boolean.FALSE));
+            }
+        } catch (Throwable t) {
+            try { ZimbraLog.extensions.debug("zpush-shim freebusy: right check failed for %s: %s", target.getName(), t.toString()); } catch (Throwable ignore) {}
+        }
+        return false;
+    }
+
+    /**
+     * One Mailbox call per group, each of which Zimbra runs as a single
+     * transaction over all ids: alterTag with Flag.FlagInfo UNREAD/FLAGGED or a
+     * tag name, move, or delete (hard). Called reflectively because the flag
+     * enum and the TargetConstraint overloads differ between releases.
+     */
+    private long zimbraApplyChanges(Account acc, ChangeBatch.Group g) throws ShimException {
+        Mailbox mbox;
+        OperationContext octxt;
+        try {
+            mbox = MailboxManager.getInstance().getMailboxByAccount(acc);
+            octxt = new OperationContext(acc);
+        } catch (ServiceException e) {
+            throw fail(e);
+        }
+        Object any = MailItem.Type.UNKNOWN;
+        try {
+            switch (g.kind) {
+                case READ: case UNREAD: case FLAG: case UNFLAG: {
+                    boolean unreadFlag = g.kind == ChangeBatch.Kind.READ || g.kind == ChangeBatch.Kind.UNREAD;
+                    Object flag = Enum.valueOf(enumClass("com.zimbra.cs.mailbox.Flag$FlagInfo"), unreadFlag ? "UNREAD" : "FLAGGED");
+                    boolean on = g.kind == ChangeBatch.Kind.UNREAD || g.kind == ChangeBatch.Kind.FLAG;
+                    invokeCompatible(mbox, "alterTag", octxt, g.ids, any, flag, on, null);
+                    break;
+                }
+                case TAG: case UNTAG:
+                    invokeCompatible(mbox, "alterTag", octxt, g.ids, any, g.tag, g.kind == ChangeBatch.Kind.TAG, null);
+                    break;
+                case MOVE:
+                    invokeCompatible(mbox, "move", octxt, g.ids, any, g.folderId, null);
+                    break;
+                case DELETE:
+                    invokeCompatible(mbox, "delete", octxt, g.ids, any, null);
+                    break;
+            }
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException) throw fail((ServiceException) cause);
+            throw ShimException.failure(g.kind.wireName() + " failed: " + cause, cause);
+        } catch (ReflectiveOperationException e) {
+            throw ShimException.failure(g.kind.wireName() + " unsupported: " + e, e);
+        }
+        return mbox.getLastChangeID();
+    }
+
+    /**
+     * MailSender.sendMimeMessage, the path SOAP SendMsg uses, so identities,
+     * Sent handling, address checks and the MTA hand-off behave as in the web
+     * client. A spooled file is parsed as a javax.mail SharedFileInputStream so
+     * JavaMail reads parts from disk instead of copying the message to heap.
+     * For reply/forward the original's ItemId with reply type "r"/"w" sets its
+     * flag and threads the sent copy.
+     */
+    private int zimbraSendMail(Account acc, SendMail send, MimeSpool mime) throws ShimException {
+        InputStream in = null;
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acc);
+            OperationContext octxt = new OperationContext(acc);
+            Class<?> sessionCls = loadZimbraClass("javax.mail.Session");
+            Object session = loadZimbraClass("com.zimbra.cs.util.JMSession").getMethod("getSession").invoke(null);
+            in = mime.file() != null
+                    ? (InputStream) loadZimbraClass("javax.mail.util.SharedFileInputStream").getConstructor(java.io.File.class).newInstance(mime.file())
+                    : mime.open(0);
+            Object mm = loadZimbraClass("com.zimbra.common.zmime.ZMimeMessage").getConstructor(sessionCls, InputStream.class).newInstance(session, in);
+            Object origId = null;
+            String replyType = null;
+            if (send.mode != SendMail.Mode.SEND) {
+                origId = loadZimbraClass("com.zimbra.cs.service.util.ItemId").getConstructor(Mailbox.class, int.class).newInstance(mbox, send.originalId);
+                replyType = send.mode == SendMail.Mode.REPLY ? "r" : "w";
+            }
+            Object sender = mbox.getClass().getMethod("getMailSender").invoke(mbox);
+            // (octxt, mbox, saveToSent, mm, uploads, origMsgId, replyType, identityId, replyToSender)
+            Object saved = invokeCompatible(sender, "sendMimeMessage", octxt, mbox, send.saveInSent, mm, null, origId, replyType, null, false);
+            Object id = saved != null ? call(saved, "getId") : null;
+            return id instanceof Number ? ((Number) id).intValue() : -1;
+        } catch (ServiceException e) {
+            throw fail(e);
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException) throw fail((ServiceException) cause);
+            throw ShimException.failure("send failed: " + cause, cause);
+        } catch (ReflectiveOperationException | IOException e) {
+            throw ShimException.failure("send unavailable: " + e, e);
+        } finally {
+            if (in != null) try { in.close(); } catch (IOException ignore) {}
+        }
+    }
+
+    /**
+     * Provisioning.searchGal(domain, "", all, token): the GAL sync search,
+     * so zimbraGalMode, external GAL and zimbraHideInGal apply as for SOAP
+     * SyncGal. With a token it returns entries modified since then and a new
+     * token. Each GalContact's attributes use contact names (fullName, email,
+     * workPhone, ...). Releases without it fall back to the domain's visible
+     * accounts and always load in full.
+     */
+    private String zimbraLoadGal(String domain, String token, GalDirectory.Sink sink) throws ShimException {
+        try {
+            Provisioning prov = Provisioning.getInstance();
+            Object d = prov.getClass().getMethod("getDomainByName", String.class).invoke(prov, domain);
+            if (d == null) throw ShimException.notFound("no such domain: " + domain);
+            Object all;
+            try {
+                all = Enum.valueOf(enumClass("com.zimbra.soap.type.GalSearchType"), "all");
+            } catch (ClassNotFoundException e) {
+                all = null;
+            }
+            Object result = null;
+            if (all != null) {
+                try {
+                    result = invokeCompatible(prov, "searchGal", d, "", all, token == null ? "" : token);
+                } catch (NoSuchMethodException ignore) {}
+            }
+            if (result == null) {
+                for (Object a : (Collection<?>) prov.getClass().getMethod("getAllAccounts", loadZimbraClass("com.zimbra.cs.account.Domain")).invoke(prov, d)) {
+                    Account acc = (Account) a;
+                    if ("TRUE".equalsIgnoreCase(acc.getAttr("zimbraHideInGal")) || !"active".equals(acc.getAttr("zimbraAccountStatus"))) continue;
+                    sink.entry(new GalIndex.Entry(acc.getId(), acc.getName(), acc.getDisplayName(), acc.getAttr("givenName"), acc.getAttr("sn"),
+                            acc.getAttr("company"), acc.getAttr("title"), acc.getAttr("telephoneNumber"), acc.getAttr("mobile")));
+                }
+                return null;
+            }
+            for (Object c : (Collection<?>) call(result, "getMatches")) {
+                Map<?, ?> attrs = (Map<?, ?>) call(c, "getAttrs");
+                String email = galAttr(attrs, "email");
+                if (email == null) continue;
+                sink.entry(new GalIndex.Entry((String) call(c, "getId"), email, galAttr(attrs, "fullName"),
+                        galAttr(attrs, "firstName"), galAttr(attrs, "lastName"), galAttr(attrs, "company"),
+                        galAttr(attrs, "jobTitle"), galAttr(attrs, "workPhone"), galAttr(attrs, "mobilePhone")));
+            }
+            Object next = call(result, "getToken");
+            return next != null ? next.toString() : null;
+        } catch (java.lang.reflect.InvocationTargetException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof ServiceException) throw fail((ServiceException) cause);
+            throw ShimException.failure("GAL load failed: " + cause, cause);
+        } catch (ReflectiveOperationException e) {
+            throw ShimException.failure("GAL unavailable: " + e, e);
+        }
+    }
+
+    // Multi-valued attributes (String[]) contribute their first value
+    private static String galAttr(Map<?, ?> attrs, String name) {
+        Object v = attrs != null ? attrs.get(name) : null;
+        if (v instanceof String[]) v = ((String[]) v).length > 0 ? ((String[]) v)[0] : null;
+        return v instanceof String && !((String) v).isEmpty() ? (String) v : null;
+    }
+
+    @SuppressWarnings({ "unchecked", "rawtypes" })
+    private Class<Enum> enumClass(String name) throws ClassNotFoundException {
+        return (Class<Enum>) loadZimbraClass(name);
+    }
+
+    // First public method called {@code name} whose parameters accept args (null for any reference type)
+    private static Object invokeCompatible(Object target, String name, Object... args) throws ReflectiveOperationException {
+        outer:
+        for (java.lang.reflect.Method m : target.getClass().getMethods()) {
+            Class<?>[] p = m.getParameterTypes();
+            if (!m.getName().equals(name) || p.length != args.length) continue;
+            for (int i = 0; i < p.length; i++) {
+                if (args[i] == null ? p[i].isPrimitive() : !wrap(p[i]).isInstance(args[i])) continue outer;
+            }
+            return m.invoke(target, args);
+        }
+        throw new NoSuchMethodException(target.getClass().getSimpleName() + "." + name + "/" + args.length);
+    }
+
+    private static Class<?> wrap(Class<?> c) {
+        if (c == int.class) return Integer.class;
+        if (c == boolean.class) return Boolean.class;
+        if (c == long.class) return Long.class;
+        return c;
+    }
+
+    private Map<String, Object> zimbraGetUserInfo(Account acc) {
+        Map<String, Object> m = new LinkedHashMap<>();
+        m.put("accountId", acc.getId());
+        m.put("name", acc.getName());
+        m.put("displayName", acc.getDisplayName());
+        try {
+            String tz = null;
+            try { tz = (String) acc.getClass().getMethod("getAttr", String.class).invoke(acc, "zimbraPrefTimeZoneId"); } catch (Throwable ignore2) {}
+            if (tz != null && !tz.isEmpty()) m.put("timezone", tz);
+        } catch (Throwable ignore) {}
+        try {
+            String loc = null;
+            try { loc = (String) acc.getClass().getMethod("getAttr", String.class).invoke(acc, "zimbraPrefLocale"); } catch (Throwable ignore2) {}
+            if (loc != null && !loc.isEmpty()) m.put("locale", loc);
+        } catch (Throwable ignore) {}
+        try {
+            Mailbox mbox = MailboxManager.getInstance().getMailboxByAccount(acc);
+            m.put("quotaUsed", mbox.getSize());
+        } catch (Throwable ignore) {}
+        try {
+            m.put("quotaLimit", acc.getMailQuota());
+        } catch (Throwable ignore) {}
+        return m;
+    }
+}
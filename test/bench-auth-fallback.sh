@@ -0,0 +1,60 @@
+#!/usr/bin/env bash
+# Offline benchmark of the app-password fallback chain (AutoDiscover probe -> IMAP LOGIN)
+# against the dev server's fake IMAP/AutoDiscover endpoints, with injected latency and faults.
+#
+# Usage: test/bench-auth-fallback.sh            (after `ant compile-devserver`)
+# Env:   BENCH_N=40 BENCH_C=8 BENCH_PORT=18090 BENCH_MAX_MS=9000 BENCH_CP=build:lib/gson-2.10.1.jar
+#
+# Fails (exit 1) when a scenario gives the wrong status or its slowest request exceeds
+# BENCH_MAX_MS (default: 3 attempts x 2.5s timeout + slack), i.e. the chain's worst case regressed.
+set -euo pipefail
+
+HERE="$(cd "$(dirname "$0")" && pwd)"
+ROOT="$(cd "$HERE/.." && pwd)"
+N="${BENCH_N:-40}"
+C="${BENCH_C:-8}"
+PORT="${BENCH_PORT:-18090}"
+MAX_MS="${BENCH_MAX_MS:-9000}"
+CP="${BENCH_CP:-$ROOT/build:$ROOT/lib/gson-2.10.1.jar}"
+URL="http://127.0.0.1:$PORT/service/extension/zpush-shim"
+USER_OK="alice@example.com"
+PASS_OK="app-pass"
+FAILED=0
+PID=""
+
+cleanup() { [ -n "$PID" ] && kill "$PID" 2>/dev/null || true; }
+trap cleanup EXIT
+
+# scenario NAME EXPECTED_STATUS|any PASSWORD DEVSERVER_ARGS...
+scenario() {
+  local name="$1" want="$2" pass="$3"; shift 3
+  java -cp "$CP" com.zimbra.zpush.shim.DevServer -p "$PORT" -t "$C" "$@" > "/tmp/bench-auth-$name.log" 2>&1 &
+  PID=$!
+  for _ in $(seq 1 80); do curl -s -o /dev/null -d action=ping "$URL" && break; sleep 0.25; done
+  local out
+  out=$(seq 1 "$N" | xargs -P "$C" -I{} curl -s -o /dev/null -w '%{http_code} %{time_total}\n' \
+          --data-urlencode action=authenticate --data-urlencode "username=$USER_OK" --data-urlencode "password=$pass" "$URL")
+  kill "$PID" 2>/dev/null || true; wait "$PID" 2>/dev/null || true; PID=""
+  echo "$out" | sort -k2 -g | awk -v name="$name" -v want="$want" -v max_ms="$MAX_MS" '
+    { n++; ms[n] = $2 * 1000; if (want != "any" && $1 != want) bad++ }
+    END {
+      p50 = ms[int(n * 0.50 + 0.5) > 0 ? int(n * 0.50 + 0.5) : 1]
+      p95 = ms[int(n * 0.95 + 0.5) > 0 ? int(n * 0.95 + 0.5) : 1]
+      printf "%-14s n=%-4d p50=%7.0fms p95=%7.0fms max=%7.0fms  unexpected-status=%d\n", name, n, p50, p95, ms[n], bad
+      exit (bad > 0 || ms[n] > max_ms) ? 1 : 0
+    }' || FAILED=1
+}
+
+echo "Auth fallback bench: $N requests x $C concurrent per scenario, budget ${MAX_MS}ms"
+FAKE="users=$USER_OK:$PASS_OK"
+scenario autodiscover-ok 200 "$PASS_OK" --fake-auth "$FAKE,latency=20,jitter=20"
+scenario imap-ok         200 "$PASS_OK" --fake-imap "$FAKE,latency=50,jitter=50"
+scenario reject-all      401 wrong      --fake-auth "$FAKE,latency=20"
+scenario flaky           any "$PASS_OK" --fake-autodiscover "accept=none,reset=0.3" --fake-imap "$FAKE,reset=0.2,latency=30"
+scenario hang-all        401 "$PASS_OK" --fake-auth "$FAKE,hang=1,hangMs=30000"
+
+if [ "$FAILED" -ne 0 ]; then
+  echo "FAIL: at least one scenario exceeded ${MAX_MS}ms or returned an unexpected status (logs: /tmp/bench-auth-*.log)"
+  exit 1
+fi
+echo "OK"
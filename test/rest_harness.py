@@ -148,6 +148,7 @@ def run_tests(cfg: Dict[str, Any]) -> int:
         exp_status = expect.get("status")
         exp_contains = expect.get("contains")
         exp_json = expect.get("json")
+        exp_headers = expect.get("headers") or {}
 
         try:
             resp = session.request(method, url, headers=headers, verify=verify_tls, timeout=15, **data_kw)
@@ -160,6 +161,12 @@ def run_tests(cfg: Dict[str, Any]) -> int:
             if exp_contains is not None and exp_contains not in text:
                 ok = False; reasons.append(f"missing substring '{exp_contains}'")
 
+            # Response headers must contain the expected substring (names are case-insensitive)
+            for hk, hv in exp_headers.items():
+                actual = resp.headers.get(hk)
+                if actual is None or str(hv) not in actual:
+                    ok = False; reasons.append(f"header {hk} = {actual!r} lacks '{hv}'")
+
             if exp_json is not None:
                 try:
                     j = resp.json()
@@ -181,8 +188,12 @@ def run_tests(cfg: Dict[str, Any]) -> int:
                 preview = (text[:200] or "").replace("\n", "\\n")
                 print(f"       body: {preview}...")
 
-            # Capture variables from JSON if requested
+            # Capture variables from JSON if requested; "header:Name" captures a response header
             cap = t.get("capture") or {}
+            for dest, src in list(cap.items()):
+                if str(src).startswith("header:"):
+                    captures[dest] = resp.headers.get(src[len("header:"):])
+                    del cap[dest]
             if cap:
                 try:
                     j = resp.json()